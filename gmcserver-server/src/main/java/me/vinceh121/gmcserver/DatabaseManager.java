@@ -19,12 +19,12 @@ package me.vinceh121.gmcserver;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
-import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.collections4.keyvalue.UnmodifiableMapEntry;
 import org.bson.Document;
@@ -37,6 +37,9 @@ import org.bson.codecs.pojo.Conventions;
 import org.bson.codecs.pojo.PojoCodecProvider;
 import org.bson.codecs.pojo.PropertyModelBuilder;
 import org.bson.conversions.Bson;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 import com.mongodb.ConnectionString;
 import com.mongodb.MongoClientSettings;
@@ -48,9 +51,14 @@ import com.mongodb.client.model.IndexOptions;
 import com.mongodb.client.model.Indexes;
 import com.mongodb.client.model.geojson.codecs.GeoJsonCodecProvider;
 
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+
 import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.DeviceCalendar;
 import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RecordRollup;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.managers.AbstractManager;
 
@@ -60,6 +68,9 @@ public class DatabaseManager extends AbstractManager {
 	private final PojoCodecProvider pojoCodecProvider;
 	private final CodecRegistry codecRegistry;
 	private final Hashtable<Class<?>, MongoCollection<?>> collections;
+	private final com.mongodb.reactivestreams.client.MongoClient asyncClient;
+	private final com.mongodb.reactivestreams.client.MongoDatabase asyncDatabase;
+	private final Hashtable<Class<?>, com.mongodb.reactivestreams.client.MongoCollection<?>> asyncCollections;
 
 	public DatabaseManager(final GMCServer srv) {
 		super(srv);
@@ -94,10 +105,16 @@ public class DatabaseManager extends AbstractManager {
 		this.client = MongoClients.create(set);
 		this.database = this.client.getDatabase(this.srv.getConfig().getProperty("mongo.database"));
 
+		this.asyncClient = com.mongodb.reactivestreams.client.MongoClients.create(set);
+		this.asyncDatabase = this.asyncClient.getDatabase(this.srv.getConfig().getProperty("mongo.database"));
+
 		this.collections = new Hashtable<>();
+		this.asyncCollections = new Hashtable<>();
 
 		for (final GMCCol col : GMCCol.values()) {
 			this.collections.put(col.getClazz(), this.database.getCollection(col.getName(), col.getClazz()));
+			this.asyncCollections.put(col.getClazz(),
+					this.asyncDatabase.getCollection(col.getName(), col.getClazz()));
 		}
 		this.checkIndexes();
 	}
@@ -113,10 +130,22 @@ public class DatabaseManager extends AbstractManager {
 				Arrays.asList(
 						new UnmodifiableMapEntry<>(Indexes.geo2dsphere("location"),
 								new IndexOptions().name("map")),
-						new UnmodifiableMapEntry<>(Indexes.ascending("ownerId"), new IndexOptions().name("owners"))));
+						new UnmodifiableMapEntry<>(Indexes.ascending("ownerId"), new IndexOptions().name("owners")),
+						new UnmodifiableMapEntry<>(Indexes.ascending("gmcId"), new IndexOptions().name("gmcId"))));
+		defaultIndexes.put(User.class,
+				Arrays.asList(new UnmodifiableMapEntry<>(Indexes.ascending("gmcId"), new IndexOptions().name("gmcId"))));
+		defaultIndexes.put(RecordRollup.class,
+				Arrays.asList(new UnmodifiableMapEntry<>(Indexes.ascending("deviceId", "granularity", "start"),
+						new IndexOptions().name("bucket").unique(true))));
 		defaultIndexes.put(DeviceCalendar.class,
-				Arrays.asList(new UnmodifiableMapEntry<>(Indexes.ascending("createdAt"),
-						new IndexOptions().name("expiery").expireAfter(1L, TimeUnit.DAYS))));
+				Arrays.asList(new UnmodifiableMapEntry<>(Indexes.ascending("deviceId"),
+						new IndexOptions().name("device"))));
+
+		// key: collection class
+		// value: names of indexes that aren't used anymore
+		final Map<Class<?>, List<String>> obsoleteIndexes = new Hashtable<>();
+		// calendars are now refreshed incrementally instead of expiring
+		obsoleteIndexes.put(DeviceCalendar.class, Arrays.asList("expiery"));
 
 		for (final Entry<Class<?>, List<Entry<Bson, IndexOptions>>> e : defaultIndexes.entrySet()) {
 			final MongoCollection<?> coll = this.getCollection(e.getKey());
@@ -131,6 +160,12 @@ public class DatabaseManager extends AbstractManager {
 					coll.createIndex(indexOpts.getKey(), indexOpts.getValue());
 				}
 			}
+			for (final String name : obsoleteIndexes.getOrDefault(e.getKey(), Collections.emptyList())) {
+				if (indexNames.contains(name)) {
+					this.log.warn("Dropping index {} on collection {}", name, e.getKey().getSimpleName());
+					coll.dropIndex(name);
+				}
+			}
 		}
 	}
 
@@ -145,9 +180,78 @@ public class DatabaseManager extends AbstractManager {
 		return col;
 	}
 
+	public com.mongodb.reactivestreams.client.MongoDatabase getAsyncDatabase() {
+		return this.asyncDatabase;
+	}
+
+	/**
+	 * Non-blocking counterpart of {@link #getCollection(Class)}, backed by the
+	 * reactive streams driver and the same codecs.
+	 */
+	public <T> com.mongodb.reactivestreams.client.MongoCollection<T> getAsyncCollection(final Class<T> clazz) {
+		@SuppressWarnings("unchecked")
+		final com.mongodb.reactivestreams.client.MongoCollection<T> col
+				= (com.mongodb.reactivestreams.client.MongoCollection<T>) this.asyncCollections.get(clazz);
+		Objects.nonNull(col);
+		return col;
+	}
+
+	/**
+	 * Subscribes to the publisher and completes with its first item, or
+	 * {@code null} if it completes empty. The future is completed on the calling
+	 * Vert.x context.
+	 */
+	public <T> Future<T> first(final Publisher<T> publisher) {
+		final Context context = this.srv.getVertx().getOrCreateContext();
+		final Promise<T> promise = Promise.promise();
+		publisher.subscribe(new Subscriber<T>() {
+			private Subscription subscription;
+			private boolean done;
+
+			@Override
+			public void onSubscribe(final Subscription s) {
+				this.subscription = s;
+				s.request(1);
+			}
+
+			@Override
+			public void onNext(final T t) {
+				if (this.done) {
+					return;
+				}
+				this.done = true;
+				this.subscription.cancel();
+				context.runOnContext(v -> promise.tryComplete(t));
+			}
+
+			@Override
+			public void onError(final Throwable t) {
+				this.done = true;
+				context.runOnContext(v -> promise.tryFail(t));
+			}
+
+			@Override
+			public void onComplete() {
+				if (!this.done) {
+					this.done = true;
+					context.runOnContext(v -> promise.tryComplete());
+				}
+			}
+		});
+		return promise.future();
+	}
+
+	/**
+	 * @return a read stream over the publisher's items, delivered on the calling
+	 *         Vert.x context
+	 */
+	public <T> PublisherReadStream<T> stream(final Publisher<T> publisher) {
+		return new PublisherReadStream<>(this.srv.getVertx().getOrCreateContext(), publisher, 256);
+	}
+
 	private enum GMCCol {
 		USERS("users", User.class), DEVICES("devices", Device.class), RECORDS("records", Record.class),
-		CALENDARS("calendars", DeviceCalendar.class);
+		CALENDARS("calendars", DeviceCalendar.class), ROLLUPS("rollups", RecordRollup.class);
 
 		private final String name;
 		private final Class<?> clazz;
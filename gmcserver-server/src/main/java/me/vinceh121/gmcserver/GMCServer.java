@@ -22,10 +22,8 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.security.SecureRandom;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
 import java.util.Properties;
+import java.util.concurrent.ExecutionException;
 import java.util.regex.Pattern;
 
 import org.apache.commons.codec.DecoderException;
@@ -36,19 +34,17 @@ import org.apache.logging.log4j.message.FormattedMessage;
 
 import de.mkammerer.argon2.Argon2;
 import de.mkammerer.argon2.Argon2Factory;
+import io.vertx.core.DeploymentOptions;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
 import io.vertx.core.eventbus.EventBus;
 import io.vertx.core.http.HttpClient;
 import io.vertx.core.http.HttpClientOptions;
-import io.vertx.core.http.HttpServer;
 import io.vertx.core.json.JsonObject;
-import io.vertx.ext.web.Router;
+import io.vertx.core.spi.cluster.ClusterManager;
 import io.vertx.ext.web.client.WebClient;
 import io.vertx.ext.web.client.WebClientOptions;
 import io.vertx.ext.web.handler.BodyHandler;
-import io.vertx.ext.web.handler.FileSystemAccess;
-import io.vertx.ext.web.handler.StaticHandler;
 import me.vinceh121.gmcserver.auth.AbstractAuthenticator;
 import me.vinceh121.gmcserver.auth.InternalAuthenticator;
 import me.vinceh121.gmcserver.entities.AbstractEntity;
@@ -56,30 +52,30 @@ import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.Record;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.event.EntityCodec;
+import me.vinceh121.gmcserver.event.RecordCodec;
 import me.vinceh121.gmcserver.handlers.APIHandler;
 import me.vinceh121.gmcserver.handlers.AuthHandler;
 import me.vinceh121.gmcserver.handlers.CorsHandler;
 import me.vinceh121.gmcserver.handlers.StrictAuthHandler;
+import me.vinceh121.gmcserver.ingest.MqttVerticle;
+import me.vinceh121.gmcserver.ingest.UdpVerticle;
 import me.vinceh121.gmcserver.json.MongoJackson;
 import me.vinceh121.gmcserver.managers.AlertManager;
+import me.vinceh121.gmcserver.managers.CredentialsManager;
 import me.vinceh121.gmcserver.managers.DeviceCalendarManager;
 import me.vinceh121.gmcserver.managers.DeviceManager;
+import me.vinceh121.gmcserver.managers.ExecutorManager;
 import me.vinceh121.gmcserver.managers.ImportManager;
+import me.vinceh121.gmcserver.managers.HotTailManager;
+import me.vinceh121.gmcserver.managers.LiveFeedManager;
+import me.vinceh121.gmcserver.managers.MapManager;
 import me.vinceh121.gmcserver.managers.LoggingManager;
 import me.vinceh121.gmcserver.managers.ProxyManager;
+import me.vinceh121.gmcserver.managers.RollupManager;
+import me.vinceh121.gmcserver.managers.StatsManager;
 import me.vinceh121.gmcserver.managers.UserManager;
 import me.vinceh121.gmcserver.managers.email.EmailManager;
 import me.vinceh121.gmcserver.mfa.MFAManager;
-import me.vinceh121.gmcserver.modules.AbstractModule;
-import me.vinceh121.gmcserver.modules.AdminModule;
-import me.vinceh121.gmcserver.modules.AuthModule;
-import me.vinceh121.gmcserver.modules.CaptchaModule;
-import me.vinceh121.gmcserver.modules.DeviceModule;
-import me.vinceh121.gmcserver.modules.GeoModule;
-import me.vinceh121.gmcserver.modules.ImportExportModule;
-import me.vinceh121.gmcserver.modules.InstanceModule;
-import me.vinceh121.gmcserver.modules.LoggingModule;
-import me.vinceh121.gmcserver.modules.UserModule;
 import xyz.bowser65.tokenize.Tokenize;
 
 public class GMCServer {
@@ -89,8 +85,6 @@ public class GMCServer {
 
 	private final Vertx vertx;
 
-	private final HttpServer srv;
-	private final Router baseRouter, apiRouter;
 	private final HttpClient httpClient;
 	private final WebClient webClient;
 
@@ -105,17 +99,22 @@ public class GMCServer {
 
 	private final AbstractAuthenticator authenticator;
 
-	private final Collection<AbstractModule> modules = new ArrayList<>();
-
 	//// Managers
+	private ExecutorManager executorManager;
 	private DatabaseManager databaseManager;
 	private MFAManager mfaManager;
 	private UserManager userManager;
 	private DeviceManager deviceManager;
 	private EmailManager emailManager;
 	private AlertManager alertManager;
+	private StatsManager statsManager;
+	private RollupManager rollupManager;
 	private DeviceCalendarManager deviceCalendarManager;
 	private LoggingManager loggingManager;
+	private CredentialsManager credentialsManager;
+	private LiveFeedManager liveFeedManager;
+	private HotTailManager hotTailManager;
+	private MapManager mapManager;
 	private ProxyManager proxyManager;
 	private ImportManager importManager;
 
@@ -188,30 +187,22 @@ public class GMCServer {
 			throw new IllegalStateException(e);
 		}
 
-		this.vertx = Vertx.vertx(options);
-		this.srv = this.vertx.createHttpServer();
-		this.srv.exceptionHandler(t -> GMCServer.LOG.error("Unexpected error", t));
+		if (Boolean.parseBoolean(this.config.getProperty("cluster.enabled"))) {
+			this.vertx = this.joinCluster(options);
+		} else {
+			this.vertx = Vertx.vertx(options);
+		}
 
 		this.setupEventBusCodecs();
 
 		this.registerManagers();
 
-		this.baseRouter = Router.router(this.vertx);
-		this.baseRouter.errorHandler(500, ctx -> GMCServer.LOG.error("Unexpected HTTP error", ctx.failure()));
-		this.srv.requestHandler(this.baseRouter);
-
-		this.apiRouter = Router.router(this.vertx);
-		this.baseRouter.route("/api/v1/*").subRouter(this.apiRouter);
-		this.apiRouter.errorHandler(500, ctx -> GMCServer.LOG.error("Unexpected error in API", ctx.failure()));
-
 		this.bodyHandler = BodyHandler.create();
 		this.apiHandler = new APIHandler();
 		this.authHandler = new AuthHandler(this);
 		this.strictAuthHandler = new StrictAuthHandler();
 		this.corsHandler = new CorsHandler(this.getConfig().getProperty("cors.web-host"));
 
-		this.apiRouter.route().handler(this.corsHandler);
-
 		HttpClientOptions httpOpts = new HttpClientOptions();
 		httpOpts.setSsl(true);
 		this.httpClient = this.vertx.createHttpClient(httpOpts);
@@ -219,26 +210,45 @@ public class GMCServer {
 		final WebClientOptions webOpts = new WebClientOptions();
 		webOpts.setUserAgent("GMCServer/" + GMCBuild.VERSION + " (Vert.x Web Client) - https://home.gmc.vinceh121.me");
 		this.webClient = WebClient.create(this.vertx, webOpts);
+	}
 
-		this.registerModules();
-
-		if (Boolean.parseBoolean(this.config.getProperty("web.enabled"))) {
-			this.setupWebRouter(this.vertx);
+	private Vertx joinCluster(final VertxOptions options) {
+		if (!this.config.containsKey("cluster.manager")) {
+			GMCServer.LOG.error("cluster.enabled is set without cluster.manager");
+			System.exit(-3);
+			throw new IllegalStateException("cluster.enabled is set without cluster.manager");
+		}
+		try {
+			options.setClusterManager((ClusterManager) Class.forName(this.config.getProperty("cluster.manager"))
+				.getConstructor()
+				.newInstance());
+		} catch (final Exception e) {
+			GMCServer.LOG.error("Failed to initiate cluster manager", e);
+			throw new IllegalStateException(e);
+		}
+		if (this.config.containsKey("cluster.host")) {
+			options.getEventBusOptions().setHost(this.config.getProperty("cluster.host"));
+		}
+		if (this.config.containsKey("cluster.port")) {
+			options.getEventBusOptions().setPort(Integer.parseInt(this.config.getProperty("cluster.port")));
+		}
+		if (this.config.containsKey("cluster.public-host")) {
+			options.getEventBusOptions().setClusterPublicHost(this.config.getProperty("cluster.public-host"));
 		}
-	}
 
-	private void setupWebRouter(final Vertx vertx) {
-		GMCServer.LOG.info("Starting web server");
-		final Router webRouter = Router.router(vertx);
-		final StaticHandler webHandler = StaticHandler.create(FileSystemAccess.ROOT,
-				this.config.getProperty("web.root"));
-		webHandler.setIncludeHidden(false);
-		webRouter.route().handler(webHandler).handler(ctx -> ctx.reroute("/"));
-		this.baseRouter.route("/*").subRouter(webRouter);
+		try {
+			final Vertx clustered = Vertx.clusteredVertx(options).toCompletionStage().toCompletableFuture().get();
+			GMCServer.LOG.info("Joined cluster with {} nodes", options.getClusterManager().getNodes().size());
+			return clustered;
+		} catch (final InterruptedException | ExecutionException e) {
+			GMCServer.LOG.error("Failed to join cluster", e);
+			System.exit(-3);
+			throw new IllegalStateException(e);
+		}
 	}
 
 	private void setupEventBusCodecs() {
-		this.setupEventBusCodecClass(Record.class);
+		this.getEventBus().registerDefaultCodec(Record.class, new RecordCodec());
 		this.setupEventBusCodecClass(User.class);
 		this.setupEventBusCodecClass(Device.class);
 	}
@@ -248,47 +258,80 @@ public class GMCServer {
 	}
 
 	private void registerManagers() {
+		this.executorManager = new ExecutorManager(this);
 		this.databaseManager = new DatabaseManager(this);
 		this.mfaManager = new MFAManager(this);
 		this.userManager = new UserManager(this);
 		this.deviceManager = new DeviceManager(this);
 		this.emailManager = new EmailManager(this);
 		this.alertManager = new AlertManager(this);
+		this.statsManager = new StatsManager(this);
+		this.hotTailManager = new HotTailManager(this);
+		this.rollupManager = new RollupManager(this);
 		this.deviceCalendarManager = new DeviceCalendarManager(this);
 		this.loggingManager = new LoggingManager(this);
+		this.credentialsManager = new CredentialsManager(this);
+		this.liveFeedManager = new LiveFeedManager(this);
+		this.mapManager = new MapManager(this);
 		this.proxyManager = new ProxyManager(this);
 		this.importManager = new ImportManager(this);
 	}
 
-	private void registerModules() {
-		this.modules.addAll(Arrays.asList(new LoggingModule(this),
-				new DeviceModule(this),
-				new AuthModule(this),
-				new GeoModule(this),
-				new UserModule(this),
-				new ImportExportModule(this),
-				new InstanceModule(this),
-				new AdminModule(this),
-				new CaptchaModule(this)));
-	}
-
+	/**
+	 * Deploys {@code server.instances} HTTP verticles, one per core by
+	 * default, all listening on the same port, and as many MQTT verticles if
+	 * enabled. The UDP verticle, if enabled, is deployed once since datagram
+	 * sockets can't share a port and duplicate suppression is kept in memory.
+	 */
 	public void start() {
 		final String host = this.config.getProperty("server.host", "127.0.0.1");
-		this.srv.listen(Integer.parseInt(this.config.getProperty("server.port")), host).onSuccess(s -> {
-			GMCServer.LOG.info("Listening on {}:{}", host, this.srv.actualPort());
-		}).onFailure(t -> {
-			GMCServer.LOG.error(
-					new FormattedMessage("Failed to listen on {}:{}", host, this.config.getProperty("server.port")),
-					t);
-		});
-	}
-
-	public Router getBaseRouter() {
-		return this.baseRouter;
-	}
-
-	public Router getApiRouter() {
-		return this.apiRouter;
+		final int instances = Integer.parseInt(this.config.getProperty("server.instances",
+				String.valueOf(Runtime.getRuntime().availableProcessors())));
+		if (Boolean.parseBoolean(this.config.getProperty("web.enabled"))) {
+			GMCServer.LOG.info("Starting web server");
+		}
+		this.deviceManager.backfillLastRecords().execute().onSuccess(count -> {
+			if (count != 0) {
+				GMCServer.LOG.info("Backfilled last record of {} devices", count);
+				// the map index was loaded without these snapshots
+				this.mapManager.reconcile();
+			}
+		}).onFailure(t -> GMCServer.LOG.error("Failed to backfill last records", t));
+		this.rollupManager.backfillRollups()
+			.setMissingOnly(true)
+			.execute()
+			.onFailure(t -> GMCServer.LOG.error("Failed to backfill rollups", t));
+		this.hotTailManager.warm();
+		this.vertx.deployVerticle(() -> new HttpVerticle(this), new DeploymentOptions().setInstances(instances))
+			.onSuccess(id -> {
+				GMCServer.LOG.info("Listening on {}:{} with {} instances",
+						host,
+						this.config.getProperty("server.port"),
+						instances);
+			})
+			.onFailure(t -> {
+				GMCServer.LOG.error(
+						new FormattedMessage("Failed to listen on {}:{}", host, this.config.getProperty("server.port")),
+						t);
+			});
+		if (Boolean.parseBoolean(this.config.getProperty("mqtt.enabled"))) {
+			this.vertx.deployVerticle(() -> new MqttVerticle(this), new DeploymentOptions().setInstances(instances))
+				.onSuccess(id -> {
+					GMCServer.LOG.info("Listening for MQTT on {}:{}",
+							this.config.getProperty("mqtt.host", "127.0.0.1"),
+							this.config.getProperty("mqtt.port", "1883"));
+				})
+				.onFailure(t -> GMCServer.LOG.error("Failed to start MQTT server", t));
+		}
+		if (Boolean.parseBoolean(this.config.getProperty("udp.enabled"))) {
+			this.vertx.deployVerticle(new UdpVerticle(this))
+				.onSuccess(id -> {
+					GMCServer.LOG.info("Listening for UDP on {}:{}",
+							this.config.getProperty("udp.host", "127.0.0.1"),
+							this.config.getProperty("udp.port", "8089"));
+				})
+				.onFailure(t -> GMCServer.LOG.error("Failed to start UDP server", t));
+		}
 	}
 
 	public BodyHandler getBodyHandler() {
@@ -307,6 +350,10 @@ public class GMCServer {
 		return this.strictAuthHandler;
 	}
 
+	public CorsHandler getCorsHandler() {
+		return this.corsHandler;
+	}
+
 	public Tokenize getTokenize() {
 		return this.tokenize;
 	}
@@ -343,8 +390,8 @@ public class GMCServer {
 		return this.authenticator;
 	}
 
-	public Collection<AbstractModule> getModules() {
-		return this.modules;
+	public ExecutorManager getExecutorManager() {
+		return this.executorManager;
 	}
 
 	public DatabaseManager getDatabaseManager() {
@@ -371,6 +418,14 @@ public class GMCServer {
 		return this.alertManager;
 	}
 
+	public StatsManager getStatsManager() {
+		return this.statsManager;
+	}
+
+	public RollupManager getRollupManager() {
+		return this.rollupManager;
+	}
+
 	public DeviceCalendarManager getDeviceCalendarManager() {
 		return this.deviceCalendarManager;
 	}
@@ -379,6 +434,22 @@ public class GMCServer {
 		return this.loggingManager;
 	}
 
+	public CredentialsManager getCredentialsManager() {
+		return this.credentialsManager;
+	}
+
+	public LiveFeedManager getLiveFeedManager() {
+		return this.liveFeedManager;
+	}
+
+	public HotTailManager getHotTailManager() {
+		return this.hotTailManager;
+	}
+
+	public MapManager getMapManager() {
+		return this.mapManager;
+	}
+
 	public ProxyManager getProxyManager() {
 		return this.proxyManager;
 	}
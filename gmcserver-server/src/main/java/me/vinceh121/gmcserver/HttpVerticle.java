@@ -0,0 +1,126 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.http.HttpServer;
+import io.vertx.ext.web.Router;
+import io.vertx.ext.web.handler.FileSystemAccess;
+import io.vertx.ext.web.handler.StaticHandler;
+import me.vinceh121.gmcserver.handlers.GmcLogHandler;
+import me.vinceh121.gmcserver.modules.AbstractModule;
+import me.vinceh121.gmcserver.modules.AdminModule;
+import me.vinceh121.gmcserver.modules.AuthModule;
+import me.vinceh121.gmcserver.modules.CaptchaModule;
+import me.vinceh121.gmcserver.modules.DeviceModule;
+import me.vinceh121.gmcserver.modules.GeoModule;
+import me.vinceh121.gmcserver.modules.ImportExportModule;
+import me.vinceh121.gmcserver.modules.InstanceModule;
+import me.vinceh121.gmcserver.modules.LoggingModule;
+import me.vinceh121.gmcserver.modules.UserModule;
+
+/**
+ * One HTTP server with its own router tree and modules, bound to a single
+ * event loop.
+ *
+ * Several instances are deployed listening on the same port, Vert.x then
+ * balances connections between them. Managers and handlers are shared through
+ * {@link GMCServer} and must be thread safe.
+ */
+public class HttpVerticle extends AbstractVerticle {
+	private static final Logger LOG = LogManager.getLogger(HttpVerticle.class);
+	private final GMCServer srv;
+	private final Collection<AbstractModule> modules = new ArrayList<>();
+	private Router baseRouter, apiRouter;
+	private HttpServer server;
+
+	public HttpVerticle(final GMCServer srv) {
+		this.srv = srv;
+	}
+
+	@Override
+	public void start(final Promise<Void> startPromise) {
+		this.server = this.vertx.createHttpServer();
+		this.server.exceptionHandler(t -> HttpVerticle.LOG.error("Unexpected error", t));
+
+		this.baseRouter = Router.router(this.vertx);
+		this.baseRouter.errorHandler(500, ctx -> HttpVerticle.LOG.error("Unexpected HTTP error", ctx.failure()));
+		this.server.requestHandler(new GmcLogHandler(this.srv, this.baseRouter));
+
+		this.apiRouter = Router.router(this.vertx);
+		this.baseRouter.route("/api/v1/*").subRouter(this.apiRouter);
+		this.apiRouter.errorHandler(500, ctx -> HttpVerticle.LOG.error("Unexpected error in API", ctx.failure()));
+
+		this.apiRouter.route().handler(this.srv.getCorsHandler());
+
+		this.registerModules();
+
+		if (Boolean.parseBoolean(this.srv.getConfig().getProperty("web.enabled"))) {
+			this.setupWebRouter();
+		}
+
+		final String host = this.srv.getConfig().getProperty("server.host", "127.0.0.1");
+		final int port = Integer.parseInt(this.srv.getConfig().getProperty("server.port"));
+		this.server.listen(port, host).<Void>mapEmpty().onComplete(startPromise);
+	}
+
+	private void setupWebRouter() {
+		final Router webRouter = Router.router(this.vertx);
+		final StaticHandler webHandler = StaticHandler.create(FileSystemAccess.ROOT,
+				this.srv.getConfig().getProperty("web.root"));
+		webHandler.setIncludeHidden(false);
+		webRouter.route().handler(webHandler).handler(ctx -> ctx.reroute("/"));
+		this.baseRouter.route("/*").subRouter(webRouter);
+	}
+
+	private void registerModules() {
+		this.modules.addAll(Arrays.asList(new LoggingModule(this.srv, this),
+				new DeviceModule(this.srv, this),
+				new AuthModule(this.srv, this),
+				new GeoModule(this.srv, this),
+				new UserModule(this.srv, this),
+				new ImportExportModule(this.srv, this),
+				new InstanceModule(this.srv, this),
+				new AdminModule(this.srv, this),
+				new CaptchaModule(this.srv, this)));
+	}
+
+	public Router getBaseRouter() {
+		return this.baseRouter;
+	}
+
+	public Router getApiRouter() {
+		return this.apiRouter;
+	}
+
+	public HttpServer getServer() {
+		return this.server;
+	}
+
+	public Collection<AbstractModule> getModules() {
+		return this.modules;
+	}
+}
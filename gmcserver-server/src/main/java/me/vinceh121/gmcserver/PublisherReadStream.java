@@ -0,0 +1,186 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.streams.ReadStream;
+
+/**
+ * Adapts a reactive streams {@link Publisher} to a Vert.x {@link ReadStream}.
+ *
+ * Items are requested from upstream in batches and delivered on the Vert.x
+ * context the stream was created on, so handlers can safely write to an HTTP
+ * response. The publisher is subscribed to once a handler is set.
+ */
+public class PublisherReadStream<T> implements ReadStream<T> {
+	private final Context context;
+	private final Publisher<T> publisher;
+	private final int batchSize;
+	private final Deque<T> pending = new ArrayDeque<>();
+	private Handler<T> handler;
+	private Handler<Throwable> exceptionHandler;
+	private Handler<Void> endHandler;
+	private Subscription subscription;
+	private long demand = Long.MAX_VALUE;
+	private int outstanding;
+	private boolean subscribed, completed, ended;
+
+	public PublisherReadStream(final Context context, final Publisher<T> publisher, final int batchSize) {
+		this.context = context;
+		this.publisher = publisher;
+		this.batchSize = batchSize;
+	}
+
+	@Override
+	public PublisherReadStream<T> exceptionHandler(final Handler<Throwable> handler) {
+		this.exceptionHandler = handler;
+		return this;
+	}
+
+	@Override
+	public PublisherReadStream<T> handler(final Handler<T> handler) {
+		this.handler = handler;
+		if (handler != null && !this.subscribed) {
+			this.subscribed = true;
+			this.publisher.subscribe(new ContextSubscriber());
+		}
+		return this;
+	}
+
+	@Override
+	public PublisherReadStream<T> pause() {
+		this.demand = 0;
+		return this;
+	}
+
+	@Override
+	public PublisherReadStream<T> resume() {
+		return this.fetch(Long.MAX_VALUE);
+	}
+
+	@Override
+	public PublisherReadStream<T> fetch(final long amount) {
+		if (amount > 0) {
+			this.demand += amount;
+			if (this.demand < 0) {
+				this.demand = Long.MAX_VALUE;
+			}
+			this.context.runOnContext(v -> this.drain());
+		}
+		return this;
+	}
+
+	@Override
+	public PublisherReadStream<T> endHandler(final Handler<Void> endHandler) {
+		this.endHandler = endHandler;
+		return this;
+	}
+
+	/**
+	 * Cancels the upstream subscription, no more items nor end will be delivered.
+	 */
+	public void cancel() {
+		this.ended = true;
+		this.pending.clear();
+		if (this.subscription != null) {
+			this.subscription.cancel();
+		}
+	}
+
+	private void drain() {
+		while (!this.ended && this.demand > 0 && !this.pending.isEmpty()) {
+			final T item = this.pending.poll();
+			if (this.demand != Long.MAX_VALUE) {
+				this.demand--;
+			}
+			if (this.handler != null) {
+				this.handler.handle(item);
+			}
+		}
+
+		if (this.ended) {
+			return;
+		}
+
+		if (this.completed && this.pending.isEmpty()) {
+			this.ended = true;
+			if (this.endHandler != null) {
+				this.endHandler.handle(null);
+			}
+		} else if (this.subscription != null && !this.completed && this.demand > 0 && this.outstanding == 0
+				&& this.pending.isEmpty()) {
+			this.outstanding = this.batchSize;
+			this.subscription.request(this.batchSize);
+		}
+	}
+
+	private void fail(final Throwable t) {
+		if (this.ended) {
+			return;
+		}
+		this.ended = true;
+		this.pending.clear();
+		if (this.exceptionHandler != null) {
+			this.exceptionHandler.handle(t);
+		}
+	}
+
+	private class ContextSubscriber implements Subscriber<T> {
+		@Override
+		public void onSubscribe(final Subscription s) {
+			PublisherReadStream.this.context.runOnContext(v -> {
+				PublisherReadStream.this.subscription = s;
+				if (PublisherReadStream.this.ended) {
+					s.cancel();
+				} else {
+					PublisherReadStream.this.drain();
+				}
+			});
+		}
+
+		@Override
+		public void onNext(final T item) {
+			PublisherReadStream.this.context.runOnContext(v -> {
+				PublisherReadStream.this.outstanding--;
+				PublisherReadStream.this.pending.add(item);
+				PublisherReadStream.this.drain();
+			});
+		}
+
+		@Override
+		public void onError(final Throwable t) {
+			PublisherReadStream.this.context.runOnContext(v -> PublisherReadStream.this.fail(t));
+		}
+
+		@Override
+		public void onComplete() {
+			PublisherReadStream.this.context.runOnContext(v -> {
+				PublisherReadStream.this.completed = true;
+				PublisherReadStream.this.drain();
+			});
+		}
+	}
+}
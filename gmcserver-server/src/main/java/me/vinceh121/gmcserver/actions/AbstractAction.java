@@ -20,17 +20,44 @@ package me.vinceh121.gmcserver.actions;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.managers.ExecutorManager;
 
 public abstract class AbstractAction<T> {
 	protected final GMCServer srv;
+	private String executionPolicy;
 
 	public AbstractAction(final GMCServer srv) {
 		this.srv = srv;
 	}
 
+	/**
+	 * @param executionPolicy fixed execution policy, for actions that never block
+	 * @see ExecutorManager
+	 */
+	public AbstractAction(final GMCServer srv, final String executionPolicy) {
+		this.srv = srv;
+		this.executionPolicy = executionPolicy;
+	}
+
 	public Future<T> execute() {
-		return Future.future(this::executeSync);
+		final String policy = this.getExecutionPolicy();
+		if (ExecutorManager.POLICY_EVENT_LOOP.equals(policy)) {
+			return Future.future(this::executeSync);
+		}
+		return this.srv.getExecutorManager().getPool(policy).executeBlocking(this::executeSync);
 	}
 
 	protected abstract void executeSync(final Promise<T> promise);
+
+	public String getExecutionPolicy() {
+		if (this.executionPolicy == null) {
+			this.executionPolicy = this.srv.getExecutorManager().getPolicy(this.getClass());
+		}
+		return this.executionPolicy;
+	}
+
+	public AbstractAction<T> setExecutionPolicy(final String executionPolicy) {
+		this.executionPolicy = executionPolicy;
+		return this;
+	}
 }
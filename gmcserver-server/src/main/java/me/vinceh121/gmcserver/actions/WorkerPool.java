@@ -0,0 +1,153 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.actions;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.exceptions.LimitReachedException;
+
+/**
+ * A worker pool actions can be executed on. Wraps either Vert.x's shared worker
+ * pool or a named {@link WorkerExecutor}, bounds its queue and keeps track of
+ * queue depth and tasks that blocked longer than the max execute time.
+ */
+public class WorkerPool {
+	private final String name;
+	private final Vertx vertx;
+	/**
+	 * null for Vert.x's shared worker pool
+	 */
+	private final WorkerExecutor executor;
+	private final int size, maxQueue;
+	private final long maxExecuteTime;
+	private final AtomicInteger queued = new AtomicInteger(), active = new AtomicInteger(),
+			peakQueued = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong(), rejected = new AtomicLong(), blocked = new AtomicLong(),
+			longestExecuteTime = new AtomicLong();
+
+	/**
+	 * @param size           pool size, -1 if unknown
+	 * @param maxQueue       max number of queued tasks, -1 for unbounded
+	 * @param maxExecuteTime time in milliseconds after which a task is considered
+	 *                       blocking
+	 */
+	public WorkerPool(final String name, final Vertx vertx, final WorkerExecutor executor, final int size,
+			final int maxQueue, final long maxExecuteTime) {
+		this.name = name;
+		this.vertx = vertx;
+		this.executor = executor;
+		this.size = size;
+		this.maxQueue = maxQueue;
+		this.maxExecuteTime = TimeUnit.MILLISECONDS.toNanos(maxExecuteTime);
+	}
+
+	/**
+	 * Fails with {@code LimitReachedException} if the pool's queue is full.
+	 */
+	public <T> Future<T> executeBlocking(final Handler<Promise<T>> handler) {
+		if (this.maxQueue != -1 && this.queued.get() >= this.maxQueue) {
+			this.rejected.incrementAndGet();
+			return Future.failedFuture(new LimitReachedException("Worker pool " + this.name + " is saturated"));
+		}
+		this.peakQueued.accumulateAndGet(this.queued.incrementAndGet(), Math::max);
+
+		final Handler<Promise<T>> measured = promise -> {
+			this.queued.decrementAndGet();
+			this.active.incrementAndGet();
+			final long start = System.nanoTime();
+			try {
+				handler.handle(promise);
+			} finally {
+				final long time = System.nanoTime() - start;
+				this.active.decrementAndGet();
+				this.completed.incrementAndGet();
+				this.longestExecuteTime.accumulateAndGet(time, Math::max);
+				if (time > this.maxExecuteTime) {
+					this.blocked.incrementAndGet();
+				}
+			}
+		};
+
+		if (this.executor == null) {
+			return this.vertx.executeBlocking(measured, false);
+		} else {
+			return this.executor.executeBlocking(measured, false);
+		}
+	}
+
+	public void close() {
+		if (this.executor != null) {
+			this.executor.close();
+		}
+	}
+
+	public String getName() {
+		return this.name;
+	}
+
+	public int getSize() {
+		return this.size;
+	}
+
+	public int getMaxQueue() {
+		return this.maxQueue;
+	}
+
+	public int getQueued() {
+		return this.queued.get();
+	}
+
+	public int getActive() {
+		return this.active.get();
+	}
+
+	public long getCompleted() {
+		return this.completed.get();
+	}
+
+	public long getRejected() {
+		return this.rejected.get();
+	}
+
+	public long getBlocked() {
+		return this.blocked.get();
+	}
+
+	public JsonObject toJson() {
+		final JsonObject obj = new JsonObject();
+		obj.put("name", this.name);
+		obj.put("size", this.size);
+		obj.put("maxQueue", this.maxQueue);
+		obj.put("queued", this.queued.get());
+		obj.put("peakQueued", this.peakQueued.get());
+		obj.put("active", this.active.get());
+		obj.put("completed", this.completed.get());
+		obj.put("rejected", this.rejected.get());
+		obj.put("blocked", this.blocked.get());
+		obj.put("longestExecuteTime", TimeUnit.NANOSECONDS.toMillis(this.longestExecuteTime.get()));
+		return obj;
+	}
+}
@@ -25,7 +25,7 @@ import com.fasterxml.jackson.annotation.JsonIgnore;
 import io.vertx.core.json.JsonObject;
 
 public abstract class AbstractEntity {
-	private ObjectId id = new ObjectId();
+	private ObjectId id;
 
 	public AbstractEntity() {
 		this.id = new ObjectId();
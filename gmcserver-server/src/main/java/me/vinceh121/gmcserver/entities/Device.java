@@ -20,7 +20,6 @@ package me.vinceh121.gmcserver.entities;
 import java.util.Date;
 import java.util.Map;
 
-import org.bson.codecs.pojo.annotations.BsonIgnore;
 import org.bson.types.ObjectId;
 
 import com.mongodb.client.model.geojson.Point;
@@ -136,9 +135,8 @@ public class Device extends AbstractEntity {
 	}
 
 	/**
-	 * Aggregated field
+	 * Snapshot of the last record, with the same fields as the record itself
 	 */
-	@BsonIgnore
 	public Record getLastRecord() {
 		return lastRecord;
 	}
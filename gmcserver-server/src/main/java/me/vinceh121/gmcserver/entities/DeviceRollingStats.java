@@ -0,0 +1,107 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.entities;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+import me.vinceh121.gmcserver.managers.RollupManager;
+
+/**
+ * Running statistics of a device, per record field. Holds all-time
+ * accumulators and hourly buckets covering a sliding window, in the same
+ * shape as the device's daily and hourly rollups they're loaded from.
+ */
+public class DeviceRollingStats {
+	private final Map<String, RollupField> totals = new HashMap<>();
+	/**
+	 * Key: start timestamp of the hour
+	 */
+	private final TreeMap<Long, Map<String, RollupField>> hours = new TreeMap<>();
+
+	/**
+	 * Adds a record's values. Buckets older than {@code window} are dropped.
+	 */
+	public synchronized void add(final Record rec, final long window) {
+		final long time = rec.getDate() == null ? System.currentTimeMillis() : rec.getDate().getTime();
+		final long hour = RollupManager.getBucketStart(RollupManager.GRANULARITY_HOUR, new Date(time)).getTime();
+		final boolean inWindow = hour >= System.currentTimeMillis() - window;
+		for (final String field : Record.STAT_FIELDS) {
+			final double value = rec.getStatField(field);
+			if (Double.isNaN(value)) {
+				continue;
+			}
+			this.totals.computeIfAbsent(field, f -> new RollupField()).add(value);
+			if (inWindow) {
+				this.hours.computeIfAbsent(hour, h -> new HashMap<>())
+					.computeIfAbsent(field, f -> new RollupField())
+					.add(value);
+			}
+		}
+		this.hours.headMap(System.currentTimeMillis() - window).clear();
+	}
+
+	/**
+	 * Merges a daily rollup into the all-time totals
+	 */
+	public synchronized void addDailyRollup(final RecordRollup rollup) {
+		for (final Map.Entry<String, RollupField> e : rollup.getFields().entrySet()) {
+			this.totals.computeIfAbsent(e.getKey(), f -> new RollupField()).merge(e.getValue());
+		}
+	}
+
+	/**
+	 * Merges an hourly rollup into the window buckets
+	 */
+	public synchronized void addHourlyRollup(final RecordRollup rollup) {
+		final Map<String, RollupField> fields
+				= this.hours.computeIfAbsent(rollup.getStart().getTime(), h -> new HashMap<>());
+		for (final Map.Entry<String, RollupField> e : rollup.getFields().entrySet()) {
+			fields.computeIfAbsent(e.getKey(), f -> new RollupField()).merge(e.getValue());
+		}
+	}
+
+	/**
+	 * @return all-time statistics of the field
+	 */
+	public synchronized RollupField getTotal(final String field) {
+		final RollupField acc = new RollupField();
+		final RollupField total = this.totals.get(field);
+		if (total != null) {
+			acc.merge(total);
+		}
+		return acc;
+	}
+
+	/**
+	 * @return statistics of the field over buckets starting after
+	 *         {@code windowStart}
+	 */
+	public synchronized RollupField getWindow(final String field, final long windowStart) {
+		final RollupField acc = new RollupField();
+		for (final Map<String, RollupField> fields : this.hours.tailMap(windowStart).values()) {
+			final RollupField f = fields.get(field);
+			if (f != null) {
+				acc.merge(f);
+			}
+		}
+		return acc;
+	}
+}
@@ -17,7 +17,6 @@
  */
 package me.vinceh121.gmcserver.entities;
 
-import java.lang.reflect.Field;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -26,7 +25,6 @@ import java.util.Objects;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.Vector;
-import java.util.regex.Pattern;
 
 import org.bson.codecs.pojo.annotations.BsonIgnore;
 import org.bson.types.ObjectId;
@@ -165,6 +163,75 @@ public class Record extends AbstractEntity {
 		this.accy = accy;
 	}
 
+	/**
+	 * @param field one of {@link #STAT_FIELDS}
+	 * @return the value of the field
+	 * @throws IllegalArgumentException if the field isn't a stat field
+	 */
+	public double getStatField(final String field) {
+		switch (field) {
+		case "cpm":
+			return this.cpm;
+		case "acpm":
+			return this.acpm;
+		case "usv":
+			return this.usv;
+		case "co2":
+			return this.co2;
+		case "hcho":
+			return this.hcho;
+		case "tmp":
+			return this.tmp;
+		case "ap":
+			return this.ap;
+		case "hmdt":
+			return this.hmdt;
+		case "accy":
+			return this.accy;
+		default:
+			throw new IllegalArgumentException("Not a stat field: " + field);
+		}
+	}
+
+	/**
+	 * @param field one of {@link #STAT_FIELDS}
+	 * @param value the value to set
+	 * @throws IllegalArgumentException if the field isn't a stat field
+	 */
+	public void setStatField(final String field, final double value) {
+		switch (field) {
+		case "cpm":
+			this.cpm = value;
+			break;
+		case "acpm":
+			this.acpm = value;
+			break;
+		case "usv":
+			this.usv = value;
+			break;
+		case "co2":
+			this.co2 = value;
+			break;
+		case "hcho":
+			this.hcho = value;
+			break;
+		case "tmp":
+			this.tmp = value;
+			break;
+		case "ap":
+			this.ap = value;
+			break;
+		case "hmdt":
+			this.hmdt = value;
+			break;
+		case "accy":
+			this.accy = value;
+			break;
+		default:
+			throw new IllegalArgumentException("Not a stat field: " + field);
+		}
+	}
+
 	public String getType() {
 		return this.type;
 	}
@@ -322,9 +389,23 @@ public class Record extends AbstractEntity {
 				+ ", location=" + this.location + "]";
 	}
 
-	public static class Builder { // XXX this will need a big clean up but at least it splits stuff
+	public static class Builder {
+		/**
+		 * Stat field for each uRadMonitor field ID minus one, {@code null} for the
+		 * date and fields we don't store
+		 */
+		private static final String[] URADMONITOR_STATS = new String[Record.URADMONITOR_FIELDS.size()];
 		private final Record record = new Record();
 
+		static {
+			for (int i = 0; i < Record.URADMONITOR_FIELDS.size(); i++) {
+				final String field = Record.URADMONITOR_FIELDS.get(i);
+				if (Record.STAT_FIELDS.contains(field)) {
+					Builder.URADMONITOR_STATS[i] = field;
+				}
+			}
+		}
+
 		public Builder() {
 		}
 
@@ -344,31 +425,20 @@ public class Record extends AbstractEntity {
 		}
 
 		public Builder withGmcParams(final MultiMap params) {
-			// for (final Field f : this.record.getClass().getDeclaredFields()) {
-			// if (f.getType().equals(double.class)) {
-			// this.buildDoubleParameter(f.getName());
-			// }
-			// }
-
 			for (final String s : Record.STAT_FIELDS) {
-				this.buildDoubleParameter(params, s);
+				final String str = params.get(s);
+				if (str != null) {
+					this.record.setStatField(s, Double.parseDouble(str));
+				}
 			}
 
-			if (params.contains("type")) {
-				this.record.setType(params.get("type"));
+			final String type = params.get("type");
+			if (type != null) {
+				this.record.setType(type);
 			}
 			return this;
 		}
 
-		private void buildDoubleParameter(final MultiMap params, final String name) {
-			final String str = params.get(name);
-			if (str == null) {
-				return;
-			}
-			final double value = Double.parseDouble(str);
-			this.reflectSetField(name, value);
-		}
-
 		public Builder withGmcPosition(final MultiMap params) {
 			final String rawLon = params.get("lon");
 			final String rawLat = params.get("lat");
@@ -396,25 +466,45 @@ public class Record extends AbstractEntity {
 			return this;
 		}
 
+		/**
+		 * Parses the path of an uRadMonitor upload, made of pairs of a hexadecimal
+		 * field ID and a value: {@code /01/123456/0B/25.0}. Fields we don't store are
+		 * ignored.
+		 *
+		 * @throws IllegalArgumentException if the path is malformed
+		 */
 		public Builder withURadMonitorUrl(final String url) {
-			final String[] parts = url.split(Pattern.quote("/"));
+			final int len = url.length();
+			int i = 0;
+			while (i < len) {
+				if (url.charAt(i) != '/') {
+					throw new IllegalArgumentException("Expected slash at " + i);
+				}
+				final int idStart = i + 1;
+				if (idStart == len) { // trailing slash
+					break;
+				}
+				final int idEnd = url.indexOf('/', idStart);
+				if (idEnd == -1) {
+					throw new IllegalArgumentException("URL has odd number of slash");
+				}
+				int valueEnd = url.indexOf('/', idEnd + 1);
+				if (valueEnd == -1) {
+					valueEnd = len;
+				}
 
-			if ((parts.length - 1) % 2 == 1) {
-				throw new IllegalArgumentException("URL has odd number of slash");
-			}
+				final int field = Integer.parseInt(url, idStart, idEnd, 16) - 1;
+				if (field < 0 || field >= Builder.URADMONITOR_STATS.length) {
+					throw new IllegalArgumentException("Unknown field ID " + url.substring(idStart, idEnd));
+				}
 
-			for (int i = 1; i < parts.length; i += 2) {
-				final int field = Integer.parseInt(parts[i], 16) - 1;
-				final String fieldName = Record.URADMONITOR_FIELDS.get(field);
-				final String value = parts[i + 1];
-
-				if (Record.STAT_FIELDS.contains(fieldName)) {
-					this.reflectSetField(fieldName, Double.parseDouble(value));
-				} else if (fieldName.equals("date")) {
-					this.record.setDate(new Date(Long.parseLong(value) * 1000L)); // from s to ms
-				} else {
-					this.reflectSetField(fieldName, value);
+				if (field == 0) { // date
+					this.record.setDate(new Date(Long.parseLong(url, idEnd + 1, valueEnd, 10) * 1000L)); // from s to ms
+				} else if (Builder.URADMONITOR_STATS[field] != null) {
+					this.record.setStatField(Builder.URADMONITOR_STATS[field],
+							Double.parseDouble(url.substring(idEnd + 1, valueEnd)));
 				}
+				i = valueEnd;
 			}
 
 			return this;
@@ -423,16 +513,5 @@ public class Record extends AbstractEntity {
 		public Record build() {
 			return this.record;
 		}
-
-		private void reflectSetField(final String name, final Object value) {
-			try {
-				final Field f = this.record.getClass().getDeclaredField(name);
-				f.setAccessible(true);
-				f.set(this.record, value);
-			} catch (final IllegalArgumentException | IllegalAccessException | NoSuchFieldException
-					| SecurityException e) {
-				throw new IllegalStateException(e);
-			}
-		}
 	}
 }
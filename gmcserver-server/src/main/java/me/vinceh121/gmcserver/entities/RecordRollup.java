@@ -0,0 +1,67 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.entities;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+/**
+ * Aggregated values of a device's records over an hour or a day, maintained by
+ * the {@code RollupManager}.
+ */
+public class RecordRollup extends AbstractEntity {
+	private ObjectId deviceId;
+	private String granularity;
+	private Date start;
+	private Map<String, RollupField> fields = new HashMap<>();
+
+	public ObjectId getDeviceId() {
+		return this.deviceId;
+	}
+
+	public void setDeviceId(final ObjectId deviceId) {
+		this.deviceId = deviceId;
+	}
+
+	public String getGranularity() {
+		return this.granularity;
+	}
+
+	public void setGranularity(final String granularity) {
+		this.granularity = granularity;
+	}
+
+	public Date getStart() {
+		return this.start;
+	}
+
+	public void setStart(final Date start) {
+		this.start = start;
+	}
+
+	public Map<String, RollupField> getFields() {
+		return this.fields;
+	}
+
+	public void setFields(final Map<String, RollupField> fields) {
+		this.fields = fields;
+	}
+}
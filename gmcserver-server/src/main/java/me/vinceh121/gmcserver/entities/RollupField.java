@@ -0,0 +1,115 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.entities;
+
+import org.bson.codecs.pojo.annotations.BsonIgnore;
+
+/**
+ * Pre-aggregated values of a record field within a {@link RecordRollup}
+ */
+public class RollupField {
+	private long count;
+	private double sum, sumsq, min = Double.NaN, max = Double.NaN;
+
+	public void add(final double value) {
+		if (this.count == 0) {
+			this.min = value;
+			this.max = value;
+		} else {
+			this.min = Math.min(this.min, value);
+			this.max = Math.max(this.max, value);
+		}
+		this.count++;
+		this.sum += value;
+		this.sumsq += value * value;
+	}
+
+	public void merge(final RollupField other) {
+		if (other.count == 0) {
+			return;
+		}
+		if (this.count == 0) {
+			this.min = other.min;
+			this.max = other.max;
+		} else {
+			this.min = Math.min(this.min, other.min);
+			this.max = Math.max(this.max, other.max);
+		}
+		this.count += other.count;
+		this.sum += other.sum;
+		this.sumsq += other.sumsq;
+	}
+
+	@BsonIgnore
+	public double getAvg() {
+		return this.count == 0 ? Double.NaN : this.sum / this.count;
+	}
+
+	/**
+	 * @return the population standard deviation
+	 */
+	@BsonIgnore
+	public double getStdDev() {
+		if (this.count == 0) {
+			return Double.NaN;
+		}
+		final double avg = this.getAvg();
+		// rounding can make this slightly negative for constant series
+		return Math.sqrt(Math.max(0, this.sumsq / this.count - avg * avg));
+	}
+
+	public long getCount() {
+		return this.count;
+	}
+
+	public void setCount(final long count) {
+		this.count = count;
+	}
+
+	public double getSum() {
+		return this.sum;
+	}
+
+	public void setSum(final double sum) {
+		this.sum = sum;
+	}
+
+	public double getSumsq() {
+		return this.sumsq;
+	}
+
+	public void setSumsq(final double sumsq) {
+		this.sumsq = sumsq;
+	}
+
+	public double getMin() {
+		return this.min;
+	}
+
+	public void setMin(final double min) {
+		this.min = min;
+	}
+
+	public double getMax() {
+		return this.max;
+	}
+
+	public void setMax(final double max) {
+		this.max = max;
+	}
+}
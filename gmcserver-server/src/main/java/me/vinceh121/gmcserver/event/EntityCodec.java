@@ -17,9 +17,12 @@
  */
 package me.vinceh121.gmcserver.event;
 
+import java.io.IOException;
+
 import io.vertx.core.buffer.Buffer;
 import io.vertx.core.eventbus.MessageCodec;
-import io.vertx.core.json.JsonObject;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.jackson.DatabindCodec;
 import me.vinceh121.gmcserver.entities.AbstractEntity;
 
 public class EntityCodec<T extends AbstractEntity> implements MessageCodec<T, T> {
@@ -40,7 +43,12 @@ public class EntityCodec<T extends AbstractEntity> implements MessageCodec<T, T>
 	public T decodeFromWire(int pos, final Buffer buffer) {
 		final int length = buffer.getInt(pos);
 		pos += 4;
-		return new JsonObject(buffer.slice(pos, pos + length)).mapTo(this.clazz);
+		// bind straight from the bytes rather than through a JsonObject tree
+		try {
+			return DatabindCodec.mapper().readValue(buffer.getBytes(pos, pos + length), this.clazz);
+		} catch (final IOException e) {
+			throw new DecodeException("Failed to decode " + this.clazz.getSimpleName(), e);
+		}
 	}
 
 	@Override
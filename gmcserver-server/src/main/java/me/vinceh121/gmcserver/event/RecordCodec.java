@@ -0,0 +1,213 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.event;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.eventbus.MessageCodec;
+import io.vertx.core.json.DecodeException;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Binary event bus codec for records, much cheaper than going through JSON
+ * like {@link EntityCodec}.
+ *
+ * <pre>
+ * version:u8 flags:u8 present:u16
+ * [id:12 bytes] [deviceId:12 bytes] [date:i64]
+ * value:f64 for each present stat field, in {@link Record#STAT_FIELDS} order
+ * [coordinateCount:u8 coordinate:f64*] [ipLength:u16 ip:utf8] [typeLength:u16 type:utf8]
+ * </pre>
+ *
+ * Optional parts are written only when their flag is set, stat fields only when
+ * their bit of {@code present} is set, that is when they aren't NaN.
+ */
+public class RecordCodec implements MessageCodec<Record, Record> {
+	public static final int VERSION = 1;
+	private static final int FLAG_ID = 1, FLAG_DEVICE_ID = 1 << 1, FLAG_DATE = 1 << 2, FLAG_LOCATION = 1 << 3,
+			FLAG_IP = 1 << 4, FLAG_TYPE = 1 << 5;
+
+	@Override
+	public void encodeToWire(final Buffer buffer, final Record rec) {
+		RecordCodec.encode(buffer, rec);
+	}
+
+	@Override
+	public Record decodeFromWire(final int pos, final Buffer buffer) {
+		return RecordCodec.decode(pos, buffer);
+	}
+
+	@Override
+	public Record transform(final Record rec) {
+		return rec;
+	}
+
+	@Override
+	public String name() {
+		return "gmcrecord-binary";
+	}
+
+	@Override
+	public byte systemCodecID() {
+		return -1;
+	}
+
+	public static void encode(final Buffer buffer, final Record rec) {
+		final double[] values = RecordCodec.getValues(rec);
+		int present = 0;
+		for (int i = 0; i < values.length; i++) {
+			if (!Double.isNaN(values[i])) {
+				present |= 1 << i;
+			}
+		}
+		final byte[] ip = rec.getIp() == null ? null : rec.getIp().getBytes(StandardCharsets.UTF_8);
+		final byte[] type = rec.getType() == null ? null : rec.getType().getBytes(StandardCharsets.UTF_8);
+
+		int flags = 0;
+		flags |= rec.getId() != null ? RecordCodec.FLAG_ID : 0;
+		flags |= rec.getDeviceId() != null ? RecordCodec.FLAG_DEVICE_ID : 0;
+		flags |= rec.getDate() != null ? RecordCodec.FLAG_DATE : 0;
+		flags |= rec.getLocation() != null ? RecordCodec.FLAG_LOCATION : 0;
+		flags |= ip != null ? RecordCodec.FLAG_IP : 0;
+		flags |= type != null ? RecordCodec.FLAG_TYPE : 0;
+
+		buffer.appendByte((byte) RecordCodec.VERSION);
+		buffer.appendByte((byte) flags);
+		buffer.appendUnsignedShort(present);
+		if (rec.getId() != null) {
+			buffer.appendBytes(rec.getId().toByteArray());
+		}
+		if (rec.getDeviceId() != null) {
+			buffer.appendBytes(rec.getDeviceId().toByteArray());
+		}
+		if (rec.getDate() != null) {
+			buffer.appendLong(rec.getDate().getTime());
+		}
+		for (final double v : values) {
+			if (!Double.isNaN(v)) {
+				buffer.appendDouble(v);
+			}
+		}
+		if (rec.getLocation() != null) {
+			final List<Double> coords = rec.getLocation().getCoordinates().getValues();
+			buffer.appendUnsignedByte((short) coords.size());
+			for (final Double c : coords) {
+				buffer.appendDouble(c);
+			}
+		}
+		if (ip != null) {
+			buffer.appendUnsignedShort(ip.length);
+			buffer.appendBytes(ip);
+		}
+		if (type != null) {
+			buffer.appendUnsignedShort(type.length);
+			buffer.appendBytes(type);
+		}
+	}
+
+	public static Record decode(int pos, final Buffer buffer) {
+		final int version = buffer.getUnsignedByte(pos++);
+		if (version != RecordCodec.VERSION) {
+			throw new DecodeException("Unsupported record encoding version " + version);
+		}
+		final int flags = buffer.getUnsignedByte(pos++);
+		final int present = buffer.getUnsignedShort(pos);
+		pos += 2;
+
+		final Record rec = new Record();
+		if ((flags & RecordCodec.FLAG_ID) != 0) {
+			rec.setId(new ObjectId(buffer.getBytes(pos, pos + 12)));
+			pos += 12;
+		} else {
+			rec.setId(null);
+		}
+		if ((flags & RecordCodec.FLAG_DEVICE_ID) != 0) {
+			rec.setDeviceId(new ObjectId(buffer.getBytes(pos, pos + 12)));
+			pos += 12;
+		}
+		if ((flags & RecordCodec.FLAG_DATE) != 0) {
+			rec.setDate(new Date(buffer.getLong(pos)));
+			pos += 8;
+		}
+
+		final double[] values = new double[Record.STAT_FIELDS.size()];
+		for (int i = 0; i < values.length; i++) {
+			if ((present & 1 << i) != 0) {
+				values[i] = buffer.getDouble(pos);
+				pos += 8;
+			} else {
+				values[i] = Double.NaN;
+			}
+		}
+		RecordCodec.setValues(rec, values);
+
+		if ((flags & RecordCodec.FLAG_LOCATION) != 0) {
+			final int count = buffer.getUnsignedByte(pos++);
+			final List<Double> coords = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				coords.add(buffer.getDouble(pos));
+				pos += 8;
+			}
+			rec.setLocation(new Point(new Position(coords)));
+		}
+		if ((flags & RecordCodec.FLAG_IP) != 0) {
+			final int length = buffer.getUnsignedShort(pos);
+			pos += 2;
+			rec.setIp(buffer.getString(pos, pos + length, "UTF-8"));
+			pos += length;
+		}
+		if ((flags & RecordCodec.FLAG_TYPE) != 0) {
+			final int length = buffer.getUnsignedShort(pos);
+			pos += 2;
+			rec.setType(buffer.getString(pos, pos + length, "UTF-8"));
+			pos += length;
+		}
+		return rec;
+	}
+
+	/**
+	 * @return the stat fields, in {@link Record#STAT_FIELDS} order
+	 */
+	public static double[] getValues(final Record rec) {
+		final double[] values = new double[Record.STAT_FIELDS.size()];
+		int i = 0;
+		for (final String field : Record.STAT_FIELDS) {
+			values[i++] = rec.getStatField(field);
+		}
+		return values;
+	}
+
+	/**
+	 * @param values the stat fields, in {@link Record#STAT_FIELDS} order
+	 */
+	public static void setValues(final Record rec, final double[] values) {
+		int i = 0;
+		for (final String field : Record.STAT_FIELDS) {
+			rec.setStatField(field, values[i++]);
+		}
+	}
+}
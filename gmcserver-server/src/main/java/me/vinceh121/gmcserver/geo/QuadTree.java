@@ -0,0 +1,162 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.geo;
+
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * Point region quadtree over longitude and latitude.
+ *
+ * Leaves hold up to {@link #CAPACITY} points in flat arrays and are split in
+ * four when full, down to {@link #MAX_DEPTH}. Nodes aren't merged back when
+ * points are removed. Not thread safe.
+ */
+public class QuadTree<T> {
+	public static final int CAPACITY = 16, MAX_DEPTH = 24;
+	private final Node root = new Node(-180, -90, 180, 90, 0);
+	private int size;
+
+	public void insert(final double lon, final double lat, final T value) {
+		this.root.insert(lon, lat, value);
+		this.size++;
+	}
+
+	/**
+	 * @return true if the value was found at this position and removed
+	 */
+	public boolean remove(final double lon, final double lat, final T value) {
+		if (this.root.remove(lon, lat, value)) {
+			this.size--;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Passes the values within the box, bounds included, to the consumer.
+	 */
+	public void query(final double minLon, final double minLat, final double maxLon, final double maxLat,
+			final Consumer<T> consumer) {
+		this.root.query(minLon, minLat, maxLon, maxLat, consumer);
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	private static class Node {
+		private final double minLon, minLat, maxLon, maxLat, midLon, midLat;
+		private final int depth;
+		private double[] lons = new double[QuadTree.CAPACITY], lats = new double[QuadTree.CAPACITY];
+		private Object[] values = new Object[QuadTree.CAPACITY];
+		private int count;
+		/**
+		 * SW, SE, NW, NE, or null for leaves
+		 */
+		private Node[] children;
+
+		private Node(final double minLon, final double minLat, final double maxLon, final double maxLat,
+				final int depth) {
+			this.minLon = minLon;
+			this.minLat = minLat;
+			this.maxLon = maxLon;
+			this.maxLat = maxLat;
+			this.midLon = (minLon + maxLon) / 2;
+			this.midLat = (minLat + maxLat) / 2;
+			this.depth = depth;
+		}
+
+		private void insert(final double lon, final double lat, final Object value) {
+			if (this.children != null) {
+				this.child(lon, lat).insert(lon, lat, value);
+				return;
+			}
+			if (this.count == this.values.length) {
+				if (this.depth < QuadTree.MAX_DEPTH) {
+					this.split();
+					this.child(lon, lat).insert(lon, lat, value);
+					return;
+				}
+				this.lons = Arrays.copyOf(this.lons, this.count * 2);
+				this.lats = Arrays.copyOf(this.lats, this.count * 2);
+				this.values = Arrays.copyOf(this.values, this.count * 2);
+			}
+			this.lons[this.count] = lon;
+			this.lats[this.count] = lat;
+			this.values[this.count] = value;
+			this.count++;
+		}
+
+		private boolean remove(final double lon, final double lat, final Object value) {
+			if (this.children != null) {
+				return this.child(lon, lat).remove(lon, lat, value);
+			}
+			for (int i = 0; i < this.count; i++) {
+				if (this.lons[i] == lon && this.lats[i] == lat && this.values[i].equals(value)) {
+					this.count--;
+					this.lons[i] = this.lons[this.count];
+					this.lats[i] = this.lats[this.count];
+					this.values[i] = this.values[this.count];
+					this.values[this.count] = null;
+					return true;
+				}
+			}
+			return false;
+		}
+
+		@SuppressWarnings("unchecked")
+		private <T> void query(final double qMinLon, final double qMinLat, final double qMaxLon, final double qMaxLat,
+				final Consumer<T> consumer) {
+			if (qMinLon > this.maxLon || qMaxLon < this.minLon || qMinLat > this.maxLat || qMaxLat < this.minLat) {
+				return;
+			}
+			if (this.children != null) {
+				for (final Node child : this.children) {
+					child.query(qMinLon, qMinLat, qMaxLon, qMaxLat, consumer);
+				}
+				return;
+			}
+			for (int i = 0; i < this.count; i++) {
+				if (this.lons[i] >= qMinLon && this.lons[i] <= qMaxLon && this.lats[i] >= qMinLat
+						&& this.lats[i] <= qMaxLat) {
+					consumer.accept((T) this.values[i]);
+				}
+			}
+		}
+
+		private void split() {
+			this.children = new Node[] {
+					new Node(this.minLon, this.minLat, this.midLon, this.midLat, this.depth + 1),
+					new Node(this.midLon, this.minLat, this.maxLon, this.midLat, this.depth + 1),
+					new Node(this.minLon, this.midLat, this.midLon, this.maxLat, this.depth + 1),
+					new Node(this.midLon, this.midLat, this.maxLon, this.maxLat, this.depth + 1) };
+			for (int i = 0; i < this.count; i++) {
+				this.child(this.lons[i], this.lats[i]).insert(this.lons[i], this.lats[i], this.values[i]);
+			}
+			this.lons = null;
+			this.lats = null;
+			this.values = null;
+			this.count = 0;
+		}
+
+		private Node child(final double lon, final double lat) {
+			return this.children[(lat < this.midLat ? 0 : 2) + (lon < this.midLon ? 0 : 1)];
+		}
+	}
+}
@@ -0,0 +1,303 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.handlers;
+
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Credentials;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Status;
+import me.vinceh121.gmcserver.modules.LoggingModule;
+
+/**
+ * Serves GMC counter uploads ({@code /log2.asp}, {@code /log.asp} and their
+ * variants, with or without the {@code /api/v1} prefix) before the routers.
+ *
+ * Those are tiny GET requests sent by every counter every minute, so they skip
+ * routing, body handling and {@code MultiMap}s: parameters are read straight
+ * from the raw query string and common answers are static buffers. Other
+ * requests are passed to the next handler.
+ *
+ * Answers are plain text, or JSON errors like the API's when the client
+ * accepts {@code application/json}.
+ */
+public class GmcLogHandler implements Handler<HttpServerRequest> {
+	private static final Logger LOG = LogManager.getLogger(GmcLogHandler.class);
+	private static final CharSequence TEXT_PLAIN = HttpHeaders.createOptimized("text/plain"),
+			APPLICATION_JSON = HttpHeaders.createOptimized("application/json");
+	private static final Buffer OK = Buffer.buffer(LoggingModule.ERROR_OK),
+			SYNTAX = Buffer.buffer(LoggingModule.ERROR_SYNTAX), USER_ID = Buffer.buffer(LoggingModule.ERROR_USER_ID),
+			DEVICE_ID = Buffer.buffer(LoggingModule.ERROR_DEVICE_ID),
+			CREDENTIALS_FAILED = Buffer.buffer("Failed to resolve credentials");
+	private static final Map<Status, Buffer> STATUSES = new EnumMap<>(Status.class);
+	/**
+	 * Parameters of {@code /log2.asp}, lower case. Stat fields are in the same
+	 * order as {@link Record#STAT_FIELDS}.
+	 */
+	private static final String[] LOG2_PARAMS = { "aid", "gid", "cpm", "acpm", "usv", "co2", "hcho", "tmp", "ap",
+			"hmdt", "accy", "type", "lat", "lon", "alt" };
+	private static final int AID = 0, GID = 1, FIRST_STAT = 2, TYPE = 11, LAT = 12, LON = 13, ALT = 14;
+	private static final String[] LOG_PARAMS = { "id" };
+
+	static {
+		for (final Status status : Status.values()) {
+			GmcLogHandler.STATUSES.put(status, Buffer.buffer(status.getDescription()));
+		}
+	}
+
+	private final GMCServer srv;
+	private final Handler<HttpServerRequest> next;
+	private final boolean logIp, behindReverseProxy;
+
+	public GmcLogHandler(final GMCServer srv, final Handler<HttpServerRequest> next) {
+		this.srv = srv;
+		this.next = next;
+		this.logIp = Boolean.parseBoolean(this.srv.getConfig().getProperty("geiger.log-ip"));
+		this.behindReverseProxy = Boolean.parseBoolean(this.srv.getConfig().getProperty("geiger.behindReverseProxy"));
+	}
+
+	@Override
+	public void handle(final HttpServerRequest req) {
+		if (req.method() == HttpMethod.GET) {
+			switch (req.path()) {
+			case "/log2.asp":
+			case "/log2":
+			case "/api/v1/log2.asp":
+			case "/api/v1/log2":
+				this.handleLog2(req);
+				return;
+			case "/log.asp":
+			case "/log":
+			case "/api/v1/log.asp":
+			case "/api/v1/log":
+				this.handleClassicLog(req);
+				return;
+			default:
+				break;
+			}
+		}
+		this.next.handle(req);
+	}
+
+	private void handleLog2(final HttpServerRequest req) {
+		final String[] params = GmcLogHandler.parseQuery(req.query(), GmcLogHandler.LOG2_PARAMS);
+
+		final long gmcUserId;
+		try {
+			gmcUserId = Long.parseLong(params[GmcLogHandler.AID]);
+		} catch (final NumberFormatException e) {
+			GmcLogHandler.end(req, 400, GmcLogHandler.USER_ID);
+			return;
+		}
+
+		final long gmcDeviceId;
+		try {
+			gmcDeviceId = Long.parseLong(params[GmcLogHandler.GID]);
+		} catch (final NumberFormatException e) {
+			GmcLogHandler.end(req, 400, GmcLogHandler.DEVICE_ID);
+			return;
+		}
+
+		final Record rec = new Record();
+		try {
+			int i = GmcLogHandler.FIRST_STAT;
+			for (final String field : Record.STAT_FIELDS) {
+				if (params[i] != null) {
+					rec.setStatField(field, Double.parseDouble(params[i]));
+				}
+				i++;
+			}
+
+			if (params[GmcLogHandler.LAT] != null && params[GmcLogHandler.LON] != null) {
+				final double lon = Double.parseDouble(params[GmcLogHandler.LON]);
+				final double lat = Double.parseDouble(params[GmcLogHandler.LAT]);
+				final Position pos = params[GmcLogHandler.ALT] == null ? new Position(lon, lat)
+						: new Position(lon, lat, Double.parseDouble(params[GmcLogHandler.ALT]));
+				rec.setLocation(new Point(pos));
+			}
+		} catch (final NumberFormatException e) {
+			GmcLogHandler.end(req, 400, GmcLogHandler.SYNTAX);
+			return;
+		}
+		rec.setType(params[GmcLogHandler.TYPE]);
+
+		this.insert(req, gmcUserId, gmcDeviceId, rec);
+	}
+
+	private void handleClassicLog(final HttpServerRequest req) {
+		// /log.asp?id=UserAccountID+GeigerCounterID+CPM+ACPM+uSV
+		// ACPM and uSV optional
+		final String rawParams = GmcLogHandler.parseQuery(req.query(), GmcLogHandler.LOG_PARAMS)[0];
+
+		if (rawParams == null) {
+			GmcLogHandler.end(req, 400, GmcLogHandler.SYNTAX);
+			return;
+		}
+
+		final String[] splitParams = rawParams.split(" ");
+
+		if (splitParams.length < 3 || splitParams.length > 5) {
+			GmcLogHandler.end(req, 400, GmcLogHandler.SYNTAX);
+			return;
+		}
+
+		final long gmcUserId, gmcDeviceId;
+		final Record rec = new Record();
+		try {
+			gmcUserId = Long.parseLong(splitParams[0]);
+			gmcDeviceId = Long.parseLong(splitParams[1]);
+			rec.setCpm(Double.parseDouble(splitParams[2]));
+			if (splitParams.length > 3) {
+				rec.setAcpm(Double.parseDouble(splitParams[3]));
+			}
+			if (splitParams.length > 4) {
+				rec.setUsv(Double.parseDouble(splitParams[4]));
+			}
+		} catch (final NumberFormatException e) {
+			GmcLogHandler.end(req, 400, GmcLogHandler.SYNTAX);
+			return;
+		}
+
+		this.insert(req, gmcUserId, gmcDeviceId, rec);
+	}
+
+	private void insert(final HttpServerRequest req, final long gmcUserId, final long gmcDeviceId, final Record rec) {
+		this.srv.getCredentialsManager()
+			.resolveCredentials()
+			.setGmcUserId(gmcUserId)
+			.setGmcDeviceId(gmcDeviceId)
+			.execute()
+			.onSuccess(creds -> {
+				if (creds.getStatus() == Status.OK) {
+					this.insert(req, creds, rec);
+				} else {
+					GmcLogHandler.end(req,
+							creds.getStatus().getHttpStatus(),
+							GmcLogHandler.STATUSES.get(creds.getStatus()));
+				}
+			})
+			.onFailure(t -> {
+				GmcLogHandler.LOG.error("Failed to resolve credentials", t);
+				GmcLogHandler.end(req, 500, GmcLogHandler.CREDENTIALS_FAILED);
+			});
+	}
+
+	private void insert(final HttpServerRequest req, final Credentials creds, final Record rec) {
+		rec.setDeviceId(creds.getDevice().getId());
+		rec.setDate(new Date());
+		if (this.logIp) {
+			if (this.behindReverseProxy) {
+				rec.setIp(req.getHeader("X-Forwarded-For"));
+			} else {
+				rec.setIp(req.remoteAddress().host());
+			}
+		}
+
+		GmcLogHandler.LOG.debug("Inserting record {}", rec);
+		this.srv.getLoggingManager()
+			.insertRecord()
+			.setDevice(creds.getDevice())
+			.setUser(creds.getUser())
+			.setRecord(rec)
+			.execute()
+			.onSuccess(v -> GmcLogHandler.end(req, 200, GmcLogHandler.OK))
+			.onFailure(t -> GmcLogHandler.end(req, 500, Buffer.buffer(t.getMessage() + ".ERR9999")));
+	}
+
+	private static void end(final HttpServerRequest req, final int status, final Buffer body) {
+		final HttpServerResponse res = req.response();
+		if (res.closed()) {
+			return;
+		}
+		res.setStatusCode(status);
+		if (GmcLogHandler.acceptsJson(req)) {
+			final JsonObject obj = new JsonObject();
+			obj.put("status", status);
+			obj.put("description", body.toString());
+			obj.put("extras", null);
+			res.putHeader(HttpHeaders.CONTENT_TYPE, GmcLogHandler.APPLICATION_JSON).end(obj.toBuffer());
+		} else {
+			res.putHeader(HttpHeaders.CONTENT_TYPE, GmcLogHandler.TEXT_PLAIN).end(body);
+		}
+	}
+
+	private static boolean acceptsJson(final HttpServerRequest req) {
+		final String accept = req.getHeader(HttpHeaders.ACCEPT);
+		return accept != null && accept.contains("application/json");
+	}
+
+	/**
+	 * Reads parameters from a raw query string in a single pass. Names are
+	 * matched case insensitively, the first occurrence wins and values are only
+	 * decoded when they need to be.
+	 *
+	 * @param query raw query string, may be {@code null}
+	 * @param names lower case names of the parameters to read
+	 * @return values of the parameters, in the same order as {@code names},
+	 *         {@code null} for missing ones
+	 */
+	public static String[] parseQuery(final String query, final String[] names) {
+		final String[] values = new String[names.length];
+		if (query == null) {
+			return values;
+		}
+		final int len = query.length();
+		int start = 0;
+		while (start < len) {
+			int end = query.indexOf('&', start);
+			if (end == -1) {
+				end = len;
+			}
+			final int eq = query.indexOf('=', start);
+			final int nameEnd = eq == -1 || eq > end ? end : eq;
+			for (int i = 0; i < names.length; i++) {
+				if (values[i] == null && nameEnd - start == names[i].length()
+						&& query.regionMatches(true, start, names[i], 0, names[i].length())) {
+					values[i] = nameEnd == end ? "" : GmcLogHandler.decode(query.substring(nameEnd + 1, end));
+					break;
+				}
+			}
+			start = end + 1;
+		}
+		return values;
+	}
+
+	private static String decode(final String value) {
+		if (value.indexOf('%') == -1 && value.indexOf('+') == -1) {
+			return value;
+		}
+		return QueryStringDecoder.decodeComponent(value);
+	}
+}
@@ -0,0 +1,218 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.ingest;
+
+import java.util.Date;
+import java.util.Locale;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Parses records of bulk uploads, one line at a time.
+ *
+ * NDJSON lines are objects with a {@code deviceId}, a {@code date} in
+ * milliseconds, stat fields, an optional {@code type} and an optional
+ * {@code location} array. CSV bodies start with a header naming their columns
+ * among {@code deviceId}, {@code date}, the stat fields, {@code type},
+ * {@code lon}, {@code lat} and {@code alt}; values can't be quoted. Once the
+ * header is refused, no other line can be parsed.
+ */
+public class BulkRecordParser {
+	private final Format format;
+	private String[] columns;
+	private boolean headerInvalid;
+
+	public BulkRecordParser(final Format format) {
+		this.format = format;
+	}
+
+	/**
+	 * @param line a line of the body, without its line break
+	 * @return the parsed record, or {@code null} for blank lines and the CSV
+	 *         header
+	 * @throws IllegalArgumentException if the line is invalid
+	 * @throws IllegalStateException    if the CSV header was invalid
+	 */
+	public Record parse(final String line) {
+		if (line.isBlank()) {
+			return null;
+		}
+		switch (this.format) {
+		case NDJSON:
+			return this.parseJson(line);
+		case CSV:
+			if (this.headerInvalid) {
+				throw new IllegalStateException("Invalid header");
+			}
+			if (this.columns == null) {
+				this.headerInvalid = true;
+				this.parseHeader(line);
+				this.headerInvalid = false;
+				return null;
+			}
+			return this.parseCsv(line);
+		default:
+			throw new IllegalStateException("Unknown format " + this.format);
+		}
+	}
+
+	private Record parseJson(final String line) {
+		final JsonObject obj;
+		try {
+			obj = new JsonObject(line);
+		} catch (final DecodeException e) {
+			throw new IllegalArgumentException("Invalid JSON");
+		}
+
+		final Record rec = new Record();
+		try {
+			rec.setDeviceId(BulkRecordParser.parseDeviceId(obj.getString("deviceId")));
+			final Long date = obj.getLong("date");
+			if (date == null) {
+				throw new IllegalArgumentException("Missing date");
+			}
+			rec.setDate(new Date(date));
+
+			for (final String field : Record.STAT_FIELDS) {
+				final Double value = obj.getDouble(field);
+				if (value != null) {
+					rec.setStatField(field, value);
+				}
+			}
+			rec.setType(obj.getString("type"));
+
+			final JsonArray location = obj.getJsonArray("location");
+			if (location != null) {
+				if (location.size() == 2) {
+					rec.setLocation(new Point(new Position(location.getDouble(0), location.getDouble(1))));
+				} else if (location.size() == 3) {
+					rec.setLocation(new Point(
+							new Position(location.getDouble(0), location.getDouble(1), location.getDouble(2))));
+				} else {
+					throw new IllegalArgumentException("Location must have 2 or 3 coordinates");
+				}
+			}
+		} catch (final ClassCastException | NullPointerException e) {
+			throw new IllegalArgumentException("Invalid field type");
+		}
+		return rec;
+	}
+
+	private void parseHeader(final String line) {
+		final String[] columns = line.split(",");
+		for (int i = 0; i < columns.length; i++) {
+			columns[i] = columns[i].trim().toLowerCase(Locale.ROOT);
+			if (!"deviceid".equals(columns[i]) && !"date".equals(columns[i]) && !"type".equals(columns[i])
+					&& !"lon".equals(columns[i]) && !"lat".equals(columns[i]) && !"alt".equals(columns[i])
+					&& !Record.STAT_FIELDS.contains(columns[i])) {
+				throw new IllegalArgumentException("Unknown column " + columns[i]);
+			}
+		}
+		this.columns = columns;
+	}
+
+	private Record parseCsv(final String line) {
+		final String[] values = line.split(",", -1);
+		if (values.length != this.columns.length) {
+			throw new IllegalArgumentException(
+					"Expected " + this.columns.length + " columns, got " + values.length);
+		}
+
+		final Record rec = new Record();
+		String lon = null, lat = null, alt = null;
+		try {
+			for (int i = 0; i < values.length; i++) {
+				final String value = values[i].trim();
+				if (value.isEmpty()) {
+					continue;
+				}
+				switch (this.columns[i]) {
+				case "deviceid":
+					rec.setDeviceId(BulkRecordParser.parseDeviceId(value));
+					break;
+				case "date":
+					rec.setDate(new Date(Long.parseLong(value)));
+					break;
+				case "type":
+					rec.setType(value);
+					break;
+				case "lon":
+					lon = value;
+					break;
+				case "lat":
+					lat = value;
+					break;
+				case "alt":
+					alt = value;
+					break;
+				default:
+					rec.setStatField(this.columns[i], Double.parseDouble(value));
+					break;
+				}
+			}
+
+			if (lon != null && lat != null) {
+				rec.setLocation(new Point(alt == null ? new Position(Double.parseDouble(lon), Double.parseDouble(lat))
+						: new Position(Double.parseDouble(lon), Double.parseDouble(lat), Double.parseDouble(alt))));
+			}
+		} catch (final NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number: " + e.getMessage());
+		}
+
+		if (rec.getDeviceId() == null) {
+			throw new IllegalArgumentException("Missing deviceId");
+		}
+		if (rec.getDate() == null) {
+			throw new IllegalArgumentException("Missing date");
+		}
+		return rec;
+	}
+
+	private static ObjectId parseDeviceId(final String value) {
+		if (value == null) {
+			throw new IllegalArgumentException("Missing deviceId");
+		}
+		if (!ObjectId.isValid(value)) {
+			throw new IllegalArgumentException("Invalid deviceId");
+		}
+		return new ObjectId(value);
+	}
+
+	public Format getFormat() {
+		return this.format;
+	}
+
+	/**
+	 * @return whether the CSV header was refused
+	 */
+	public boolean isHeaderInvalid() {
+		return this.headerInvalid;
+	}
+
+	public enum Format {
+		NDJSON, CSV;
+	}
+}
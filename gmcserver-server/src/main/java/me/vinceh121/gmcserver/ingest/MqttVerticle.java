@@ -0,0 +1,247 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.ingest;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.DecodeException;
+import io.vertx.core.json.JsonObject;
+import io.vertx.mqtt.MqttEndpoint;
+import io.vertx.mqtt.MqttServer;
+import io.vertx.mqtt.MqttServerOptions;
+import io.vertx.mqtt.MqttTopicSubscription;
+import io.vertx.mqtt.messages.MqttPublishMessage;
+import io.vertx.mqtt.messages.codes.MqttPubAckReasonCode;
+import io.vertx.mqtt.messages.codes.MqttPubRecReasonCode;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Status;
+
+/**
+ * MQTT endpoint for counters, bound to a single event loop like
+ * {@link me.vinceh121.gmcserver.HttpVerticle}.
+ *
+ * Counters publish records on {@code gmc/<gmc user ID>/<gmc device ID>}, which
+ * go through the same ownership checks as HTTP uploads, so one connection can
+ * publish for all of a user's devices. Payloads hold the same parameters
+ * as {@code /log2.asp}, either as a query string ({@code CPM=23&ACPM=21.5}) or
+ * as a JSON object. QoS 1 and 2 messages are acknowledged once the record is
+ * logged, with a reason code for MQTT 5 clients when it was refused.
+ * Subscriptions are refused.
+ */
+public class MqttVerticle extends AbstractVerticle {
+	private static final Logger LOG = LogManager.getLogger(MqttVerticle.class);
+	public static final String TOPIC_PREFIX = "gmc/";
+	private final GMCServer srv;
+	private final boolean logIp;
+	private MqttServer server;
+
+	public MqttVerticle(final GMCServer srv) {
+		this.srv = srv;
+		this.logIp = Boolean.parseBoolean(this.srv.getConfig().getProperty("geiger.log-ip"));
+	}
+
+	@Override
+	public void start(final Promise<Void> startPromise) {
+		this.server = MqttServer.create(this.vertx,
+				new MqttServerOptions().setHost(this.srv.getConfig().getProperty("mqtt.host", "127.0.0.1"))
+					.setPort(Integer.parseInt(this.srv.getConfig().getProperty("mqtt.port", "1883"))));
+		this.server.exceptionHandler(t -> MqttVerticle.LOG.error("Unexpected MQTT error", t));
+		this.server.endpointHandler(this::handleEndpoint);
+		this.server.listen().<Void>mapEmpty().onComplete(startPromise);
+	}
+
+	private void handleEndpoint(final MqttEndpoint endpoint) {
+		endpoint.publishAutoAck(false);
+		endpoint.publishHandler(msg -> this.handlePublish(endpoint, msg));
+		endpoint.publishReleaseHandler(endpoint::publishComplete);
+		endpoint.subscribeHandler(sub -> {
+			final List<MqttQoS> granted = new ArrayList<>(sub.topicSubscriptions().size());
+			for (final MqttTopicSubscription t : sub.topicSubscriptions()) {
+				granted.add(MqttQoS.FAILURE);
+			}
+			endpoint.subscribeAcknowledge(sub.messageId(), granted);
+		});
+		endpoint.unsubscribeHandler(unsub -> endpoint.unsubscribeAcknowledge(unsub.messageId()));
+		endpoint.exceptionHandler(
+				t -> MqttVerticle.LOG.error("Error on MQTT connection of " + endpoint.clientIdentifier(), t));
+		endpoint.accept(false);
+	}
+
+	private void handlePublish(final MqttEndpoint endpoint, final MqttPublishMessage msg) {
+		final long[] ids = MqttVerticle.parseTopic(msg.topicName());
+		if (ids == null) {
+			MqttVerticle.LOG.debug("Refused record on topic {}", msg.topicName());
+			this.acknowledge(endpoint, msg, MqttPubAckReasonCode.TOPIC_NAME_INVALID);
+			return;
+		}
+		final long gmcUserId = ids[0], gmcDeviceId = ids[1];
+
+		final Record rec;
+		try {
+			final MultiMap params = MqttVerticle.decodePayload(msg.payload());
+			rec = new Record.Builder().withGmcParams(params).withGmcPosition(params).withCurrentDate().build();
+		} catch (final IllegalArgumentException e) {
+			MqttVerticle.LOG.debug("Refused record of user {} with invalid payload: {}", gmcUserId, e.getMessage());
+			this.acknowledge(endpoint, msg, MqttPubAckReasonCode.PAYLOAD_FORMAT_INVALID);
+			return;
+		}
+		if (this.logIp) {
+			rec.setIp(endpoint.remoteAddress().host());
+		}
+
+		this.srv.getCredentialsManager()
+			.resolveCredentials()
+			.setGmcUserId(gmcUserId)
+			.setGmcDeviceId(gmcDeviceId)
+			.execute()
+			.onSuccess(creds -> {
+				if (creds.getStatus() != Status.OK) {
+					MqttVerticle.LOG.debug("Refused record of user {} for device {}: {}",
+							gmcUserId,
+							gmcDeviceId,
+							creds.getStatus());
+					this.acknowledge(endpoint, msg, MqttPubAckReasonCode.NOT_AUTHORIZED);
+					return;
+				}
+
+				rec.setDeviceId(creds.getDevice().getId());
+				this.srv.getLoggingManager()
+					.insertRecord()
+					.setDevice(creds.getDevice())
+					.setUser(creds.getUser())
+					.setRecord(rec)
+					.execute()
+					.onSuccess(v -> this.acknowledge(endpoint, msg, MqttPubAckReasonCode.SUCCESS))
+					.onFailure(t -> {
+						MqttVerticle.LOG.error("Failed to insert record of device " + gmcDeviceId, t);
+						this.fail(endpoint, msg);
+					});
+			})
+			.onFailure(t -> {
+				MqttVerticle.LOG.error("Failed to resolve credentials", t);
+				this.fail(endpoint, msg);
+			});
+	}
+
+	/**
+	 * MQTT 3 has no negative acknowledgement, the connection is closed instead so
+	 * the client sends the message again once reconnected. QoS 0 messages are
+	 * never sent again, so they're dropped without closing the connection.
+	 */
+	private void fail(final MqttEndpoint endpoint, final MqttPublishMessage msg) {
+		if (endpoint.protocolVersion() >= 5) {
+			this.acknowledge(endpoint, msg, MqttPubAckReasonCode.UNSPECIFIED_ERROR);
+		} else if (msg.qosLevel() == MqttQoS.AT_MOST_ONCE) {
+			MqttVerticle.LOG.warn("Dropped QoS 0 message on {} from {}", msg.topicName(), endpoint.clientIdentifier());
+		} else if (endpoint.isConnected()) {
+			endpoint.close();
+		}
+	}
+
+	private void acknowledge(final MqttEndpoint endpoint, final MqttPublishMessage msg,
+			final MqttPubAckReasonCode code) {
+		if (!endpoint.isConnected()) {
+			return;
+		}
+		final boolean v5 = endpoint.protocolVersion() >= 5;
+		switch (msg.qosLevel()) {
+		case AT_LEAST_ONCE:
+			if (v5) {
+				endpoint.publishAcknowledge(msg.messageId(), code, null);
+			} else {
+				endpoint.publishAcknowledge(msg.messageId());
+			}
+			break;
+		case EXACTLY_ONCE:
+			if (v5) {
+				endpoint.publishReceived(msg.messageId(), MqttPubRecReasonCode.valueOf(code.value()), null);
+			} else {
+				endpoint.publishReceived(msg.messageId());
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * @return the GMC user and device IDs of a
+	 *         {@code gmc/<gmc user ID>/<gmc device ID>} topic, or {@code null} if
+	 *         the topic is invalid
+	 */
+	public static long[] parseTopic(final String topic) {
+		if (!topic.startsWith(MqttVerticle.TOPIC_PREFIX)) {
+			return null;
+		}
+		final int slash = topic.indexOf('/', MqttVerticle.TOPIC_PREFIX.length());
+		if (slash == -1) {
+			return null;
+		}
+		try {
+			return new long[] { Long.parseLong(topic, MqttVerticle.TOPIC_PREFIX.length(), slash, 10),
+					Long.parseLong(topic, slash + 1, topic.length(), 10) };
+		} catch (final NumberFormatException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the parameters of a payload, a JSON object or a query string
+	 *
+	 * @throws IllegalArgumentException if the payload is invalid
+	 */
+	public static MultiMap decodePayload(final Buffer payload) {
+		final MultiMap params = MultiMap.caseInsensitiveMultiMap();
+		final String str = payload.toString().trim();
+		if (str.startsWith("{")) {
+			final JsonObject obj;
+			try {
+				obj = new JsonObject(str);
+			} catch (final DecodeException e) {
+				throw new IllegalArgumentException("Invalid JSON");
+			}
+			for (final Map.Entry<String, Object> e : obj) {
+				if (e.getValue() != null) {
+					params.add(e.getKey(), String.valueOf(e.getValue()));
+				}
+			}
+		} else {
+			for (final Map.Entry<String, List<String>> e : new QueryStringDecoder(str, false).parameters()
+				.entrySet()) {
+				params.add(e.getKey(), e.getValue());
+			}
+		}
+		return params;
+	}
+
+	public MqttServer getServer() {
+		return this.server;
+	}
+}
@@ -0,0 +1,258 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.ingest;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.buffer.Buffer;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Compact binary frame of a record sent over UDP, big endian:
+ *
+ * <pre>
+ * version     u8   1
+ * flags       u8   FLAG_*
+ * gmc user    i64
+ * gmc device  i64
+ * sequence    u32  per device, for duplicates and acks
+ * fields      u16  bit i set if field i of FIELDS is present
+ * date        u32  seconds since epoch, if FLAG_DATE
+ * boot        u32  changes whenever the sequence restarts, if FLAG_BOOT
+ * values      f64  one per present field, in order
+ * location    f64  lon, lat and alt if FLAG_LOCATION, lon and lat if
+ *                  FLAG_LOCATION_2D
+ * </pre>
+ *
+ * Acks are {@code version u8, status u8, sequence u32}.
+ *
+ * Counters that may restart their sequence, for instance after a reboot, must
+ * send either a date or a boot ID, otherwise new frames could be taken for
+ * retransmissions.
+ */
+public class UdpFrame {
+	public static final int VERSION = 1;
+	public static final int FLAG_ACK = 1, FLAG_DATE = 1 << 1, FLAG_LOCATION = 1 << 2, FLAG_BOOT = 1 << 3,
+			FLAG_LOCATION_2D = 1 << 4;
+	public static final int STATUS_OK = 0, STATUS_UNKNOWN_USER = 1, STATUS_UNKNOWN_DEVICE = 2,
+			STATUS_NOT_OWNED = 3, STATUS_ERROR = 4;
+	/**
+	 * Stat fields by bit of the fields bitmask. Part of the wire format, new
+	 * fields can only be appended.
+	 */
+	public static final List<String> FIELDS = Collections
+		.unmodifiableList(Arrays.asList("cpm", "acpm", "usv", "co2", "hcho", "tmp", "ap", "hmdt", "accy"));
+	private static final int HEADER_SIZE = 24, ACK_SIZE = 6;
+	private final long gmcUserId, gmcDeviceId, date, boot;
+	private final int sequence;
+	private final boolean ackRequested;
+	private final Record record;
+
+	private UdpFrame(final long gmcUserId, final long gmcDeviceId, final long date, final long boot,
+			final int sequence, final boolean ackRequested, final Record record) {
+		this.gmcUserId = gmcUserId;
+		this.gmcDeviceId = gmcDeviceId;
+		this.date = date;
+		this.boot = boot;
+		this.sequence = sequence;
+		this.ackRequested = ackRequested;
+		this.record = record;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the frame is malformed
+	 */
+	public static UdpFrame decode(final Buffer buf) {
+		if (buf.length() < UdpFrame.HEADER_SIZE) {
+			throw new IllegalArgumentException("Frame too short");
+		}
+		if (buf.getUnsignedByte(0) != UdpFrame.VERSION) {
+			throw new IllegalArgumentException("Unknown version " + buf.getUnsignedByte(0));
+		}
+		final int flags = buf.getUnsignedByte(1);
+		final int fields = buf.getUnsignedShort(22);
+
+		int size = UdpFrame.HEADER_SIZE + Integer.bitCount(fields) * 8;
+		if ((flags & UdpFrame.FLAG_DATE) != 0) {
+			size += 4;
+		}
+		if ((flags & UdpFrame.FLAG_BOOT) != 0) {
+			size += 4;
+		}
+		if ((flags & UdpFrame.FLAG_LOCATION) != 0 && (flags & UdpFrame.FLAG_LOCATION_2D) != 0) {
+			throw new IllegalArgumentException("Both location flags set");
+		} else if ((flags & UdpFrame.FLAG_LOCATION) != 0) {
+			size += 24;
+		} else if ((flags & UdpFrame.FLAG_LOCATION_2D) != 0) {
+			size += 16;
+		}
+		if (fields >>> UdpFrame.FIELDS.size() != 0) {
+			throw new IllegalArgumentException("Unknown fields");
+		}
+		if (buf.length() != size) {
+			throw new IllegalArgumentException("Expected " + size + " bytes, got " + buf.length());
+		}
+
+		final Record rec = new Record();
+		int pos = UdpFrame.HEADER_SIZE;
+		long date = -1;
+		if ((flags & UdpFrame.FLAG_DATE) != 0) {
+			date = buf.getUnsignedInt(pos);
+			rec.setDate(new Date(date * 1000L));
+			pos += 4;
+		} else {
+			rec.setDate(new Date());
+		}
+		long boot = -1;
+		if ((flags & UdpFrame.FLAG_BOOT) != 0) {
+			boot = buf.getUnsignedInt(pos);
+			pos += 4;
+		}
+		for (int i = 0; i < UdpFrame.FIELDS.size(); i++) {
+			if ((fields & 1 << i) != 0) {
+				rec.setStatField(UdpFrame.FIELDS.get(i), buf.getDouble(pos));
+				pos += 8;
+			}
+		}
+		if ((flags & UdpFrame.FLAG_LOCATION) != 0) {
+			rec.setLocation(
+					new Point(new Position(buf.getDouble(pos), buf.getDouble(pos + 8), buf.getDouble(pos + 16))));
+		} else if ((flags & UdpFrame.FLAG_LOCATION_2D) != 0) {
+			rec.setLocation(new Point(new Position(buf.getDouble(pos), buf.getDouble(pos + 8))));
+		}
+
+		return new UdpFrame(buf.getLong(2),
+				buf.getLong(10),
+				date,
+				boot,
+				(int) buf.getUnsignedInt(18),
+				(flags & UdpFrame.FLAG_ACK) != 0,
+				rec);
+	}
+
+	/**
+	 * Encodes a record as a counter would, without boot ID
+	 *
+	 * @see #encode(long, long, long, int, boolean, Record)
+	 */
+	public static Buffer encode(final long gmcUserId, final long gmcDeviceId, final int sequence,
+			final boolean ackRequested, final Record rec) {
+		return UdpFrame.encode(gmcUserId, gmcDeviceId, -1, sequence, ackRequested, rec);
+	}
+
+	/**
+	 * Encodes a record as a counter would. The date and location are sent if the
+	 * record has them, with or without altitude.
+	 *
+	 * @param boot boot ID, from 0 to 2^32 - 1, or -1 to omit it
+	 */
+	public static Buffer encode(final long gmcUserId, final long gmcDeviceId, final long boot, final int sequence,
+			final boolean ackRequested, final Record rec) {
+		final Buffer buf = Buffer.buffer(128);
+		int flags = ackRequested ? UdpFrame.FLAG_ACK : 0;
+		if (rec.getDate() != null) {
+			flags |= UdpFrame.FLAG_DATE;
+		}
+		if (boot != -1) {
+			flags |= UdpFrame.FLAG_BOOT;
+		}
+		if (rec.getLocation() != null) {
+			flags |= rec.getLocation().getCoordinates().getValues().size() >= 3 ? UdpFrame.FLAG_LOCATION
+					: UdpFrame.FLAG_LOCATION_2D;
+		}
+		int fields = 0;
+		for (int i = 0; i < UdpFrame.FIELDS.size(); i++) {
+			if (!Double.isNaN(rec.getStatField(UdpFrame.FIELDS.get(i)))) {
+				fields |= 1 << i;
+			}
+		}
+
+		buf.appendUnsignedByte((short) UdpFrame.VERSION)
+			.appendUnsignedByte((short) flags)
+			.appendLong(gmcUserId)
+			.appendLong(gmcDeviceId)
+			.appendUnsignedInt(Integer.toUnsignedLong(sequence))
+			.appendUnsignedShort(fields);
+		if (rec.getDate() != null) {
+			buf.appendUnsignedInt(rec.getDate().getTime() / 1000L);
+		}
+		if (boot != -1) {
+			buf.appendUnsignedInt(boot);
+		}
+		for (int i = 0; i < UdpFrame.FIELDS.size(); i++) {
+			if ((fields & 1 << i) != 0) {
+				buf.appendDouble(rec.getStatField(UdpFrame.FIELDS.get(i)));
+			}
+		}
+		if (rec.getLocation() != null) {
+			final List<Double> coords = rec.getLocation().getCoordinates().getValues();
+			final int dimensions = (flags & UdpFrame.FLAG_LOCATION) != 0 ? 3 : 2;
+			for (int i = 0; i < dimensions; i++) {
+				buf.appendDouble(coords.get(i));
+			}
+		}
+		return buf;
+	}
+
+	public static Buffer encodeAck(final int sequence, final int status) {
+		return Buffer.buffer(UdpFrame.ACK_SIZE)
+			.appendUnsignedByte((short) UdpFrame.VERSION)
+			.appendUnsignedByte((short) status)
+			.appendUnsignedInt(Integer.toUnsignedLong(sequence));
+	}
+
+	public long getGmcUserId() {
+		return this.gmcUserId;
+	}
+
+	public long getGmcDeviceId() {
+		return this.gmcDeviceId;
+	}
+
+	/**
+	 * @return the date sent by the counter, in seconds since epoch, or -1
+	 */
+	public long getDate() {
+		return this.date;
+	}
+
+	/**
+	 * @return the boot ID, or -1
+	 */
+	public long getBoot() {
+		return this.boot;
+	}
+
+	public int getSequence() {
+		return this.sequence;
+	}
+
+	public boolean isAckRequested() {
+		return this.ackRequested;
+	}
+
+	public Record getRecord() {
+		return this.record;
+	}
+}
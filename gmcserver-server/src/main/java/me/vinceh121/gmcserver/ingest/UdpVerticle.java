@@ -0,0 +1,191 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.ingest;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import io.vertx.core.AbstractVerticle;
+import io.vertx.core.Promise;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.net.SocketAddress;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Status;
+
+/**
+ * UDP endpoint for low-power counters sending one {@link UdpFrame} per record,
+ * without connection.
+ *
+ * Frames go through the same ownership checks as HTTP uploads. Frames already
+ * received with the same user, device, sequence number, date and boot ID,
+ * usually sent again because their ack was lost, are only acked again.
+ * Malformed frames are dropped silently.
+ */
+public class UdpVerticle extends AbstractVerticle {
+	private static final Logger LOG = LogManager.getLogger(UdpVerticle.class);
+	private final GMCServer srv;
+	private final boolean logIp;
+	/**
+	 * Recently received frames, and whether they were inserted yet
+	 */
+	private final Map<SeenKey, Boolean> seen;
+	private DatagramSocket socket;
+
+	public UdpVerticle(final GMCServer srv) {
+		this.srv = srv;
+		this.logIp = Boolean.parseBoolean(this.srv.getConfig().getProperty("geiger.log-ip"));
+		final int dedupSize = Integer.parseInt(this.srv.getConfig().getProperty("udp.dedup.size", "10000"));
+		this.seen = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<SeenKey, Boolean> eldest) {
+				return this.size() > dedupSize;
+			}
+		};
+	}
+
+	@Override
+	public void start(final Promise<Void> startPromise) {
+		this.socket = this.vertx.createDatagramSocket();
+		this.socket.exceptionHandler(t -> UdpVerticle.LOG.error("Unexpected UDP error", t));
+		this.socket.handler(this::handlePacket);
+		this.socket
+			.listen(Integer.parseInt(this.srv.getConfig().getProperty("udp.port", "8089")),
+					this.srv.getConfig().getProperty("udp.host", "127.0.0.1"))
+			.<Void>mapEmpty()
+			.onComplete(startPromise);
+	}
+
+	private void handlePacket(final DatagramPacket packet) {
+		final UdpFrame frame;
+		try {
+			frame = UdpFrame.decode(packet.data());
+		} catch (final IllegalArgumentException e) {
+			UdpVerticle.LOG.debug("Dropped invalid frame from {}: {}", packet.sender(), e.getMessage());
+			return;
+		}
+
+		final SeenKey key = new SeenKey(frame);
+		final Boolean inserted = this.seen.putIfAbsent(key, false);
+		if (inserted != null) {
+			// still being inserted, the first frame will be acked
+			if (inserted) {
+				this.ack(packet.sender(), frame, UdpFrame.STATUS_OK);
+			}
+			return;
+		}
+
+		final Record rec = frame.getRecord();
+		if (this.logIp) {
+			rec.setIp(packet.sender().host());
+		}
+
+		this.srv.getCredentialsManager()
+			.resolveCredentials()
+			.setGmcUserId(frame.getGmcUserId())
+			.setGmcDeviceId(frame.getGmcDeviceId())
+			.execute()
+			.onSuccess(creds -> {
+				if (creds.getStatus() != Status.OK) {
+					this.refuse(packet.sender(), frame, key, creds.getStatus().getUdpStatus());
+					return;
+				}
+
+				rec.setDeviceId(creds.getDevice().getId());
+				this.srv.getLoggingManager()
+					.insertRecord()
+					.setDevice(creds.getDevice())
+					.setUser(creds.getUser())
+					.setRecord(rec)
+					.execute()
+					.onSuccess(v -> {
+						this.seen.replace(key, true);
+						this.ack(packet.sender(), frame, UdpFrame.STATUS_OK);
+					})
+					.onFailure(t -> {
+						UdpVerticle.LOG.error("Failed to insert record of device " + frame.getGmcDeviceId(), t);
+						this.refuse(packet.sender(), frame, key, UdpFrame.STATUS_ERROR);
+					});
+			})
+			.onFailure(t -> {
+				UdpVerticle.LOG.error("Failed to resolve credentials", t);
+				this.refuse(packet.sender(), frame, key, UdpFrame.STATUS_ERROR);
+			});
+	}
+
+	/**
+	 * Forgets the frame so it can be sent again, and acks the failure
+	 */
+	private void refuse(final SocketAddress sender, final UdpFrame frame, final SeenKey key, final int status) {
+		this.seen.remove(key);
+		this.ack(sender, frame, status);
+	}
+
+	private void ack(final SocketAddress sender, final UdpFrame frame, final int status) {
+		if (frame.isAckRequested()) {
+			this.socket.send(UdpFrame.encodeAck(frame.getSequence(), status), sender.port(), sender.host());
+		}
+	}
+
+	public DatagramSocket getSocket() {
+		return this.socket;
+	}
+
+	/**
+	 * Identifies a frame. The date and boot ID tell apart frames of a counter
+	 * that restarted its sequence, and the user ID keeps frames with wrong
+	 * credentials from being taken for the device's.
+	 */
+	private static class SeenKey {
+		private final long gmcUserId, gmcDeviceId, date, boot;
+		private final int sequence;
+
+		private SeenKey(final UdpFrame frame) {
+			this.gmcUserId = frame.getGmcUserId();
+			this.gmcDeviceId = frame.getGmcDeviceId();
+			this.date = frame.getDate();
+			this.boot = frame.getBoot();
+			this.sequence = frame.getSequence();
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.gmcUserId, this.gmcDeviceId, this.date, this.boot, this.sequence);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof SeenKey)) {
+				return false;
+			}
+			final SeenKey other = (SeenKey) obj;
+			return this.gmcUserId == other.gmcUserId && this.gmcDeviceId == other.gmcDeviceId
+					&& this.date == other.date && this.boot == other.boot && this.sequence == other.sequence;
+		}
+	}
+}
@@ -0,0 +1,52 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.json;
+
+import java.io.OutputStream;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Output stream appending to a Vert.x buffer, which can be swapped once
+ * written out.
+ */
+class BufferOutputStream extends OutputStream {
+	private Buffer buffer;
+
+	BufferOutputStream(final Buffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void write(final int b) {
+		this.buffer.appendByte((byte) b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+		this.buffer.appendBytes(b, off, len);
+	}
+
+	Buffer getBuffer() {
+		return this.buffer;
+	}
+
+	void setBuffer(final Buffer buffer) {
+		this.buffer = buffer;
+	}
+}
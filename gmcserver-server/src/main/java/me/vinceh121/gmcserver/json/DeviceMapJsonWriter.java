@@ -0,0 +1,138 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.json;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import me.vinceh121.gmcserver.entities.Device;
+
+/**
+ * Streams devices of the map as a JSON array or as newline delimited JSON,
+ * without going through intermediate {@code JsonObject}s.
+ *
+ * Output is written to the stream in chunks, like {@link RecordJsonWriter}.
+ * Produces the same JSON as {@link Device#toMapJson()}.
+ */
+public class DeviceMapJsonWriter {
+	public static final String NDJSON_CONTENT_TYPE = "application/x-ndjson";
+	private static final JsonFactory FACTORY = new JsonFactory();
+	private final WriteStream<Buffer> stream;
+	private final boolean ndjson;
+	private final int chunkSize;
+	private final BufferOutputStream out;
+	private final JsonGenerator gen;
+
+	/**
+	 * @param ndjson write one device per line instead of a JSON array
+	 */
+	public DeviceMapJsonWriter(final WriteStream<Buffer> stream, final boolean ndjson) {
+		this(stream, ndjson, RecordJsonWriter.DEFAULT_CHUNK_SIZE);
+	}
+
+	public DeviceMapJsonWriter(final WriteStream<Buffer> stream, final boolean ndjson, final int chunkSize) {
+		this.stream = stream;
+		this.ndjson = ndjson;
+		this.chunkSize = chunkSize;
+		this.out = new BufferOutputStream(Buffer.buffer(chunkSize));
+		try {
+			this.gen = DeviceMapJsonWriter.FACTORY.createGenerator(this.out, JsonEncoding.UTF8);
+			this.gen.setRootValueSeparator(null);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void start() {
+		if (this.ndjson) {
+			return;
+		}
+		try {
+			this.gen.writeStartArray();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void write(final Device dev) {
+		try {
+			DeviceMapJsonWriter.writeDevice(this.gen, dev);
+			if (this.ndjson) {
+				this.gen.writeRaw('\n');
+			}
+			if (this.gen.getOutputBuffered() + this.out.getBuffer().length() >= this.chunkSize) {
+				this.flush();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Closes the array if needed and writes what is left, without ending the
+	 * stream.
+	 */
+	public void end() {
+		try {
+			if (!this.ndjson) {
+				this.gen.writeEndArray();
+			}
+			this.flush();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the pending output to the stream
+	 */
+	public void flush() {
+		try {
+			this.gen.flush();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (this.out.getBuffer().length() != 0) {
+			this.stream.write(this.out.getBuffer());
+			this.out.setBuffer(Buffer.buffer(this.chunkSize));
+		}
+	}
+
+	public static void writeDevice(final JsonGenerator gen, final Device dev) throws IOException {
+		gen.writeStartObject();
+		gen.writeStringField("id", dev.getId().toHexString());
+		gen.writeStringField("name", dev.getName());
+		gen.writeFieldName("location");
+		final List<Double> coords = dev.getLocation().getCoordinates().getValues();
+		gen.writeStartArray();
+		for (final Double c : coords) {
+			gen.writeNumber(c);
+		}
+		gen.writeEndArray();
+		gen.writeFieldName("lastRecord");
+		RecordJsonWriter.writeRecord(gen, dev.getLastRecord(), false);
+		gen.writeEndObject();
+	}
+}
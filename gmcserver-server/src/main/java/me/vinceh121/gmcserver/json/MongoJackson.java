@@ -18,17 +18,23 @@
 package me.vinceh121.gmcserver.json;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.bson.types.ObjectId;
 
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.core.JsonParser;
 import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.DeserializationContext;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.deser.std.StdDeserializer;
 import com.fasterxml.jackson.databind.module.SimpleModule;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
 import com.fasterxml.jackson.databind.ser.std.StdSerializer;
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
 
 import io.vertx.core.json.jackson.DatabindCodec;
 
@@ -37,7 +43,11 @@ public final class MongoJackson {
 		final SimpleModule mod = new SimpleModule("MongoJackson");
 		mod.addSerializer(ObjectId.class, new ObjectIdSerializer());
 		mod.addDeserializer(ObjectId.class, new ObjectIdDeserializer());
+		mod.addSerializer(Point.class, new PointSerializer());
+		mod.addDeserializer(Point.class, new PointDeserializer());
 		DatabindCodec.mapper().registerModule(mod);
+		// entities might have been mapped before the module was registered
+		((DefaultSerializerProvider) DatabindCodec.mapper().getSerializerProvider()).flushCachedSerializers();
 	}
 
 	public static class ObjectIdSerializer extends StdSerializer<ObjectId> {
@@ -67,4 +77,46 @@ public final class MongoJackson {
 			return new ObjectId(p.getValueAsString());
 		}
 	}
+
+	/**
+	 * Writes points as their coordinates array, like entities' {@code toJson}
+	 */
+	public static class PointSerializer extends StdSerializer<Point> {
+		private static final long serialVersionUID = 2263727361744358722L;
+
+		protected PointSerializer() {
+			super(Point.class);
+		}
+
+		@Override
+		public void serialize(final Point value, final JsonGenerator gen, final SerializerProvider provider)
+				throws IOException {
+			gen.writeStartArray();
+			for (final Double c : value.getCoordinates().getValues()) {
+				gen.writeNumber(c);
+			}
+			gen.writeEndArray();
+		}
+	}
+
+	public static class PointDeserializer extends StdDeserializer<Point> {
+		private static final long serialVersionUID = -3126419446391358093L;
+
+		protected PointDeserializer() {
+			super(Point.class);
+		}
+
+		@Override
+		public Point deserialize(final JsonParser p, final DeserializationContext ctxt)
+				throws IOException, JsonProcessingException {
+			if (!p.isExpectedStartArrayToken()) {
+				return (Point) ctxt.handleUnexpectedToken(Point.class, p);
+			}
+			final List<Double> coords = new ArrayList<>(3);
+			while (p.nextToken() != JsonToken.END_ARRAY) {
+				coords.add(p.getDoubleValue());
+			}
+			return new Point(new Position(coords));
+		}
+	}
 }
@@ -0,0 +1,167 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.json;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.List;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Streams records as a JSON array, without going through Jackson databind or
+ * intermediate {@code JsonObject}s.
+ *
+ * Output is accumulated in a buffer and written to the stream once it reaches
+ * the chunk size. Produces the same JSON as {@link Record#toJson()} and
+ * {@link Record#toPublicJson()}.
+ */
+public class RecordJsonWriter {
+	public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+	private static final JsonFactory FACTORY = new JsonFactory();
+	private final WriteStream<Buffer> stream;
+	private final boolean full;
+	private final int chunkSize;
+	private final BufferOutputStream out;
+	private final JsonGenerator gen;
+
+	/**
+	 * @param full write all fields like {@link Record#toJson()} instead of public
+	 *             ones like {@link Record#toPublicJson()}
+	 */
+	public RecordJsonWriter(final WriteStream<Buffer> stream, final boolean full) {
+		this(stream, full, RecordJsonWriter.DEFAULT_CHUNK_SIZE);
+	}
+
+	public RecordJsonWriter(final WriteStream<Buffer> stream, final boolean full, final int chunkSize) {
+		this.stream = stream;
+		this.full = full;
+		this.chunkSize = chunkSize;
+		this.out = new BufferOutputStream(Buffer.buffer(chunkSize));
+		try {
+			this.gen = RecordJsonWriter.FACTORY.createGenerator(this.out, JsonEncoding.UTF8);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void startArray() {
+		try {
+			this.gen.writeStartArray();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	public void write(final Record rec) {
+		try {
+			RecordJsonWriter.writeRecord(this.gen, rec, this.full);
+			if (this.gen.getOutputBuffered() + this.out.getBuffer().length() >= this.chunkSize) {
+				this.flush();
+			}
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Closes the array and writes what is left, without ending the stream.
+	 */
+	public void endArray() {
+		try {
+			this.gen.writeEndArray();
+			this.flush();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	/**
+	 * Writes the pending output to the stream
+	 */
+	public void flush() {
+		try {
+			this.gen.flush();
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		if (this.out.getBuffer().length() != 0) {
+			this.stream.write(this.out.getBuffer());
+			this.out.setBuffer(Buffer.buffer(this.chunkSize));
+		}
+	}
+
+	/**
+	 * Serializes a single record
+	 */
+	public static Buffer toBuffer(final Record rec, final boolean full) {
+		final BufferOutputStream out = new BufferOutputStream(Buffer.buffer(256));
+		try (JsonGenerator gen = RecordJsonWriter.FACTORY.createGenerator(out, JsonEncoding.UTF8)) {
+			RecordJsonWriter.writeRecord(gen, rec, full);
+		} catch (final IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return out.getBuffer();
+	}
+
+	public static void writeRecord(final JsonGenerator gen, final Record rec, final boolean full)
+			throws IOException {
+		gen.writeStartObject();
+		if (full) {
+			gen.writeStringField("id", rec.getId() == null ? null : rec.getId().toHexString());
+			gen.writeStringField("deviceId", rec.getDeviceId() == null ? null : rec.getDeviceId().toHexString());
+		}
+		for (final String field : Record.STAT_FIELDS) {
+			final double value = rec.getStatField(field);
+			if (!Double.isNaN(value)) {
+				gen.writeNumberField(field, value);
+			} else if (full) {
+				// what databind does with NaN
+				gen.writeStringField(field, "NaN");
+			}
+		}
+		gen.writeFieldName("date");
+		if (rec.getDate() == null) {
+			gen.writeNull();
+		} else {
+			gen.writeNumber(rec.getDate().getTime());
+		}
+		if (full) {
+			gen.writeStringField("ip", rec.getIp());
+		}
+		gen.writeStringField("type", rec.getType());
+		gen.writeFieldName("location");
+		if (rec.getLocation() == null) {
+			gen.writeNull();
+		} else {
+			final List<Double> coords = rec.getLocation().getCoordinates().getValues();
+			gen.writeStartArray();
+			for (final Double c : coords) {
+				gen.writeNumber(c);
+			}
+			gen.writeEndArray();
+		}
+		gen.writeEndObject();
+	}
+}
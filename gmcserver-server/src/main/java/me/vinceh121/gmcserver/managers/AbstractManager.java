@@ -20,9 +20,12 @@ package me.vinceh121.gmcserver.managers;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import io.vertx.core.Future;
+import io.vertx.core.shareddata.Lock;
 import me.vinceh121.gmcserver.GMCServer;
 
 public abstract class AbstractManager {
+	private static final long LOCK_TIMEOUT = 100;
 	protected final GMCServer srv;
 	protected final Logger log;
 
@@ -30,4 +33,14 @@ public abstract class AbstractManager {
 		this.srv = srv;
 		this.log = LogManager.getLogger(this.getClass());
 	}
+
+	/**
+	 * Tries to take a lock, cluster wide when clustered, so a job runs only once
+	 * across all nodes. Fails if the lock is already held.
+	 */
+	protected Future<Lock> tryLock(final String name) {
+		return this.srv.getVertx()
+			.sharedData()
+			.getLockWithTimeout(this.getClass().getSimpleName() + "." + name, AbstractManager.LOCK_TIMEOUT);
+	}
 }
@@ -25,13 +25,15 @@ import org.apache.logging.log4j.message.FormattedMessage;
 import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.Updates;
 
+import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import me.vinceh121.gmcserver.DatabaseManager;
 import me.vinceh121.gmcserver.GMCServer;
 import me.vinceh121.gmcserver.actions.AbstractAction;
 import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RollupField;
 import me.vinceh121.gmcserver.entities.User;
-import me.vinceh121.gmcserver.managers.DeviceManager.DeviceStatsAction;
 import me.vinceh121.gmcserver.managers.email.Email;
 
 public class AlertManager extends AbstractManager {
@@ -46,14 +48,15 @@ public class AlertManager extends AbstractManager {
 	}
 
 	/**
-	 * Checks if the device's latest record should throw an alert.
+	 * Checks if the device's latest record should throw an alert, comparing it to
+	 * the device's running statistics over the sliding window.
 	 * Sends the email if it is required.
 	 * 
 	 * Returns true if the alter has been throw, false otherwise.
 	 * 
 	 * Throws {@code IllegalStateException} when device's stats failed to fetch.
 	 * 
-	 * @see DeviceStatsAction
+	 * @see StatsManager
 	 */
 	public class CheckAlertAction extends AbstractAction<Boolean> {
 		private Device dev;
@@ -61,7 +64,7 @@ public class AlertManager extends AbstractManager {
 		private Record latestRecord;
 
 		public CheckAlertAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
@@ -76,33 +79,67 @@ public class AlertManager extends AbstractManager {
 				promise.complete(false);
 				return;
 			}
-			this.srv.getDeviceManager()
-				.deviceStats()
-				.setField("cpm")
-				.setDevId(this.dev.getId())
-				.execute()
-				.onSuccess(stats -> {
-					if (this.latestRecord.getCpm() > stats.getAvg() + 2 * stats.getStdDev()) { // too high
-						final Email email = new Email();
-						email.setTo(this.owner);
-						email.setTemplate("device-alert");
-						email.setSubject("[ " + this.dev.getName() + " ] Abnormal CPM readings for device");
-						email.getContext().put("fieldname", "CPM");
-						email.getContext().put("value", this.latestRecord.getCpm());
-						email.getContext().put("device", this.dev.toPublicJson());
-						email.getContext().put("start", this.latestRecord.getDate().getTime() - TimeUnit.HOURS.toMillis(2));
-						email.getContext().put("end", this.latestRecord.getDate().getTime() + TimeUnit.HOURS.toMillis(2));
-						this.srv.getEmailManager().sendEmail(email).onSuccess(v -> {
-							this.srv.getDatabaseManager()
-								.getCollection(Device.class)
-								.updateOne(Filters.eq(this.dev.getId()), Updates.set("lastEmailAlert", new Date()));
-						});
+			this.srv.getStatsManager().getStats(this.dev.getId()).onSuccess(stats -> {
+				final RollupField cpm = stats.getWindow("cpm", this.srv.getStatsManager().getWindowStart());
+				if (cpm.getCount() < 2 || this.latestRecord.getCpm() <= cpm.getAvg() + 2 * cpm.getStdDev()) {
+					promise.complete(false);
+					return;
+				}
+
+				// too high
+				this.claimAlert().onSuccess(claimed -> {
+					if (claimed) {
+						this.sendAlert();
 					}
-				})
-				.onFailure(t -> {
-					AlertManager.this.log.error(new FormattedMessage("Failed to get stats for device {}", this.dev), t);
-					promise.fail(new IllegalStateException("Failed to get stats", t));
+					promise.complete(claimed);
+				}).onFailure(t -> {
+					AlertManager.this.log.error(new FormattedMessage("Failed to claim alert for device {}", this.dev), t);
+					promise.fail(t);
 				});
+			}).onFailure(t -> {
+				AlertManager.this.log.error(new FormattedMessage("Failed to get stats for device {}", this.dev), t);
+				promise.fail(new IllegalStateException("Failed to get stats", t));
+			});
+		}
+
+		/**
+		 * Atomically sets the device's last alert date, unless another alert was sent
+		 * meanwhile, possibly by another node of the cluster.
+		 *
+		 * The device may come from the credentials cache, so it isn't modified: its
+		 * cached resolutions are evicted instead, for the new date to be read.
+		 * 
+		 * @return true if this alert should be sent
+		 */
+		private Future<Boolean> claimAlert() {
+			final DatabaseManager db = this.srv.getDatabaseManager();
+			final Date now = new Date();
+			return db.first(db.getAsyncCollection(Device.class)
+				.updateOne(Filters.and(Filters.eq(this.dev.getId()),
+						Filters.or(Filters.exists("lastEmailAlert", false),
+								Filters.lt("lastEmailAlert", new Date(now.getTime() - AlertManager.ALERT_EMAIL_DELAY)))),
+						Updates.set("lastEmailAlert", now)))
+				.map(res -> {
+					// either way, the device's last alert date is now recent
+					this.srv.getCredentialsManager().invalidateDevice(this.dev.getId());
+					return res.getModifiedCount() != 0;
+				});
+		}
+
+		private void sendAlert() {
+			final Email email = new Email();
+			email.setTo(this.owner);
+			email.setTemplate("device-alert");
+			email.setSubject("[ " + this.dev.getName() + " ] Abnormal CPM readings for device");
+			email.getContext().put("fieldname", "CPM");
+			email.getContext().put("value", this.latestRecord.getCpm());
+			email.getContext().put("device", this.dev.toPublicJson());
+			email.getContext().put("start", this.latestRecord.getDate().getTime() - TimeUnit.HOURS.toMillis(2));
+			email.getContext().put("end", this.latestRecord.getDate().getTime() + TimeUnit.HOURS.toMillis(2));
+			this.srv.getEmailManager()
+				.sendEmail(email)
+				.onFailure(t -> AlertManager.this.log
+					.error(new FormattedMessage("Failed to send alert for device {}", this.dev), t));
 		}
 
 		public Device getDev() {
@@ -0,0 +1,361 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.Filters;
+
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.DatabaseManager;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.actions.AbstractAction;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.User;
+import me.vinceh121.gmcserver.ingest.UdpFrame;
+import me.vinceh121.gmcserver.modules.LoggingModule;
+
+/**
+ * Resolves the GMC user and device IDs sent by counters to their entities.
+ *
+ * Resolutions are kept in a bounded LRU cache with a TTL so that steady-state
+ * logging doesn't query the database. Entries are evicted when the matching
+ * device or user is updated or deleted, on every node when clustered. Unknown
+ * IDs are never cached, nor are resolutions that were running while entries
+ * were evicted, as they may have read the entities before the change.
+ *
+ * Cached users and devices are shared by every caller and must not be
+ * modified.
+ */
+public class CredentialsManager extends AbstractManager {
+	public static final String ADDRESS_INVALIDATE = "me.vinceh121.gmcserver.CREDENTIALS_INVALIDATE";
+	private final int maxSize;
+	private final long ttl;
+	private final Map<CacheKey, Credentials> cache;
+	private long hits, misses, evictions, invalidations;
+	/**
+	 * Incremented by invalidations
+	 */
+	private long generation;
+
+	public CredentialsManager(final GMCServer srv) {
+		super(srv);
+		this.maxSize = Integer.parseInt(this.srv.getConfig().getProperty("geiger.credentials-cache.size", "10000"));
+		this.ttl = Long.parseLong(this.srv.getConfig().getProperty("geiger.credentials-cache.ttl", "300000"));
+		this.cache = new LinkedHashMap<CacheKey, Credentials>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<CacheKey, Credentials> eldest) {
+				if (this.size() > CredentialsManager.this.maxSize) {
+					CredentialsManager.this.evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus().<JsonObject>consumer(CredentialsManager.ADDRESS_INVALIDATE, msg -> {
+				if (msg.body().containsKey("device")) {
+					this.evictDevice(new ObjectId(msg.body().getString("device")));
+				} else if (msg.body().containsKey("user")) {
+					this.evictUser(new ObjectId(msg.body().getString("user")));
+				} else {
+					this.evictAll();
+				}
+			});
+		}
+	}
+
+	private synchronized Credentials getCached(final CacheKey key) {
+		final Credentials creds = this.cache.get(key);
+		if (creds == null) {
+			this.misses++;
+			return null;
+		} else if (creds.expiresAt < System.currentTimeMillis()) {
+			this.cache.remove(key);
+			this.misses++;
+			this.evictions++;
+			return null;
+		} else {
+			this.hits++;
+			return creds;
+		}
+	}
+
+	/**
+	 * @param generation value of {@link #generation} before the entities were
+	 *                   read
+	 */
+	private synchronized void putCached(final CacheKey key, final Credentials creds, final long generation) {
+		if (this.maxSize > 0 && this.generation == generation) {
+			this.cache.put(key, creds);
+		}
+	}
+
+	/**
+	 * Evicts cached resolutions involving the device
+	 */
+	public void invalidateDevice(final ObjectId deviceId) {
+		this.evictDevice(deviceId);
+		this.publishInvalidation(new JsonObject().put("device", deviceId.toHexString()));
+	}
+
+	/**
+	 * Evicts cached resolutions involving the user
+	 */
+	public void invalidateUser(final ObjectId userId) {
+		this.evictUser(userId);
+		this.publishInvalidation(new JsonObject().put("user", userId.toHexString()));
+	}
+
+	public void invalidateAll() {
+		this.evictAll();
+		this.publishInvalidation(new JsonObject());
+	}
+
+	private void publishInvalidation(final JsonObject obj) {
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus().publish(CredentialsManager.ADDRESS_INVALIDATE, obj);
+		}
+	}
+
+	private synchronized long getGeneration() {
+		return this.generation;
+	}
+
+	private synchronized void evictDevice(final ObjectId deviceId) {
+		this.generation++;
+		final Iterator<Credentials> it = this.cache.values().iterator();
+		while (it.hasNext()) {
+			if (deviceId.equals(it.next().getDevice().getId())) {
+				it.remove();
+				this.invalidations++;
+			}
+		}
+	}
+
+	private synchronized void evictUser(final ObjectId userId) {
+		this.generation++;
+		final Iterator<Credentials> it = this.cache.values().iterator();
+		while (it.hasNext()) {
+			if (userId.equals(it.next().getUser().getId())) {
+				it.remove();
+				this.invalidations++;
+			}
+		}
+	}
+
+	private synchronized void evictAll() {
+		this.generation++;
+		this.invalidations += this.cache.size();
+		this.cache.clear();
+	}
+
+	public synchronized JsonObject toJson() {
+		final JsonObject obj = new JsonObject();
+		obj.put("size", this.cache.size());
+		obj.put("maxSize", this.maxSize);
+		obj.put("ttl", this.ttl);
+		obj.put("hits", this.hits);
+		obj.put("misses", this.misses);
+		obj.put("evictions", this.evictions);
+		obj.put("invalidations", this.invalidations);
+		final long total = this.hits + this.misses;
+		obj.put("hitRate", total == 0 ? 0 : (double) this.hits / total);
+		return obj;
+	}
+
+	public ResolveCredentialsAction resolveCredentials() {
+		return new ResolveCredentialsAction(this.srv);
+	}
+
+	/**
+	 * Finds the user and device matching GMC IDs and checks that the user owns the
+	 * device. The ownership check result is available in
+	 * {@link Credentials#getStatus()}.
+	 */
+	public class ResolveCredentialsAction extends AbstractAction<Credentials> {
+		private long gmcUserId, gmcDeviceId;
+
+		public ResolveCredentialsAction(final GMCServer srv) {
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Credentials> promise) {
+			final CacheKey key = new CacheKey(this.gmcUserId, this.gmcDeviceId);
+			final Credentials cached = CredentialsManager.this.getCached(key);
+			if (cached != null) {
+				promise.complete(cached);
+				return;
+			}
+
+			final long generation = CredentialsManager.this.getGeneration();
+			final DatabaseManager db = this.srv.getDatabaseManager();
+			final Future<User> userFut
+					= db.first(db.getAsyncCollection(User.class).find(Filters.eq("gmcId", this.gmcUserId)).first());
+			final Future<Device> devFut
+					= db.first(db.getAsyncCollection(Device.class).find(Filters.eq("gmcId", this.gmcDeviceId)).first());
+
+			CompositeFuture.all(userFut, devFut).onSuccess(f -> {
+				final User user = userFut.result();
+				final Device device = devFut.result();
+
+				if (user == null) {
+					promise.complete(new Credentials(Status.UNKNOWN_USER, null, device, 0));
+					return;
+				}
+
+				if (device == null) {
+					promise.complete(new Credentials(Status.UNKNOWN_DEVICE, user, null, 0));
+					return;
+				}
+
+				final Status status;
+				if (device.getOwner() == null) {
+					CredentialsManager.this.log.error("Device with no owner: {}", device.getId());
+					status = Status.NOT_OWNED;
+				} else if (!user.getId().equals(device.getOwner())) {
+					status = Status.NOT_OWNED;
+				} else {
+					status = Status.OK;
+				}
+
+				final Credentials creds = new Credentials(status,
+						user,
+						device,
+						System.currentTimeMillis() + CredentialsManager.this.ttl);
+				CredentialsManager.this.putCached(key, creds, generation);
+				promise.complete(creds);
+			}).onFailure(promise::fail);
+		}
+
+		public long getGmcUserId() {
+			return this.gmcUserId;
+		}
+
+		public ResolveCredentialsAction setGmcUserId(final long gmcUserId) {
+			this.gmcUserId = gmcUserId;
+			return this;
+		}
+
+		public long getGmcDeviceId() {
+			return this.gmcDeviceId;
+		}
+
+		public ResolveCredentialsAction setGmcDeviceId(final long gmcDeviceId) {
+			this.gmcDeviceId = gmcDeviceId;
+			return this;
+		}
+	}
+
+	/**
+	 * Outcome of a resolution, with how it's answered to HTTP and UDP uploads
+	 */
+	public enum Status {
+		OK(200, LoggingModule.ERROR_OK, UdpFrame.STATUS_OK),
+		UNKNOWN_USER(404, LoggingModule.ERROR_USER_ID, UdpFrame.STATUS_UNKNOWN_USER),
+		UNKNOWN_DEVICE(404, LoggingModule.ERROR_DEVICE_ID, UdpFrame.STATUS_UNKNOWN_DEVICE),
+		NOT_OWNED(403, LoggingModule.ERROR_DEVICE_NOT_OWNED, UdpFrame.STATUS_NOT_OWNED);
+
+		private final int httpStatus, udpStatus;
+		private final String description;
+
+		Status(final int httpStatus, final String description, final int udpStatus) {
+			this.httpStatus = httpStatus;
+			this.description = description;
+			this.udpStatus = udpStatus;
+		}
+
+		public int getHttpStatus() {
+			return this.httpStatus;
+		}
+
+		/**
+		 * @return the body answered to counters
+		 */
+		public String getDescription() {
+			return this.description;
+		}
+
+		public int getUdpStatus() {
+			return this.udpStatus;
+		}
+	}
+
+	public static class Credentials {
+		private final Status status;
+		private final User user;
+		private final Device device;
+		private final long expiresAt;
+
+		private Credentials(final Status status, final User user, final Device device, final long expiresAt) {
+			this.status = status;
+			this.user = user;
+			this.device = device;
+			this.expiresAt = expiresAt;
+		}
+
+		public Status getStatus() {
+			return this.status;
+		}
+
+		public User getUser() {
+			return this.user;
+		}
+
+		public Device getDevice() {
+			return this.device;
+		}
+	}
+
+	private static class CacheKey {
+		private final long gmcUserId, gmcDeviceId;
+
+		private CacheKey(final long gmcUserId, final long gmcDeviceId) {
+			this.gmcUserId = gmcUserId;
+			this.gmcDeviceId = gmcDeviceId;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.gmcUserId, this.gmcDeviceId);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof CacheKey)) {
+				return false;
+			}
+			final CacheKey other = (CacheKey) obj;
+			return this.gmcUserId == other.gmcUserId && this.gmcDeviceId == other.gmcDeviceId;
+		}
+	}
+}
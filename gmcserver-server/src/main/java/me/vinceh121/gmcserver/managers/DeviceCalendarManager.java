@@ -17,24 +17,17 @@
  */
 package me.vinceh121.gmcserver.managers;
 
-import java.time.LocalDate;
-import java.time.LocalDateTime;
-import java.time.ZoneId;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
-import java.util.Vector;
 
-import org.bson.BsonNull;
 import org.bson.Document;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
-import com.mongodb.client.model.Accumulators;
-import com.mongodb.client.model.Aggregates;
-import com.mongodb.client.model.BsonField;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.Sorts;
 
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
@@ -42,10 +35,15 @@ import me.vinceh121.gmcserver.GMCServer;
 import me.vinceh121.gmcserver.actions.AbstractAction;
 import me.vinceh121.gmcserver.entities.DeviceCalendar;
 import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RecordRollup;
+import me.vinceh121.gmcserver.entities.RollupField;
 
 public class DeviceCalendarManager extends AbstractManager {
+	private final long refreshInterval;
+
 	public DeviceCalendarManager(final GMCServer srv) {
 		super(srv);
+		this.refreshInterval = Long.parseLong(this.srv.getConfig().getProperty("calendar.refresh", "3600000"));
 	}
 
 	public GetCalendarAction getCalendar() {
@@ -59,7 +57,8 @@ public class DeviceCalendarManager extends AbstractManager {
 	/**
 	 * Fetches the device's calendar and returns it. If this device doesn't have a
 	 * calendar, returns {@code null} and then starts asynchronously calendar
-	 * calculation.
+	 * calculation. If the calendar is older than {@code calendar.refresh}, it is
+	 * returned and refreshed asynchronously.
 	 */
 	public class GetCalendarAction extends AbstractAction<DeviceCalendar> {
 		private ObjectId deviceId;
@@ -75,8 +74,11 @@ public class DeviceCalendarManager extends AbstractManager {
 				.find(Filters.eq("deviceId", this.deviceId))
 				.first();
 			promise.complete(cal);
-			if (cal == null) {
-				DeviceCalendarManager.this.calculateCalendar().setDeviceId(this.deviceId).execute();
+			// a calendar still in progress is either being calculated, in which case the
+			// calculation lock is held and this is a noop, or was interrupted
+			if (cal == null || cal.isInProgress()
+					|| System.currentTimeMillis() - cal.getCreatedAt().getTime() > DeviceCalendarManager.this.refreshInterval) {
+				DeviceCalendarManager.this.calculateCalendar().setDeviceId(this.deviceId).setCalendar(cal).execute();
 			}
 		}
 
@@ -92,62 +94,83 @@ public class DeviceCalendarManager extends AbstractManager {
 
 	/**
 	 * Calculates a device's calendar and returns it.
+	 *
+	 * Days are read from the device's daily rollups. If an existing calendar is
+	 * given, only its last day and the following ones are read again, unless a
+	 * full calculation is asked.
+	 *
+	 * Returns {@code null} if the calendar is already being calculated, on this
+	 * node or another one of the cluster.
 	 */
 	public class CalculateCalendarAction extends AbstractAction<DeviceCalendar> {
 		private ObjectId deviceId;
+		private DeviceCalendar calendar;
+		private boolean full;
 
 		public CalculateCalendarAction(final GMCServer srv) {
 			super(srv);
 		}
 
+		@Override
+		public Future<DeviceCalendar> execute() {
+			return DeviceCalendarManager.this.tryLock(this.deviceId.toHexString()).transform(lock -> {
+				if (lock.failed()) {
+					return Future.succeededFuture(null);
+				}
+				return super.execute().onComplete(res -> lock.result().release());
+			});
+		}
+
 		@Override
 		protected void executeSync(final Promise<DeviceCalendar> promise) {
-			final ZoneId zone = ZoneId.of("GMT");
-			final List<Document> recs = new Vector<>();
-			final DeviceCalendar cal = new DeviceCalendar();
-			cal.setDeviceId(this.deviceId);
-			cal.setCreatedAt(new Date());
-			cal.setRecs(recs);
-			cal.setInProgress(true);
-			this.srv.getDatabaseManager().getCollection(DeviceCalendar.class).insertOne(cal);
-
-			final Date[] arrMinMax = this.getDeviceDateBounds(this.deviceId);
-			final LocalDate startDate = LocalDate.ofInstant(arrMinMax[0].toInstant(), zone);
-			final LocalDate endDate = LocalDate.ofInstant(arrMinMax[1].toInstant(), zone);
-			this.recurseCompileDay(cal, zone, startDate, endDate).onSuccess(promise::complete).onFailure(promise::fail);
+			promise.complete(this.calculate());
 		}
 
-		private Future<DeviceCalendar> recurseCompileDay(final DeviceCalendar cal, final ZoneId zone,
-				final LocalDate currentDay, final LocalDate endDate) {
-			return Future.future(promise -> {
-				final LocalDateTime curDayTime = currentDay.atStartOfDay();
-				final Date curDate = new Date(curDayTime.toEpochSecond(zone.getRules().getOffset(curDayTime)) * 1000);
-				final Document rec = this.srv.getDatabaseManager()
-					.getCollection(Record.class)
-					.aggregate(DeviceCalendarManager.getAveragePipeline(this.deviceId,
-							curDate,
-							new Date(curDayTime.plusDays(1).toEpochSecond(zone.getRules().getOffset(curDayTime))
-									* 1000)),
-							Document.class)
-					.first();
-				if (rec != null) {
-					rec.put("date", curDate);
-					cal.getRecs().add(rec);
-				}
+		private DeviceCalendar calculate() {
+			final DeviceCalendar cal;
+			final Date since;
+			if (this.calendar == null) {
+				cal = new DeviceCalendar();
+				cal.setDeviceId(this.deviceId);
+				cal.setRecs(new ArrayList<>());
+				cal.setInProgress(true);
+				this.srv.getDatabaseManager().getCollection(DeviceCalendar.class).insertOne(cal);
+				since = null;
+			} else if (this.calendar.isInProgress() || this.full) {
+				// left over by an interrupted calculation, or rollups were rewritten
+				cal = this.calendar;
+				cal.setRecs(new ArrayList<>());
+				since = null;
+			} else {
+				cal = this.calendar;
+				cal.setRecs(new ArrayList<>(cal.getRecs()));
+				since = cal.getRecs().isEmpty() ? null : cal.getRecs().get(cal.getRecs().size() - 1).getDate("date");
+			}
+			cal.setCreatedAt(new Date());
 
-				final LocalDate nextDay = currentDay.plusDays(1);
-				if (nextDay.equals(endDate)) {
-					cal.setInProgress(false);
-					this.srv.getDatabaseManager()
-						.getCollection(DeviceCalendar.class)
-						.replaceOne(Filters.eq(cal.getId()), cal);
-					promise.complete(cal);
-				} else {
-					this.recurseCompileDay(cal, zone, nextDay, endDate)
-						.onSuccess(promise::complete)
-						.onFailure(promise::fail);
-				}
-			});
+			if (since != null) {
+				// the last day was probably incomplete
+				cal.getRecs().removeIf(d -> !d.getDate("date").before(since));
+			}
+
+			final List<Bson> filters = new ArrayList<>(3);
+			filters.add(Filters.eq("deviceId", this.deviceId));
+			filters.add(Filters.eq("granularity", RollupManager.GRANULARITY_DAY));
+			if (since != null) {
+				filters.add(Filters.gte("start", since));
+			}
+			for (final RecordRollup rollup : this.srv.getDatabaseManager()
+				.getCollection(RecordRollup.class)
+				.find(Filters.and(filters))
+				.sort(Sorts.ascending("start"))) {
+				cal.getRecs().add(DeviceCalendarManager.toCalendarDay(rollup));
+			}
+
+			cal.setInProgress(false);
+			this.srv.getDatabaseManager()
+				.getCollection(DeviceCalendar.class)
+				.replaceOne(Filters.eq(cal.getId()), cal, new ReplaceOptions().upsert(true));
+			return cal;
 		}
 
 		public ObjectId getDeviceId() {
@@ -159,26 +182,42 @@ public class DeviceCalendarManager extends AbstractManager {
 			return this;
 		}
 
-		private Date[] getDeviceDateBounds(final ObjectId id) {
-			final Document doc = this.srv.getDatabaseManager()
-				.getCollection(Record.class)
-				.aggregate(Arrays.asList(Aggregates.match(Filters.eq("deviceId", id)),
-						Aggregates
-							.group(new BsonNull(), Accumulators.min("min", "$date"), Accumulators.max("max", "$date"))),
-						Document.class)
-				.first();
-			return new Date[] { doc.getDate("min"), doc.getDate("max") };
+		public DeviceCalendar getCalendar() {
+			return this.calendar;
+		}
+
+		/**
+		 * @param calendar existing calendar to refresh, or {@code null} to calculate
+		 *                 it from scratch
+		 */
+		public CalculateCalendarAction setCalendar(final DeviceCalendar calendar) {
+			this.calendar = calendar;
+			return this;
+		}
+
+		public boolean isFull() {
+			return this.full;
+		}
+
+		/**
+		 * @param full whether to read every day of the existing calendar again
+		 */
+		public CalculateCalendarAction setFull(final boolean full) {
+			this.full = full;
+			return this;
 		}
 	}
 
-	public static List<Bson> getAveragePipeline(final ObjectId id, final Date lowerBound, final Date upperBound) {
-		final List<BsonField> fields = new ArrayList<>(Record.STAT_FIELDS.size());
+	/**
+	 * @return the day's average of every field, {@code null} for fields without
+	 *         values, and its start in {@code date}
+	 */
+	public static Document toCalendarDay(final RecordRollup rollup) {
+		final Document day = new Document("date", rollup.getStart());
 		for (final String f : Record.STAT_FIELDS) {
-			fields.add(Accumulators.avg(f, "$" + f));
+			final RollupField field = rollup.getFields().get(f);
+			day.put(f, field == null || field.getCount() == 0 ? null : field.getAvg());
 		}
-		return Arrays.asList(
-				Aggregates.match(Filters
-					.and(Filters.eq("deviceId", id), Filters.gte("date", lowerBound), Filters.lt("date", upperBound))),
-				Aggregates.group(new BsonNull(), fields));
+		return day;
 	}
 }
@@ -19,39 +19,41 @@ package me.vinceh121.gmcserver.managers;
 
 import java.security.SecureRandom;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Random;
 import java.util.Vector;
 
-import org.bson.BsonNull;
 import org.bson.conversions.Bson;
 import org.bson.types.ObjectId;
 
-import com.mongodb.client.AggregateIterable;
-import com.mongodb.client.FindIterable;
-import com.mongodb.client.model.Accumulators;
-import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BulkWriteOptions;
 import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
 import com.mongodb.client.model.Sorts;
-import com.mongodb.client.model.UnwindOptions;
+import com.mongodb.client.model.UpdateOneModel;
 import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
 import com.mongodb.client.model.geojson.Point;
 import com.mongodb.client.model.geojson.Position;
 import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.FindPublisher;
 
 import io.vertx.core.Promise;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.DatabaseManager;
 import me.vinceh121.gmcserver.GMCServer;
 import me.vinceh121.gmcserver.actions.AbstractAction;
 import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.DeviceCalendar;
 import me.vinceh121.gmcserver.entities.DeviceStats;
 import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RecordRollup;
+import me.vinceh121.gmcserver.entities.RollupField;
 import me.vinceh121.gmcserver.entities.User;
+import me.vinceh121.gmcserver.event.RecordCodec;
 import me.vinceh121.gmcserver.exceptions.EntityNotFoundException;
 import me.vinceh121.gmcserver.exceptions.LimitReachedException;
 
@@ -72,26 +74,6 @@ public class DeviceManager extends AbstractManager {
 		return point;
 	}
 
-	private static List<Bson> getStatsAggregation(final String field, final ObjectId devId, final int limit,
-			final Date start, final Date end) {
-		List<Bson> filters = new ArrayList<>(3);
-		filters.add(Filters.eq("deviceId", devId));
-		if (start != null) {
-			filters.add(Filters.gte("date", start));
-		}
-
-		if (end != null) {
-			filters.add(Filters.lte("date", end));
-		}
-		return Arrays.asList(Aggregates.match(Filters.and(filters)),
-				Aggregates.sort(Sorts.descending("date")),
-				Aggregates.sample(limit),
-				Aggregates.group(new BsonNull(),
-						Accumulators.avg("avg", "$" + field),
-						Accumulators.min("min", "$" + field),
-						Accumulators.max("max", "$" + field),
-						Accumulators.stdDevPop("stdDev", "$" + field)));
-	}
 
 	public DeviceStatsAction deviceStats() {
 		return new DeviceStatsAction(this.srv);
@@ -121,16 +103,69 @@ public class DeviceManager extends AbstractManager {
 		return new CreateDeviceAction(this.srv);
 	}
 
+	public BackfillLastRecordsAction backfillLastRecords() {
+		return new BackfillLastRecordsAction(this.srv);
+	}
+
+	/**
+	 * @return the copy of a record embedded in its device as {@code lastRecord},
+	 *         with the same fields as the record itself
+	 */
+	public static Record toLastRecordSnapshot(final Record rec) {
+		final Record snap = new Record();
+		snap.setId(rec.getId());
+		snap.setDeviceId(rec.getDeviceId());
+		snap.setDate(rec.getDate());
+		snap.setIp(rec.getIp());
+		snap.setType(rec.getType());
+		snap.setLocation(rec.getLocation());
+		RecordCodec.setValues(snap, RecordCodec.getValues(rec));
+		return snap;
+	}
+
+	/**
+	 * Filter for {@link #lastRecordUpdate(Record)}, matching the device only if
+	 * the record isn't older than its current last record
+	 */
+	public static Bson lastRecordFilter(final ObjectId deviceId, final Record rec) {
+		return Filters.and(Filters.eq(deviceId),
+				Filters.or(Filters.exists("lastRecord.date", false), Filters.lte("lastRecord.date", rec.getDate())));
+	}
+
+	/**
+	 * Sets a device's {@code lastRecordId} and {@code lastRecord} snapshot, to
+	 * use with {@link #lastRecordFilter(ObjectId, Record)}
+	 */
+	public static Bson lastRecordUpdate(final Record rec) {
+		return Updates.combine(Updates.set("lastRecordId", rec.getId()),
+				Updates.set("lastRecord", DeviceManager.toLastRecordSnapshot(rec)));
+	}
+
+	/**
+	 * Replaces the device's last record with the one in memory if it's newer,
+	 * as snapshots are updated once records are inserted
+	 */
+	private void setLatestFromMemory(final Device dev) {
+		final Record latest = this.srv.getHotTailManager().getLatest(dev.getId());
+		if (latest != null && (dev.getLastRecord() == null || dev.getLastRecord().getDate() == null
+				|| !latest.getDate().before(dev.getLastRecord().getDate()))) {
+			dev.setLastRecord(DeviceManager.toLastRecordSnapshot(latest));
+		}
+	}
+
 	/**
 	 * Calculate's a device's latest stats and returns them.
+	 *
+	 * Without a start or end date, all-time stats over every record of the device
+	 * are read from the {@link StatsManager}'s running statistics, otherwise they
+	 * are merged from the hourly rollups overlapping the range. Before rollups,
+	 * stats were computed over a sample of 1000 records.
 	 * 
-	 * Throws {@code IllegalStateException} when the database answered a null
-	 * object.
+	 * Throws {@code IllegalStateException} when there is no data for the field.
 	 */
 	public class DeviceStatsAction extends AbstractAction<DeviceStats> {
 		private String field;
 		private ObjectId devId;
-		private int sampleSize = 1000;
 		private Date start, end;
 
 		public DeviceStatsAction(final GMCServer srv) {
@@ -139,21 +174,40 @@ public class DeviceManager extends AbstractManager {
 
 		@Override
 		protected void executeSync(final Promise<DeviceStats> promise) {
-			final DeviceStats stats = this.srv.getDatabaseManager()
-				.getCollection(Record.class)
-				.aggregate(
-						DeviceManager
-							.getStatsAggregation(this.field, this.devId, this.sampleSize, this.start, this.end),
-						DeviceStats.class)
-				.first();
-			if (stats != null) {
-				stats.setDevice(this.devId);
-				stats.setField(this.field);
-				stats.setSampleSize(this.sampleSize);
-				promise.complete(stats);
-			} else {
-				promise.fail(new IllegalStateException("Could not get stats"));
+			if (this.start == null && this.end == null) {
+				this.srv.getStatsManager().getStats(this.devId).onSuccess(s -> {
+					final RollupField acc = s.getTotal(this.field);
+					if (acc.getCount() == 0) {
+						promise.fail(new IllegalStateException("Could not get stats"));
+					} else {
+						promise.complete(StatsManager.toDeviceStats(acc, this.devId, this.field));
+					}
+				}).onFailure(promise::fail);
+				return;
 			}
+
+			this.srv.getRollupManager()
+				.getRollups()
+				.setDeviceId(this.devId)
+				.setGranularity(RollupManager.GRANULARITY_HOUR)
+				.setStart(this.start)
+				.setEnd(this.end)
+				.execute()
+				.onSuccess(rollups -> {
+					final RollupField acc = new RollupField();
+					for (final RecordRollup r : rollups) {
+						final RollupField f = r.getFields().get(this.field);
+						if (f != null) {
+							acc.merge(f);
+						}
+					}
+					if (acc.getCount() == 0) {
+						promise.fail(new IllegalStateException("Could not get stats"));
+						return;
+					}
+					promise.complete(StatsManager.toDeviceStats(acc, this.devId, this.field));
+				})
+				.onFailure(promise::fail);
 		}
 
 		public String getField() {
@@ -174,14 +228,6 @@ public class DeviceManager extends AbstractManager {
 			return this;
 		}
 
-		public int getSampleSize() {
-			return this.sampleSize;
-		}
-
-		public void setSampleSize(final int sampleSize) {
-			this.sampleSize = sampleSize;
-		}
-
 		public Date getStart() {
 			return start;
 		}
@@ -202,20 +248,22 @@ public class DeviceManager extends AbstractManager {
 	}
 
 	/**
-	 * Returns an iterable that allows streaming a device's timeline, in full or
+	 * Returns a publisher that allows streaming a device's timeline, in full or
 	 * within given limits.
+	 *
+	 * @see DatabaseManager#stream(org.reactivestreams.Publisher)
 	 */
-	public class DeviceFullTimelineAction extends AbstractAction<FindIterable<Record>> {
+	public class DeviceFullTimelineAction extends AbstractAction<FindPublisher<Record>> {
 		private Device dev;
 		private Date start, end;
-		private boolean full;
+		private boolean full, ascending;
 
 		public DeviceFullTimelineAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
-		protected void executeSync(final Promise<FindIterable<Record>> promise) {
+		protected void executeSync(final Promise<FindPublisher<Record>> promise) {
 
 			final Collection<Bson> filters = new Vector<>();
 
@@ -229,14 +277,13 @@ public class DeviceManager extends AbstractManager {
 				filters.add(Filters.lte("date", this.end));
 			}
 
-			final FindIterable<Record> it = this.srv.getDatabaseManager()
-				.getCollection(Record.class)
-				.find(Filters.and(filters));
-			it.sort(Sorts.descending("date"));
-			it.limit(Integer.parseInt(this.srv.getConfig().getProperty("device.public-timeline-limit")));
+			final FindPublisher<Record> it = this.srv.getDatabaseManager()
+				.getAsyncCollection(Record.class)
+				.find(Filters.and(filters))
+				.sort(this.ascending ? Sorts.ascending("date") : Sorts.descending("date"));
 
-			if (this.full) {
-				it.limit(0);
+			if (!this.full) {
+				it.limit(Integer.parseInt(this.srv.getConfig().getProperty("device.public-timeline-limit")));
 			}
 
 			promise.complete(it);
@@ -278,6 +325,19 @@ public class DeviceManager extends AbstractManager {
 			return this;
 		}
 
+		public boolean isAscending() {
+			return this.ascending;
+		}
+
+		/**
+		 * @param ascending sort records from oldest to newest instead of newest to
+		 *                  oldest
+		 */
+		public DeviceFullTimelineAction setAscending(final boolean ascending) {
+			this.ascending = ascending;
+			return this;
+		}
+
 	}
 
 	/**
@@ -329,6 +389,8 @@ public class DeviceManager extends AbstractManager {
 			if (res.getMatchedCount() == 0) {
 				promise.fail(new EntityNotFoundException("Device not found"));
 			} else if (res.wasAcknowledged()) {
+				this.srv.getCredentialsManager().invalidateDevice(this.deviceId);
+				this.srv.getMapManager().refreshDevice(this.deviceId, null);
 				promise.complete(res.getModifiedCount());
 			} else {
 				promise.fail(new IllegalStateException("Failed to save changes"));
@@ -396,40 +458,24 @@ public class DeviceManager extends AbstractManager {
 		private boolean fetchLastRecord;
 
 		public GetDeviceAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
 		protected void executeSync(final Promise<Device> promise) {
-			if (this.fetchLastRecord) {
-				this.aggregateLastRecord(promise);
-			} else {
-				this.classicFind(promise);
-			}
-		}
-
-		private void aggregateLastRecord(final Promise<Device> promise) {
-			final Device dev = this.srv.getDatabaseManager()
-				.getCollection(Device.class)
-				.aggregate(Arrays.asList(Aggregates.match(Filters.eq(this.id)),
-						Aggregates.lookup("records", "lastRecordId", "_id", "lastRecord"),
-						Aggregates.unwind("$lastRecord", new UnwindOptions().preserveNullAndEmptyArrays(true))))
-				.first();
-
-			if (dev == null) {
-				promise.fail(new EntityNotFoundException("Device not found"));
-				return;
-			}
-
-			promise.complete(dev);
-		}
-
-		private void classicFind(final Promise<Device> promise) {
-			final Device dev = this.srv.getDatabaseManager()
-				.getCollection(Device.class)
+			final DatabaseManager db = this.srv.getDatabaseManager();
+			db.first(db.getAsyncCollection(Device.class)
 				.find(Filters.eq(this.id))
-				.first();
+				.projection(this.fetchLastRecord ? null : Projections.exclude("lastRecord"))
+				.first()).onSuccess(dev -> {
+					if (dev != null && this.fetchLastRecord) {
+						DeviceManager.this.setLatestFromMemory(dev);
+					}
+					this.completeDevice(promise, dev);
+				}).onFailure(promise::fail);
+		}
 
+		private void completeDevice(final Promise<Device> promise, final Device dev) {
 			if (dev == null) {
 				promise.fail(new EntityNotFoundException("Device not found"));
 				return;
@@ -457,25 +503,23 @@ public class DeviceManager extends AbstractManager {
 		}
 	}
 
-	public class GetMapAction extends AbstractAction<AggregateIterable<Device>> {
+	/**
+	 * Fetches the devices in a box along with their last record, from the map
+	 * index. Devices without records are omitted.
+	 */
+	public class GetMapAction extends AbstractAction<List<Device>> {
 		private double swlon;
 		private double swlat;
 		private double nelon;
 		private double nelat;
 
 		public GetMapAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
-		protected void executeSync(final Promise<AggregateIterable<Device>> promise) {
-			final AggregateIterable<Device> dev = this.srv.getDatabaseManager()
-				.getCollection(Device.class)
-				.aggregate(Arrays.asList(Aggregates.match(Filters.geoWithinBox("location", swlon, swlat, nelon, nelat)),
-						Aggregates.lookup("records", "lastRecordId", "_id", "lastRecord"),
-						Aggregates.unwind("$lastRecord")));
-
-			promise.complete(dev);
+		protected void executeSync(final Promise<List<Device>> promise) {
+			promise.complete(this.srv.getMapManager().getDevices(this.swlon, this.swlat, this.nelon, this.nelat));
 		}
 
 		public double getSwlon() {
@@ -553,8 +597,15 @@ public class DeviceManager extends AbstractManager {
 					.getCollection(DeviceCalendar.class)
 					.deleteMany(Filters.eq("deviceId", dev.getId()));
 				this.srv.getDatabaseManager().getCollection(Device.class).deleteOne(Filters.eq(dev.getId()));
+				this.srv.getStatsManager().removeDevice(dev.getId());
+				this.srv.getHotTailManager().invalidate(dev.getId());
+				this.srv.getMapManager().removeDevice(dev.getId());
+				this.srv.getDatabaseManager()
+					.getCollection(RecordRollup.class)
+					.deleteMany(Filters.eq("deviceId", dev.getId()));
 			}
 
+			this.srv.getCredentialsManager().invalidateDevice(dev.getId());
 			promise.complete();
 		}
 
@@ -577,6 +628,57 @@ public class DeviceManager extends AbstractManager {
 		}
 	}
 
+	/**
+	 * Embeds the snapshot of their last record in devices which don't have one
+	 * yet, for devices created before snapshots existed.
+	 *
+	 * Returns the number of devices updated.
+	 */
+	public class BackfillLastRecordsAction extends AbstractAction<Long> {
+		private static final int BATCH_SIZE = 1000;
+
+		public BackfillLastRecordsAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Long> promise) {
+			final List<WriteModel<Device>> writes = new ArrayList<>(BackfillLastRecordsAction.BATCH_SIZE);
+			long updated = 0;
+			for (final Device dev : this.srv.getDatabaseManager()
+				.getCollection(Device.class)
+				.find(Filters.and(Filters.exists("lastRecordId"), Filters.exists("lastRecord", false)))
+				.projection(Projections.include("_id", "lastRecordId"))) {
+				final Record rec = this.srv.getDatabaseManager()
+					.getCollection(Record.class)
+					.find(Filters.eq(dev.getLastRecordId()))
+					.first();
+				if (rec == null) {
+					continue;
+				}
+				writes.add(new UpdateOneModel<>(DeviceManager.lastRecordFilter(dev.getId(), rec),
+						DeviceManager.lastRecordUpdate(rec)));
+				if (writes.size() >= BackfillLastRecordsAction.BATCH_SIZE) {
+					updated += this.flush(writes);
+				}
+			}
+			updated += this.flush(writes);
+			promise.complete(updated);
+		}
+
+		private long flush(final List<WriteModel<Device>> writes) {
+			if (writes.isEmpty()) {
+				return 0;
+			}
+			final long modified = this.srv.getDatabaseManager()
+				.getCollection(Device.class)
+				.bulkWrite(writes, new BulkWriteOptions().ordered(false))
+				.getModifiedCount();
+			writes.clear();
+			return modified;
+		}
+	}
+
 	/**
 	 * Creates a device.
 	 *
@@ -640,6 +742,7 @@ public class DeviceManager extends AbstractManager {
 
 			if (this.insertInDb) {
 				this.srv.getDatabaseManager().getCollection(Device.class).insertOne(dev);
+				this.srv.getMapManager().indexDevice(dev);
 			}
 		}
 
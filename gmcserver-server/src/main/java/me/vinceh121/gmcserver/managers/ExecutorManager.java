@@ -0,0 +1,147 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import io.vertx.core.WorkerExecutor;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.actions.WorkerPool;
+
+/**
+ * Decides where actions get executed.
+ *
+ * An execution policy is either {@link #POLICY_EVENT_LOOP}, in which case the
+ * action runs directly on the calling thread, {@link #POLICY_WORKER} for
+ * Vert.x's shared worker pool, or the name of a pool declared in
+ * {@code executor.pools}.
+ *
+ * Policies are looked up in order from {@code executor.action.<ActionName>},
+ * {@code executor.manager.<ManagerName>} then {@code executor.default}.
+ */
+public class ExecutorManager extends AbstractManager {
+	public static final String POLICY_EVENT_LOOP = "event-loop", POLICY_WORKER = "worker";
+	private final Map<String, WorkerPool> pools = new LinkedHashMap<>();
+	private final Map<Class<?>, String> policies = new ConcurrentHashMap<>();
+	private final String defaultPolicy;
+
+	public ExecutorManager(final GMCServer srv) {
+		super(srv);
+
+		this.pools.put(ExecutorManager.POLICY_WORKER,
+				new WorkerPool(ExecutorManager.POLICY_WORKER,
+						this.srv.getVertx(),
+						null,
+						-1,
+						Integer.parseInt(this.srv.getConfig().getProperty("executor.worker.queue", "-1")),
+						Long.parseLong(this.srv.getConfig().getProperty("executor.worker.max-execute-time", "60000"))));
+
+		final String poolNames = this.srv.getConfig().getProperty("executor.pools", "");
+		for (final String rawName : poolNames.split(",")) {
+			final String name = rawName.trim();
+			if (name.isEmpty()) {
+				continue;
+			}
+			if (this.pools.containsKey(name) || ExecutorManager.POLICY_EVENT_LOOP.equals(name)) {
+				throw new IllegalArgumentException("Reserved or duplicate worker pool name: " + name);
+			}
+
+			final int size = Integer.parseInt(this.srv.getConfig().getProperty("executor.pool." + name + ".size", "4"));
+			final int maxQueue
+					= Integer.parseInt(this.srv.getConfig().getProperty("executor.pool." + name + ".queue", "-1"));
+			final long maxExecuteTime = Long.parseLong(
+					this.srv.getConfig().getProperty("executor.pool." + name + ".max-execute-time", "60000"));
+
+			final WorkerExecutor executor = this.srv.getVertx()
+				.createSharedWorkerExecutor("gmcserver-" + name, size, maxExecuteTime, TimeUnit.MILLISECONDS);
+			this.pools.put(name, new WorkerPool(name, this.srv.getVertx(), executor, size, maxQueue, maxExecuteTime));
+			this.log.info("Created worker pool {} of size {}", name, size);
+		}
+
+		this.defaultPolicy = this.validatePolicy("executor.default",
+				this.srv.getConfig().getProperty("executor.default", ExecutorManager.POLICY_WORKER));
+	}
+
+	/**
+	 * @param actionClass class of the action, if it is nested in a manager, the
+	 *                    manager's policy is used as fallback
+	 * @return the execution policy for this action class
+	 */
+	public String getPolicy(final Class<?> actionClass) {
+		return this.policies.computeIfAbsent(actionClass, this::resolvePolicy);
+	}
+
+	private String resolvePolicy(final Class<?> actionClass) {
+		final String actionKey = "executor.action." + actionClass.getSimpleName();
+		final String actionPolicy = this.srv.getConfig().getProperty(actionKey);
+		if (actionPolicy != null) {
+			return this.validatePolicy(actionKey, actionPolicy);
+		}
+
+		final Class<?> managerClass = actionClass.getEnclosingClass();
+		if (managerClass != null) {
+			final String managerKey = "executor.manager." + managerClass.getSimpleName();
+			final String managerPolicy = this.srv.getConfig().getProperty(managerKey);
+			if (managerPolicy != null) {
+				return this.validatePolicy(managerKey, managerPolicy);
+			}
+		}
+
+		return this.defaultPolicy;
+	}
+
+	private String validatePolicy(final String key, final String policy) {
+		if (ExecutorManager.POLICY_EVENT_LOOP.equals(policy) || this.pools.containsKey(policy)) {
+			return policy;
+		}
+		this.log.warn("Unknown execution policy {} for {}, falling back to {}",
+				policy,
+				key,
+				ExecutorManager.POLICY_WORKER);
+		return ExecutorManager.POLICY_WORKER;
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the pool does not exist
+	 */
+	public WorkerPool getPool(final String name) {
+		final WorkerPool pool = this.pools.get(name);
+		if (pool == null) {
+			throw new IllegalArgumentException("Unknown worker pool: " + name);
+		}
+		return pool;
+	}
+
+	public Collection<WorkerPool> getPools() {
+		return Collections.unmodifiableCollection(this.pools.values());
+	}
+
+	public JsonObject toJson() {
+		final JsonObject obj = new JsonObject();
+		for (final WorkerPool pool : this.pools.values()) {
+			obj.put(pool.getName(), pool.toJson());
+		}
+		return obj;
+	}
+}
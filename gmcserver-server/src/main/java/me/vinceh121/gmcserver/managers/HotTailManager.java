@@ -0,0 +1,245 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+
+import io.vertx.core.Promise;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.actions.AbstractAction;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.timeline.RecordRing;
+
+/**
+ * In-memory tail of the latest records of recently active devices, to answer
+ * latest record and short timeline queries without going to the database.
+ *
+ * A device's ring is created and loaded from the database when it gets a
+ * record, and the least recently used rings are evicted once the memory cap
+ * is reached. Queries a ring can't answer fall back to the database.
+ *
+ * When clustered, records inserted by other nodes are added to the rings
+ * loaded on this node.
+ */
+public class HotTailManager extends AbstractManager {
+	private final Map<ObjectId, RecordRing> rings;
+	private final int size, maxDevices, warmDevices;
+
+	public HotTailManager(final GMCServer srv) {
+		super(srv);
+		this.size = Integer.parseInt(this.srv.getConfig().getProperty("hottail.size", "64"));
+		final long maxMemory = Long.parseLong(this.srv.getConfig().getProperty("hottail.max-memory", "67108864"));
+		this.maxDevices = this.size <= 0 ? 0
+				: (int) Math.min(Integer.MAX_VALUE, maxMemory / RecordRing.getMemorySize(this.size));
+		this.warmDevices = Math.min(this.maxDevices,
+				Integer.parseInt(this.srv.getConfig().getProperty("hottail.warm-devices", "1000")));
+		this.rings = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<ObjectId, RecordRing> eldest) {
+				return this.size() > HotTailManager.this.maxDevices;
+			}
+		};
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus().<Record>consumer(StatsManager.ADDRESS_RECORD, msg -> {
+				if (this.srv.getStatsManager().getNodeId().equals(msg.headers().get("node"))) {
+					return;
+				}
+				final RecordRing ring = this.getRing(msg.body().getDeviceId());
+				if (ring != null) {
+					ring.add(msg.body());
+				}
+			});
+		}
+	}
+
+	/**
+	 * Adds an inserted record to its device's ring, creating it if needed.
+	 */
+	public void addRecord(final Record rec) {
+		if (this.maxDevices == 0) {
+			return;
+		}
+		final RecordRing ring;
+		final boolean created;
+		synchronized (this.rings) {
+			final RecordRing existing = this.rings.get(rec.getDeviceId());
+			created = existing == null;
+			ring = created ? new RecordRing(rec.getDeviceId(), this.size) : existing;
+			if (created) {
+				this.rings.put(rec.getDeviceId(), ring);
+			}
+		}
+		ring.add(rec);
+		if (created) {
+			this.load(ring);
+		}
+	}
+
+	/**
+	 * @return the device's latest record, or null if it isn't in memory
+	 */
+	public Record getLatest(final ObjectId deviceId) {
+		final RecordRing ring = this.getRing(deviceId);
+		return ring == null ? null : ring.getLatest();
+	}
+
+	/**
+	 * @see RecordRing#query(Date, Date, int, boolean)
+	 * @return the records, or null if they aren't all in memory
+	 */
+	public List<Record> getTimeline(final ObjectId deviceId, final Date start, final Date end, final int limit,
+			final boolean ascending) {
+		final RecordRing ring = this.getRing(deviceId);
+		return ring == null ? null : ring.query(start, end, limit, ascending);
+	}
+
+	/**
+	 * Forgets a device's records, for when they were changed without going
+	 * through {@link #addRecord(Record)}
+	 */
+	public void invalidate(final ObjectId deviceId) {
+		synchronized (this.rings) {
+			this.rings.remove(deviceId);
+		}
+	}
+
+	/**
+	 * Loads the rings of the devices which most recently got records
+	 */
+	public void warm() {
+		if (this.warmDevices == 0) {
+			return;
+		}
+		new WarmHotTailAction(this.srv).execute()
+			.onSuccess(count -> this.log.info("Loaded the latest records of {} devices", count))
+			.onFailure(t -> this.log.error("Failed to load latest records", t));
+	}
+
+	public int getDeviceCount() {
+		synchronized (this.rings) {
+			return this.rings.size();
+		}
+	}
+
+	public int getMaxDevices() {
+		return this.maxDevices;
+	}
+
+	private RecordRing getRing(final ObjectId deviceId) {
+		synchronized (this.rings) {
+			return this.rings.get(deviceId);
+		}
+	}
+
+	private void load(final RecordRing ring) {
+		new LoadHotTailAction(this.srv).setDeviceId(ring.getDeviceId()).execute().onSuccess(ring::load).onFailure(t -> {
+			this.log.error("Failed to load latest records of device " + ring.getDeviceId(), t);
+			synchronized (this.rings) {
+				this.rings.remove(ring.getDeviceId(), ring);
+			}
+		});
+	}
+
+	/**
+	 * Blocking
+	 */
+	private List<Record> findLatest(final ObjectId deviceId) {
+		return this.srv.getDatabaseManager()
+			.getCollection(Record.class)
+			.find(Filters.eq("deviceId", deviceId))
+			.sort(Sorts.descending("date"))
+			.limit(this.size)
+			.into(new ArrayList<>());
+	}
+
+	/**
+	 * Fetches the latest records of a device, newest first.
+	 */
+	public class LoadHotTailAction extends AbstractAction<List<Record>> {
+		private ObjectId deviceId;
+
+		public LoadHotTailAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<List<Record>> promise) {
+			promise.complete(HotTailManager.this.findLatest(this.deviceId));
+		}
+
+		public ObjectId getDeviceId() {
+			return this.deviceId;
+		}
+
+		public LoadHotTailAction setDeviceId(final ObjectId deviceId) {
+			this.deviceId = deviceId;
+			return this;
+		}
+	}
+
+	/**
+	 * Loads the rings of the devices which most recently got records.
+	 *
+	 * Completes with the number of devices loaded.
+	 */
+	public class WarmHotTailAction extends AbstractAction<Integer> {
+
+		public WarmHotTailAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Integer> promise) {
+			// record IDs start with their creation time
+			final List<Device> devices = this.srv.getDatabaseManager()
+				.getCollection(Device.class)
+				.find(Filters.exists("lastRecordId"))
+				.sort(Sorts.descending("lastRecordId"))
+				.projection(Projections.include("_id"))
+				.limit(HotTailManager.this.warmDevices)
+				.into(new ArrayList<>());
+
+			int count = 0;
+			for (final Device dev : devices) {
+				final RecordRing ring = new RecordRing(dev.getId(), HotTailManager.this.size);
+				synchronized (HotTailManager.this.rings) {
+					if (HotTailManager.this.rings.putIfAbsent(dev.getId(), ring) != null) {
+						// got a record since starting
+						continue;
+					}
+				}
+				ring.load(HotTailManager.this.findLatest(dev.getId()));
+				count++;
+			}
+			promise.complete(count);
+		}
+	}
+}
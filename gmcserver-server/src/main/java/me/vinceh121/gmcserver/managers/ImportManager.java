@@ -39,8 +39,6 @@ import com.fasterxml.jackson.databind.MappingIterator;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.dataformat.csv.CsvMapper;
 import com.fasterxml.jackson.dataformat.csv.CsvSchema;
-import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.Updates;
 import com.mongodb.client.model.geojson.Point;
 import com.mongodb.client.model.geojson.Position;
 
@@ -60,8 +58,10 @@ import me.vinceh121.gmcserver.modules.ImportExportModule;
 public class ImportManager extends AbstractManager {
 	public static final Pattern PATTERN_URADMONITOR_ID = Pattern.compile("[A-F0-9]{8}"),
 			PATTERN_RADMON_USERNAME = Pattern.compile("[a-zA-Z0-9]{0,32}");
-	private static final DateFormat DATE_FORMAT_ISO_8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX"),
-			DATE_FORMAT_RADMON = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	// per thread as SimpleDateFormat isn't thread-safe
+	private static final ThreadLocal<DateFormat> DATE_FORMAT_ISO_8601
+			= ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX")),
+			DATE_FORMAT_RADMON = ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd HH:mm:ss"));
 	private static final CsvMapper CSV_MAPPER = new CsvMapper();
 	private static final CsvSchema SCHEMA_RADMON = CsvSchema.builder().addColumn("date").addNumberColumn("cpm").build();
 
@@ -110,6 +110,11 @@ public class ImportManager extends AbstractManager {
 				}
 
 				this.srv.getDatabaseManager().getCollection(Record.class).insertMany(recs);
+				this.srv.getRollupManager()
+					.addRecords(recs)
+					.onComplete(r -> this.srv.getStatsManager().invalidateDevice(this.deviceId));
+				this.srv.getHotTailManager().invalidate(this.deviceId);
+				this.srv.getMapManager().refreshDevice(this.deviceId, null);
 
 				promise.complete();
 
@@ -123,9 +128,15 @@ public class ImportManager extends AbstractManager {
 
 				if (recs.size() != 0) {
 					this.srv.getDatabaseManager().getCollection(Record.class).insertMany(recs);
+					this.srv.getRollupManager()
+						.addRecords(recs)
+						.onComplete(r -> this.srv.getStatsManager().invalidateDevice(this.deviceId));
+					this.srv.getHotTailManager().invalidate(this.deviceId);
+					this.srv.getMapManager().refreshDevice(this.deviceId, null);
 					this.srv.getDatabaseManager()
 						.getCollection(Device.class)
-						.updateOne(Filters.eq(this.deviceId), Updates.set("lastRecordId", recs.get(0).getId()));
+						.updateOne(DeviceManager.lastRecordFilter(this.deviceId, recs.get(0)),
+								DeviceManager.lastRecordUpdate(recs.get(0)));
 					this.importPageRecurse(page + 1);
 				} else {
 					log.info("Finished GMC import for {}", gmcmapId);
@@ -229,7 +240,7 @@ public class ImportManager extends AbstractManager {
 								r.setDeviceId(deviceId);
 
 								try {
-									r.setDate(ImportExportModule.GMCMAP_DATE_FMT.parse(elmDate.text()));
+									r.setDate(ImportExportModule.GMCMAP_DATE_FMT.get().parse(elmDate.text()));
 								} catch (final ParseException e) {
 									log.error("Error while parsing date for record during import", e);
 									return;
@@ -385,9 +396,15 @@ public class ImportManager extends AbstractManager {
 				}
 
 				this.srv.getDatabaseManager().getCollection(Record.class).insertMany(recs);
+				this.srv.getRollupManager()
+					.addRecords(recs)
+					.onComplete(r -> this.srv.getStatsManager().invalidateDevice(this.deviceId));
+				this.srv.getHotTailManager().invalidate(this.deviceId);
+				this.srv.getMapManager().refreshDevice(this.deviceId, null);
 				this.srv.getDatabaseManager()
 					.getCollection(Device.class)
-					.updateOne(Filters.eq(this.deviceId), Updates.set("lastRecordId", recs.get(0).getId()));
+					.updateOne(DeviceManager.lastRecordFilter(this.deviceId, recs.get(0)),
+							DeviceManager.lastRecordUpdate(recs.get(0)));
 
 				promise.complete();
 
@@ -401,9 +418,15 @@ public class ImportManager extends AbstractManager {
 
 				if (recs.size() != 0) {
 					this.srv.getDatabaseManager().getCollection(Record.class).insertMany(recs);
+					this.srv.getRollupManager()
+						.addRecords(recs)
+						.onComplete(r -> this.srv.getStatsManager().invalidateDevice(this.deviceId));
+					this.srv.getHotTailManager().invalidate(this.deviceId);
+					this.srv.getMapManager().refreshDevice(this.deviceId, null);
 					this.srv.getDatabaseManager()
 						.getCollection(Device.class)
-						.updateOne(Filters.eq(this.deviceId), Updates.set("lastRecordId", recs.get(0).getId()));
+						.updateOne(DeviceManager.lastRecordFilter(this.deviceId, recs.get(0)),
+								DeviceManager.lastRecordUpdate(recs.get(0)));
 					this.importPageRecurse(page + 1);
 				} else {
 					log.info("Finished SafeCast import for {}", this.safeCastId);
@@ -479,7 +502,7 @@ public class ImportManager extends AbstractManager {
 							}
 
 							try {
-								rec.setDate(DATE_FORMAT_ISO_8601.parse(obj.getString("captured_at")));
+								rec.setDate(DATE_FORMAT_ISO_8601.get().parse(obj.getString("captured_at")));
 							} catch (ParseException e) {
 								log.error(
 										new FormattedMessage("Failed to parse date for SafeCast record {}",
@@ -668,6 +691,11 @@ public class ImportManager extends AbstractManager {
 					}
 
 					this.srv.getDatabaseManager().getCollection(Record.class).insertMany(recs);
+					this.srv.getRollupManager()
+						.addRecords(recs)
+						.onComplete(r -> this.srv.getStatsManager().invalidateDevice(this.deviceId));
+					this.srv.getHotTailManager().invalidate(this.deviceId);
+					this.srv.getMapManager().refreshDevice(this.deviceId, null);
 					promise.complete();
 				})
 				.onFailure(t -> promise.fail(new IllegalStateException("Connection failed", t)));
@@ -717,10 +745,11 @@ public class ImportManager extends AbstractManager {
 					try (final MappingIterator<ObjectNode> it = CSV_MAPPER.readerFor(ObjectNode.class)
 						.with(SCHEMA_RADMON)
 						.readValues(res.bodyAsBuffer().getBytes())) {
+						final List<Record> imported = new ArrayList<>();
 						while (it.hasNext()) {
 							try {
 								final ObjectNode entry = it.next();
-								final Date date = DATE_FORMAT_RADMON.parse(entry.get("date").asText());
+								final Date date = DATE_FORMAT_RADMON.get().parse(entry.get("date").asText());
 								final double cpm = entry.get("cpm").asDouble();
 
 								final Record rec = new Record();
@@ -731,11 +760,18 @@ public class ImportManager extends AbstractManager {
 								this.srv.getDatabaseManager().getCollection(Record.class).insertOne(rec);
 								this.srv.getDatabaseManager()
 									.getCollection(Device.class)
-									.updateOne(Filters.eq(this.deviceId), Updates.set("lastRecordId", rec.getId()));
+									.updateOne(DeviceManager.lastRecordFilter(this.deviceId, rec),
+											DeviceManager.lastRecordUpdate(rec));
+								imported.add(rec);
 							} catch (final ParseException e) {
 								// we silently ignore those for now...
 							}
 						}
+						this.srv.getRollupManager()
+							.addRecords(imported)
+							.onComplete(r -> this.srv.getStatsManager().invalidateDevice(this.deviceId));
+						this.srv.getHotTailManager().invalidate(this.deviceId);
+						this.srv.getMapManager().refreshDevice(this.deviceId, null);
 					} catch (final IOException e) {
 						promise.fail(new IllegalStateException("Failed to read CSV: " + e, e));
 					}
@@ -0,0 +1,464 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.bson.types.ObjectId;
+
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.eventbus.Message;
+import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.http.ServerWebSocket;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.json.RecordJsonWriter;
+
+/**
+ * Fans live records out to websockets, server-sent event streams and long
+ * polls.
+ *
+ * There is a single event bus consumer per watched device. Each record is
+ * serialized once, then handed to subscribers grouped by event loop so that
+ * they are only written to from their own context.
+ *
+ * A subscriber which write queue is full doesn't get records queued: only the
+ * latest record of each device is kept until it drains.
+ *
+ * Each feed keeps its latest records in the order they were received, so that
+ * clients can resume from the last record they received. Feeds are kept for {@code live.linger} ms after their
+ * last subscriber left so that reconnecting clients can resume.
+ */
+public class LiveFeedManager extends AbstractManager {
+	private final Map<ObjectId, Feed> feeds = new HashMap<>();
+	private final int maxSubscriptions, replaySize;
+	private final long linger;
+
+	public LiveFeedManager(final GMCServer srv) {
+		super(srv);
+		this.maxSubscriptions = Integer.parseInt(this.srv.getConfig().getProperty("live.max-subscriptions", "100"));
+		this.replaySize = Integer.parseInt(this.srv.getConfig().getProperty("live.replay-size", "64"));
+		this.linger = Long.parseLong(this.srv.getConfig().getProperty("live.linger", "60000"));
+	}
+
+	/**
+	 * @param tagged wrap records with the ID of their device, for sockets
+	 *               subscribed to several devices
+	 */
+	public Subscriber createWebSocketSubscriber(final ServerWebSocket sock, final boolean tagged) {
+		final Subscriber sub = new WebSocketSubscriber(sock, tagged);
+		sock.closeHandler(v -> sub.close());
+		return sub;
+	}
+
+	/**
+	 * Writes records as server-sent events, with their ID as event ID. The
+	 * response must already be chunked with its headers set.
+	 */
+	public Subscriber createEventStreamSubscriber(final HttpServerResponse response) {
+		final Subscriber sub = new EventStreamSubscriber(response);
+		response.closeHandler(v -> sub.close());
+		return sub;
+	}
+
+	/**
+	 * Calls the handler once with the first records received, replayed records
+	 * included, then closes.
+	 */
+	public Subscriber createPollSubscriber(final Handler<List<LiveMessage>> handler) {
+		return new PollSubscriber(handler);
+	}
+
+	/**
+	 * @return messages to replay
+	 */
+	private synchronized List<LiveMessage> subscribe(final ObjectId deviceId, final Subscriber sub,
+			final ObjectId lastId) {
+		final Feed feed = this.feeds.computeIfAbsent(deviceId, Feed::new);
+		if (feed.lingerTimer != -1) {
+			this.srv.getVertx().cancelTimer(feed.lingerTimer);
+			feed.lingerTimer = -1;
+		}
+		return feed.add(sub, lastId);
+	}
+
+	private synchronized void unsubscribe(final ObjectId deviceId, final Subscriber sub) {
+		final Feed feed = this.feeds.get(deviceId);
+		if (feed != null && feed.remove(sub)) {
+			feed.lingerTimer = this.srv.getVertx().setTimer(this.linger, id -> this.expire(feed));
+		}
+	}
+
+	private synchronized void expire(final Feed feed) {
+		if (feed.isEmpty() && this.feeds.get(feed.deviceId) == feed) {
+			this.feeds.remove(feed.deviceId);
+			feed.consumer.unregister();
+		}
+	}
+
+	public synchronized int getFeedCount() {
+		return this.feeds.size();
+	}
+
+	public int getMaxSubscriptions() {
+		return this.maxSubscriptions;
+	}
+
+	/**
+	 * A record serialized for live subscribers
+	 */
+	public static final class LiveMessage {
+		private final ObjectId deviceId, id;
+		private final String json;
+		private String tagged;
+
+		private LiveMessage(final Record rec) {
+			this.deviceId = rec.getDeviceId();
+			this.id = rec.getId();
+			this.json = RecordJsonWriter.toBuffer(rec, false).toString();
+		}
+
+		public ObjectId getDeviceId() {
+			return this.deviceId;
+		}
+
+		public ObjectId getId() {
+			return this.id;
+		}
+
+		/**
+		 * @return the public JSON of the record
+		 */
+		public String getJson() {
+			return this.json;
+		}
+
+		/**
+		 * @return the JSON of the record wrapped with its device's ID
+		 */
+		public String getTagged() {
+			// racy but always computes the same string
+			if (this.tagged == null) {
+				this.tagged = "{\"deviceId\":\"" + this.deviceId.toHexString() + "\",\"record\":" + this.json + "}";
+			}
+			return this.tagged;
+		}
+	}
+
+	private class Feed {
+		private final ObjectId deviceId;
+		private final MessageConsumer<Record> consumer;
+		private final Map<Context, Set<Subscriber>> subscribers = new HashMap<>();
+		private final Deque<LiveMessage> replay = new ArrayDeque<>();
+		private long lingerTimer = -1;
+
+		private Feed(final ObjectId deviceId) {
+			this.deviceId = deviceId;
+			this.consumer = LiveFeedManager.this.srv.getEventBus()
+				.consumer(LoggingManager.ADDRESS_PREFIX_RECORD_LOG + deviceId.toHexString(), this::handle);
+		}
+
+		private void handle(final Message<Record> msg) {
+			final LiveMessage live = new LiveMessage(msg.body());
+			final List<Map.Entry<Context, List<Subscriber>>> targets = new ArrayList<>();
+			// the replay buffer and subscribers are updated together so that a
+			// subscriber either gets a message replayed or live, never both
+			synchronized (this) {
+				if (this.replay.size() == LiveFeedManager.this.replaySize) {
+					this.replay.removeFirst();
+				}
+				this.replay.addLast(live);
+				for (final Map.Entry<Context, Set<Subscriber>> e : this.subscribers.entrySet()) {
+					targets.add(Map.entry(e.getKey(), new ArrayList<>(e.getValue())));
+				}
+			}
+			for (final Map.Entry<Context, List<Subscriber>> e : targets) {
+				e.getKey().runOnContext(v -> {
+					for (final Subscriber sub : e.getValue()) {
+						sub.offer(live);
+					}
+				});
+			}
+		}
+
+		/**
+		 * Messages are replayed in the order this node received them, as IDs
+		 * generated by different nodes within the same second aren't ordered. Nodes
+		 * may receive records of different nodes a few milliseconds apart in
+		 * different orders, so a client resuming on another node can get such a
+		 * record twice or miss it.
+		 *
+		 * @param lastId ID of the last record the subscriber got, or null
+		 * @return buffered messages received after {@code lastId}, all of them if
+		 *         it isn't buffered anymore
+		 */
+		private synchronized List<LiveMessage> add(final Subscriber sub, final ObjectId lastId) {
+			this.subscribers.computeIfAbsent(sub.context, c -> new HashSet<>()).add(sub);
+			if (lastId == null) {
+				return Collections.emptyList();
+			}
+			final List<LiveMessage> missed = new ArrayList<>();
+			for (final Iterator<LiveMessage> it = this.replay.descendingIterator(); it.hasNext();) {
+				final LiveMessage m = it.next();
+				if (lastId.equals(m.id)) {
+					break;
+				}
+				missed.add(m);
+			}
+			Collections.reverse(missed);
+			return missed;
+		}
+
+		/**
+		 * @return true if this feed doesn't have subscribers anymore
+		 */
+		private synchronized boolean remove(final Subscriber sub) {
+			final Set<Subscriber> subs = this.subscribers.get(sub.context);
+			if (subs != null && subs.remove(sub) && subs.isEmpty()) {
+				this.subscribers.remove(sub.context);
+			}
+			return this.subscribers.isEmpty();
+		}
+
+		private synchronized boolean isEmpty() {
+			return this.subscribers.isEmpty();
+		}
+	}
+
+	/**
+	 * Something subscribed to one or more devices. Must only be used from the
+	 * context it was created on.
+	 */
+	public abstract class Subscriber {
+		protected final Context context;
+		private final Set<ObjectId> devices = new HashSet<>();
+		/**
+		 * Latest message of each device, waiting for the subscriber to drain
+		 */
+		private final Map<ObjectId, LiveMessage> pending = new LinkedHashMap<>();
+		private boolean draining, closed;
+		private long dropped;
+
+		private Subscriber() {
+			this.context = Vertx.currentContext();
+		}
+
+		/**
+		 * @return false if the subscription limit is reached
+		 */
+		public boolean subscribe(final ObjectId deviceId) {
+			return this.subscribe(deviceId, null);
+		}
+
+		/**
+		 * @param lastId ID of the last record received, buffered records after it
+		 *               are sent right away
+		 * @return false if the subscription limit is reached
+		 */
+		public boolean subscribe(final ObjectId deviceId, final ObjectId lastId) {
+			if (this.closed) {
+				return false;
+			}
+			if (this.devices.contains(deviceId)) {
+				return true;
+			}
+			if (this.devices.size() >= LiveFeedManager.this.maxSubscriptions) {
+				return false;
+			}
+			this.devices.add(deviceId);
+			for (final LiveMessage m : LiveFeedManager.this.subscribe(deviceId, this, lastId)) {
+				this.offer(m);
+			}
+			return true;
+		}
+
+		public boolean isSubscribed(final ObjectId deviceId) {
+			return this.devices.contains(deviceId);
+		}
+
+		/**
+		 * @return how many more devices can be subscribed to
+		 */
+		public int getRemainingSubscriptions() {
+			return Math.max(0, LiveFeedManager.this.maxSubscriptions - this.devices.size());
+		}
+
+		public void unsubscribe(final ObjectId deviceId) {
+			if (this.devices.remove(deviceId)) {
+				this.pending.remove(deviceId);
+				LiveFeedManager.this.unsubscribe(deviceId, this);
+			}
+		}
+
+		public void close() {
+			if (this.closed) {
+				return;
+			}
+			this.closed = true;
+			for (final ObjectId deviceId : this.devices) {
+				LiveFeedManager.this.unsubscribe(deviceId, this);
+			}
+			this.devices.clear();
+			this.pending.clear();
+		}
+
+		private void offer(final LiveMessage msg) {
+			if (this.closed || !this.devices.contains(msg.deviceId)) {
+				return;
+			}
+			if (this.pending.isEmpty() && !this.writeQueueFull()) {
+				this.write(msg);
+				return;
+			}
+			// slow client, coalesce to the latest record
+			if (this.pending.put(msg.deviceId, msg) != null) {
+				this.dropped++;
+			}
+			if (!this.draining) {
+				this.draining = true;
+				this.drainHandler(v -> this.drain());
+			}
+		}
+
+		private void drain() {
+			this.draining = false;
+			final Iterator<LiveMessage> it = this.pending.values().iterator();
+			while (it.hasNext() && !this.closed) {
+				if (this.writeQueueFull()) {
+					this.draining = true;
+					this.drainHandler(v -> this.drain());
+					return;
+				}
+				this.write(it.next());
+				it.remove();
+			}
+		}
+
+		protected abstract void write(LiveMessage msg);
+
+		protected abstract boolean writeQueueFull();
+
+		protected abstract void drainHandler(Handler<Void> handler);
+
+		public boolean isClosed() {
+			return this.closed;
+		}
+
+		public Set<ObjectId> getDevices() {
+			return Collections.unmodifiableSet(this.devices);
+		}
+
+		/**
+		 * @return count of records skipped because the client was too slow
+		 */
+		public long getDropped() {
+			return this.dropped;
+		}
+	}
+
+	private class WebSocketSubscriber extends Subscriber {
+		private final ServerWebSocket sock;
+		private final boolean tagged;
+
+		private WebSocketSubscriber(final ServerWebSocket sock, final boolean tagged) {
+			this.sock = sock;
+			this.tagged = tagged;
+		}
+
+		@Override
+		protected void write(final LiveMessage msg) {
+			this.sock.writeTextMessage(this.tagged ? msg.getTagged() : msg.getJson());
+		}
+
+		@Override
+		protected boolean writeQueueFull() {
+			return this.sock.writeQueueFull();
+		}
+
+		@Override
+		protected void drainHandler(final Handler<Void> handler) {
+			this.sock.drainHandler(handler);
+		}
+	}
+
+	private class EventStreamSubscriber extends Subscriber {
+		private final HttpServerResponse response;
+
+		private EventStreamSubscriber(final HttpServerResponse response) {
+			this.response = response;
+		}
+
+		@Override
+		protected void write(final LiveMessage msg) {
+			this.response.write("id: " + msg.id.toHexString() + "\ndata: " + msg.json + "\n\n");
+		}
+
+		@Override
+		protected boolean writeQueueFull() {
+			return this.response.writeQueueFull();
+		}
+
+		@Override
+		protected void drainHandler(final Handler<Void> handler) {
+			this.response.drainHandler(handler);
+		}
+	}
+
+	private class PollSubscriber extends Subscriber {
+		private final Handler<List<LiveMessage>> handler;
+		private final List<LiveMessage> received = new ArrayList<>();
+
+		private PollSubscriber(final Handler<List<LiveMessage>> handler) {
+			this.handler = handler;
+		}
+
+		@Override
+		protected void write(final LiveMessage msg) {
+			if (this.received.isEmpty()) {
+				// wait for the other records replayed or delivered together
+				this.context.runOnContext(v -> {
+					this.close();
+					this.handler.handle(this.received);
+				});
+			}
+			this.received.add(msg);
+		}
+
+		@Override
+		protected boolean writeQueueFull() {
+			return false;
+		}
+
+		@Override
+		protected void drainHandler(final Handler<Void> handler) {
+		}
+	}
+}
@@ -17,17 +17,27 @@
  */
 package me.vinceh121.gmcserver.managers;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Vector;
 
 import org.apache.logging.log4j.message.FormattedMessage;
+import org.bson.types.ObjectId;
 
-import com.mongodb.client.model.Filters;
-import com.mongodb.client.model.Updates;
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
 
 import io.vertx.core.CompositeFuture;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import me.vinceh121.gmcserver.DatabaseManager;
 import me.vinceh121.gmcserver.GMCServer;
 import me.vinceh121.gmcserver.actions.AbstractAction;
 import me.vinceh121.gmcserver.entities.Device;
@@ -39,19 +49,65 @@ public class LoggingManager extends AbstractManager {
 	 * Hex device ID must be appended
 	 */
 	public static final String ADDRESS_PREFIX_RECORD_LOG = "me.vinceh121.gmcserver.RECORD_LOG.";
+	/**
+	 * null if batching is disabled
+	 */
+	private final RecordBatcher recordBatcher;
 
 	public LoggingManager(final GMCServer srv) {
 		super(srv);
+		if (Boolean.parseBoolean(this.srv.getConfig().getProperty("ingest.batch.enabled"))) {
+			this.recordBatcher = new RecordBatcher(this.srv.getVertx(),
+					this.srv.getDatabaseManager(),
+					Integer.parseInt(this.srv.getConfig().getProperty("ingest.batch.size", "500")),
+					Long.parseLong(this.srv.getConfig().getProperty("ingest.batch.window", "1000")),
+					Integer.parseInt(this.srv.getConfig().getProperty("ingest.batch.queue", "20000")),
+					RecordBatcher.Durability
+						.valueOf(this.srv.getConfig().getProperty("ingest.durability", "flush").toUpperCase()));
+			this.recordBatcher.setInsertedHandler(this::onInserted);
+		} else {
+			this.recordBatcher = null;
+		}
+	}
+
+	/**
+	 * Adds records to the in-memory views and rollups once they are inserted
+	 */
+	private void onInserted(final List<Record> records) {
+		for (final Record rec : records) {
+			this.srv.getHotTailManager().addRecord(rec);
+			this.srv.getMapManager().addRecord(rec);
+		}
+		// stats are loaded from rollups, so they must be updated after them
+		final long writeStart = System.currentTimeMillis();
+		this.srv.getRollupManager().addRecords(records).onComplete(r -> {
+			final long writeEnd = System.currentTimeMillis();
+			for (final Record rec : records) {
+				this.srv.getStatsManager().addRecord(rec, writeStart, writeEnd);
+			}
+		});
+	}
+
+	public RecordBatcher getRecordBatcher() {
+		return this.recordBatcher;
 	}
 
 	public InsertRecordAction insertRecord() {
 		return new InsertRecordAction(this.srv);
 	}
 
+	public BulkInsertRecordsAction bulkInsertRecords() {
+		return new BulkInsertRecordsAction(this.srv);
+	}
+
 	/**
 	 * Inserts a record. This will (optionnally) check for alerts, process proxying,
 	 * publish it to the event bus.
 	 *
+	 * When batching is enabled, the record is handed to the {@link RecordBatcher}
+	 * and this completes according to its durability mode. Either way, the
+	 * in-memory views, rollups and stats only get the record once it's inserted.
+	 *
 	 * Alerting and proxying can be differed.
 	 *
 	 * Rethrows exceptions thrown by {@code CheckAlertAction},
@@ -65,7 +121,7 @@ public class LoggingManager extends AbstractManager {
 				differAlert = true, differProxy = true, setLocationFromDevice;
 
 		public InsertRecordAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
@@ -75,19 +131,16 @@ public class LoggingManager extends AbstractManager {
 			@SuppressWarnings("rawtypes")
 			final List<Future> differedFutures = new Vector<>();
 
-			if (this.insertInDb) {
-				joinedFutures.add(Future.future(p -> {
-					try {
-						this.srv.getDatabaseManager().getCollection(Record.class).insertOne(this.record);
-						this.srv.getDatabaseManager()
-							.getCollection(Device.class)
-							.updateOne(Filters.eq(this.device.getId()), Updates.set("lastRecordId", this.record.getId()));
-						p.complete();
-					} catch (final Exception e) {
-						log.error("Failed to insert record into DB", e);
-						p.fail(e);
-					}
-				}));
+			if (this.insertInDb && LoggingManager.this.recordBatcher != null) {
+				joinedFutures.add(LoggingManager.this.recordBatcher.enqueue(this.record, this.device));
+			} else if (this.insertInDb) {
+				final DatabaseManager db = this.srv.getDatabaseManager();
+				joinedFutures.add(db.first(db.getAsyncCollection(Record.class).insertOne(this.record))
+					.onSuccess(res -> LoggingManager.this.onInserted(Collections.singletonList(this.record)))
+					.compose(res -> db.first(db.getAsyncCollection(Device.class)
+						.updateOne(DeviceManager.lastRecordFilter(this.device.getId(), this.record),
+								DeviceManager.lastRecordUpdate(this.record))))
+					.onFailure(t -> LoggingManager.this.log.error("Failed to insert record into DB", t)));
 			}
 
 			if (this.checkAlert) {
@@ -212,4 +265,94 @@ public class LoggingManager extends AbstractManager {
 			return this;
 		}
 	}
+
+	/**
+	 * Inserts many records of past measurements at once, in a single unordered
+	 * {@code insertMany}. Records must have their device ID set.
+	 *
+	 * Like imports, this updates rollups, statistics and the devices' last
+	 * records, but doesn't check alerts, proxy or publish the records.
+	 *
+	 * Returns the errors of records that failed to be inserted, by index in the
+	 * list.
+	 */
+	public class BulkInsertRecordsAction extends AbstractAction<Map<Integer, String>> {
+		private List<Record> records;
+
+		public BulkInsertRecordsAction(final GMCServer srv) {
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Map<Integer, String>> promise) {
+			if (this.records.isEmpty()) {
+				promise.complete(Collections.emptyMap());
+				return;
+			}
+
+			final DatabaseManager db = this.srv.getDatabaseManager();
+			db.first(db.getAsyncCollection(Record.class).insertMany(this.records, new InsertManyOptions().ordered(false)))
+				.onComplete(res -> {
+					final Map<Integer, String> errors = new HashMap<>();
+					if (res.failed() && res.cause() instanceof MongoBulkWriteException) {
+						for (final BulkWriteError err : ((MongoBulkWriteException) res.cause()).getWriteErrors()) {
+							errors.put(err.getIndex(), err.getMessage());
+						}
+					} else if (res.failed()) {
+						promise.fail(res.cause());
+						return;
+					}
+
+					final List<Record> inserted = new ArrayList<>(this.records.size());
+					final Map<ObjectId, Record> lastRecords = new HashMap<>();
+					for (int i = 0; i < this.records.size(); i++) {
+						if (errors.containsKey(i)) {
+							continue;
+						}
+						final Record rec = this.records.get(i);
+						inserted.add(rec);
+						lastRecords.merge(rec.getDeviceId(),
+								rec,
+								(a, b) -> a.getDate().after(b.getDate()) ? a : b);
+					}
+					// cheaper than adding records one by one, which would also send them to
+					// other nodes
+					this.srv.getRollupManager()
+						.addRecords(inserted)
+						.onComplete(r -> lastRecords.keySet().forEach(this.srv.getStatsManager()::invalidateDevice));
+
+					if (lastRecords.isEmpty()) {
+						promise.complete(errors);
+						return;
+					}
+
+					final List<WriteModel<Device>> updates = new ArrayList<>(lastRecords.size());
+					for (final Map.Entry<ObjectId, Record> e : lastRecords.entrySet()) {
+						updates.add(new UpdateOneModel<>(DeviceManager.lastRecordFilter(e.getKey(), e.getValue()),
+								DeviceManager.lastRecordUpdate(e.getValue())));
+					}
+					db.first(db.getAsyncCollection(Device.class)
+						.bulkWrite(updates, new BulkWriteOptions().ordered(false))).onComplete(upRes -> {
+							if (upRes.failed()) {
+								LoggingManager.this.log.error("Failed to update last records of devices",
+										upRes.cause());
+							}
+							for (final ObjectId deviceId : lastRecords.keySet()) {
+								this.srv.getHotTailManager().invalidate(deviceId);
+								this.srv.getMapManager().refreshDevice(deviceId, null);
+							}
+							promise.complete(errors);
+						});
+				});
+		}
+
+		public List<Record> getRecords() {
+			return this.records;
+		}
+
+		public BulkInsertRecordsAction setRecords(final List<Record> records) {
+			this.records = records;
+			return this;
+		}
+	}
 }
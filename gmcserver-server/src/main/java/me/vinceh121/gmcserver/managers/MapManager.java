@@ -0,0 +1,555 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.codec.digest.DigestUtils;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.actions.AbstractAction;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.geo.QuadTree;
+
+/**
+ * Answers map queries from an in-memory spatial index of located devices and
+ * their last record, and serves the map as slippy map tiles.
+ *
+ * The index is loaded on startup, kept up to date as devices are changed and
+ * records inserted, including on other cluster nodes, and rebuilt from the
+ * database every {@code map.index.reconcile} ms to catch up with changes made
+ * elsewhere, and once last records are backfilled on startup.
+ *
+ * Below {@code map.cluster-max-zoom}, devices of a tile are grouped in a grid
+ * of {@code map.tile-grid} cells per side, and each cell is sent as a cluster
+ * with its device count and mean and max CPM. Above it, or for cells with a
+ * single device, devices are sent as is.
+ *
+ * Rendered tiles are kept in a bounded LRU cache for {@code map.tile-ttl} ms,
+ * so that the cost of browsing the map doesn't grow with the number of
+ * clients.
+ *
+ * Devices without a location are remembered in a bounded LRU set, so their
+ * records don't each cost a database lookup. A device is forgotten when it's
+ * refreshed after being updated, and when the reconciliation finds it located.
+ */
+public class MapManager extends AbstractManager {
+	private static final Bson INDEXED_FIELDS = Projections.include("name", "location", "lastRecord");
+	private final int maxZoom, clusterMaxZoom, grid, cacheSize, unlocatedSize;
+	private final long ttl;
+	private final Map<String, Future<MapTile>> cache;
+	/**
+	 * Copies of devices with only what the map needs, replaced rather than
+	 * modified. Both guarded by {@link #indexed}.
+	 */
+	private final Map<ObjectId, Device> indexed = new HashMap<>();
+	private QuadTree<Device> index = new QuadTree<>();
+	/**
+	 * Devices known to have no location, guarded by {@link #indexed}
+	 */
+	private final Set<ObjectId> unlocated;
+
+	public MapManager(final GMCServer srv) {
+		super(srv);
+		this.maxZoom = Math.min(30, Integer.parseInt(this.srv.getConfig().getProperty("map.max-zoom", "20")));
+		this.clusterMaxZoom = Integer.parseInt(this.srv.getConfig().getProperty("map.cluster-max-zoom", "12"));
+		this.grid = Integer.parseInt(this.srv.getConfig().getProperty("map.tile-grid", "8"));
+		this.cacheSize = Integer.parseInt(this.srv.getConfig().getProperty("map.tile-cache.size", "4096"));
+		this.ttl = Long.parseLong(this.srv.getConfig().getProperty("map.tile-ttl", "60000"));
+		this.unlocatedSize = Integer.parseInt(this.srv.getConfig().getProperty("map.unlocated-cache.size", "10000"));
+		this.cache = new LinkedHashMap<String, Future<MapTile>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Future<MapTile>> eldest) {
+				return this.size() > MapManager.this.cacheSize;
+			}
+		};
+		this.unlocated = Collections.newSetFromMap(new LinkedHashMap<ObjectId, Boolean>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<ObjectId, Boolean> eldest) {
+				return this.size() > MapManager.this.unlocatedSize;
+			}
+		});
+
+		this.rebuild(this.findLocatedDevices());
+		final long reconcile = Long.parseLong(this.srv.getConfig().getProperty("map.index.reconcile", "300000"));
+		this.srv.getVertx().setPeriodic(reconcile, id -> this.reconcile());
+
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus().<Record>consumer(StatsManager.ADDRESS_RECORD, msg -> {
+				if (!this.srv.getStatsManager().getNodeId().equals(msg.headers().get("node"))) {
+					this.addRecord(msg.body());
+				}
+			});
+			this.srv.getEventBus().<JsonObject>consumer(CredentialsManager.ADDRESS_INVALIDATE, msg -> {
+				if (msg.body().containsKey("device")) {
+					this.refreshDevice(new ObjectId(msg.body().getString("device")), null);
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return the located devices with a last record in the box, bounds included
+	 */
+	public List<Device> getDevices(final double swlon, final double swlat, final double nelon, final double nelat) {
+		final List<Device> devices = new ArrayList<>();
+		synchronized (this.indexed) {
+			this.index.query(swlon, swlat, nelon, nelat, dev -> {
+				if (dev.getLastRecord() != null) {
+					devices.add(dev);
+				}
+			});
+		}
+		return devices;
+	}
+
+	/**
+	 * Adds or replaces a device in the index
+	 */
+	public void indexDevice(final Device dev) {
+		if (dev.getLocation() == null) {
+			synchronized (this.indexed) {
+				this.unindex(this.indexed.remove(dev.getId()));
+				this.unlocated.add(dev.getId());
+			}
+			return;
+		}
+		final Device copy = MapManager.toIndexed(dev, dev.getLastRecord());
+		synchronized (this.indexed) {
+			this.unlocated.remove(copy.getId());
+			this.unindex(this.indexed.put(copy.getId(), copy));
+			this.index.insert(MapManager.getLon(copy), MapManager.getLat(copy), copy);
+		}
+	}
+
+	public void removeDevice(final ObjectId deviceId) {
+		synchronized (this.indexed) {
+			this.unindex(this.indexed.remove(deviceId));
+			this.unlocated.remove(deviceId);
+		}
+	}
+
+	/**
+	 * Sets the record as its device's last record if it's newer. Devices not
+	 * indexed yet are fetched from the database, unless they're known to have
+	 * no location.
+	 */
+	public void addRecord(final Record rec) {
+		if (!this.applyRecord(rec)) {
+			synchronized (this.indexed) {
+				if (this.unlocated.contains(rec.getDeviceId())) {
+					return;
+				}
+			}
+			this.refreshDevice(rec.getDeviceId(), rec);
+		}
+	}
+
+	/**
+	 * Reads a device from the database into the index, or removes it if it
+	 * doesn't exist anymore. To be called once a device is changed.
+	 *
+	 * @param rec record to apply once the device is indexed, as its snapshot
+	 *            might not be updated yet, or null
+	 */
+	public void refreshDevice(final ObjectId deviceId, final Record rec) {
+		new FindIndexedDeviceAction(this.srv).setDeviceId(deviceId).execute().onSuccess(dev -> {
+			if (dev == null) {
+				this.removeDevice(deviceId);
+				return;
+			}
+			this.indexDevice(dev);
+			if (rec != null) {
+				this.applyRecord(rec);
+			}
+		}).onFailure(t -> this.log.error("Failed to refresh device " + deviceId + " in map index", t));
+	}
+
+	public int getIndexSize() {
+		synchronized (this.indexed) {
+			return this.indexed.size();
+		}
+	}
+
+	/**
+	 * @return false if the device isn't indexed
+	 */
+	private boolean applyRecord(final Record rec) {
+		synchronized (this.indexed) {
+			final Device dev = this.indexed.get(rec.getDeviceId());
+			if (dev == null) {
+				return false;
+			}
+			if (dev.getLastRecord() != null && dev.getLastRecord().getDate().after(rec.getDate())) {
+				return true;
+			}
+			final Device copy = MapManager.toIndexed(dev, DeviceManager.toLastRecordSnapshot(rec));
+			this.unindex(dev);
+			this.indexed.put(copy.getId(), copy);
+			this.index.insert(MapManager.getLon(copy), MapManager.getLat(copy), copy);
+			return true;
+		}
+	}
+
+	private void unindex(final Device dev) {
+		if (dev != null) {
+			this.index.remove(MapManager.getLon(dev), MapManager.getLat(dev), dev);
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the database, in the background
+	 */
+	public Future<Void> reconcile() {
+		return new ReconcileIndexAction(this.srv).execute()
+			.onFailure(t -> this.log.error("Failed to reconcile map index", t));
+	}
+
+	/**
+	 * Replaces the index, keeping last records newer than the database's
+	 */
+	private void rebuild(final List<Device> devices) {
+		final QuadTree<Device> tree = new QuadTree<>();
+		synchronized (this.indexed) {
+			final Map<ObjectId, Device> old = new HashMap<>(this.indexed);
+			this.indexed.clear();
+			for (final Device dev : devices) {
+				this.unlocated.remove(dev.getId());
+				final Device prev = old.get(dev.getId());
+				Record last = dev.getLastRecord();
+				if (prev != null && prev.getLastRecord() != null
+						&& (last == null || prev.getLastRecord().getDate().after(last.getDate()))) {
+					last = prev.getLastRecord();
+				}
+				final Device copy = MapManager.toIndexed(dev, last);
+				this.indexed.put(copy.getId(), copy);
+				tree.insert(MapManager.getLon(copy), MapManager.getLat(copy), copy);
+			}
+			this.index = tree;
+		}
+	}
+
+	/**
+	 * Blocking
+	 */
+	private List<Device> findLocatedDevices() {
+		return this.srv.getDatabaseManager()
+			.getCollection(Device.class)
+			.find(Filters.exists("location"))
+			.projection(MapManager.INDEXED_FIELDS)
+			.into(new ArrayList<>());
+	}
+
+	private static Device toIndexed(final Device dev, final Record lastRecord) {
+		final Device copy = new Device();
+		copy.setId(dev.getId());
+		copy.setName(dev.getName());
+		copy.setLocation(dev.getLocation());
+		copy.setLastRecord(lastRecord);
+		return copy;
+	}
+
+	private static double getLon(final Device dev) {
+		return dev.getLocation().getCoordinates().getValues().get(0);
+	}
+
+	private static double getLat(final Device dev) {
+		return dev.getLocation().getCoordinates().getValues().get(1);
+	}
+
+	/**
+	 * @return the tile, from cache if it isn't expired
+	 */
+	public Future<MapTile> getTile(final int z, final int x, final int y) {
+		if (z < 0 || z > this.maxZoom || x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+			return Future.failedFuture(new IllegalArgumentException("Invalid tile coordinates"));
+		}
+
+		final String key = z + "/" + x + "/" + y;
+		final Promise<MapTile> promise;
+		synchronized (this.cache) {
+			final Future<MapTile> cached = this.cache.get(key);
+			if (cached != null && (!cached.isComplete()
+					|| cached.succeeded() && cached.result().getExpiresAt() > System.currentTimeMillis())) {
+				return cached;
+			}
+			promise = Promise.promise();
+			this.cache.put(key, promise.future());
+		}
+
+		new RenderTileAction(this.srv).setZ(z).setX(x).setY(y).execute().onComplete(res -> {
+			if (res.failed()) {
+				// allow retrying
+				synchronized (this.cache) {
+					this.cache.remove(key, promise.future());
+				}
+			}
+			promise.handle(res);
+		});
+		return promise.future();
+	}
+
+	public int getMaxZoom() {
+		return this.maxZoom;
+	}
+
+	public long getTtl() {
+		return this.ttl;
+	}
+
+	/**
+	 * @return longitude of the west edge of a tile
+	 */
+	public static double tileToLon(final int x, final int z) {
+		return (double) x / (1 << z) * 360 - 180;
+	}
+
+	/**
+	 * @return latitude of the north edge of a tile
+	 */
+	public static double tileToLat(final int y, final int z) {
+		return Math.toDegrees(Math.atan(Math.sinh(Math.PI * (1 - 2d * y / (1 << z)))));
+	}
+
+	/**
+	 * @return position in tile units, along the x axis, at zoom level z
+	 */
+	public static double lonToTile(final double lon, final int z) {
+		return (lon + 180) / 360 * (1 << z);
+	}
+
+	/**
+	 * @return position in tile units, along the y axis, at zoom level z
+	 */
+	public static double latToTile(final double lat, final int z) {
+		final double rad = Math.toRadians(lat);
+		return (1 - Math.log(Math.tan(rad) + 1 / Math.cos(rad)) / Math.PI) / 2 * (1 << z);
+	}
+
+	public static class MapTile {
+		private final Buffer body;
+		private final String etag;
+		private final long expiresAt;
+
+		public MapTile(final Buffer body, final long expiresAt) {
+			this.body = body;
+			this.etag = "\"" + DigestUtils.md5Hex(body.getBytes()) + "\"";
+			this.expiresAt = expiresAt;
+		}
+
+		public Buffer getBody() {
+			return this.body;
+		}
+
+		public String getEtag() {
+			return this.etag;
+		}
+
+		public long getExpiresAt() {
+			return this.expiresAt;
+		}
+	}
+
+	/**
+	 * Renders a tile, without going through the cache.
+	 */
+	public class RenderTileAction extends AbstractAction<MapTile> {
+		private int z, x, y;
+
+		public RenderTileAction(final GMCServer srv) {
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
+		}
+
+		@Override
+		protected void executeSync(final Promise<MapTile> promise) {
+			final List<Device> devices = MapManager.this.getDevices(MapManager.tileToLon(this.x, this.z),
+					MapManager.tileToLat(this.y + 1, this.z),
+					MapManager.tileToLon(this.x + 1, this.z),
+					MapManager.tileToLat(this.y, this.z));
+
+			final JsonArray jsonDevices = new JsonArray();
+			final JsonArray jsonClusters = new JsonArray();
+			if (this.z >= MapManager.this.clusterMaxZoom) {
+				for (final Device dev : devices) {
+					jsonDevices.add(dev.toMapJson());
+				}
+			} else {
+				this.cluster(devices, jsonDevices, jsonClusters);
+			}
+
+			final JsonObject obj = new JsonObject();
+			obj.put("z", this.z);
+			obj.put("x", this.x);
+			obj.put("y", this.y);
+			obj.put("clusters", jsonClusters);
+			obj.put("devices", jsonDevices);
+			promise.complete(new MapTile(obj.toBuffer(), System.currentTimeMillis() + MapManager.this.ttl));
+		}
+
+		private void cluster(final List<Device> devices, final JsonArray jsonDevices, final JsonArray jsonClusters) {
+			final int grid = MapManager.this.grid;
+			final List<List<Device>> cells = new ArrayList<>(grid * grid);
+			for (int i = 0; i < grid * grid; i++) {
+				cells.add(null);
+			}
+
+			for (final Device dev : devices) {
+				final List<Double> coords = dev.getLocation().getCoordinates().getValues();
+				final int cx = this.toCell(MapManager.lonToTile(coords.get(0), this.z) - this.x);
+				final int cy = this.toCell(MapManager.latToTile(coords.get(1), this.z) - this.y);
+				List<Device> cell = cells.get(cy * grid + cx);
+				if (cell == null) {
+					cell = new ArrayList<>();
+					cells.set(cy * grid + cx, cell);
+				}
+				cell.add(dev);
+			}
+
+			for (final List<Device> cell : cells) {
+				if (cell == null) {
+					continue;
+				} else if (cell.size() == 1) {
+					jsonDevices.add(cell.get(0).toMapJson());
+					continue;
+				}
+
+				double lon = 0, lat = 0, sum = 0, max = Double.NaN;
+				int count = 0;
+				for (final Device dev : cell) {
+					final List<Double> coords = dev.getLocation().getCoordinates().getValues();
+					lon += coords.get(0);
+					lat += coords.get(1);
+					final double cpm = dev.getLastRecord().getCpm();
+					if (!Double.isNaN(cpm)) {
+						sum += cpm;
+						max = Double.isNaN(max) ? cpm : Math.max(max, cpm);
+						count++;
+					}
+				}
+
+				final JsonObject obj = new JsonObject();
+				obj.put("location", new JsonArray().add(lon / cell.size()).add(lat / cell.size()));
+				obj.put("count", cell.size());
+				obj.put("meanCpm", count == 0 ? null : sum / count);
+				obj.put("maxCpm", count == 0 ? null : max);
+				jsonClusters.add(obj);
+			}
+		}
+
+		/**
+		 * @param pos position within the tile, from 0 to 1
+		 */
+		private int toCell(final double pos) {
+			return Math.max(0, Math.min(MapManager.this.grid - 1, (int) (pos * MapManager.this.grid)));
+		}
+
+		public int getZ() {
+			return this.z;
+		}
+
+		public RenderTileAction setZ(final int z) {
+			this.z = z;
+			return this;
+		}
+
+		public int getX() {
+			return this.x;
+		}
+
+		public RenderTileAction setX(final int x) {
+			this.x = x;
+			return this;
+		}
+
+		public int getY() {
+			return this.y;
+		}
+
+		public RenderTileAction setY(final int y) {
+			this.y = y;
+			return this;
+		}
+	}
+
+	/**
+	 * Fetches a device with the fields kept in the index, or null if it doesn't
+	 * exist.
+	 */
+	public class FindIndexedDeviceAction extends AbstractAction<Device> {
+		private ObjectId deviceId;
+
+		public FindIndexedDeviceAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Device> promise) {
+			promise.complete(this.srv.getDatabaseManager()
+				.getCollection(Device.class)
+				.find(Filters.eq(this.deviceId))
+				.projection(MapManager.INDEXED_FIELDS)
+				.first());
+		}
+
+		public ObjectId getDeviceId() {
+			return this.deviceId;
+		}
+
+		public FindIndexedDeviceAction setDeviceId(final ObjectId deviceId) {
+			this.deviceId = deviceId;
+			return this;
+		}
+	}
+
+	/**
+	 * Rebuilds the index from the database
+	 */
+	public class ReconcileIndexAction extends AbstractAction<Void> {
+
+		public ReconcileIndexAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Void> promise) {
+			MapManager.this.rebuild(MapManager.this.findLocatedDevices());
+			promise.complete();
+		}
+	}
+}
@@ -80,7 +80,7 @@ public class ProxyManager extends AbstractManager {
 		private JsonObject proxiesSettings;
 
 		private ValidateProxiesSettingsAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
@@ -122,7 +122,7 @@ public class ProxyManager extends AbstractManager {
 		private Record record;
 
 		private ProcessDeviceProxiesAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
@@ -0,0 +1,236 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.types.ObjectId;
+
+import com.mongodb.MongoBulkWriteException;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.WriteModel;
+
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import me.vinceh121.gmcserver.DatabaseManager;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.exceptions.LimitReachedException;
+
+/**
+ * Write-behind queue for records. Records are grouped into a single unordered
+ * {@code insertMany}, flushed once the batch is full or the time window
+ * elapsed, and the devices' last record updates of a batch are
+ * collapsed into one bulk write with one update per device.
+ */
+public class RecordBatcher {
+	private static final Logger LOG = LogManager.getLogger(RecordBatcher.class);
+	private final DatabaseManager db;
+	private final int batchSize, maxQueue;
+	private final Durability durability;
+	private List<PendingRecord> pending = new ArrayList<>();
+	private int inFlight;
+	private Handler<List<Record>> insertedHandler;
+
+	public RecordBatcher(final Vertx vertx, final DatabaseManager db, final int batchSize, final long window,
+			final int maxQueue, final Durability durability) {
+		this.db = db;
+		this.batchSize = batchSize;
+		this.maxQueue = maxQueue;
+		this.durability = durability;
+		vertx.setPeriodic(window, id -> this.flush());
+	}
+
+	/**
+	 * Queues a record for insertion. Depending on the durability mode, the future
+	 * completes once the record is queued or once its batch was written.
+	 *
+	 * Fails with {@code LimitReachedException} if the queue is full.
+	 */
+	public Future<Void> enqueue(final Record record, final Device device) {
+		final PendingRecord p = new PendingRecord(record, device.getId(), Vertx.currentContext());
+		final boolean full;
+		synchronized (this) {
+			if (this.pending.size() + this.inFlight >= this.maxQueue) {
+				return Future.failedFuture(new LimitReachedException("Record queue is full"));
+			}
+			this.pending.add(p);
+			full = this.pending.size() >= this.batchSize;
+		}
+
+		if (full) {
+			this.flush();
+		}
+
+		if (this.durability == Durability.ENQUEUE) {
+			return Future.succeededFuture();
+		} else {
+			return p.promise.future();
+		}
+	}
+
+	public void flush() {
+		final List<PendingRecord> batch;
+		synchronized (this) {
+			if (this.pending.isEmpty()) {
+				return;
+			}
+			batch = this.pending;
+			this.pending = new ArrayList<>(this.batchSize);
+			this.inFlight += batch.size();
+		}
+
+		final List<Record> records = new ArrayList<>(batch.size());
+		for (final PendingRecord p : batch) {
+			records.add(p.record);
+		}
+
+		this.db.first(this.db.getAsyncCollection(Record.class)
+			.insertMany(records, new InsertManyOptions().ordered(false))).onComplete(res -> {
+				final boolean[] failed = new boolean[batch.size()];
+				if (res.failed() && res.cause() instanceof MongoBulkWriteException) {
+					final MongoBulkWriteException e = (MongoBulkWriteException) res.cause();
+					LOG.error("Failed to insert {} out of {} records", e.getWriteErrors().size(), batch.size());
+					for (final BulkWriteError err : e.getWriteErrors()) {
+						failed[err.getIndex()] = true;
+						batch.get(err.getIndex()).fail(new IllegalStateException(err.getMessage()));
+					}
+				} else if (res.failed()) {
+					LOG.error("Failed to insert batch of records", res.cause());
+					for (final PendingRecord p : batch) {
+						p.fail(res.cause());
+					}
+					this.release(batch.size());
+					return;
+				}
+
+				final List<Record> inserted = new ArrayList<>(records.size());
+				// the newest record of each device, as older ones would be skipped by
+				// the last record filter
+				final Map<ObjectId, Record> lastRecords = new HashMap<>();
+				for (int i = 0; i < batch.size(); i++) {
+					if (!failed[i]) {
+						inserted.add(records.get(i));
+						lastRecords.merge(batch.get(i).deviceId,
+								records.get(i),
+								(a, b) -> a.getDate().after(b.getDate()) ? a : b);
+					}
+				}
+
+				if (this.insertedHandler != null) {
+					this.insertedHandler.handle(inserted);
+				}
+
+				if (lastRecords.isEmpty()) {
+					this.release(batch.size());
+					return;
+				}
+
+				final List<WriteModel<Device>> updates = new ArrayList<>(lastRecords.size());
+				for (final Map.Entry<ObjectId, Record> e : lastRecords.entrySet()) {
+					updates.add(new UpdateOneModel<>(DeviceManager.lastRecordFilter(e.getKey(), e.getValue()),
+							DeviceManager.lastRecordUpdate(e.getValue())));
+				}
+
+				this.db.first(this.db.getAsyncCollection(Device.class)
+					.bulkWrite(updates, new BulkWriteOptions().ordered(false))).onComplete(upRes -> {
+						if (upRes.failed()) {
+							LOG.error("Failed to update last records of devices", upRes.cause());
+						}
+						for (int i = 0; i < batch.size(); i++) {
+							if (!failed[i]) {
+								batch.get(i).complete();
+							}
+						}
+						this.release(batch.size());
+					});
+			});
+	}
+
+	private synchronized void release(final int count) {
+		this.inFlight -= count;
+	}
+
+	public synchronized int getQueued() {
+		return this.pending.size() + this.inFlight;
+	}
+
+	/**
+	 * @param insertedHandler called with the records of a batch that were
+	 *                        successfully inserted
+	 */
+	public void setInsertedHandler(final Handler<List<Record>> insertedHandler) {
+		this.insertedHandler = insertedHandler;
+	}
+
+	public Durability getDurability() {
+		return this.durability;
+	}
+
+	public enum Durability {
+		/**
+		 * Acknowledge records as soon as they are queued, a crash loses queued
+		 * records
+		 */
+		ENQUEUE,
+		/**
+		 * Acknowledge records once their batch has been written
+		 */
+		FLUSH;
+	}
+
+	private static class PendingRecord {
+		private final Record record;
+		private final ObjectId deviceId;
+		private final Context context;
+		private final Promise<Void> promise = Promise.promise();
+
+		private PendingRecord(final Record record, final ObjectId deviceId, final Context context) {
+			this.record = record;
+			this.deviceId = deviceId;
+			this.context = context;
+		}
+
+		private void complete() {
+			if (this.context == null) {
+				this.promise.tryComplete();
+			} else {
+				this.context.runOnContext(v -> this.promise.tryComplete());
+			}
+		}
+
+		private void fail(final Throwable t) {
+			if (this.context == null) {
+				this.promise.tryFail(t);
+			} else {
+				this.context.runOnContext(v -> this.promise.tryFail(t));
+			}
+		}
+	}
+}
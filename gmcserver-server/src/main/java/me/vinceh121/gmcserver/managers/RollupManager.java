@@ -0,0 +1,421 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.Accumulators;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.BsonField;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.Sorts;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.WriteModel;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import me.vinceh121.gmcserver.DatabaseManager;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.actions.AbstractAction;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.DeviceCalendar;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RecordRollup;
+import me.vinceh121.gmcserver.entities.RollupField;
+
+/**
+ * Maintains hourly and daily pre-aggregated buckets of records, so that long
+ * ranges can be read without scanning raw records. Hourly buckets back stats
+ * over date ranges and alert windows, daily buckets back all-time stats and
+ * calendars.
+ *
+ * Buckets are aligned on UTC and updated incrementally as records are inserted.
+ * Existing records can be rolled up with {@link BackfillRollupsAction}.
+ */
+public class RollupManager extends AbstractManager {
+	public static final String GRANULARITY_HOUR = "hour", GRANULARITY_DAY = "day";
+	public static final Collection<String> GRANULARITIES = Arrays.asList(GRANULARITY_HOUR, GRANULARITY_DAY);
+	private static final int BACKFILL_BATCH_SIZE = 1000;
+
+	public RollupManager(final GMCServer srv) {
+		super(srv);
+	}
+
+	public static long getBucketSize(final String granularity) {
+		switch (granularity) {
+		case GRANULARITY_HOUR:
+			return 60 * 60 * 1000;
+		case GRANULARITY_DAY:
+			return 24 * 60 * 60 * 1000;
+		default:
+			throw new IllegalArgumentException("Unknown granularity: " + granularity);
+		}
+	}
+
+	public static Date getBucketStart(final String granularity, final Date date) {
+		final long time = date.getTime();
+		return new Date(time - Math.floorMod(time, RollupManager.getBucketSize(granularity)));
+	}
+
+	/**
+	 * Adds records to their buckets. Records falling in the same bucket are merged
+	 * client-side so that each bucket is written once.
+	 */
+	public Future<Void> addRecords(final Collection<Record> records) {
+		final Map<BucketKey, Map<String, RollupField>> buckets = new HashMap<>();
+		for (final Record rec : records) {
+			if (rec.getDate() == null || rec.getDeviceId() == null) {
+				continue;
+			}
+			for (final String granularity : RollupManager.GRANULARITIES) {
+				final Map<String, RollupField> fields = buckets.computeIfAbsent(
+						new BucketKey(rec.getDeviceId(), granularity, RollupManager.getBucketStart(granularity, rec.getDate())),
+						k -> new HashMap<>());
+				for (final String field : Record.STAT_FIELDS) {
+					final double value = rec.getStatField(field);
+					if (!Double.isNaN(value)) {
+						fields.computeIfAbsent(field, f -> new RollupField()).add(value);
+					}
+				}
+			}
+		}
+
+		final List<WriteModel<RecordRollup>> writes = new ArrayList<>(buckets.size());
+		for (final Map.Entry<BucketKey, Map<String, RollupField>> e : buckets.entrySet()) {
+			if (e.getValue().isEmpty()) {
+				continue;
+			}
+			final List<Bson> updates = new ArrayList<>();
+			for (final Map.Entry<String, RollupField> f : e.getValue().entrySet()) {
+				final String prefix = "fields." + f.getKey() + ".";
+				final RollupField val = f.getValue();
+				updates.add(Updates.inc(prefix + "count", val.getCount()));
+				updates.add(Updates.inc(prefix + "sum", val.getSum()));
+				updates.add(Updates.inc(prefix + "sumsq", val.getSumsq()));
+				updates.add(Updates.min(prefix + "min", val.getMin()));
+				updates.add(Updates.max(prefix + "max", val.getMax()));
+			}
+			writes.add(new UpdateOneModel<>(e.getKey().toFilter(),
+					Updates.combine(updates),
+					new UpdateOptions().upsert(true)));
+		}
+
+		if (writes.isEmpty()) {
+			return Future.succeededFuture();
+		}
+
+		final DatabaseManager db = this.srv.getDatabaseManager();
+		return db
+			.first(db.getAsyncCollection(RecordRollup.class).bulkWrite(writes, new BulkWriteOptions().ordered(false)))
+			.<Void>mapEmpty()
+			.onFailure(t -> this.log.error("Failed to update rollups", t));
+	}
+
+	public BackfillRollupsAction backfillRollups() {
+		return new BackfillRollupsAction(this.srv);
+	}
+
+	public GetRollupsAction getRollups() {
+		return new GetRollupsAction(this.srv);
+	}
+
+	/**
+	 * Recomputes rollups from raw records, for a device or for all devices if none
+	 * is set, or only for devices that have records but no rollups. Buckets are
+	 * overwritten, so this is safe to run several times, but records inserted
+	 * while a device is being backfilled may be missed from its latest bucket.
+	 *
+	 * Once a device is backfilled, its statistics are loaded again and its
+	 * calendar is recalculated from scratch.
+	 *
+	 * Returns the number of buckets written.
+	 */
+	public class BackfillRollupsAction extends AbstractAction<Long> {
+		private ObjectId deviceId;
+		private boolean missingOnly;
+
+		public BackfillRollupsAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<Long> promise) {
+			final List<ObjectId> devices = new ArrayList<>();
+			if (this.deviceId != null) {
+				devices.add(this.deviceId);
+			} else {
+				for (final Device dev : this.srv.getDatabaseManager()
+					.getCollection(Device.class)
+					.find(this.missingOnly ? Filters.exists("lastRecordId") : new Document())
+					.projection(Projections.include("_id"))) {
+					if (this.missingOnly && this.srv.getDatabaseManager()
+						.getCollection(RecordRollup.class)
+						.find(Filters.eq("deviceId", dev.getId()))
+						.first() != null) {
+						continue;
+					}
+					devices.add(dev.getId());
+				}
+			}
+
+			long written = 0;
+			for (final ObjectId dev : devices) {
+				for (final String granularity : RollupManager.GRANULARITIES) {
+					written += this.backfill(dev, granularity);
+				}
+				this.srv.getStatsManager().invalidateDevice(dev);
+				this.recalculateCalendar(dev);
+			}
+			if (!devices.isEmpty()) {
+				RollupManager.this.log.info("Backfilled {} rollup buckets for {} devices", written, devices.size());
+			}
+			promise.complete(written);
+		}
+
+		/**
+		 * Calendars are otherwise only refreshed from their last day
+		 */
+		private void recalculateCalendar(final ObjectId dev) {
+			final DeviceCalendar cal = this.srv.getDatabaseManager()
+				.getCollection(DeviceCalendar.class)
+				.find(Filters.eq("deviceId", dev))
+				.first();
+			if (cal != null) {
+				this.srv.getDeviceCalendarManager()
+					.calculateCalendar()
+					.setDeviceId(dev)
+					.setCalendar(cal)
+					.setFull(true)
+					.execute();
+			}
+		}
+
+		private long backfill(final ObjectId dev, final String granularity) {
+			final long size = RollupManager.getBucketSize(granularity);
+			final Document bucketExpr = new Document("$subtract",
+					Arrays.asList(new Document("$toLong", "$date"),
+							new Document("$mod", Arrays.asList(new Document("$toLong", "$date"), size))));
+
+			final List<BsonField> accs = new ArrayList<>();
+			for (final String field : Record.STAT_FIELDS) {
+				final String ref = "$" + field;
+				// NaN values aren't stored, so missing fields mustn't be counted
+				accs.add(Accumulators.sum(field + "_count",
+						new Document("$cond",
+								Arrays.asList(new Document("$eq", Arrays.asList(new Document("$type", ref), "missing")),
+										0,
+										1))));
+				accs.add(Accumulators.sum(field + "_sum", ref));
+				accs.add(Accumulators.sum(field + "_sumsq", new Document("$multiply", Arrays.asList(ref, ref))));
+				accs.add(Accumulators.min(field + "_min", ref));
+				accs.add(Accumulators.max(field + "_max", ref));
+			}
+
+			long written = 0;
+			final List<WriteModel<RecordRollup>> writes = new ArrayList<>(RollupManager.BACKFILL_BATCH_SIZE);
+			for (final Document doc : this.srv.getDatabaseManager()
+				.getCollection(Record.class)
+				.aggregate(Arrays.asList(Aggregates.match(Filters.eq("deviceId", dev)),
+						Aggregates.group(bucketExpr, accs)), Document.class)
+				.allowDiskUse(true)) {
+				final RecordRollup rollup = new RecordRollup();
+				rollup.setStart(new Date(((Number) doc.get("_id")).longValue()));
+				for (final String field : Record.STAT_FIELDS) {
+					final long count = doc.get(field + "_count", Number.class).longValue();
+					if (count == 0) {
+						continue;
+					}
+					final RollupField val = new RollupField();
+					val.setCount(count);
+					val.setSum(doc.get(field + "_sum", Number.class).doubleValue());
+					val.setSumsq(doc.get(field + "_sumsq", Number.class).doubleValue());
+					val.setMin(doc.get(field + "_min", Number.class).doubleValue());
+					val.setMax(doc.get(field + "_max", Number.class).doubleValue());
+					rollup.getFields().put(field, val);
+				}
+				final BucketKey key = new BucketKey(dev, granularity, rollup.getStart());
+				// not a replace, as it would try to change the ID of existing buckets
+				writes.add(new UpdateOneModel<>(key.toFilter(),
+						Updates.set("fields", rollup.getFields()),
+						new UpdateOptions().upsert(true)));
+
+				if (writes.size() >= RollupManager.BACKFILL_BATCH_SIZE) {
+					written += this.flush(writes);
+				}
+			}
+			written += this.flush(writes);
+			return written;
+		}
+
+		private int flush(final List<WriteModel<RecordRollup>> writes) {
+			if (writes.isEmpty()) {
+				return 0;
+			}
+			final int size = writes.size();
+			this.srv.getDatabaseManager()
+				.getCollection(RecordRollup.class)
+				.bulkWrite(writes, new BulkWriteOptions().ordered(false));
+			writes.clear();
+			return size;
+		}
+
+		public ObjectId getDeviceId() {
+			return this.deviceId;
+		}
+
+		public BackfillRollupsAction setDeviceId(final ObjectId deviceId) {
+			this.deviceId = deviceId;
+			return this;
+		}
+
+		public boolean isMissingOnly() {
+			return this.missingOnly;
+		}
+
+		/**
+		 * @param missingOnly only backfill devices that have records but no rollups,
+		 *                    if no device is set
+		 */
+		public BackfillRollupsAction setMissingOnly(final boolean missingOnly) {
+			this.missingOnly = missingOnly;
+			return this;
+		}
+	}
+
+	/**
+	 * Fetches a device's rollup buckets that start within the given range, sorted
+	 * by date.
+	 */
+	public class GetRollupsAction extends AbstractAction<List<RecordRollup>> {
+		private ObjectId deviceId;
+		private String granularity = RollupManager.GRANULARITY_HOUR;
+		private Date start, end;
+
+		public GetRollupsAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<List<RecordRollup>> promise) {
+			final List<Bson> filters = new ArrayList<>(4);
+			filters.add(Filters.eq("deviceId", this.deviceId));
+			filters.add(Filters.eq("granularity", this.granularity));
+			if (this.start != null) {
+				filters.add(Filters.gte("start", RollupManager.getBucketStart(this.granularity, this.start)));
+			}
+			if (this.end != null) {
+				filters.add(Filters.lte("start", this.end));
+			}
+
+			final List<RecordRollup> rollups = new ArrayList<>();
+			this.srv.getDatabaseManager()
+				.getCollection(RecordRollup.class)
+				.find(Filters.and(filters))
+				.sort(Sorts.ascending("start"))
+				.into(rollups);
+			promise.complete(rollups);
+		}
+
+		public ObjectId getDeviceId() {
+			return this.deviceId;
+		}
+
+		public GetRollupsAction setDeviceId(final ObjectId deviceId) {
+			this.deviceId = deviceId;
+			return this;
+		}
+
+		public String getGranularity() {
+			return this.granularity;
+		}
+
+		public GetRollupsAction setGranularity(final String granularity) {
+			this.granularity = granularity;
+			return this;
+		}
+
+		public Date getStart() {
+			return this.start;
+		}
+
+		public GetRollupsAction setStart(final Date start) {
+			this.start = start;
+			return this;
+		}
+
+		public Date getEnd() {
+			return this.end;
+		}
+
+		public GetRollupsAction setEnd(final Date end) {
+			this.end = end;
+			return this;
+		}
+	}
+
+	private static class BucketKey {
+		private final ObjectId deviceId;
+		private final String granularity;
+		private final Date start;
+
+		private BucketKey(final ObjectId deviceId, final String granularity, final Date start) {
+			this.deviceId = deviceId;
+			this.granularity = granularity;
+			this.start = start;
+		}
+
+		private Bson toFilter() {
+			return Filters.and(Filters.eq("deviceId", this.deviceId),
+					Filters.eq("granularity", this.granularity),
+					Filters.eq("start", this.start));
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(this.deviceId, this.granularity, this.start);
+		}
+
+		@Override
+		public boolean equals(final Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof BucketKey)) {
+				return false;
+			}
+			final BucketKey other = (BucketKey) obj;
+			return Objects.equals(this.deviceId, other.deviceId) && Objects.equals(this.granularity, other.granularity)
+					&& Objects.equals(this.start, other.start);
+		}
+	}
+}
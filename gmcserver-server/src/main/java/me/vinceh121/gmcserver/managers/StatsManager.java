@@ -0,0 +1,280 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.managers;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.Filters;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.eventbus.DeliveryOptions;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.actions.AbstractAction;
+import me.vinceh121.gmcserver.entities.DeviceRollingStats;
+import me.vinceh121.gmcserver.entities.DeviceStats;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RecordRollup;
+import me.vinceh121.gmcserver.entities.RollupField;
+
+/**
+ * Running statistics of recently used devices, kept in memory.
+ *
+ * Statistics are loaded from the device's rollups, which are the persisted
+ * state, and records are added once their rollups were updated. Records come
+ * with the times their rollup write started and ended, which tells if a load
+ * counted them: records written before a load started were counted and are
+ * skipped, records written after it ended are added. A record whose write
+ * overlaps a load makes it load again, or drops the statistics if it already
+ * ended, as the load may or may not have counted it. Times of records from
+ * other nodes are compared as is, so clocks must be synchronized. The least
+ * recently used devices
+ * are evicted once {@code stats.max-devices} is reached. Statistics of devices
+ * that got records in bulk are dropped instead, to be loaded again from the
+ * rollups.
+ *
+ * When clustered, records inserted by other nodes are added to the
+ * statistics loaded on this node, and drops apply to every node.
+ */
+public class StatsManager extends AbstractManager {
+	public static final String ADDRESS_RECORD = "me.vinceh121.gmcserver.STATS_RECORD";
+	public static final String ADDRESS_INVALIDATE = "me.vinceh121.gmcserver.STATS_INVALIDATE";
+	private final String nodeId = UUID.randomUUID().toString();
+	private final Map<ObjectId, LoadedStats> stats;
+	private final long window;
+
+	public StatsManager(final GMCServer srv) {
+		super(srv);
+		this.window = Long.parseLong(this.srv.getConfig().getProperty("stats.window", "86400000"));
+		final int maxDevices = Integer.parseInt(this.srv.getConfig().getProperty("stats.max-devices", "10000"));
+		this.stats = new LinkedHashMap<>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<ObjectId, LoadedStats> eldest) {
+				return this.size() > maxDevices;
+			}
+		};
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus().<Record>consumer(StatsManager.ADDRESS_RECORD, msg -> {
+				if (!this.nodeId.equals(msg.headers().get("node"))) {
+					this.apply(msg.body(),
+							Long.parseLong(msg.headers().get("writeStart")),
+							Long.parseLong(msg.headers().get("writeEnd")));
+				}
+			});
+			this.srv.getEventBus()
+				.<String>consumer(StatsManager.ADDRESS_INVALIDATE,
+						msg -> this.removeDevice(new ObjectId(msg.body())));
+		}
+	}
+
+	public Future<DeviceRollingStats> getStats(final ObjectId deviceId) {
+		final LoadedStats loaded;
+		synchronized (this.stats) {
+			final LoadedStats existing = this.stats.get(deviceId);
+			if (existing != null) {
+				return existing.promise.future();
+			}
+			loaded = new LoadedStats();
+			this.stats.put(deviceId, loaded);
+		}
+		this.load(deviceId, loaded);
+		return loaded.promise.future();
+	}
+
+	private void load(final ObjectId deviceId, final LoadedStats loaded) {
+		synchronized (this.stats) {
+			loaded.loadStart = System.currentTimeMillis();
+		}
+		this.loadStats().setDeviceId(deviceId).execute().onSuccess(s -> {
+			synchronized (this.stats) {
+				if (loaded.changed) {
+					loaded.changed = false;
+					this.load(deviceId, loaded);
+					return;
+				}
+				loaded.loadEnd = System.currentTimeMillis();
+				loaded.result = s;
+			}
+			loaded.promise.complete(s);
+		}).onFailure(t -> {
+			// allow retrying
+			synchronized (this.stats) {
+				this.stats.remove(deviceId, loaded);
+			}
+			loaded.promise.fail(t);
+		});
+	}
+
+	/**
+	 * Adds an inserted record to its device's statistics if they're loaded and
+	 * didn't count it yet. Must be called once the record's rollups are updated.
+	 *
+	 * @param writeStart time in ms at which the rollup write started
+	 * @param writeEnd   time in ms at which the rollup write ended, or later
+	 */
+	public void addRecord(final Record rec, final long writeStart, final long writeEnd) {
+		this.apply(rec, writeStart, writeEnd);
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus()
+				.publish(StatsManager.ADDRESS_RECORD,
+						rec,
+						new DeliveryOptions().addHeader("node", this.nodeId)
+							.addHeader("writeStart", String.valueOf(writeStart))
+							.addHeader("writeEnd", String.valueOf(writeEnd)));
+		}
+	}
+
+	private void apply(final Record rec, final long writeStart, final long writeEnd) {
+		final DeviceRollingStats stats;
+		synchronized (this.stats) {
+			final LoadedStats loaded = this.stats.get(rec.getDeviceId());
+			if (loaded == null || loaded.loadStart > writeEnd) {
+				// not loaded, or loaded after the write
+				return;
+			}
+			if (loaded.result == null) {
+				// still loading, the load may or may not count the record
+				loaded.changed = true;
+				return;
+			}
+			if (loaded.loadEnd >= writeStart) {
+				// loaded while writing
+				this.stats.remove(rec.getDeviceId(), loaded);
+				return;
+			}
+			stats = loaded.result;
+		}
+		stats.add(rec, this.window);
+	}
+
+	/**
+	 * @return ID of this node in the {@code node} header of records published on
+	 *         {@link #ADDRESS_RECORD}
+	 */
+	public String getNodeId() {
+		return this.nodeId;
+	}
+
+	/**
+	 * Forgets a device's statistics
+	 */
+	public void removeDevice(final ObjectId deviceId) {
+		synchronized (this.stats) {
+			this.stats.remove(deviceId);
+		}
+	}
+
+	/**
+	 * Drops the device's statistics on every node, so that they're loaded again
+	 * from its rollups. Must be called once the rollups are updated.
+	 */
+	public void invalidateDevice(final ObjectId deviceId) {
+		this.removeDevice(deviceId);
+		if (this.srv.getVertx().isClustered()) {
+			this.srv.getEventBus().publish(StatsManager.ADDRESS_INVALIDATE, deviceId.toHexString());
+		}
+	}
+
+	/**
+	 * @return start of the sliding window, as a timestamp
+	 */
+	public long getWindowStart() {
+		return System.currentTimeMillis() - this.window;
+	}
+
+	public static DeviceStats toDeviceStats(final RollupField acc, final ObjectId deviceId, final String field) {
+		final DeviceStats stats = new DeviceStats();
+		stats.setDevice(deviceId);
+		stats.setField(field);
+		stats.setAvg(acc.getAvg());
+		stats.setMin(acc.getMin());
+		stats.setMax(acc.getMax());
+		stats.setStdDev(acc.getStdDev());
+		stats.setSampleSize((int) Math.min(Integer.MAX_VALUE, acc.getCount()));
+		return stats;
+	}
+
+	public LoadStatsAction loadStats() {
+		return new LoadStatsAction(this.srv);
+	}
+
+	/**
+	 * Computes a device's statistics from its daily rollups for the all-time
+	 * totals, and its hourly rollups for the window.
+	 */
+	public class LoadStatsAction extends AbstractAction<DeviceRollingStats> {
+		private ObjectId deviceId;
+
+		public LoadStatsAction(final GMCServer srv) {
+			super(srv);
+		}
+
+		@Override
+		protected void executeSync(final Promise<DeviceRollingStats> promise) {
+			final DeviceRollingStats stats = new DeviceRollingStats();
+			for (final RecordRollup r : this.srv.getDatabaseManager()
+				.getCollection(RecordRollup.class)
+				.find(Filters.and(Filters.eq("deviceId", this.deviceId),
+						Filters.eq("granularity", RollupManager.GRANULARITY_DAY)))) {
+				stats.addDailyRollup(r);
+			}
+
+			for (final RecordRollup r : this.srv.getDatabaseManager()
+				.getCollection(RecordRollup.class)
+				.find(Filters.and(Filters.eq("deviceId", this.deviceId),
+						Filters.eq("granularity", RollupManager.GRANULARITY_HOUR),
+						Filters.gte("start", new Date(StatsManager.this.getWindowStart()))))) {
+				stats.addHourlyRollup(r);
+			}
+
+			promise.complete(stats);
+		}
+
+		public ObjectId getDeviceId() {
+			return this.deviceId;
+		}
+
+		public LoadStatsAction setDeviceId(final ObjectId deviceId) {
+			this.deviceId = deviceId;
+			return this;
+		}
+	}
+
+	private static class LoadedStats {
+		private final Promise<DeviceRollingStats> promise = Promise.promise();
+		/**
+		 * Whether records were added while loading
+		 */
+		private boolean changed;
+		/**
+		 * Times in ms at which the last load started and ended
+		 */
+		private long loadStart, loadEnd;
+		/**
+		 * Set once loaded
+		 */
+		private DeviceRollingStats result;
+	}
+}
@@ -160,6 +160,10 @@ public class UserManager extends AbstractManager {
 			return this;
 		}
 
+		/**
+		 * Stays on the blocking driver: tokenize's validateToken takes a synchronous
+		 * account fetcher, which is why this action runs on a worker pool.
+		 */
 		private IAccount fetchAccount(final String id) {
 			return this.srv.getDatabaseManager().getCollection(User.class).find(Filters.eq(new ObjectId(id))).first();
 		}
@@ -174,7 +178,7 @@ public class UserManager extends AbstractManager {
 		private boolean mfaPass;
 
 		public GenerateTokenAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
@@ -398,6 +402,7 @@ public class UserManager extends AbstractManager {
 			this.srv.getDatabaseManager()
 				.getCollection(User.class)
 				.updateOne(Filters.eq(this.user.getId()), Updates.combine(updates));
+			this.srv.getCredentialsManager().invalidateUser(this.user.getId());
 			promise.complete();
 		}
 
@@ -502,6 +507,7 @@ public class UserManager extends AbstractManager {
 
 			CompositeFuture.all(deletes).onSuccess(fut -> {
 				this.srv.getDatabaseManager().getCollection(User.class).deleteOne(Filters.eq(this.user.getId()));
+				this.srv.getCredentialsManager().invalidateUser(this.user.getId());
 				promise.complete();
 			}).onFailure(promise::fail);
 		}
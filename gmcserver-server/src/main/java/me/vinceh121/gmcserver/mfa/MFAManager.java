@@ -39,6 +39,7 @@ import me.vinceh121.gmcserver.actions.AbstractAction;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.exceptions.AuthenticationException;
 import me.vinceh121.gmcserver.managers.AbstractManager;
+import me.vinceh121.gmcserver.managers.ExecutorManager;
 
 public class MFAManager extends AbstractManager {
 	private final TimeBasedOneTimePasswordGenerator generator;
@@ -98,7 +99,10 @@ public class MFAManager extends AbstractManager {
 		return matches;
 	}
 
-	public MFAKey generateKey() {
+	/**
+	 * Synchronized as {@code KeyGenerator} isn't thread safe
+	 */
+	public synchronized MFAKey generateKey() {
 		final SecretKey key = this.keyGen.generateKey();
 		final MFAKey mfa = new MFAKey();
 		mfa.setAlgorithm(this.algorithm);
@@ -199,7 +203,7 @@ public class MFAManager extends AbstractManager {
 		private int pass;
 
 		private VerifyCodeAction(final GMCServer srv) {
-			super(srv);
+			super(srv, ExecutorManager.POLICY_EVENT_LOOP);
 		}
 
 		@Override
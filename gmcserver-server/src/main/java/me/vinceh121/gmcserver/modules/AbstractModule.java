@@ -27,13 +27,16 @@ import io.vertx.ext.web.Route;
 import io.vertx.ext.web.Router;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 
 public abstract class AbstractModule {
 	protected final GMCServer srv;
+	protected final HttpVerticle verticle;
 	protected final Logger log;
 
-	public AbstractModule(final GMCServer srv) {
+	public AbstractModule(final GMCServer srv, final HttpVerticle verticle) {
 		this.srv = srv;
+		this.verticle = verticle;
 		this.log = LogManager.getLogger(this.getClass());
 	}
 
@@ -47,8 +50,28 @@ public abstract class AbstractModule {
 		return this.registerRoute(method, path, this.srv.getAuthHandler()).handler(handler);
 	}
 
+	/**
+	 * Registers a route for authenticated requests without the body handler, for
+	 * handlers that read the body as a stream. The request is paused until the
+	 * handler is reached.
+	 */
+	protected Route registerStrictAuthedStreamRoute(final HttpMethod method, final String path,
+			final Handler<RoutingContext> handler) {
+		return this.verticle.getApiRouter()
+			.route(method, path)
+			.handler(ctx -> {
+				ctx.request().pause();
+				ctx.next();
+			})
+			.handler(this.srv.getAuthHandler())
+			.handler(this.srv.getStrictAuthHandler())
+			.handler(this.srv.getApiHandler())
+			.handler(handler)
+			.enable();
+	}
+
 	protected Route registerRoute(final HttpMethod method, final String path, final Handler<RoutingContext> handler) {
-		return this.registerRoute(this.srv.getApiRouter(), method, path, handler);
+		return this.registerRoute(this.verticle.getApiRouter(), method, path, handler);
 	}
 
 	protected Route registerRoute(final Router router, final HttpMethod method, final String path,
@@ -22,15 +22,84 @@ import org.bson.types.ObjectId;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.handlers.AuthHandler;
 import me.vinceh121.gmcserver.managers.email.Email;
 
 public class AdminModule extends AbstractModule {
 
-	public AdminModule(final GMCServer srv) {
-		super(srv);
+	public AdminModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.registerStrictAuthedRoute(HttpMethod.GET, "/admin/testmail/:to/:template", this::handleTestEmail);
+		this.registerStrictAuthedRoute(HttpMethod.GET, "/admin/executors", this::handleExecutors);
+		this.registerStrictAuthedRoute(HttpMethod.GET, "/admin/credentials-cache", this::handleCredentialsCache);
+		this.registerStrictAuthedRoute(HttpMethod.POST, "/admin/rollups/backfill", this::handleBackfillRollups);
+		this.registerStrictAuthedRoute(HttpMethod.POST,
+				"/admin/devices/backfill-last-records",
+				this::handleBackfillLastRecords);
+	}
+
+	private void handleBackfillLastRecords(final RoutingContext ctx) {
+		final User self = ctx.get(AuthHandler.USER_KEY);
+		if (!self.isAdmin()) {
+			this.error(ctx, 403, "You're not an admin");
+			return;
+		}
+
+		this.srv.getDeviceManager()
+			.backfillLastRecords()
+			.execute()
+			.onSuccess(count -> this.log.info("Backfilled last record of {} devices", count))
+			.onFailure(t -> this.log.error("Failed to backfill last records", t));
+		ctx.response().setStatusCode(202).end();
+	}
+
+	private void handleBackfillRollups(final RoutingContext ctx) {
+		final User self = ctx.get(AuthHandler.USER_KEY);
+		if (!self.isAdmin()) {
+			this.error(ctx, 403, "You're not an admin");
+			return;
+		}
+
+		final ObjectId deviceId;
+		if (ctx.request().params().contains("deviceId")) {
+			try {
+				deviceId = new ObjectId(ctx.request().getParam("deviceId"));
+			} catch (final IllegalArgumentException e) {
+				this.error(ctx, 400, "Invalid device ID");
+				return;
+			}
+		} else {
+			deviceId = null;
+		}
+
+		this.srv.getRollupManager()
+			.backfillRollups()
+			.setDeviceId(deviceId)
+			.execute()
+			.onFailure(t -> this.log.error("Failed to backfill rollups", t));
+		ctx.response().setStatusCode(202).end();
+	}
+
+	private void handleCredentialsCache(final RoutingContext ctx) {
+		final User self = ctx.get(AuthHandler.USER_KEY);
+		if (!self.isAdmin()) {
+			this.error(ctx, 403, "You're not an admin");
+			return;
+		}
+
+		ctx.response().end(this.srv.getCredentialsManager().toJson().toBuffer());
+	}
+
+	private void handleExecutors(final RoutingContext ctx) {
+		final User self = ctx.get(AuthHandler.USER_KEY);
+		if (!self.isAdmin()) {
+			this.error(ctx, 403, "You're not an admin");
+			return;
+		}
+
+		ctx.response().end(this.srv.getExecutorManager().toJson().toBuffer());
 	}
 
 	private void handleTestEmail(final RoutingContext ctx) {
@@ -22,6 +22,7 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.codec.BodyCodec;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.exceptions.AuthenticationException;
 import me.vinceh121.gmcserver.exceptions.EntityNotFoundException;
@@ -34,8 +35,8 @@ import xyz.bowser65.tokenize.Token;
 public class AuthModule extends AbstractModule {
 	private final boolean captchaEnabled;
 
-	public AuthModule(final GMCServer srv) {
-		super(srv);
+	public AuthModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.captchaEnabled = Boolean.parseBoolean(this.srv.getConfig().getProperty("captcha.enabled"));
 		this.registerRoute(HttpMethod.POST, "/auth/register", this::handleRegister);
 		this.registerRoute(HttpMethod.POST, "/auth/login", this::handleLogin);
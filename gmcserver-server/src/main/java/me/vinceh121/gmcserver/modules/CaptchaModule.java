@@ -22,12 +22,13 @@ import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import io.vertx.ext.web.codec.BodyCodec;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 
 public class CaptchaModule extends AbstractModule {
 	private final String captchaUrl, inputType, level, media, size;
 
-	public CaptchaModule(final GMCServer srv) {
-		super(srv);
+	public CaptchaModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.captchaUrl = this.srv.getConfig().getProperty("captcha.url");
 		this.inputType = this.srv.getConfig().getProperty("captcha.input-type");
 		this.level = this.srv.getConfig().getProperty("captcha.level");
@@ -20,39 +20,71 @@ package me.vinceh121.gmcserver.modules;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Function;
 
 import org.bson.types.ObjectId;
 
-import com.mongodb.client.MongoCursor;
 import com.mongodb.client.model.geojson.Point;
 import com.mongodb.client.model.geojson.Position;
+import com.mongodb.reactivestreams.client.FindPublisher;
 
-import io.vertx.core.eventbus.MessageConsumer;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Promise;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
 import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.DecodeException;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
+import me.vinceh121.gmcserver.PublisherReadStream;
+import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.RecordRollup;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.exceptions.EntityNotFoundException;
 import me.vinceh121.gmcserver.exceptions.LimitReachedException;
 import me.vinceh121.gmcserver.handlers.AuthHandler;
+import me.vinceh121.gmcserver.json.RecordJsonWriter;
 import me.vinceh121.gmcserver.managers.DeviceManager.CreateDeviceAction;
 import me.vinceh121.gmcserver.managers.DeviceManager.DeviceFullTimelineAction;
 import me.vinceh121.gmcserver.managers.DeviceManager.DeviceStatsAction;
 import me.vinceh121.gmcserver.managers.DeviceManager.GetDeviceAction;
 import me.vinceh121.gmcserver.managers.DeviceManager.UpdateDeviceAction;
-import me.vinceh121.gmcserver.managers.LoggingManager;
+import me.vinceh121.gmcserver.managers.LiveFeedManager.LiveMessage;
+import me.vinceh121.gmcserver.managers.LiveFeedManager.Subscriber;
+import me.vinceh121.gmcserver.managers.RollupManager;
 import me.vinceh121.gmcserver.managers.UserManager.GetUserAction;
+import me.vinceh121.gmcserver.timeline.GorillaTimelineWriter;
+import me.vinceh121.gmcserver.timeline.TimelineDownsampler;
 
 public class DeviceModule extends AbstractModule {
-	public static final DateFormat LAST_MODIFIED_DATE = new SimpleDateFormat("EEE, dd MMM yyyy kk:mm:ss ZZZ");
-
-	public DeviceModule(final GMCServer srv) {
-		super(srv);
+	/**
+	 * Per thread as {@code SimpleDateFormat} isn't thread-safe and modules are
+	 * shared by HTTP verticles
+	 */
+	public static final ThreadLocal<DateFormat> LAST_MODIFIED_DATE
+			= ThreadLocal.withInitial(() -> new SimpleDateFormat("EEE, dd MMM yyyy kk:mm:ss ZZZ"));
+	/**
+	 * Interval of comments sent to keep idle event streams open, in ms
+	 */
+	public static final long LIVE_KEEP_ALIVE = 15_000;
+	/**
+	 * Longest a live poll can wait for records, in ms
+	 */
+	public static final long LIVE_POLL_TIMEOUT = 30_000;
+
+	public DeviceModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.registerStrictAuthedRoute(HttpMethod.POST, "/device", this::handleCreateDevice);
 		this.registerStrictAuthedRoute(HttpMethod.DELETE, "/device/:deviceId", this::handleRemoveDevice);
 		this.registerStrictAuthedRoute(HttpMethod.PUT, "/device/:deviceId", this::handleUpdateDevice);
@@ -60,7 +92,11 @@ public class DeviceModule extends AbstractModule {
 		this.registerAuthedRoute(HttpMethod.GET, "/device/:deviceId/timeline", this::handleDeviceHistory);
 		this.registerRoute(HttpMethod.GET, "/device/:deviceId/stats/:field", this::handleStats);
 		this.registerRoute(HttpMethod.GET, "/device/:deviceId/live", this::handleLive);
+		this.registerRoute(HttpMethod.GET, "/device/:deviceId/live/events", this::handleLiveEvents);
+		this.registerRoute(HttpMethod.GET, "/device/:deviceId/live/poll", this::handleLivePoll);
+		this.registerRoute(HttpMethod.GET, "/live", this::handleMultiLive);
 		this.registerRoute(HttpMethod.GET, "/device/:deviceId/calendar", this::handleCalendar);
+		this.registerRoute(HttpMethod.GET, "/device/:deviceId/rollups/:granularity", this::handleRollups);
 	}
 
 	private void handleCreateDevice(final RoutingContext ctx) {
@@ -330,52 +366,79 @@ public class DeviceModule extends AbstractModule {
 
 			final boolean full = "y".equals(ctx.request().getParam("full"));
 
+			final int points;
+			if (ctx.request().params().contains("points")) {
+				try {
+					points = Integer.parseInt(ctx.request().getParam("points"));
+				} catch (final NumberFormatException e) {
+					this.error(ctx, 400, "Format error in points");
+					return;
+				}
+				if (points < 2) {
+					this.error(ctx, 400, "points must be at least 2");
+					return;
+				}
+			} else {
+				points = 0;
+			}
+
+			final String downsample = ctx.request().getParam("downsample", TimelineDownsampler.MODE_LTTB);
+			if (!TimelineDownsampler.MODE_LTTB.equals(downsample)
+					&& !TimelineDownsampler.MODE_MIN_MAX.equals(downsample)) {
+				this.error(ctx, 400, "Invalid downsample mode");
+				return;
+			}
+
+			final String field = ctx.request().getParam("field", "cpm");
+			if (!Record.STAT_FIELDS.contains(field)) {
+				this.error(ctx, 400, "Invalid field");
+				return;
+			}
+
+			if (points == 0 && !full) {
+				final List<Record> cached = this.srv.getHotTailManager()
+					.getTimeline(dev.getId(),
+							start,
+							end,
+							Integer.parseInt(this.srv.getConfig().getProperty("device.public-timeline-limit")),
+							false);
+				if (cached != null) {
+					this.writeCachedTimeline(ctx, user, dev, cached);
+					return;
+				}
+			}
+
 			final DeviceFullTimelineAction histAction = this.srv.getDeviceManager()
 				.deviceFullTimeline()
 				.setStart(start)
 				.setEnd(end)
-				.setFull(full)
+				.setFull(full || points != 0)
 				.setDev(dev);
-			histAction.execute().onSuccess(hist -> {
-				final Record firstRec = hist.first();
-				if (firstRec != null) {
-					final Date lastDate = firstRec.getDate();
-					ctx.response().putHeader("Last-Modified", LAST_MODIFIED_DATE.format(lastDate));
-
-					if (ctx.request().headers().contains("If-Modified-Since")) {
-						try {
-							final Date reqDate = LAST_MODIFIED_DATE.parse(ctx.request().getHeader("If-Modified-Since"));
-							if (lastDate.after(reqDate) || lastDate.equals(reqDate)) {
-								// timeline hasn't changed since last request
-								ctx.response().setStatusCode(304).end();
-								return;
-							}
-						} catch (ParseException e) {
-							this.error(ctx, 400, "Invalid If-Modified-Since date");
-							return;
-						}
+			histAction.execute()
+				.compose(hist -> this.srv.getDatabaseManager().first(hist.first()).compose(firstRec -> {
+					if (points == 0 || firstRec == null) {
+						this.writeTimeline(ctx, user, dev, hist, firstRec, null);
+						return Future.succeededFuture();
 					}
-				}
-
-				ctx.response().setChunked(true);
-
-				ctx.response().write("[");
-
-				try (final MongoCursor<Record> recs = hist.iterator()) {
-					recs.forEachRemaining(r -> {
-						if (user != null && user.getId().equals(dev.getOwner())) {
-							ctx.response().write(r.toJson().toString());
-						} else {
-							ctx.response().write(r.toPublicJson().toString());
-						}
-						if (recs.hasNext()) {
-							ctx.response().write(",");
-						}
-					});
-				}
-				ctx.response().write("]");
-				ctx.response().end();
-			}).onFailure(t -> this.error(ctx, 500, t.getMessage()));
+					// the oldest record is needed to split the timeline in buckets
+					return this.srv.getDeviceManager()
+						.deviceFullTimeline()
+						.setStart(start)
+						.setEnd(end)
+						.setFull(true)
+						.setAscending(true)
+						.setDev(dev)
+						.execute()
+						.compose(asc -> this.srv.getDatabaseManager().first(asc.first()))
+						.onSuccess(lastRec -> this.writeTimeline(ctx, user, dev, hist, firstRec,
+								output -> TimelineDownsampler.create(downsample,
+										firstRec.getDate().getTime(),
+										lastRec.getDate().getTime(),
+										points,
+										field,
+										output)));
+				}))
+				.onFailure(t -> this.error(ctx, 500, t.getMessage()));
 		}).onFailure(t -> {
 			if (t instanceof EntityNotFoundException) {
 				this.error(ctx, 404, "Device not found");
@@ -386,6 +449,112 @@ public class DeviceModule extends AbstractModule {
 
 	}
 
+	/**
+	 * @param downsampler creates the downsampler writing to the given handler, or
+	 *                    null to write all records
+	 */
+	private void writeTimeline(final RoutingContext ctx, final User user, final Device dev,
+			final FindPublisher<Record> hist, final Record firstRec,
+			final Function<Handler<Record>, TimelineDownsampler> downsampler) {
+		if (this.isNotModified(ctx, firstRec)) {
+			return;
+		}
+
+		final TimelineOutput out = this.startTimeline(ctx, user, dev);
+
+		final PublisherReadStream<Record> recs = this.srv.getDatabaseManager().stream(hist);
+		ctx.response().closeHandler(v -> recs.cancel());
+		recs.exceptionHandler(t -> {
+			this.log.error("Error while streaming timeline", t);
+			ctx.response().reset();
+		});
+		final TimelineDownsampler sampler = downsampler == null ? null : downsampler.apply(out.writer);
+		recs.endHandler(v -> {
+			if (sampler != null) {
+				sampler.end();
+			}
+			out.end.run();
+			ctx.response().end();
+		});
+		recs.handler(r -> {
+			if (sampler != null) {
+				sampler.add(r);
+			} else {
+				out.writer.handle(r);
+			}
+			if (ctx.response().writeQueueFull()) {
+				recs.pause();
+				ctx.response().drainHandler(d -> recs.resume());
+			}
+		});
+	}
+
+	/**
+	 * @param recs timeline from the hot tail, newest first
+	 */
+	private void writeCachedTimeline(final RoutingContext ctx, final User user, final Device dev,
+			final List<Record> recs) {
+		if (this.isNotModified(ctx, recs.isEmpty() ? null : recs.get(0))) {
+			return;
+		}
+
+		final TimelineOutput out = this.startTimeline(ctx, user, dev);
+		for (final Record r : recs) {
+			out.writer.handle(r);
+		}
+		out.end.run();
+		ctx.response().end();
+	}
+
+	/**
+	 * Sets the Last-Modified header and handles If-Modified-Since.
+	 *
+	 * @param firstRec newest record of the timeline, or null
+	 * @return true if a response was already sent
+	 */
+	private boolean isNotModified(final RoutingContext ctx, final Record firstRec) {
+		if (firstRec != null) {
+			final Date lastDate = firstRec.getDate();
+			ctx.response().putHeader("Last-Modified", LAST_MODIFIED_DATE.get().format(lastDate));
+
+			if (ctx.request().headers().contains("If-Modified-Since")) {
+				try {
+					final Date reqDate = LAST_MODIFIED_DATE.get().parse(ctx.request().getHeader("If-Modified-Since"));
+					if (lastDate.after(reqDate) || lastDate.equals(reqDate)) {
+						// timeline hasn't changed since last request
+						ctx.response().setStatusCode(304).end();
+						return true;
+					}
+				} catch (ParseException e) {
+					this.error(ctx, 400, "Invalid If-Modified-Since date");
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Starts the response in the format requested by the client
+	 */
+	private TimelineOutput startTimeline(final RoutingContext ctx, final User user, final Device dev) {
+		ctx.response().setChunked(true);
+
+		final String accept = ctx.request().getHeader("Accept");
+		if ("gorilla".equals(ctx.request().getParam("format"))
+				|| accept != null && accept.contains(GorillaTimelineWriter.CONTENT_TYPE)) {
+			ctx.response().putHeader("Content-Type", GorillaTimelineWriter.CONTENT_TYPE);
+			final GorillaTimelineWriter gorilla = new GorillaTimelineWriter(ctx.response());
+			gorilla.start();
+			return new TimelineOutput(gorilla::write, gorilla::end);
+		} else {
+			final boolean own = user != null && user.getId().equals(dev.getOwner());
+			final RecordJsonWriter json = new RecordJsonWriter(ctx.response(), own);
+			json.startArray();
+			return new TimelineOutput(json::write, json::endArray);
+		}
+	}
+
 	private void handleStats(final RoutingContext ctx) {
 		final String rawDevId = ctx.pathParam("deviceId");
 
@@ -457,6 +626,65 @@ public class DeviceModule extends AbstractModule {
 		});
 	}
 
+	private void handleRollups(final RoutingContext ctx) {
+		final String rawDevId = ctx.pathParam("deviceId");
+
+		final ObjectId devId;
+		try {
+			devId = new ObjectId(rawDevId);
+		} catch (final IllegalArgumentException e) {
+			this.error(ctx, 400, "Invalid ID");
+			return;
+		}
+
+		final String granularity = ctx.pathParam("granularity");
+		if (!RollupManager.GRANULARITIES.contains(granularity)) {
+			this.error(ctx, 400, "Invalid granularity");
+			return;
+		}
+
+		final Date start, end;
+		try {
+			start = ctx.request().params().contains("start")
+					? new Date(Long.parseLong(ctx.request().getParam("start")))
+					: null;
+			end = ctx.request().params().contains("end") ? new Date(Long.parseLong(ctx.request().getParam("end")))
+					: null;
+		} catch (final NumberFormatException e) {
+			this.error(ctx, 400, "Format error in date");
+			return;
+		}
+
+		this.srv.getDeviceManager().getDevice().setId(devId).execute().onSuccess(dev -> {
+			this.srv.getRollupManager()
+				.getRollups()
+				.setDeviceId(dev.getId())
+				.setGranularity(granularity)
+				.setStart(start)
+				.setEnd(end)
+				.execute()
+				.onSuccess(rollups -> {
+					final JsonArray arr = new JsonArray();
+					for (final RecordRollup r : rollups) {
+						final JsonObject obj = r.toJson();
+						obj.remove("id");
+						obj.remove("deviceId");
+						obj.remove("granularity");
+						obj.put("start", r.getStart().getTime());
+						arr.add(obj);
+					}
+					ctx.response().end(arr.toBuffer());
+				})
+				.onFailure(t -> this.error(ctx, 500, "Failed to get rollups: " + t.getMessage()));
+		}).onFailure(t -> {
+			if (t instanceof EntityNotFoundException) {
+				this.error(ctx, 404, "Device not found");
+			} else {
+				this.error(ctx, 500, "Failed to fetch device: " + t.getMessage());
+			}
+		});
+	}
+
 	private void handleLive(final RoutingContext ctx) {
 		final String rawDevId = ctx.pathParam("deviceId");
 
@@ -476,15 +704,10 @@ public class DeviceModule extends AbstractModule {
 					return;
 				}
 				final ServerWebSocket sock = webRes.result();
-
-				final MessageConsumer<Record> consumer = this.srv.getEventBus()
-					.consumer(LoggingManager.ADDRESS_PREFIX_RECORD_LOG + devId.toHexString());
-
-				consumer.handler(msg -> sock.writeTextMessage(msg.body().toPublicJson().encode()));
-
-				sock.closeHandler(v -> consumer.unregister());
+				final Subscriber sub = this.srv.getLiveFeedManager().createWebSocketSubscriber(sock, false);
+				sub.subscribe(devId, this.getLastId(ctx));
 				sock.exceptionHandler(t -> {
-					consumer.unregister();
+					sub.close();
 					sock.close((short) 1011);
 				});
 			});
@@ -497,6 +720,238 @@ public class DeviceModule extends AbstractModule {
 		});
 	}
 
+	/**
+	 * Server-sent events counterpart of {@link #handleLive(RoutingContext)}.
+	 * Events have the ID of their record, so reconnecting clients get the
+	 * recent records they missed.
+	 */
+	private void handleLiveEvents(final RoutingContext ctx) {
+		final String rawDevId = ctx.pathParam("deviceId");
+
+		final ObjectId devId;
+		try {
+			devId = new ObjectId(rawDevId);
+		} catch (final IllegalArgumentException e) {
+			this.error(ctx, 400, "Invalid ID");
+			return;
+		}
+
+		final ObjectId lastId = this.getLastId(ctx);
+
+		this.srv.getDeviceManager().getDevice().setId(devId).execute().onSuccess(dev -> {
+			final HttpServerResponse res = ctx.response();
+			res.setChunked(true);
+			res.putHeader("Content-Type", "text/event-stream");
+			res.putHeader("Cache-Control", "no-cache");
+			res.putHeader("X-Accel-Buffering", "no");
+			res.write(": " + dev.getId().toHexString() + "\n\n");
+
+			final Subscriber sub = this.srv.getLiveFeedManager().createEventStreamSubscriber(res);
+			sub.subscribe(dev.getId(), lastId);
+			// keeps proxies from timing out idle streams
+			final long keepAlive = this.srv.getVertx().setPeriodic(LIVE_KEEP_ALIVE, id -> {
+				if (!res.writeQueueFull()) {
+					res.write(":\n\n");
+				}
+			});
+			res.closeHandler(v -> {
+				sub.close();
+				this.srv.getVertx().cancelTimer(keepAlive);
+			});
+		}).onFailure(t -> {
+			if (t instanceof EntityNotFoundException) {
+				this.error(ctx, 404, "Device not found");
+			} else {
+				this.error(ctx, 500, "Failed to fetch device: " + t.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * Long polling counterpart of {@link #handleLive(RoutingContext)}, for
+	 * clients that can't keep a connection open.
+	 *
+	 * Responds with the records after {@code after} if there are any buffered,
+	 * else with the next records, or an empty array after {@code timeout} ms.
+	 * The client passes the returned {@code cursor} as {@code after} for the
+	 * next poll.
+	 */
+	private void handleLivePoll(final RoutingContext ctx) {
+		final String rawDevId = ctx.pathParam("deviceId");
+
+		final ObjectId devId;
+		try {
+			devId = new ObjectId(rawDevId);
+		} catch (final IllegalArgumentException e) {
+			this.error(ctx, 400, "Invalid ID");
+			return;
+		}
+
+		final ObjectId lastId = this.getLastId(ctx);
+
+		final long timeout;
+		try {
+			timeout = Long.parseLong(ctx.request().getParam("timeout", String.valueOf(LIVE_POLL_TIMEOUT)));
+		} catch (final NumberFormatException e) {
+			this.error(ctx, 400, "Invalid timeout");
+			return;
+		}
+		if (timeout < 0 || timeout > LIVE_POLL_TIMEOUT) {
+			this.error(ctx, 400, "Timeout must be between 0 and " + LIVE_POLL_TIMEOUT);
+			return;
+		}
+
+		this.srv.getDeviceManager().getDevice().setId(devId).execute().onSuccess(dev -> {
+			final Promise<List<LiveMessage>> promise = Promise.promise();
+			final Subscriber sub = this.srv.getLiveFeedManager().createPollSubscriber(promise::tryComplete);
+			sub.subscribe(dev.getId(), lastId);
+			final long timer = this.srv.getVertx().setTimer(Math.max(timeout, 1), id -> {
+				sub.close();
+				promise.tryComplete(Collections.emptyList());
+			});
+			ctx.response().closeHandler(v -> {
+				sub.close();
+				this.srv.getVertx().cancelTimer(timer);
+			});
+			promise.future().onSuccess(msgs -> {
+				this.srv.getVertx().cancelTimer(timer);
+				final StringBuilder sb = new StringBuilder("{\"cursor\":");
+				if (msgs.isEmpty()) {
+					sb.append(lastId == null ? "null" : "\"" + lastId.toHexString() + "\"");
+				} else {
+					sb.append('"').append(msgs.get(msgs.size() - 1).getId().toHexString()).append('"');
+				}
+				sb.append(",\"records\":[");
+				for (int i = 0; i < msgs.size(); i++) {
+					if (i != 0) {
+						sb.append(',');
+					}
+					sb.append(msgs.get(i).getJson());
+				}
+				sb.append("]}");
+				ctx.response().end(sb.toString());
+			});
+		}).onFailure(t -> {
+			if (t instanceof EntityNotFoundException) {
+				this.error(ctx, 404, "Device not found");
+			} else {
+				this.error(ctx, 500, "Failed to fetch device: " + t.getMessage());
+			}
+		});
+	}
+
+	/**
+	 * @return the ID of the last record the client got, from the
+	 *         {@code Last-Event-ID} header or the {@code after} parameter
+	 */
+	private ObjectId getLastId(final RoutingContext ctx) {
+		String raw = ctx.request().getHeader("Last-Event-ID");
+		if (raw == null) {
+			raw = ctx.request().getParam("after");
+		}
+		return raw != null && ObjectId.isValid(raw) ? new ObjectId(raw) : null;
+	}
+
+	/**
+	 * Websocket receiving the records of several devices.
+	 *
+	 * The client sends {@code {"subscribe": [deviceIds]}} and
+	 * {@code {"unsubscribe": [deviceIds]}}, records are sent as
+	 * {@code {"deviceId": id, "record": record}}.
+	 */
+	private void handleMultiLive(final RoutingContext ctx) {
+		ctx.request().toWebSocket(webRes -> {
+			if (webRes.failed()) {
+				this.error(ctx, 500, "Failed to open websocket: " + webRes.cause());
+				return;
+			}
+			final ServerWebSocket sock = webRes.result();
+			final Subscriber sub = this.srv.getLiveFeedManager().createWebSocketSubscriber(sock, true);
+			// device lookups in flight, counted against the subscription limit
+			final int[] lookups = new int[1];
+			sock.exceptionHandler(t -> {
+				sub.close();
+				sock.close((short) 1011);
+			});
+			sock.textMessageHandler(text -> {
+				final JsonObject req;
+				try {
+					req = new JsonObject(text);
+				} catch (final DecodeException e) {
+					sock.writeTextMessage(new JsonObject().put("error", "Invalid JSON").encode());
+					return;
+				}
+				final List<String> unsubscribe = this.getIds(sock, req, "unsubscribe");
+				final List<String> subscribe = this.getIds(sock, req, "subscribe");
+				if (unsubscribe == null || subscribe == null) {
+					return;
+				}
+				for (final String id : unsubscribe) {
+					sub.unsubscribe(new ObjectId(id));
+				}
+
+				final Set<ObjectId> toSubscribe = new LinkedHashSet<>();
+				for (final String id : subscribe) {
+					final ObjectId devId = new ObjectId(id);
+					if (!sub.isSubscribed(devId)) {
+						toSubscribe.add(devId);
+					}
+				}
+				// checked before any lookup so a message can't cause more queries than the limit
+				if (toSubscribe.size() > sub.getRemainingSubscriptions() - lookups[0]) {
+					sock.writeTextMessage(new JsonObject().put("error", "Too many subscriptions").encode());
+					return;
+				}
+				lookups[0] += toSubscribe.size();
+				for (final ObjectId devId : toSubscribe) {
+					this.srv.getDeviceManager().getDevice().setId(devId).execute().onComplete(res -> {
+						lookups[0]--;
+						if (res.succeeded()) {
+							if (!sub.subscribe(res.result().getId())) {
+								sock.writeTextMessage(new JsonObject().put("error", "Too many subscriptions")
+									.put("deviceId", devId.toHexString())
+									.encode());
+							}
+						} else {
+							sock.writeTextMessage(new JsonObject()
+								.put("error",
+										res.cause() instanceof EntityNotFoundException ? "Device not found"
+												: "Failed to fetch device")
+								.put("deviceId", devId.toHexString())
+								.encode());
+						}
+					});
+				}
+			});
+		});
+	}
+
+	/**
+	 * @return the valid device IDs of the request's array, invalid ones are
+	 *         reported to the client, or null if the value isn't an array
+	 */
+	private List<String> getIds(final ServerWebSocket sock, final JsonObject req, final String key) {
+		final List<String> ids = new ArrayList<>();
+		final JsonArray arr;
+		try {
+			arr = req.getJsonArray(key);
+		} catch (final ClassCastException e) {
+			sock.writeTextMessage(new JsonObject().put("error", key + " must be an array").encode());
+			return null;
+		}
+		if (arr == null) {
+			return ids;
+		}
+		for (final Object o : arr) {
+			if (o instanceof String && ObjectId.isValid((String) o)) {
+				ids.add((String) o);
+			} else {
+				sock.writeTextMessage(new JsonObject().put("error", "Invalid ID").put("deviceId", o).encode());
+			}
+		}
+		return ids;
+	}
+
 	private void handleCalendar(final RoutingContext ctx) {
 		final String rawDevId = ctx.pathParam("deviceId");
 
@@ -527,4 +982,14 @@ public class DeviceModule extends AbstractModule {
 			}
 		});
 	}
+
+	private static final class TimelineOutput {
+		private final Handler<Record> writer;
+		private final Runnable end;
+
+		private TimelineOutput(final Handler<Record> writer, final Runnable end) {
+			this.writer = writer;
+			this.end = end;
+		}
+	}
 }
@@ -17,16 +17,57 @@
  */
 package me.vinceh121.gmcserver.modules;
 
+import java.util.Iterator;
+
 import io.vertx.core.http.HttpMethod;
-import io.vertx.core.json.JsonArray;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.json.DeviceMapJsonWriter;
+import me.vinceh121.gmcserver.managers.MapManager;
 
 public class GeoModule extends AbstractModule {
 
-	public GeoModule(final GMCServer srv) {
-		super(srv);
+	public GeoModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.registerRoute(HttpMethod.GET, "/map", this::handleMap);
+		this.registerRoute(HttpMethod.GET, "/map/tile/:z/:x/:y", this::handleTile);
+	}
+
+	/**
+	 * Slippy map tile of devices, clustered at low zoom levels.
+	 *
+	 * @see MapManager
+	 */
+	private void handleTile(final RoutingContext ctx) {
+		final int z, x, y;
+		try {
+			z = Integer.parseInt(ctx.pathParam("z"));
+			x = Integer.parseInt(ctx.pathParam("x"));
+			y = Integer.parseInt(ctx.pathParam("y"));
+		} catch (final NumberFormatException e) {
+			this.error(ctx, 400, "Invalid parameter format");
+			return;
+		}
+
+		this.srv.getMapManager().getTile(z, x, y).onSuccess(tile -> {
+			final long maxAge = Math.max(0, tile.getExpiresAt() - System.currentTimeMillis()) / 1000;
+			ctx.response().putHeader("ETag", tile.getEtag());
+			ctx.response().putHeader("Cache-Control", "public, max-age=" + maxAge);
+			if (tile.getEtag().equals(ctx.request().getHeader("If-None-Match"))) {
+				ctx.response().setStatusCode(304).end();
+				return;
+			}
+			ctx.response().putHeader("Content-Type", "application/json");
+			ctx.response().end(tile.getBody());
+		}).onFailure(t -> {
+			if (t instanceof IllegalArgumentException) {
+				this.error(ctx, 400, t.getMessage());
+			} else {
+				this.error(ctx, 500, "Failed to get tile: " + t.getMessage());
+			}
+		});
 	}
 
 	private void handleMap(final RoutingContext ctx) {
@@ -51,10 +92,35 @@ public class GeoModule extends AbstractModule {
 			.setNelon(nelon)
 			.setNelat(nelat)
 			.execute()
-			.onSuccess(it -> {
-				final JsonArray res = new JsonArray();
-				it.forEach(d -> res.add(d.toMapJson()));
-				ctx.response().end(res.toBuffer());
-			});
+			.onSuccess(devices -> {
+				final boolean ndjson = "ndjson".equals(ctx.request().getParam("format"))
+						|| DeviceMapJsonWriter.NDJSON_CONTENT_TYPE.equals(ctx.request().getHeader("Accept"));
+				ctx.response().setChunked(true);
+				ctx.response()
+					.putHeader("Content-Type", ndjson ? DeviceMapJsonWriter.NDJSON_CONTENT_TYPE : "application/json");
+				final DeviceMapJsonWriter writer = new DeviceMapJsonWriter(ctx.response(), ndjson);
+				writer.start();
+				this.writeMap(ctx, writer, devices.iterator());
+			})
+			.onFailure(t -> this.error(ctx, 500, "Failed to get map: " + t.getMessage()));
+	}
+
+	/**
+	 * Writes devices until the response's write queue is full, then resumes once
+	 * it drained.
+	 */
+	private void writeMap(final RoutingContext ctx, final DeviceMapJsonWriter writer, final Iterator<Device> it) {
+		while (it.hasNext()) {
+			if (ctx.response().closed()) {
+				return;
+			}
+			if (ctx.response().writeQueueFull()) {
+				ctx.response().drainHandler(v -> this.writeMap(ctx, writer, it));
+				return;
+			}
+			writer.write(it.next());
+		}
+		writer.end();
+		ctx.response().end();
 	}
 }
@@ -31,6 +31,8 @@ import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
+import me.vinceh121.gmcserver.PublisherReadStream;
 import me.vinceh121.gmcserver.entities.Record;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.exceptions.EntityNotFoundException;
@@ -39,14 +41,18 @@ import me.vinceh121.gmcserver.managers.ImportManager;
 
 public class ImportExportModule extends AbstractModule {
 	private static final Logger LOG = LogManager.getLogger(ImportExportModule.class);
-	public static final DateFormat GMCMAP_DATE_FMT = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
-	static {
-		ImportExportModule.GMCMAP_DATE_FMT.setTimeZone(TimeZone.getTimeZone("UTC"));
-	}
+	/**
+	 * Per thread as {@code SimpleDateFormat} isn't thread-safe
+	 */
+	public static final ThreadLocal<DateFormat> GMCMAP_DATE_FMT = ThreadLocal.withInitial(() -> {
+		final DateFormat fmt = new SimpleDateFormat("yyyy-MM-dd hh:mm:ss");
+		fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+		return fmt;
+	});
 	public static final String GMCMAP_HISTORY_URI = "/historyData.asp", GMCMAP_HOST = "www.gmcmap.com";
 
-	public ImportExportModule(final GMCServer srv) {
-		super(srv);
+	public ImportExportModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.registerStrictAuthedRoute(HttpMethod.POST, "/import/gmcmap", this::handleImportGmcMap);
 		this.registerStrictAuthedRoute(HttpMethod.POST, "/import/safecast", this::handleImportSafecast);
 		this.registerStrictAuthedRoute(HttpMethod.POST, "/import/uradmonitor", this::handleImportURadMonitor);
@@ -219,6 +225,37 @@ public class ImportExportModule extends AbstractModule {
 			});
 	}
 
+	private String toPublicCsvLine(final Record r) {
+		return String.format("%f,%f,%f,%s,%s,%s,%s\n",
+				r.getCpm(),
+				r.getAcpm(),
+				r.getUsv(),
+				r.getDate().getTime(),
+				r.getType(),
+				r.getLocation() != null ? r.getLocation().getPosition().getValues().get(0) : "",
+				r.getLocation() != null ? r.getLocation().getPosition().getValues().get(1) : "");
+	}
+
+	private String toCsvLine(final Record r) {
+		return String.format("%s,%s,%f,%f,%f,%f,%f,%f,%f,%f,%f,%s,%s,%s,%s,%s\n",
+				r.getId(),
+				r.getDeviceId(),
+				r.getCpm(),
+				r.getAcpm(),
+				r.getUsv(),
+				r.getCo2(),
+				r.getHcho(),
+				r.getTmp(),
+				r.getAp(),
+				r.getHmdt(),
+				r.getAccy(),
+				r.getDate().getTime(),
+				r.getIp(),
+				r.getType(),
+				r.getLocation() != null ? r.getLocation().getPosition().getValues().get(0) : null,
+				r.getLocation() != null ? r.getLocation().getPosition().getValues().get(1) : null);
+	}
+
 	private void responseImportStarted(RoutingContext ctx, ObjectId device) {
 		ctx.end(new JsonObject().put("deviceId", device).toBuffer());
 	}
@@ -276,45 +313,26 @@ public class ImportExportModule extends AbstractModule {
 				.onSuccess(recs -> {
 					if (user == null) {
 						ctx.response().write("CPM,ACPM,USV,DATE,TYPE,LON,LAT\n");
-						for (final Record r : recs) {
-							ctx.response()
-								.write(String.format("%f,%f,%f,%s,%s,%s,%s\n",
-										r.getCpm(),
-										r.getAcpm(),
-										r.getUsv(),
-										r.getDate().getTime(),
-										r.getType(),
-										r.getLocation() != null ? r.getLocation().getPosition().getValues().get(0) : "",
-										r.getLocation() != null ? r.getLocation().getPosition().getValues().get(1)
-												: ""));
-						}
 					} else {
 						ctx.response()
 							.write("ID,DEVICEID,CPM,ACPM,USV,CO2,HCHO,TMP,AP,HMDT,ACCY,DATE,IP,TYPE,LON,LAT\n");
-						for (final Record r : recs) {
-							ctx.response()
-								.write(String.format("%s,%s,%f,%f,%f,%f,%f,%f,%f,%f,%f,%s,%s,%s,%s,%s\n",
-										r.getId(),
-										r.getDeviceId(),
-										r.getCpm(),
-										r.getAcpm(),
-										r.getUsv(),
-										r.getCo2(),
-										r.getHcho(),
-										r.getTmp(),
-										r.getAp(),
-										r.getHmdt(),
-										r.getAccy(),
-										r.getDate().getTime(),
-										r.getIp(),
-										r.getType(),
-										r.getLocation() != null ? r.getLocation().getPosition().getValues().get(0)
-												: null,
-										r.getLocation() != null ? r.getLocation().getPosition().getValues().get(1)
-												: null));
-						}
 					}
-					ctx.response().end();
+
+					final PublisherReadStream<Record> stream = this.srv.getDatabaseManager().stream(recs);
+					ctx.response().closeHandler(v -> stream.cancel());
+					stream.exceptionHandler(t -> {
+						ImportExportModule.LOG
+							.error(new FormattedMessage("Failed to stream device {} timeline for export", deviceId), t);
+						ctx.response().reset();
+					});
+					stream.endHandler(v -> ctx.response().end());
+					stream.handler(r -> {
+						ctx.response().write(user == null ? this.toPublicCsvLine(r) : this.toCsvLine(r));
+						if (ctx.response().writeQueueFull()) {
+							stream.pause();
+							ctx.response().drainHandler(d -> stream.resume());
+						}
+					});
 				})
 				.onFailure(t -> {
 					ImportExportModule.LOG
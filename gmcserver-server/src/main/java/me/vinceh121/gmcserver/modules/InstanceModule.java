@@ -21,11 +21,12 @@ import io.vertx.core.http.HttpMethod;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 
 public class InstanceModule extends AbstractModule {
 
-	public InstanceModule(final GMCServer srv) {
-		super(srv);
+	public InstanceModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.registerRoute(HttpMethod.GET, "/instance/info", this::handleInstanceInfo);
 	}
 
@@ -20,253 +20,71 @@ package me.vinceh121.gmcserver.modules;
 import java.text.DateFormat;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import org.bson.types.ObjectId;
 
-import com.mongodb.client.model.Filters;
 import com.mongodb.client.model.geojson.Point;
 import com.mongodb.client.model.geojson.Position;
 
+import io.vertx.core.CompositeFuture;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpMethod;
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import io.vertx.core.parsetools.RecordParser;
 import io.vertx.ext.web.Route;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.Record;
-import me.vinceh121.gmcserver.entities.Record.Builder;
 import me.vinceh121.gmcserver.entities.User;
+import me.vinceh121.gmcserver.exceptions.EntityNotFoundException;
+import me.vinceh121.gmcserver.handlers.AuthHandler;
+import me.vinceh121.gmcserver.ingest.BulkRecordParser;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Credentials;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Status;
 
 public class LoggingModule extends AbstractModule {
-	private static final DateFormat DATE_FORMAT_ISO_8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+	// per thread as SimpleDateFormat isn't thread-safe
+	private static final ThreadLocal<DateFormat> DATE_FORMAT_ISO_8601
+			= ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX"));
 	public static final String ERROR_OK = "OK.ERR0";
 	public static final String ERROR_SYNTAX = "The syntax of one of the logging parameters is incorrect";
 	public static final String ERROR_USER_ID = "Invalid user ID.ERR1";
 	public static final String ERROR_DEVICE_ID = "Invalid device ID.ERR2";
 	public static final String ERROR_DEVICE_NOT_OWNED = "User does not own device";
+	private static final String URADMONITOR_PATH = "/upload/exp";
 
 	private final boolean logIp, behindReverseProxy;
+	private final int bulkBatchSize, bulkMaxLine, bulkMaxErrors;
 
-	public LoggingModule(final GMCServer srv) {
-		super(srv);
+	public LoggingModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
+		this.bulkBatchSize = Integer.parseInt(this.srv.getConfig().getProperty("upload.bulk.batch-size", "1000"));
+		this.bulkMaxLine = Integer.parseInt(this.srv.getConfig().getProperty("upload.bulk.max-line", "4096"));
+		this.bulkMaxErrors = Integer.parseInt(this.srv.getConfig().getProperty("upload.bulk.max-errors", "1000"));
 		this.logIp = Boolean.parseBoolean(this.srv.getConfig().getProperty("geiger.log-ip"));
 		this.behindReverseProxy = Boolean.parseBoolean(this.srv.getConfig().getProperty("geiger.behindReverseProxy"));
 
-		this.registerLogRoute(HttpMethod.GET, "/log2.asp", this::handleGmcLog2);
-		this.registerLogRoute(HttpMethod.GET, "/log2", this::handleGmcLog2);
-		this.registerLogRoute(HttpMethod.GET, "/log.asp", this::handleGmcClassicLog);
-		this.registerLogRoute(HttpMethod.GET, "/log", this::handleGmcClassicLog);
+		// GMC counters' /log2.asp and /log.asp are served by GmcLogHandler before
+		// routing
 
 		this.registerLogRoute(HttpMethod.GET, "/radmon.php", this::handleRadmon);
 		this.registerLogRoute(HttpMethod.POST, "/measurements.json", this::handleSafecast);
 		// Devices will prefix with /api/v1
-		this.registerRoute(HttpMethod.POST, "/upload/exp", this::handleURadMonitor).pathRegex("/upload/exp/*");
-	}
-
-	private void handleGmcLog2(final RoutingContext ctx) {
-		// AID: user id
-		// GID: device id
-		// CPM: current counts per minute
-		// ACPM: current average of counts per minute
-		// uSV: calculated absorbed radiation
-		// co2: CO2 content in air
-		// hcho: Formaldehyde
-		// tmp: temperature
-		// ap: ?
-		// hmdt: humidity
-		// accy: accuracy?
-		// type: connection type? 'gprs'
-		// sat: ?
-		// lat
-		// lon
-		// alt: altitude: https://gis.stackexchange.com/a/233326
-		final long gmcUserId;
-		try {
-			gmcUserId = Long.parseLong(ctx.request().getParam("AID"));
-		} catch (final NumberFormatException e) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_USER_ID);
-			return;
-		}
-
-		final long gmcDeviceId;
-		try {
-			gmcDeviceId = Long.parseLong(ctx.request().getParam("GID"));
-		} catch (final NumberFormatException e) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_DEVICE_ID);
-			return;
-		}
-
-		final User user = this.srv.getDatabaseManager()
-			.getCollection(User.class)
-			.find(Filters.eq("gmcId", gmcUserId))
-			.first();
-		if (user == null) {
-			this.gmcError(ctx, 404, LoggingModule.ERROR_USER_ID);
-			return;
-		}
-
-		final Device device = this.srv.getDatabaseManager()
-			.getCollection(Device.class)
-			.find(Filters.eq("gmcId", gmcDeviceId))
-			.first();
-		if (device == null) {
-			this.gmcError(ctx, 404, LoggingModule.ERROR_DEVICE_ID);
-			return;
-		}
-
-		if (device.getOwner() == null) {
-			this.log.error("Device with no owner: {}", device.getId());
-			this.gmcError(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
-
-		if (!user.getId().equals(device.getOwner())) {
-			this.gmcError(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
-
-		final Builder build = new Record.Builder();
-		build.withGmcParams(ctx.request().params())
-			.withGmcPosition(ctx.request().params())
-			.withCurrentDate()
-			.withDevice(device.getId());
-
-		final Record rec = build.build();
-
-		this.setRecordIp(ctx, rec);
-
-		this.log.debug("Inserting record {}", rec);
-		this.srv.getLoggingManager()
-			.insertRecord()
-			.setDevice(device)
-			.setUser(user)
-			.setRecord(rec)
-			.execute()
-			.onSuccess(v -> {
-				this.gmcError(ctx, 200, LoggingModule.ERROR_OK);
-			})
-			.onFailure(t -> {
-				this.gmcError(ctx, 500, t.getMessage() + ".ERR9999");
-			});
-	}
-
-	private void handleGmcClassicLog(final RoutingContext ctx) {
-		// /log.asp?id=UserAccountID+GeigerCounterID+CPM+ACPM+uSV
-		// ACPM and uSV optional
-		final String rawParams = ctx.request().getParam("id");
-
-		if (rawParams == null) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-			return;
-		}
-
-		final String[] splitParams = rawParams.split(" "); // netty parses the +
-
-		if (splitParams.length < 3 || splitParams.length > 5) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-			return;
-		}
-
-		final long userGmcId;
-		try {
-			userGmcId = Long.parseLong(splitParams[0]);
-		} catch (final NumberFormatException e) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-			return;
-		}
-
-		final long deviceGmcId;
-		try {
-			deviceGmcId = Long.parseLong(splitParams[1]);
-		} catch (final NumberFormatException e) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-			return;
-		}
+		this.registerRoute(HttpMethod.POST, LoggingModule.URADMONITOR_PATH, this::handleURadMonitor)
+			.pathRegex(LoggingModule.URADMONITOR_PATH + "/*");
 
-		final double cpm;
-		try {
-			cpm = Double.parseDouble(splitParams[2]);
-		} catch (final NumberFormatException e) {
-			this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-			return;
-		}
-
-		final double acpm;
-		if (splitParams.length > 3) {
-			try {
-				acpm = Double.parseDouble(splitParams[3]);
-			} catch (final NumberFormatException e) {
-				this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-				return;
-			}
-		} else {
-			acpm = Double.NaN;
-		}
-
-		final double usv;
-		if (splitParams.length > 3) {
-			try {
-				usv = Double.parseDouble(splitParams[4]);
-			} catch (final NumberFormatException e) {
-				this.gmcError(ctx, 400, LoggingModule.ERROR_SYNTAX);
-				return;
-			}
-		} else {
-			usv = Double.NaN;
-		}
-
-		final User user = this.srv.getDatabaseManager()
-			.getCollection(User.class)
-			.find(Filters.eq("gmcId", userGmcId))
-			.first();
-
-		if (user == null) {
-			this.gmcError(ctx, 404, LoggingModule.ERROR_USER_ID);
-			return;
-		}
-
-		final Device device = this.srv.getDatabaseManager()
-			.getCollection(Device.class)
-			.find(Filters.eq("gmcId", deviceGmcId))
-			.first();
-
-		if (device == null) {
-			this.gmcError(ctx, 404, LoggingModule.ERROR_DEVICE_ID);
-			return;
-		}
-
-		if (!user.getId().equals(device.getOwner())) {
-			this.gmcError(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
-
-		final Record rec = new Record();
-		rec.setDate(new Date());
-		rec.setAcpm(acpm);
-		rec.setCpm(cpm);
-		rec.setDeviceId(device.getId());
-		rec.setUsv(usv);
-
-		this.setRecordIp(ctx, rec);
-
-		this.log.debug("Inserting record using old log {}", rec);
-
-		this.srv.getLoggingManager()
-			.insertRecord()
-			.setDevice(device)
-			.setUser(user)
-			.setRecord(rec)
-			.execute()
-			.onSuccess(v -> {
-				this.gmcError(ctx, 200, LoggingModule.ERROR_OK);
-			})
-			.onFailure(t -> {
-				this.gmcError(ctx, 500, t.getMessage() + ".ERR9999");
-			});
+		this.registerStrictAuthedStreamRoute(HttpMethod.POST, "/upload/bulk", this::handleBulkUpload);
 	}
 
 	private void handleRadmon(final RoutingContext ctx) {
@@ -295,66 +113,42 @@ public class LoggingModule extends AbstractModule {
 			return;
 		}
 
-		final User user = this.srv.getDatabaseManager()
-			.getCollection(User.class)
-			.find(Filters.eq("gmcId", gmcUserId))
-			.first();
-		if (user == null) {
-			this.gmcError(ctx, 404, LoggingModule.ERROR_USER_ID);
-			return;
-		}
-
-		final Device device = this.srv.getDatabaseManager()
-			.getCollection(Device.class)
-			.find(Filters.eq("gmcId", gmcDeviceId))
-			.first();
-		if (device == null) {
-			this.gmcError(ctx, 404, LoggingModule.ERROR_DEVICE_ID);
-			return;
-		}
-
-		if (device.getOwner() == null) {
-			this.log.error("Device with no owner: {}", device.getId());
-			this.gmcError(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
-
-		if (!user.getId().equals(device.getOwner())) {
-			this.gmcError(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
+		this.resolveCredentials(ctx, gmcUserId, gmcDeviceId, true, creds -> {
+			final User user = creds.getUser();
+			final Device device = creds.getDevice();
 
-		if (ctx.request().getParam("value") == null) {
-			this.error(ctx, 400, "Invalid value");
-			return;
-		}
+			if (ctx.request().getParam("value") == null) {
+				this.error(ctx, 400, "Invalid value");
+				return;
+			}
 
-		final double cpm;
-		try {
-			cpm = Double.parseDouble(ctx.request().getParam("value"));
-		} catch (final NumberFormatException e) {
-			this.error(ctx, 400, "Invalid value");
-			return;
-		}
+			final double cpm;
+			try {
+				cpm = Double.parseDouble(ctx.request().getParam("value"));
+			} catch (final NumberFormatException e) {
+				this.error(ctx, 400, "Invalid value");
+				return;
+			}
 
-		final Record rec = new Record();
-		rec.setCpm(cpm);
-		rec.setDeviceId(device.getId());
-		rec.setDate(new Date());
-		this.setRecordIp(ctx, rec);
-
-		this.srv.getLoggingManager()
-			.insertRecord()
-			.setDevice(device)
-			.setUser(user)
-			.setRecord(rec)
-			.execute()
-			.onSuccess(v -> {
-				ctx.response().setStatusCode(200).end("OK<br>");
-			})
-			.onFailure(t -> {
-				this.error(ctx, 500, "Failed to insert record: " + t);
-			});
+			final Record rec = new Record();
+			rec.setCpm(cpm);
+			rec.setDeviceId(device.getId());
+			rec.setDate(new Date());
+			this.setRecordIp(ctx, rec);
+
+			this.srv.getLoggingManager()
+				.insertRecord()
+				.setDevice(device)
+				.setUser(user)
+				.setRecord(rec)
+				.execute()
+				.onSuccess(v -> {
+					ctx.response().setStatusCode(200).end("OK<br>");
+				})
+				.onFailure(t -> {
+					this.error(ctx, 500, "Failed to insert record: " + t);
+				});
+		});
 	}
 
 	private void handleSafecast(final RoutingContext ctx) {
@@ -376,88 +170,64 @@ public class LoggingModule extends AbstractModule {
 			return;
 		}
 
-		final User user = this.srv.getDatabaseManager()
-			.getCollection(User.class)
-			.find(Filters.eq("gmcId", gmcUserId))
-			.first();
-		if (user == null) {
-			this.error(ctx, 404, LoggingModule.ERROR_USER_ID);
-			return;
-		}
-
-		final Device device = this.srv.getDatabaseManager()
-			.getCollection(Device.class)
-			.find(Filters.eq("gmcId", gmcDeviceId))
-			.first();
-		if (device == null) {
-			this.error(ctx, 404, LoggingModule.ERROR_DEVICE_ID);
-			return;
-		}
+		this.resolveCredentials(ctx, gmcUserId, gmcDeviceId, false, creds -> {
+			final User user = creds.getUser();
+			final Device device = creds.getDevice();
 
-		if (device.getOwner() == null) {
-			this.log.error("Device with no owner: {}", device.getId());
-			this.error(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
-
-		if (!user.getId().equals(device.getOwner())) {
-			this.error(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
-
-		if (!"cpm".equals(obj.getString("unit"))) {
-			this.error(ctx, 400, "Value of `unit` must be `cpm`");
-			return;
-		}
+			if (!"cpm".equals(obj.getString("unit"))) {
+				this.error(ctx, 400, "Value of `unit` must be `cpm`");
+				return;
+			}
 
-		final Record r = new Record();
-		this.setRecordIp(ctx, r);
-		r.setDeviceId(device.getId());
+			final Record r = new Record();
+			this.setRecordIp(ctx, r);
+			r.setDeviceId(device.getId());
 
-		try {
-			final String rawDate = obj.getString("captured_at");
-			final Date date = LoggingModule.DATE_FORMAT_ISO_8601.parse(rawDate);
-			r.setDate(date);
-		} catch (final ClassCastException | ParseException e) {
-			this.error(ctx, 400, "Invalid date");
-			return;
-		}
+			try {
+				final String rawDate = obj.getString("captured_at");
+				final Date date = LoggingModule.DATE_FORMAT_ISO_8601.get().parse(rawDate);
+				r.setDate(date);
+			} catch (final ClassCastException | ParseException e) {
+				this.error(ctx, 400, "Invalid date");
+				return;
+			}
 
-		try {
-			final Double lon = obj.getDouble("longitude");
-			final Double lat = obj.getDouble("latitude");
-			if (lon == null || lat == null) {
-				this.error(ctx, 400, "Location is required");
+			try {
+				final Double lon = obj.getDouble("longitude");
+				final Double lat = obj.getDouble("latitude");
+				if (lon == null || lat == null) {
+					this.error(ctx, 400, "Location is required");
+					return;
+				}
+				r.setLocation(new Point(new Position(lon, lat)));
+			} catch (final ClassCastException e) {
+				this.error(ctx, 400, "Invalid location");
 				return;
 			}
-			r.setLocation(new Point(new Position(lon, lat)));
-		} catch (final ClassCastException e) {
-			this.error(ctx, 400, "Invalid location");
-			return;
-		}
 
-		try {
-			final Integer cpm = obj.getInteger("value");
-			if (cpm == null) {
-				this.error(ctx, 400, "Value is required");
+			try {
+				final Integer cpm = obj.getInteger("value");
+				if (cpm == null) {
+					this.error(ctx, 400, "Value is required");
+					return;
+				}
+				r.setCpm(cpm);
+			} catch (final ClassCastException e) {
+				this.error(ctx, 400, "Invalid value");
 				return;
 			}
-			r.setCpm(cpm);
-		} catch (final ClassCastException e) {
-			this.error(ctx, 400, "Invalid value");
-			return;
-		}
 
-		this.srv.getLoggingManager()
-			.insertRecord()
-			.setRecord(r)
-			.setDevice(device)
-			.setUser(user)
-			.execute()
-			.onSuccess(v -> this.error(ctx, 200, ""))
-			.onFailure(t -> {
-				this.error(ctx, 500, "Failed to insert record: " + t);
-			});
+			this.srv.getLoggingManager()
+				.insertRecord()
+				.setRecord(r)
+				.setDevice(device)
+				.setUser(user)
+				.execute()
+				.onSuccess(v -> this.error(ctx, 200, ""))
+				.onFailure(t -> {
+					this.error(ctx, 500, "Failed to insert record: " + t);
+				});
+		});
 	}
 
 	private void handleURadMonitor(final RoutingContext ctx) {
@@ -485,53 +255,99 @@ public class LoggingModule extends AbstractModule {
 			return;
 		}
 
-		final User user = this.srv.getDatabaseManager()
-			.getCollection(User.class)
-			.find(Filters.and(Filters.eq(userId), Filters.eq("gmcId", gmcUserId)))
-			.first();
-		if (user == null) {
-			this.error(ctx, 404, LoggingModule.ERROR_USER_ID);
-			return;
-		}
+		this.resolveCredentials(ctx, gmcUserId, gmcDeviceId, false, creds -> {
+			final User user = creds.getUser();
+			final Device device = creds.getDevice();
 
-		final Device device = this.srv.getDatabaseManager()
-			.getCollection(Device.class)
-			.find(Filters.eq("gmcId", gmcDeviceId))
-			.first();
-		if (device == null) {
-			this.error(ctx, 404, LoggingModule.ERROR_DEVICE_ID);
-			return;
-		}
-
-		if (device.getOwner() == null) {
-			this.log.error("Device with no owner: {}", device.getId());
-			this.error(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
+			if (!user.getId().equals(userId)) {
+				this.error(ctx, 404, LoggingModule.ERROR_USER_ID);
+				return;
+			}
 
-		if (!user.getId().equals(device.getOwner())) {
-			this.error(ctx, 403, LoggingModule.ERROR_DEVICE_NOT_OWNED);
-			return;
-		}
+			final String path = ctx.request().path();
+			final int exp = path.indexOf(LoggingModule.URADMONITOR_PATH);
+			final Record rec;
+			try {
+				rec = new Record.Builder()
+					.withURadMonitorUrl(path.substring(exp + LoggingModule.URADMONITOR_PATH.length()))
+					.build();
+			} catch (final IllegalArgumentException e) {
+				this.error(ctx, 400, "Invalid record: " + e.getMessage());
+				return;
+			}
+			rec.setDeviceId(device.getId());
+			this.setRecordIp(ctx, rec);
+
+			this.srv.getLoggingManager()
+				.insertRecord()
+				.setDevice(device)
+				.setUser(user)
+				.setRecord(rec)
+				.execute()
+				.onSuccess(v -> {
+					ctx.end(new JsonObject().put("success", "ok").toBuffer());
+				})
+				.onFailure(t -> {
+					this.error(ctx, 500, "Failed to insert record: " + t);
+				});
+		});
+	}
 
-		final Record rec = new Record.Builder().withURadMonitorUrl(ctx.request().absoluteURI()).build();
-		rec.setDeviceId(device.getId());
-		this.setRecordIp(ctx, rec);
+	/**
+	 * Uploads many records of owned devices in a NDJSON or CSV body (depending on
+	 * the {@code Content-Type}), typically to replay measurements made while
+	 * offline. The body is parsed as it arrives and inserted by batches.
+	 *
+	 * Responds with the number of inserted and rejected records, and the errors
+	 * of the first {@code upload.bulk.max-errors} rejected lines. Lines that
+	 * aren't listed and aren't empty were inserted.
+	 *
+	 * @see BulkRecordParser
+	 */
+	private void handleBulkUpload(final RoutingContext ctx) {
+		final String contentType = ctx.request().getHeader("Content-Type");
+		final BulkRecordParser parser = new BulkRecordParser(contentType != null && contentType.startsWith("text/csv")
+				? BulkRecordParser.Format.CSV
+				: BulkRecordParser.Format.NDJSON);
+		new BulkUpload(ctx, ctx.get(AuthHandler.USER_KEY), parser).start();
+	}
 
-		this.srv.getLoggingManager()
-			.insertRecord()
-			.setDevice(device)
-			.setUser(user)
-			.setRecord(rec)
+	/**
+	 * Resolves the user and device from their GMC IDs and replies with the
+	 * matching error if they are unknown or if the user doesn't own the device.
+	 */
+	private void resolveCredentials(final RoutingContext ctx, final long gmcUserId, final long gmcDeviceId,
+			final boolean gmcErrors, final Handler<Credentials> handler) {
+		this.srv.getCredentialsManager()
+			.resolveCredentials()
+			.setGmcUserId(gmcUserId)
+			.setGmcDeviceId(gmcDeviceId)
 			.execute()
-			.onSuccess(v -> {
-				ctx.end(new JsonObject().put("success", "ok").toBuffer());
+			.onSuccess(creds -> {
+				if (creds.getStatus() == Status.OK) {
+					handler.handle(creds);
+				} else {
+					this.credentialsError(ctx,
+							gmcErrors,
+							creds.getStatus().getHttpStatus(),
+							creds.getStatus().getDescription());
+				}
 			})
 			.onFailure(t -> {
-				this.error(ctx, 500, "Failed to insert record: " + t);
+				this.log.error("Failed to resolve credentials", t);
+				this.credentialsError(ctx, gmcErrors, 500, "Failed to resolve credentials");
 			});
 	}
 
+	private void credentialsError(final RoutingContext ctx, final boolean gmcError, final int status,
+			final String desc) {
+		if (gmcError) {
+			this.gmcError(ctx, status, desc);
+		} else {
+			this.error(ctx, status, desc);
+		}
+	}
+
 	private void setRecordIp(final RoutingContext ctx, final Record r) {
 		if (this.logIp) {
 			if (this.behindReverseProxy) {
@@ -561,7 +377,154 @@ public class LoggingModule extends AbstractModule {
 
 	protected List<Route> registerLogRoute(final HttpMethod method, final String path,
 			final Handler<RoutingContext> handler) {
-		return Arrays.asList(this.registerRoute(this.srv.getBaseRouter(), method, path, handler),
-				this.registerRoute(this.srv.getApiRouter(), method, path, handler));
+		return Arrays.asList(this.registerRoute(this.verticle.getBaseRouter(), method, path, handler),
+				this.registerRoute(this.verticle.getApiRouter(), method, path, handler));
+	}
+
+	private class BulkUpload {
+		private final RoutingContext ctx;
+		private final User user;
+		private final BulkRecordParser parser;
+		private final RecordParser lines;
+		/**
+		 * Owned devices, or why records for a device are refused
+		 */
+		private final Map<ObjectId, Object> devices = new HashMap<>();
+		private final JsonArray errors = new JsonArray();
+		private List<Record> batch = new ArrayList<>();
+		private List<Integer> batchLines = new ArrayList<>();
+		private int line, inserted, rejected;
+		private boolean failed;
+
+		private BulkUpload(final RoutingContext ctx, final User user, final BulkRecordParser parser) {
+			this.ctx = ctx;
+			this.user = user;
+			this.parser = parser;
+			this.lines = RecordParser.newDelimited("\n", ctx.request()).maxRecordSize(LoggingModule.this.bulkMaxLine);
+		}
+
+		private void start() {
+			this.lines.handler(this::handleLine);
+			this.lines.exceptionHandler(t -> {
+				if (this.failed) {
+					return;
+				}
+				this.failed = true;
+				LoggingModule.this.error(this.ctx, 400, "Failed to read line " + (this.line + 1) + ": " + t.getMessage());
+			});
+			this.lines.endHandler(v -> {
+				if (this.failed) {
+					return;
+				}
+				this.flush().onSuccess(f -> {
+					this.ctx.end(this.toResult().toBuffer());
+				});
+			});
+			this.ctx.request().resume();
+		}
+
+		private void handleLine(final Buffer buf) {
+			if (this.failed) {
+				return;
+			}
+			this.line++;
+			final Record rec;
+			try {
+				rec = this.parser.parse(buf.toString().trim());
+			} catch (final IllegalArgumentException e) {
+				if (this.parser.isHeaderInvalid()) {
+					// no following line can be parsed
+					this.failed = true;
+					LoggingModule.this.error(this.ctx, 400, "Invalid header: " + e.getMessage());
+					return;
+				}
+				this.addError(this.line, e.getMessage());
+				return;
+			}
+			if (rec == null) {
+				return;
+			}
+			LoggingModule.this.setRecordIp(this.ctx, rec);
+			this.batch.add(rec);
+			this.batchLines.add(this.line);
+
+			if (this.batch.size() >= LoggingModule.this.bulkBatchSize) {
+				this.lines.pause();
+				this.flush().onSuccess(v -> this.lines.resume());
+			}
+		}
+
+		/**
+		 * Checks the ownership of new devices then inserts the batch. Fails, after
+		 * responding, if the request can't continue.
+		 */
+		private Future<Void> flush() {
+			final List<Record> batch = this.batch;
+			final List<Integer> batchLines = this.batchLines;
+			this.batch = new ArrayList<>();
+			this.batchLines = new ArrayList<>();
+
+			@SuppressWarnings("rawtypes")
+			final List<Future> lookups = new ArrayList<>();
+			for (final Record rec : batch) {
+				if (!this.devices.containsKey(rec.getDeviceId())) {
+					this.devices.put(rec.getDeviceId(), "Device not found");
+					lookups.add(LoggingModule.this.srv.getDeviceManager()
+						.getDevice()
+						.setId(rec.getDeviceId())
+						.execute()
+						.onSuccess(dev -> this.devices.put(dev.getId(),
+								this.user.getId().equals(dev.getOwner()) ? dev : "User does not own device"))
+						.recover(t -> t instanceof EntityNotFoundException ? Future.succeededFuture()
+								: Future.failedFuture(t)));
+				}
+			}
+
+			return CompositeFuture.all(lookups).compose(c -> {
+				final List<Record> records = new ArrayList<>(batch.size());
+				final List<Integer> recordLines = new ArrayList<>(batch.size());
+				for (int i = 0; i < batch.size(); i++) {
+					final Object dev = this.devices.get(batch.get(i).getDeviceId());
+					if (dev instanceof Device) {
+						records.add(batch.get(i));
+						recordLines.add(batchLines.get(i));
+					} else {
+						this.addError(batchLines.get(i), (String) dev);
+					}
+				}
+
+				return LoggingModule.this.srv.getLoggingManager()
+					.bulkInsertRecords()
+					.setRecords(records)
+					.execute()
+					.onSuccess(errs -> {
+						for (final Map.Entry<Integer, String> e : errs.entrySet()) {
+							this.addError(recordLines.get(e.getKey()), e.getValue());
+						}
+						this.inserted += records.size() - errs.size();
+					})
+					.<Void>mapEmpty();
+			}).onFailure(t -> {
+				LoggingModule.this.log.error("Failed to insert bulk upload", t);
+				this.failed = true;
+				LoggingModule.this.error(this.ctx,
+						500,
+						"Failed to insert records after line " + this.line + ", " + this.inserted + " were inserted",
+						this.toResult());
+			});
+		}
+
+		private void addError(final int line, final String description) {
+			this.rejected++;
+			if (this.errors.size() < LoggingModule.this.bulkMaxErrors) {
+				this.errors.add(new JsonObject().put("line", line).put("description", description));
+			}
+		}
+
+		private JsonObject toResult() {
+			return new JsonObject().put("inserted", this.inserted)
+				.put("rejected", this.rejected)
+				.put("errors", this.errors);
+		}
 	}
 }
@@ -28,6 +28,7 @@ import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
 import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.HttpVerticle;
 import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.User;
 import me.vinceh121.gmcserver.exceptions.AuthenticationException;
@@ -36,8 +37,8 @@ import me.vinceh121.gmcserver.managers.UserManager;
 
 public class UserModule extends AbstractModule {
 
-	public UserModule(final GMCServer srv) {
-		super(srv);
+	public UserModule(final GMCServer srv, final HttpVerticle verticle) {
+		super(srv, verticle);
 		this.registerAuthedRoute(HttpMethod.GET, "/user/me", this::handleMe);
 		this.registerAuthedRoute(HttpMethod.GET, "/user/:id", this::handleUser);
 		this.registerStrictAuthedRoute(HttpMethod.PUT, "/user/me", this::handleUpdateMe);
@@ -29,7 +29,9 @@ import me.vinceh121.gmcserver.entities.Device;
 import me.vinceh121.gmcserver.entities.Record;
 
 public class SafecastProxy extends AbstractProxy {
-	private static final DateFormat DATE_FORMAT_ISO_8601 = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX");
+	// per thread as SimpleDateFormat isn't thread-safe
+	private static final ThreadLocal<DateFormat> DATE_FORMAT_ISO_8601
+			= ThreadLocal.withInitial(() -> new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSX"));
 
 	public SafecastProxy(final GMCServer srv) {
 		super(srv);
@@ -83,7 +85,7 @@ public class SafecastProxy extends AbstractProxy {
 				.as(BodyCodec.jsonObject())
 				.addQueryParam("api_key", String.valueOf(proxySettings.get("apiKey")))
 				.sendJsonObject(
-						new JsonObject().put("captured_at", SafecastProxy.DATE_FORMAT_ISO_8601.format(r.getDate()))
+						new JsonObject().put("captured_at", SafecastProxy.DATE_FORMAT_ISO_8601.get().format(r.getDate()))
 							.put("device_id", proxySettings.get("deviceId"))
 							.put("value", r.getCpm())
 							.put("unit", "cpm")
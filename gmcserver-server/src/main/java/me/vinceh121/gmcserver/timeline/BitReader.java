@@ -0,0 +1,65 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Reads what a {@link BitWriter} wrote.
+ */
+public class BitReader {
+	private final Buffer buffer;
+	private int pos, bitPos;
+
+	public BitReader(final Buffer buffer, final int pos) {
+		this.buffer = buffer;
+		this.pos = pos;
+	}
+
+	public boolean readBit() {
+		final boolean bit = (this.buffer.getByte(this.pos) >>> 7 - this.bitPos & 1) == 1;
+		this.bitPos++;
+		if (this.bitPos == 8) {
+			this.bitPos = 0;
+			this.pos++;
+		}
+		return bit;
+	}
+
+	public long readBits(final int count) {
+		long value = 0;
+		for (int i = 0; i < count; i++) {
+			value = value << 1 | (this.readBit() ? 1 : 0);
+		}
+		return value;
+	}
+
+	/**
+	 * Skips the padding of the current byte
+	 */
+	public void align() {
+		if (this.bitPos != 0) {
+			this.bitPos = 0;
+			this.pos++;
+		}
+	}
+
+	public int getPosition() {
+		return this.pos;
+	}
+}
@@ -0,0 +1,61 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import io.vertx.core.buffer.Buffer;
+
+/**
+ * Writes values bit by bit, most significant bit first, into a buffer.
+ */
+public class BitWriter {
+	private final Buffer buffer;
+	private long pending;
+	private int pendingBits;
+
+	public BitWriter(final Buffer buffer) {
+		this.buffer = buffer;
+	}
+
+	public void writeBit(final boolean bit) {
+		this.writeBits(bit ? 1 : 0, 1);
+	}
+
+	/**
+	 * Writes the {@code count} least significant bits of {@code value}
+	 */
+	public void writeBits(final long value, final int count) {
+		for (int i = count - 1; i >= 0; i--) {
+			this.pending = this.pending << 1 | value >>> i & 1;
+			this.pendingBits++;
+			if (this.pendingBits == 8) {
+				this.buffer.appendByte((byte) this.pending);
+				this.pending = 0;
+				this.pendingBits = 0;
+			}
+		}
+	}
+
+	/**
+	 * Pads the last byte with zeroes
+	 */
+	public void align() {
+		if (this.pendingBits != 0) {
+			this.writeBits(0, 8 - this.pendingBits);
+		}
+	}
+}
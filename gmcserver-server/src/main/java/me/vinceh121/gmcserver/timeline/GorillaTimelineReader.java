@@ -0,0 +1,155 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Decodes what {@link GorillaTimelineWriter} wrote.
+ */
+public class GorillaTimelineReader {
+	private final Buffer buf;
+	private int pos;
+
+	public GorillaTimelineReader(final Buffer buf) {
+		this.buf = buf;
+	}
+
+	public List<Record> read() {
+		if (this.buf.length() < 6 || !Arrays.equals(this.buf.getBytes(0, 4), GorillaTimelineWriter.MAGIC)) {
+			throw new IllegalArgumentException("Not a timeline");
+		}
+		if (this.buf.getByte(4) != GorillaTimelineWriter.VERSION) {
+			throw new IllegalArgumentException("Unsupported version " + this.buf.getByte(4));
+		}
+		final int fieldCount = this.buf.getUnsignedByte(5);
+		this.pos = 6;
+		final List<String> fields = new ArrayList<>(fieldCount);
+		for (int i = 0; i < fieldCount; i++) {
+			final int length = this.buf.getUnsignedByte(this.pos++);
+			fields.add(new String(this.buf.getBytes(this.pos, this.pos + length), StandardCharsets.UTF_8));
+			this.pos += length;
+		}
+
+		final List<Record> recs = new ArrayList<>();
+		int count;
+		while ((count = (int) this.readVarint()) != 0) {
+			final int blockStart = recs.size();
+			long prevDate = 0, prevDelta = 0;
+			for (int i = 0; i < count; i++) {
+				final long v = GorillaTimelineWriter.unzigzag(this.readVarint());
+				final long delta = i < 2 ? v : prevDelta + v;
+				prevDelta = i == 0 ? 0 : delta;
+				prevDate += delta;
+
+				final Record rec = new Record();
+				rec.setDate(new Date(prevDate));
+				recs.add(rec);
+			}
+
+			for (final String field : fields) {
+				final BitReader bits = new BitReader(this.buf, this.pos);
+				final boolean[] present = new boolean[count];
+				for (int i = 0; i < count; i++) {
+					present[i] = bits.readBit();
+				}
+				bits.align();
+
+				boolean first = true;
+				long prev = 0;
+				int leading = 0, trailing = 0;
+				for (int i = 0; i < count; i++) {
+					if (!present[i]) {
+						continue;
+					}
+					long value;
+					if (first) {
+						value = bits.readBits(64);
+						first = false;
+					} else if (!bits.readBit()) {
+						value = prev;
+					} else {
+						if (bits.readBit()) {
+							leading = (int) bits.readBits(6);
+							trailing = 64 - leading - ((int) bits.readBits(6) + 1);
+						}
+						value = prev ^ bits.readBits(64 - leading - trailing) << trailing;
+					}
+					prev = value;
+					GorillaTimelineReader.setField(recs.get(blockStart + i), field, Double.longBitsToDouble(value));
+				}
+				bits.align();
+				this.pos = bits.getPosition();
+			}
+		}
+		return recs;
+	}
+
+	private long readVarint() {
+		long value = 0;
+		int shift = 0;
+		byte b;
+		do {
+			b = this.buf.getByte(this.pos++);
+			value |= (long) (b & 0x7F) << shift;
+			shift += 7;
+		} while ((b & 0x80) != 0);
+		return value;
+	}
+
+	private static void setField(final Record rec, final String field, final double value) {
+		switch (field) {
+		case "cpm":
+			rec.setCpm(value);
+			break;
+		case "acpm":
+			rec.setAcpm(value);
+			break;
+		case "usv":
+			rec.setUsv(value);
+			break;
+		case "co2":
+			rec.setCo2(value);
+			break;
+		case "hcho":
+			rec.setHcho(value);
+			break;
+		case "tmp":
+			rec.setTmp(value);
+			break;
+		case "ap":
+			rec.setAp(value);
+			break;
+		case "hmdt":
+			rec.setHmdt(value);
+			break;
+		case "accy":
+			rec.setAccy(value);
+			break;
+		default:
+			// unknown fields from a newer writer are skipped
+		}
+	}
+}
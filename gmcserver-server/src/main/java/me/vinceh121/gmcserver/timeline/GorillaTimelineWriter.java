@@ -0,0 +1,180 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Streams a timeline in a compact, column oriented binary format.
+ *
+ * Records are grouped in blocks, each block is encoded and written to the
+ * stream once full so memory stays bounded whatever the size of the timeline.
+ *
+ * <pre>
+ * stream: "GMCT" version:u8 fieldCount:u8 (nameLength:u8 name:utf8)* block* 0:varint
+ * block:  count:varint dates fields*
+ * dates:  zigzag varint of the first date, then of the delta to the second
+ *         date, then of the delta-of-deltas
+ * field:  presence bitmap of count bits, then the present values XOR encoded
+ *         like Gorilla, padded to a byte
+ * </pre>
+ *
+ * Only the date and stat fields are encoded.
+ */
+public class GorillaTimelineWriter {
+	public static final String CONTENT_TYPE = "application/vnd.gmcserver.timeline+gorilla";
+	public static final byte[] MAGIC = { 'G', 'M', 'C', 'T' };
+	public static final int VERSION = 1;
+	public static final int DEFAULT_BLOCK_SIZE = 1024;
+	private final WriteStream<Buffer> stream;
+	private final List<String> fields;
+	private final long[] dates;
+	private final double[][] values;
+	private int count;
+
+	public GorillaTimelineWriter(final WriteStream<Buffer> stream) {
+		this(stream, GorillaTimelineWriter.DEFAULT_BLOCK_SIZE);
+	}
+
+	public GorillaTimelineWriter(final WriteStream<Buffer> stream, final int blockSize) {
+		this.stream = stream;
+		this.fields = new ArrayList<>(Record.STAT_FIELDS);
+		this.dates = new long[blockSize];
+		this.values = new double[this.fields.size()][blockSize];
+	}
+
+	public void start() {
+		final Buffer buf = Buffer.buffer();
+		buf.appendBytes(GorillaTimelineWriter.MAGIC);
+		buf.appendByte((byte) GorillaTimelineWriter.VERSION);
+		buf.appendByte((byte) this.fields.size());
+		for (final String f : this.fields) {
+			final byte[] name = f.getBytes(StandardCharsets.UTF_8);
+			buf.appendByte((byte) name.length);
+			buf.appendBytes(name);
+		}
+		this.stream.write(buf);
+	}
+
+	public void write(final Record rec) {
+		this.dates[this.count] = rec.getDate() == null ? 0 : rec.getDate().getTime();
+		for (int i = 0; i < this.fields.size(); i++) {
+			this.values[i][this.count] = rec.getStatField(this.fields.get(i));
+		}
+		this.count++;
+		if (this.count == this.dates.length) {
+			this.flush();
+		}
+	}
+
+	/**
+	 * Writes the last block and the end marker, without ending the stream.
+	 */
+	public void end() {
+		this.flush();
+		this.stream.write(Buffer.buffer(1).appendByte((byte) 0));
+	}
+
+	private void flush() {
+		if (this.count == 0) {
+			return;
+		}
+		// around 2 bytes per date and per field value for a regular device
+		final Buffer buf = Buffer.buffer(this.count * (2 + 2 * this.fields.size()));
+		GorillaTimelineWriter.writeVarint(buf, this.count);
+
+		long prevDate = 0, prevDelta = 0;
+		for (int i = 0; i < this.count; i++) {
+			final long delta = this.dates[i] - prevDate;
+			GorillaTimelineWriter.writeVarint(buf, GorillaTimelineWriter.zigzag(i < 2 ? delta : delta - prevDelta));
+			prevDelta = i == 0 ? 0 : delta;
+			prevDate = this.dates[i];
+		}
+
+		for (final double[] column : this.values) {
+			final BitWriter bits = new BitWriter(buf);
+			for (int i = 0; i < this.count; i++) {
+				bits.writeBit(!Double.isNaN(column[i]));
+			}
+			bits.align();
+
+			boolean first = true;
+			long prev = 0;
+			int prevLeading = -1, prevTrailing = 0;
+			for (int i = 0; i < this.count; i++) {
+				if (Double.isNaN(column[i])) {
+					continue;
+				}
+				final long value = Double.doubleToRawLongBits(column[i]);
+				if (first) {
+					bits.writeBits(value, 64);
+					first = false;
+				} else {
+					final long xor = value ^ prev;
+					if (xor == 0) {
+						bits.writeBit(false);
+					} else {
+						bits.writeBit(true);
+						final int leading = Long.numberOfLeadingZeros(xor);
+						final int trailing = Long.numberOfTrailingZeros(xor);
+						if (prevLeading != -1 && leading >= prevLeading && trailing >= prevTrailing) {
+							// fits in the previous meaningful window
+							bits.writeBit(false);
+							bits.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+						} else {
+							final int meaningful = 64 - leading - trailing;
+							bits.writeBit(true);
+							bits.writeBits(leading, 6);
+							bits.writeBits(meaningful - 1, 6);
+							bits.writeBits(xor >>> trailing, meaningful);
+							prevLeading = leading;
+							prevTrailing = trailing;
+						}
+					}
+				}
+				prev = value;
+			}
+			bits.align();
+		}
+
+		this.count = 0;
+		this.stream.write(buf);
+	}
+
+	static long zigzag(final long value) {
+		return value << 1 ^ value >> 63;
+	}
+
+	static long unzigzag(final long value) {
+		return value >>> 1 ^ -(value & 1);
+	}
+
+	static void writeVarint(final Buffer buf, long value) {
+		while ((value & ~0x7FL) != 0) {
+			buf.appendByte((byte) (value & 0x7F | 0x80));
+			value >>>= 7;
+		}
+		buf.appendByte((byte) value);
+	}
+}
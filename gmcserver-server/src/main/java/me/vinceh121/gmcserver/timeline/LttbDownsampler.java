@@ -0,0 +1,151 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import io.vertx.core.Handler;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Largest-Triangle-Three-Buckets downsampling. The first and last records are
+ * always kept, and one record per bucket is picked in between: the one forming
+ * the largest triangle with the previously picked record and the average of
+ * the next bucket.
+ *
+ * Holds the records of two buckets at most. With fewer than 3 points, only the
+ * first and last records are kept.
+ */
+public class LttbDownsampler extends TimelineDownsampler {
+	/**
+	 * Complete bucket waiting for the next one's average
+	 */
+	private List<Record> pending = new ArrayList<>();
+	/**
+	 * Bucket being filled
+	 */
+	private List<Record> filling = new ArrayList<>();
+	private long fillingBucket = -1;
+	private double fillingSumX, fillingSumY;
+	private int fillingCountY;
+	private Record previous;
+	/**
+	 * Whether there's no room for buckets between the first and last records
+	 */
+	private final boolean edgesOnly;
+
+	public LttbDownsampler(final long newest, final long oldest, final int points, final String field,
+			final Handler<Record> output) {
+		// the first and last records are kept outside of buckets
+		super(newest, oldest, Math.max(3, points) - 2, field, output);
+		this.edgesOnly = points < 3;
+	}
+
+	@Override
+	public void add(final Record rec) {
+		if (this.previous == null) {
+			this.previous = rec;
+			this.output.handle(rec);
+			return;
+		}
+
+		if (this.edgesOnly) {
+			this.filling.clear();
+			this.filling.add(rec);
+			return;
+		}
+
+		final long bucket = this.getBucket(rec);
+		if (bucket != this.fillingBucket && !this.filling.isEmpty()) {
+			if (!this.pending.isEmpty()) {
+				this.select(this.pending, this.getAverageX(), this.getAverageY());
+			}
+			final List<Record> oldPending = this.pending;
+			this.pending = this.filling;
+			this.filling = oldPending;
+			this.filling.clear();
+			this.fillingSumX = 0;
+			this.fillingSumY = 0;
+			this.fillingCountY = 0;
+		}
+		this.fillingBucket = bucket;
+		this.filling.add(rec);
+		this.fillingSumX += rec.getDate().getTime();
+		final double y = this.getValue(rec);
+		if (!Double.isNaN(y)) {
+			this.fillingSumY += y;
+			this.fillingCountY++;
+		}
+	}
+
+	@Override
+	public void end() {
+		if (this.filling.isEmpty()) {
+			return;
+		}
+
+		final Record last = this.filling.remove(this.filling.size() - 1);
+		final double lastY = this.getValue(last);
+		this.fillingSumX -= last.getDate().getTime();
+		if (!Double.isNaN(lastY)) {
+			this.fillingSumY -= lastY;
+			this.fillingCountY--;
+		}
+		if (!this.pending.isEmpty()) {
+			if (this.filling.isEmpty()) {
+				// the last record is all there is after the pending bucket
+				this.select(this.pending, last.getDate().getTime(), lastY);
+			} else {
+				this.select(this.pending, this.getAverageX(), this.getAverageY());
+			}
+		}
+		if (!this.filling.isEmpty()) {
+			this.select(this.filling, last.getDate().getTime(), lastY);
+		}
+		this.output.handle(last);
+	}
+
+	private double getAverageX() {
+		return this.fillingSumX / this.filling.size();
+	}
+
+	private double getAverageY() {
+		return this.fillingCountY == 0 ? Double.NaN : this.fillingSumY / this.fillingCountY;
+	}
+
+	private void select(final List<Record> bucket, final double nextX, final double nextY) {
+		final double prevX = this.previous.getDate().getTime();
+		final double prevY = this.getValue(this.previous);
+
+		Record selected = bucket.get(0);
+		double maxArea = -1;
+		for (final Record rec : bucket) {
+			// twice the triangle's area, which is enough to compare them
+			final double area = Math.abs((prevX - nextX) * (this.getValue(rec) - prevY)
+					- (prevX - rec.getDate().getTime()) * (nextY - prevY));
+			if (area > maxArea) {
+				maxArea = area;
+				selected = rec;
+			}
+		}
+
+		this.previous = selected;
+		this.output.handle(selected);
+	}
+}
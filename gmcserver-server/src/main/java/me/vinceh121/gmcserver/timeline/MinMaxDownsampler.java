@@ -0,0 +1,81 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import io.vertx.core.Handler;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Keeps the records with the lowest and highest values of each bucket, so that
+ * peaks are never hidden. Emits up to two records per bucket, and none for
+ * buckets without values.
+ *
+ * Uses constant memory.
+ */
+public class MinMaxDownsampler extends TimelineDownsampler {
+	private long bucket = -1;
+	private Record min, max;
+
+	public MinMaxDownsampler(final long newest, final long oldest, final int points, final String field,
+			final Handler<Record> output) {
+		super(newest, oldest, Math.max(1, points / 2), field, output);
+	}
+
+	@Override
+	public void add(final Record rec) {
+		final long recBucket = this.getBucket(rec);
+		if (recBucket != this.bucket) {
+			this.flush();
+			this.bucket = recBucket;
+		}
+
+		final double value = this.getValue(rec);
+		if (Double.isNaN(value)) {
+			return;
+		}
+		if (this.min == null || value < this.getValue(this.min)) {
+			this.min = rec;
+		}
+		if (this.max == null || value > this.getValue(this.max)) {
+			this.max = rec;
+		}
+	}
+
+	@Override
+	public void end() {
+		this.flush();
+	}
+
+	private void flush() {
+		if (this.min == null) {
+			return;
+		}
+
+		if (this.min == this.max) {
+			this.output.handle(this.min);
+		} else if (this.min.getDate().after(this.max.getDate())) {
+			this.output.handle(this.min);
+			this.output.handle(this.max);
+		} else {
+			this.output.handle(this.max);
+			this.output.handle(this.min);
+		}
+		this.min = null;
+		this.max = null;
+	}
+}
@@ -0,0 +1,257 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.event.RecordCodec;
+
+/**
+ * Latest records of a device, sorted by date, stored in primitive arrays
+ * rather than as {@link Record} objects. Once full, adding a record evicts the
+ * oldest one.
+ *
+ * A ring holds every record of its device dated after its oldest record, so
+ * it can answer queries which don't reach further back, or any query if it
+ * holds all the records of its device.
+ */
+public class RecordRing {
+	private static final int ID_SIZE = 12, FIELDS = Record.STAT_FIELDS.size(), COORDS = 3;
+	private final ObjectId deviceId;
+	private final int capacity;
+	private final byte[] ids;
+	private final long[] dates;
+	private final double[] values, coords;
+	private final byte[] coordCounts;
+	private final String[] ips, types;
+	/**
+	 * physical index of the oldest record
+	 */
+	private int head, size;
+	private boolean loaded, loadedAll, evicted;
+
+	public RecordRing(final ObjectId deviceId, final int capacity) {
+		this.deviceId = deviceId;
+		this.capacity = capacity;
+		this.ids = new byte[capacity * RecordRing.ID_SIZE];
+		this.dates = new long[capacity];
+		this.values = new double[capacity * RecordRing.FIELDS];
+		this.coords = new double[capacity * RecordRing.COORDS];
+		this.coordCounts = new byte[capacity];
+		this.ips = new String[capacity];
+		this.types = new String[capacity];
+	}
+
+	/**
+	 * @return approximate heap size of a ring of the given capacity, in bytes
+	 */
+	public static long getMemorySize(final int capacity) {
+		// arrays, with 4 bytes references, plus headers
+		return (long) capacity * (RecordRing.ID_SIZE + 8 + 8 * RecordRing.FIELDS + 8 * RecordRing.COORDS + 1 + 4 + 4)
+				+ 8 * 16 + 64;
+	}
+
+	/**
+	 * Adds the records of the device read from the database, after which the
+	 * ring answers queries.
+	 *
+	 * @param recs the device's latest records, at most {@link #getCapacity()}
+	 */
+	public synchronized void load(final List<Record> recs) {
+		for (final Record rec : recs) {
+			this.add(rec);
+		}
+		this.loadedAll = recs.size() < this.capacity;
+		this.loaded = true;
+	}
+
+	/**
+	 * Adds a record, unless a record with the same ID is already present.
+	 */
+	public synchronized void add(final Record rec) {
+		final long date = RecordRing.getTime(rec);
+		final byte[] id = rec.getId().toByteArray();
+
+		// number of records dated before or at the same time as rec
+		int pos = this.size;
+		while (pos > 0 && this.dates[this.physical(pos - 1)] >= date) {
+			if (this.dates[this.physical(pos - 1)] == date && this.idEquals(this.physical(pos - 1), id)) {
+				return;
+			}
+			pos--;
+		}
+
+		if (this.size == this.capacity) {
+			this.evicted = true;
+			if (pos == 0) {
+				return;
+			}
+			this.head = (this.head + 1) % this.capacity;
+			this.size--;
+			pos--;
+		}
+
+		for (int i = this.size; i > pos; i--) {
+			this.copy(this.physical(i - 1), this.physical(i));
+		}
+		this.size++;
+		this.set(this.physical(pos), rec, id, date);
+	}
+
+	/**
+	 * @return the newest record, or null if the ring isn't loaded or is empty
+	 */
+	public synchronized Record getLatest() {
+		if (!this.loaded || this.size == 0) {
+			return null;
+		}
+		return this.get(this.physical(this.size - 1));
+	}
+
+	/**
+	 * @param start     earliest date, inclusive, or null
+	 * @param end       latest date, inclusive, or null
+	 * @param limit     max number of records, 0 for no limit
+	 * @param ascending sort from oldest to newest instead of newest to oldest
+	 * @return the records, or null if this ring can't tell them all
+	 */
+	public synchronized List<Record> query(final Date start, final Date end, final int limit,
+			final boolean ascending) {
+		if (!this.loaded) {
+			return null;
+		}
+		final boolean all = this.loadedAll && !this.evicted;
+		final long from = start == null ? Long.MIN_VALUE : start.getTime();
+		final long to = end == null ? Long.MAX_VALUE : end.getTime();
+		if (!all) {
+			if (start != null) {
+				// records dated like the oldest one might have been evicted
+				if (this.size == 0 || from <= this.dates[this.head]) {
+					return null;
+				}
+			} else if (limit <= 0 || ascending) {
+				return null;
+			}
+		}
+
+		final List<Record> recs = new ArrayList<>();
+		for (int i = 0; i < this.size && (limit <= 0 || recs.size() < limit); i++) {
+			final int phys = this.physical(ascending ? i : this.size - 1 - i);
+			if (this.dates[phys] >= from && this.dates[phys] <= to) {
+				recs.add(this.get(phys));
+			}
+		}
+
+		if (!all && start == null && recs.size() < limit) {
+			// older records are needed
+			return null;
+		}
+		return recs;
+	}
+
+	public synchronized int size() {
+		return this.size;
+	}
+
+	public ObjectId getDeviceId() {
+		return this.deviceId;
+	}
+
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	public synchronized boolean isLoaded() {
+		return this.loaded;
+	}
+
+	private int physical(final int index) {
+		return (this.head + index) % this.capacity;
+	}
+
+	private boolean idEquals(final int phys, final byte[] id) {
+		final int off = phys * RecordRing.ID_SIZE;
+		for (int i = 0; i < RecordRing.ID_SIZE; i++) {
+			if (this.ids[off + i] != id[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private void set(final int phys, final Record rec, final byte[] id, final long date) {
+		System.arraycopy(id, 0, this.ids, phys * RecordRing.ID_SIZE, RecordRing.ID_SIZE);
+		this.dates[phys] = date;
+		System.arraycopy(RecordCodec.getValues(rec), 0, this.values, phys * RecordRing.FIELDS, RecordRing.FIELDS);
+		int count = 0;
+		if (rec.getLocation() != null) {
+			final List<Double> c = rec.getLocation().getCoordinates().getValues();
+			count = Math.min(c.size(), RecordRing.COORDS);
+			for (int i = 0; i < count; i++) {
+				this.coords[phys * RecordRing.COORDS + i] = c.get(i);
+			}
+		}
+		this.coordCounts[phys] = (byte) count;
+		this.ips[phys] = rec.getIp();
+		this.types[phys] = rec.getType();
+	}
+
+	private void copy(final int from, final int to) {
+		System.arraycopy(this.ids, from * RecordRing.ID_SIZE, this.ids, to * RecordRing.ID_SIZE, RecordRing.ID_SIZE);
+		this.dates[to] = this.dates[from];
+		System.arraycopy(this.values, from * RecordRing.FIELDS, this.values, to * RecordRing.FIELDS, RecordRing.FIELDS);
+		System.arraycopy(this.coords, from * RecordRing.COORDS, this.coords, to * RecordRing.COORDS, RecordRing.COORDS);
+		this.coordCounts[to] = this.coordCounts[from];
+		this.ips[to] = this.ips[from];
+		this.types[to] = this.types[from];
+	}
+
+	private Record get(final int phys) {
+		final Record rec = new Record();
+		rec.setId(new ObjectId(ByteBuffer.wrap(this.ids, phys * RecordRing.ID_SIZE, RecordRing.ID_SIZE)));
+		rec.setDeviceId(this.deviceId);
+		rec.setDate(new Date(this.dates[phys]));
+		final double[] vals = new double[RecordRing.FIELDS];
+		System.arraycopy(this.values, phys * RecordRing.FIELDS, vals, 0, RecordRing.FIELDS);
+		RecordCodec.setValues(rec, vals);
+		final int count = this.coordCounts[phys];
+		if (count != 0) {
+			final List<Double> c = new ArrayList<>(count);
+			for (int i = 0; i < count; i++) {
+				c.add(this.coords[phys * RecordRing.COORDS + i]);
+			}
+			rec.setLocation(new Point(new Position(c)));
+		}
+		rec.setIp(this.ips[phys]);
+		rec.setType(this.types[phys]);
+		return rec;
+	}
+
+	private static long getTime(final Record rec) {
+		return rec.getDate() == null ? 0 : rec.getDate().getTime();
+	}
+}
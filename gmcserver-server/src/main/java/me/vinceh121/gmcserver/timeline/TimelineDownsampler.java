@@ -0,0 +1,82 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package me.vinceh121.gmcserver.timeline;
+
+import io.vertx.core.Handler;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Reduces a timeline to about a given number of points, as records are
+ * streamed in descending date order.
+ *
+ * The timeline's time range is split into buckets of equal duration, and
+ * records are picked from each bucket. Only the records of the buckets being
+ * processed are kept in memory.
+ */
+public abstract class TimelineDownsampler {
+	public static final String MODE_LTTB = "lttb", MODE_MIN_MAX = "minmax";
+	protected final String field;
+	protected final Handler<Record> output;
+	private final long newest;
+	private final double bucketWidth;
+
+	/**
+	 * @param newest  date of the newest record of the timeline
+	 * @param oldest  date of the oldest record of the timeline
+	 * @param buckets number of buckets to split the timeline in
+	 * @param field   stat field used to pick records
+	 * @param output  handler receiving picked records, in descending date order
+	 */
+	protected TimelineDownsampler(final long newest, final long oldest, final int buckets, final String field,
+			final Handler<Record> output) {
+		this.newest = newest;
+		this.bucketWidth = Math.max(1d, (double) (newest - oldest + 1) / Math.max(1, buckets));
+		this.field = field;
+		this.output = output;
+	}
+
+	public abstract void add(Record rec);
+
+	/**
+	 * Flushes the records held back, must be called once all records were added.
+	 */
+	public abstract void end();
+
+	protected long getBucket(final Record rec) {
+		return (long) ((this.newest - rec.getDate().getTime()) / this.bucketWidth);
+	}
+
+	protected double getValue(final Record rec) {
+		return rec.getStatField(this.field);
+	}
+
+	/**
+	 * @throws IllegalArgumentException if the mode is unknown
+	 */
+	public static TimelineDownsampler create(final String mode, final long newest, final long oldest,
+			final int points, final String field, final Handler<Record> output) {
+		switch (mode) {
+		case MODE_LTTB:
+			return new LttbDownsampler(newest, oldest, points, field, output);
+		case MODE_MIN_MAX:
+			return new MinMaxDownsampler(newest, oldest, points, field, output);
+		default:
+			throw new IllegalArgumentException("Unknown downsampling mode: " + mode);
+		}
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.List;
+import java.util.function.BiFunction;
+import java.util.function.Predicate;
+
+import org.mockito.Mockito;
+
+import io.vertx.core.Future;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.entities.User;
+import me.vinceh121.gmcserver.managers.CredentialsManager;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Credentials;
+import me.vinceh121.gmcserver.managers.CredentialsManager.ResolveCredentialsAction;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Status;
+import me.vinceh121.gmcserver.managers.LoggingManager;
+import me.vinceh121.gmcserver.managers.LoggingManager.InsertRecordAction;
+
+/**
+ * Mocked managers for the tests of the ingestion endpoints
+ */
+final class IngestMocks {
+	private IngestMocks() {
+	}
+
+	/**
+	 * Mocks credentials where user 123 owns device 456 and nothing else
+	 */
+	static void mockCredentials(final GMCServer srv, final Device device) {
+		IngestMocks.mockCredentials(srv,
+				device,
+				(gmcUserId, gmcDeviceId) -> gmcUserId == 123 && gmcDeviceId == 456 ? Status.OK : Status.NOT_OWNED);
+	}
+
+	/**
+	 * @param status status of the credentials by GMC user ID and device ID
+	 */
+	static void mockCredentials(final GMCServer srv, final Device device,
+			final BiFunction<Long, Long, Status> status) {
+		final CredentialsManager credentials = Mockito.mock(CredentialsManager.class);
+		Mockito.when(srv.getCredentialsManager()).thenReturn(credentials);
+		Mockito.when(credentials.resolveCredentials()).thenAnswer(inv -> {
+			final ResolveCredentialsAction action = Mockito.mock(ResolveCredentialsAction.class, Mockito.RETURNS_SELF);
+			Mockito.when(action.execute()).thenAnswer(e -> {
+				final Status st = status.apply(action.getGmcUserId(), action.getGmcDeviceId());
+				final Credentials creds = Mockito.mock(Credentials.class);
+				Mockito.when(creds.getStatus()).thenReturn(st);
+				Mockito.when(creds.getDevice()).thenReturn(device);
+				Mockito.when(creds.getUser()).thenReturn(new User());
+				return Future.succeededFuture(creds);
+			});
+			Mockito.doAnswer(e -> {
+				Mockito.when(action.getGmcUserId()).thenReturn(e.getArgument(0));
+				return action;
+			}).when(action).setGmcUserId(Mockito.anyLong());
+			Mockito.doAnswer(e -> {
+				Mockito.when(action.getGmcDeviceId()).thenReturn(e.getArgument(0));
+				return action;
+			}).when(action).setGmcDeviceId(Mockito.anyLong());
+			return action;
+		});
+	}
+
+	/**
+	 * Mocks record insertions, adding every record to {@code inserted}
+	 *
+	 * @param fails whether the insertion of a record fails, checked when it's
+	 *              executed
+	 */
+	static void mockInserts(final GMCServer srv, final List<Record> inserted, final Predicate<Record> fails) {
+		final LoggingManager logging = Mockito.mock(LoggingManager.class);
+		Mockito.when(srv.getLoggingManager()).thenReturn(logging);
+		Mockito.when(logging.insertRecord()).thenAnswer(inv -> {
+			final InsertRecordAction action = Mockito.mock(InsertRecordAction.class, Mockito.RETURNS_SELF);
+			final Record[] rec = new Record[1];
+			Mockito.doAnswer(e -> {
+				rec[0] = e.getArgument(0);
+				inserted.add(rec[0]);
+				return action;
+			}).when(action).setRecord(Mockito.any());
+			Mockito.when(action.execute())
+				.thenAnswer(e -> fails.test(rec[0]) ? Future.failedFuture("Database down") : Future.succeededFuture());
+			return action;
+		});
+	}
+}
@@ -0,0 +1,357 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.shareddata.AsyncMap;
+import io.vertx.core.shareddata.Counter;
+import io.vertx.core.shareddata.Lock;
+import io.vertx.core.shareddata.impl.AsynchronousCounter;
+import io.vertx.core.spi.cluster.ClusterManager;
+import io.vertx.core.spi.cluster.NodeInfo;
+import io.vertx.core.spi.cluster.NodeListener;
+import io.vertx.core.spi.cluster.NodeSelector;
+import io.vertx.core.spi.cluster.RegistrationInfo;
+import io.vertx.core.spi.cluster.RegistrationUpdateEvent;
+
+/**
+ * Cluster manager whose nodes are Vert.x instances of the same JVM.
+ *
+ * The event bus still goes through TCP between nodes, so this can stand in for
+ * a real cluster manager in tests. Relies on Vert.x internals, so it must not
+ * be used outside of tests.
+ */
+public class LocalClusterManager implements ClusterManager {
+	private static final Map<String, LocalClusterManager> NODES = new ConcurrentHashMap<>();
+	private static final Map<String, NodeInfo> NODE_INFOS = new ConcurrentHashMap<>();
+	private static final Map<String, List<RegistrationInfo>> REGISTRATIONS = new HashMap<>();
+	private static final ConcurrentMap<String, Map<Object, Object>> ASYNC_MAPS = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Map<Object, Object>> SYNC_MAPS = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, Semaphore> LOCKS = new ConcurrentHashMap<>();
+	private static final ConcurrentMap<String, AtomicLong> COUNTERS = new ConcurrentHashMap<>();
+	private final String nodeId = UUID.randomUUID().toString();
+	private VertxInternal vertx;
+	private NodeSelector nodeSelector;
+	private NodeListener nodeListener;
+	private NodeInfo nodeInfo;
+	private volatile boolean active;
+
+	@Override
+	public void init(final Vertx vertx, final NodeSelector nodeSelector) {
+		this.vertx = (VertxInternal) vertx;
+		this.nodeSelector = nodeSelector;
+	}
+
+	@Override
+	public void join(final Promise<Void> promise) {
+		this.vertx.<Void>executeBlocking(p -> {
+			for (final LocalClusterManager other : LocalClusterManager.NODES.values()) {
+				other.fireNodeAdded(this.nodeId);
+			}
+			LocalClusterManager.NODES.put(this.nodeId, this);
+			this.active = true;
+			p.complete();
+		}, false, promise);
+	}
+
+	@Override
+	public void leave(final Promise<Void> promise) {
+		this.vertx.<Void>executeBlocking(p -> {
+			this.active = false;
+			LocalClusterManager.NODES.remove(this.nodeId);
+			LocalClusterManager.NODE_INFOS.remove(this.nodeId);
+			final Set<String> updated = new HashSet<>();
+			synchronized (LocalClusterManager.REGISTRATIONS) {
+				for (final Map.Entry<String, List<RegistrationInfo>> e : LocalClusterManager.REGISTRATIONS.entrySet()) {
+					if (e.getValue().removeIf(r -> this.nodeId.equals(r.nodeId()))) {
+						updated.add(e.getKey());
+					}
+				}
+			}
+			for (final String address : updated) {
+				LocalClusterManager.fireRegistrationsUpdated(address);
+			}
+			for (final LocalClusterManager other : LocalClusterManager.NODES.values()) {
+				other.fireNodeLeft(this.nodeId);
+			}
+			p.complete();
+		}, false, promise);
+	}
+
+	@Override
+	public boolean isActive() {
+		return this.active;
+	}
+
+	@Override
+	public String getNodeId() {
+		return this.nodeId;
+	}
+
+	@Override
+	public List<String> getNodes() {
+		return new ArrayList<>(LocalClusterManager.NODES.keySet());
+	}
+
+	@Override
+	public void nodeListener(final NodeListener listener) {
+		this.nodeListener = listener;
+	}
+
+	@Override
+	public void setNodeInfo(final NodeInfo nodeInfo, final Promise<Void> promise) {
+		this.nodeInfo = nodeInfo;
+		LocalClusterManager.NODE_INFOS.put(this.nodeId, nodeInfo);
+		promise.complete();
+	}
+
+	@Override
+	public NodeInfo getNodeInfo() {
+		return this.nodeInfo;
+	}
+
+	@Override
+	public void getNodeInfo(final String nodeId, final Promise<NodeInfo> promise) {
+		final NodeInfo info = LocalClusterManager.NODE_INFOS.get(nodeId);
+		if (info == null) {
+			promise.fail("Not a member of the cluster");
+		} else {
+			promise.complete(info);
+		}
+	}
+
+	@Override
+	public void addRegistration(final String address, final RegistrationInfo registrationInfo,
+			final Promise<Void> promise) {
+		synchronized (LocalClusterManager.REGISTRATIONS) {
+			LocalClusterManager.REGISTRATIONS.computeIfAbsent(address, a -> new ArrayList<>()).add(registrationInfo);
+		}
+		promise.complete();
+		LocalClusterManager.fireRegistrationsUpdated(address);
+	}
+
+	@Override
+	public void removeRegistration(final String address, final RegistrationInfo registrationInfo,
+			final Promise<Void> promise) {
+		synchronized (LocalClusterManager.REGISTRATIONS) {
+			final List<RegistrationInfo> infos = LocalClusterManager.REGISTRATIONS.get(address);
+			if (infos != null) {
+				infos.remove(registrationInfo);
+				if (infos.isEmpty()) {
+					LocalClusterManager.REGISTRATIONS.remove(address);
+				}
+			}
+		}
+		promise.complete();
+		LocalClusterManager.fireRegistrationsUpdated(address);
+	}
+
+	@Override
+	public void getRegistrations(final String address, final Promise<List<RegistrationInfo>> promise) {
+		promise.complete(LocalClusterManager.getRegistrations(address));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <K, V> void getAsyncMap(final String name, final Promise<AsyncMap<K, V>> promise) {
+		promise.complete(new LocalAsyncMap<>(this.vertx,
+				(Map<K, V>) LocalClusterManager.ASYNC_MAPS.computeIfAbsent(name, n -> new ConcurrentHashMap<>())));
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public <K, V> Map<K, V> getSyncMap(final String name) {
+		return (Map<K, V>) LocalClusterManager.SYNC_MAPS.computeIfAbsent(name, n -> new ConcurrentHashMap<>());
+	}
+
+	@Override
+	public void getLockWithTimeout(final String name, final long timeout, final Promise<Lock> promise) {
+		final Semaphore sem = LocalClusterManager.LOCKS.computeIfAbsent(name, n -> new Semaphore(1));
+		this.vertx.<Lock>executeBlocking(p -> {
+			try {
+				if (sem.tryAcquire(timeout, TimeUnit.MILLISECONDS)) {
+					// releasing twice must not let two holders in
+					final AtomicBoolean released = new AtomicBoolean();
+					p.complete(() -> {
+						if (released.compareAndSet(false, true)) {
+							sem.release();
+						}
+					});
+				} else {
+					p.fail("Timed out waiting to get lock " + name);
+				}
+			} catch (final InterruptedException e) {
+				p.fail(e);
+			}
+		}, false, promise);
+	}
+
+	@Override
+	public void getCounter(final String name, final Promise<Counter> promise) {
+		promise.complete(new AsynchronousCounter(this.vertx,
+				LocalClusterManager.COUNTERS.computeIfAbsent(name, n -> new AtomicLong())));
+	}
+
+	private void fireNodeAdded(final String nodeId) {
+		if (this.nodeListener != null) {
+			this.vertx.executeBlocking(p -> {
+				this.nodeListener.nodeAdded(nodeId);
+				p.complete();
+			}, false);
+		}
+	}
+
+	private void fireNodeLeft(final String nodeId) {
+		if (this.nodeListener != null) {
+			this.vertx.executeBlocking(p -> {
+				this.nodeListener.nodeLeft(nodeId);
+				p.complete();
+			}, false);
+		}
+	}
+
+	private static List<RegistrationInfo> getRegistrations(final String address) {
+		synchronized (LocalClusterManager.REGISTRATIONS) {
+			final List<RegistrationInfo> infos = LocalClusterManager.REGISTRATIONS.get(address);
+			return infos == null ? Collections.emptyList() : new ArrayList<>(infos);
+		}
+	}
+
+	private static void fireRegistrationsUpdated(final String address) {
+		final RegistrationUpdateEvent event
+				= new RegistrationUpdateEvent(address, LocalClusterManager.getRegistrations(address));
+		for (final LocalClusterManager node : LocalClusterManager.NODES.values()) {
+			if (node.nodeSelector.wantsUpdatesFor(address)) {
+				node.nodeSelector.registrationsUpdated(event);
+			}
+		}
+	}
+
+	/**
+	 * Async view of a map shared by all nodes
+	 */
+	private static class LocalAsyncMap<K, V> implements AsyncMap<K, V> {
+		private final Vertx vertx;
+		private final Map<K, V> map;
+
+		private LocalAsyncMap(final Vertx vertx, final Map<K, V> map) {
+			this.vertx = vertx;
+			this.map = map;
+		}
+
+		private void expire(final K k, final V v, final long ttl) {
+			this.vertx.setTimer(ttl, id -> this.map.remove(k, v));
+		}
+
+		@Override
+		public Future<V> get(final K k) {
+			return Future.succeededFuture(this.map.get(k));
+		}
+
+		@Override
+		public Future<Void> put(final K k, final V v) {
+			this.map.put(k, v);
+			return Future.succeededFuture();
+		}
+
+		@Override
+		public Future<Void> put(final K k, final V v, final long ttl) {
+			this.map.put(k, v);
+			this.expire(k, v, ttl);
+			return Future.succeededFuture();
+		}
+
+		@Override
+		public Future<V> putIfAbsent(final K k, final V v) {
+			return Future.succeededFuture(this.map.putIfAbsent(k, v));
+		}
+
+		@Override
+		public Future<V> putIfAbsent(final K k, final V v, final long ttl) {
+			final V previous = this.map.putIfAbsent(k, v);
+			if (previous == null) {
+				this.expire(k, v, ttl);
+			}
+			return Future.succeededFuture(previous);
+		}
+
+		@Override
+		public Future<V> remove(final K k) {
+			return Future.succeededFuture(this.map.remove(k));
+		}
+
+		@Override
+		public Future<Boolean> removeIfPresent(final K k, final V v) {
+			return Future.succeededFuture(this.map.remove(k, v));
+		}
+
+		@Override
+		public Future<V> replace(final K k, final V v) {
+			return Future.succeededFuture(this.map.replace(k, v));
+		}
+
+		@Override
+		public Future<Boolean> replaceIfPresent(final K k, final V oldValue, final V newValue) {
+			return Future.succeededFuture(this.map.replace(k, oldValue, newValue));
+		}
+
+		@Override
+		public Future<Void> clear() {
+			this.map.clear();
+			return Future.succeededFuture();
+		}
+
+		@Override
+		public Future<Integer> size() {
+			return Future.succeededFuture(this.map.size());
+		}
+
+		@Override
+		public Future<Set<K>> keys() {
+			return Future.succeededFuture(new HashSet<>(this.map.keySet()));
+		}
+
+		@Override
+		public Future<List<V>> values() {
+			return Future.succeededFuture(new ArrayList<>(this.map.values()));
+		}
+
+		@Override
+		public Future<Map<K, V>> entries() {
+			return Future.succeededFuture(new HashMap<>(this.map));
+		}
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import io.vertx.core.MultiMap;
+import me.vinceh121.gmcserver.entities.Record;
+
+/**
+ * Measures building records from upload requests, run with
+ * {@code java -cp <test classpath> gmcserver.RecordBuilderBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordBuilderBenchmark {
+	private MultiMap gmcParams;
+	private String uRadMonitorUrl;
+
+	@Setup
+	public void setup() {
+		this.gmcParams = MultiMap.caseInsensitiveMultiMap();
+		this.gmcParams.add("AID", "123456");
+		this.gmcParams.add("GID", "654321");
+		this.gmcParams.add("CPM", "23");
+		this.gmcParams.add("ACPM", "21.5");
+		this.gmcParams.add("uSV", "0.15");
+		this.gmcParams.add("lat", "1.123");
+		this.gmcParams.add("lon", "3.21");
+		this.gmcParams.add("alt", "350.5");
+
+		this.uRadMonitorUrl = "/01/1600000000/02/21.5/03/101325/04/45/07/415/08/0.01/0B/23";
+	}
+
+	@Benchmark
+	public Record gmc() {
+		return new Record.Builder().withGmcParams(this.gmcParams).withGmcPosition(this.gmcParams).build();
+	}
+
+	@Benchmark
+	public Record uRadMonitor() {
+		return new Record.Builder().withURadMonitorUrl(this.uRadMonitorUrl).build();
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(RecordBuilderBenchmark.class.getSimpleName()).build()).run();
+	}
+}
@@ -0,0 +1,108 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.buffer.Buffer;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.event.EntityCodec;
+import me.vinceh121.gmcserver.event.RecordCodec;
+import me.vinceh121.gmcserver.json.MongoJackson;
+
+/**
+ * Compares the JSON and binary event bus codecs for records, run with
+ * {@code java -cp <test classpath> gmcserver.RecordCodecBenchmark}
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordCodecBenchmark {
+	private final EntityCodec<Record> jsonCodec = new EntityCodec<>(Record.class);
+	private final RecordCodec binaryCodec = new RecordCodec();
+	private Record record;
+	private Buffer json, binary;
+
+	@Setup
+	public void setup() {
+		MongoJackson.registerSerializers();
+		this.record = new Record();
+		this.record.setDeviceId(this.record.getId());
+		this.record.setDate(new Date());
+		this.record.setCpm(23);
+		this.record.setAcpm(21.5);
+		this.record.setUsv(0.15);
+		this.record.setType("gmc");
+		this.record.setIp("192.0.2.1");
+		this.record.setLocation(new Point(new Position(3.21, 1.123, 350.5)));
+
+		this.json = Buffer.buffer();
+		this.jsonCodec.encodeToWire(this.json, this.record);
+		this.binary = Buffer.buffer();
+		this.binaryCodec.encodeToWire(this.binary, this.record);
+	}
+
+	@Benchmark
+	public Buffer encodeJson() {
+		final Buffer buf = Buffer.buffer(256);
+		this.jsonCodec.encodeToWire(buf, this.record);
+		return buf;
+	}
+
+	@Benchmark
+	public Buffer encodeBinary() {
+		final Buffer buf = Buffer.buffer(256);
+		this.binaryCodec.encodeToWire(buf, this.record);
+		return buf;
+	}
+
+	@Benchmark
+	public Record decodeJson() {
+		return this.jsonCodec.decodeFromWire(0, this.json);
+	}
+
+	@Benchmark
+	public Record decodeBinary() {
+		return this.binaryCodec.decodeFromWire(0, this.binary);
+	}
+
+	public static void main(final String[] args) throws RunnerException {
+		new Runner(new OptionsBuilder().include(RecordCodecBenchmark.class.getSimpleName()).build()).run();
+	}
+}
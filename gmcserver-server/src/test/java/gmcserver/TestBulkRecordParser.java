@@ -0,0 +1,87 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.Date;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.ingest.BulkRecordParser;
+import me.vinceh121.gmcserver.ingest.BulkRecordParser.Format;
+
+class TestBulkRecordParser {
+	private static final ObjectId DEVICE_ID = new ObjectId("5f2a6e3c8c1b2a0d4e9f1a2b");
+
+	@Test
+	void ndjson() {
+		final BulkRecordParser parser = new BulkRecordParser(Format.NDJSON);
+		final Record rec = parser.parse("{\"deviceId\":\"5f2a6e3c8c1b2a0d4e9f1a2b\",\"date\":1600000000000,\"cpm\":23,"
+				+ "\"usv\":0.15,\"type\":\"gprs\",\"location\":[3.21,1.123]}");
+
+		Assertions.assertEquals(TestBulkRecordParser.DEVICE_ID, rec.getDeviceId());
+		Assertions.assertEquals(new Date(1600000000000L), rec.getDate());
+		Assertions.assertEquals(23D, rec.getCpm());
+		Assertions.assertEquals(0.15D, rec.getUsv());
+		Assertions.assertTrue(Double.isNaN(rec.getAcpm()));
+		Assertions.assertEquals("gprs", rec.getType());
+		Assertions.assertEquals(new Point(new Position(3.21, 1.123)), rec.getLocation());
+		Assertions.assertNull(parser.parse("  "));
+	}
+
+	@Test
+	void ndjsonInvalid() {
+		final BulkRecordParser parser = new BulkRecordParser(Format.NDJSON);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("{\"deviceId\":"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("{\"date\":1600000000000}"));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> parser.parse("{\"deviceId\":\"5f2a6e3c8c1b2a0d4e9f1a2b\"}"));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> parser.parse("{\"deviceId\":\"5f2a6e3c8c1b2a0d4e9f1a2b\",\"date\":1,\"cpm\":\"a\"}"));
+	}
+
+	@Test
+	void csv() {
+		final BulkRecordParser parser = new BulkRecordParser(Format.CSV);
+		Assertions.assertNull(parser.parse("deviceId,DATE,cpm,acpm,lon,lat,alt"));
+
+		final Record rec = parser.parse("5f2a6e3c8c1b2a0d4e9f1a2b,1600000000000,23,,3.21,1.123,350.5");
+		Assertions.assertEquals(TestBulkRecordParser.DEVICE_ID, rec.getDeviceId());
+		Assertions.assertEquals(new Date(1600000000000L), rec.getDate());
+		Assertions.assertEquals(23D, rec.getCpm());
+		Assertions.assertTrue(Double.isNaN(rec.getAcpm()));
+		Assertions.assertEquals(new Point(new Position(3.21, 1.123, 350.5)), rec.getLocation());
+
+		Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("5f2a6e3c8c1b2a0d4e9f1a2b,1,23"));
+		Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse(",1,23,,,,"));
+	}
+
+	@Test
+	void csvUnknownColumn() {
+		final BulkRecordParser parser = new BulkRecordParser(Format.CSV);
+		Assertions.assertThrows(IllegalArgumentException.class, () -> parser.parse("deviceId,date,foo"));
+		Assertions.assertTrue(parser.isHeaderInvalid());
+		// not read as a header again
+		Assertions.assertThrows(IllegalStateException.class, () -> parser.parse("deviceId,date,cpm"));
+	}
+}
@@ -0,0 +1,91 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.VertxOptions;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.event.RecordCodec;
+import me.vinceh121.gmcserver.json.MongoJackson;
+
+class TestCluster {
+	private Vertx nodeA, nodeB;
+
+	@BeforeEach
+	void setup() throws Exception {
+		MongoJackson.registerSerializers();
+		this.nodeA = TestCluster.startNode();
+		this.nodeB = TestCluster.startNode();
+	}
+
+	@AfterEach
+	void teardown() throws Exception {
+		this.nodeA.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+		this.nodeB.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void testRecordFanOut() throws Exception {
+		final Record rec = new Record();
+		rec.setDeviceId(rec.getId());
+		rec.setCpm(42);
+		rec.setUsv(0.27);
+		rec.setDate(new Date(1600000000000L));
+		rec.setLocation(new Point(new Position(3.21, 1.123, 350.5)));
+
+		final CompletableFuture<Record> received = new CompletableFuture<>();
+		final CompletableFuture<Void> registered = new CompletableFuture<>();
+		this.nodeB.eventBus()
+			.<Record>consumer("test.record", msg -> received.complete(msg.body()))
+			.completionHandler(res -> registered.complete(null));
+		registered.get(10, TimeUnit.SECONDS);
+
+		this.nodeA.eventBus().publish("test.record", rec);
+
+		final Record got = received.get(10, TimeUnit.SECONDS);
+		Assertions.assertNotSame(rec, got, "went through the wire");
+		Assertions.assertEquals(rec.getId(), got.getId(), "id");
+		Assertions.assertEquals(rec.getDeviceId(), got.getDeviceId(), "deviceId");
+		Assertions.assertEquals(rec.getDate(), got.getDate(), "date");
+		Assertions.assertEquals(rec.getLocation(), got.getLocation(), "location");
+		for (final String field : Record.STAT_FIELDS) {
+			Assertions.assertEquals(rec.getStatField(field), got.getStatField(field), field);
+		}
+	}
+
+	private static Vertx startNode() throws Exception {
+		final VertxOptions options = new VertxOptions().setClusterManager(new LocalClusterManager());
+		options.getEventBusOptions().setHost("127.0.0.1");
+		final Vertx vertx = Vertx.clusteredVertx(options).toCompletionStage().toCompletableFuture().get(10,
+				TimeUnit.SECONDS);
+		vertx.eventBus().registerDefaultCodec(Record.class, new RecordCodec());
+		return vertx;
+	}
+}
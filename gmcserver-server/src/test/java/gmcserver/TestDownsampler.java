@@ -0,0 +1,157 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.timeline.LttbDownsampler;
+import me.vinceh121.gmcserver.timeline.MinMaxDownsampler;
+import me.vinceh121.gmcserver.timeline.TimelineDownsampler;
+
+class TestDownsampler {
+	/**
+	 * @return records one second apart with a sine wave as CPM, newest first
+	 */
+	private List<Record> timeline(final int size) {
+		final List<Record> recs = new ArrayList<>(size);
+		for (int i = size - 1; i >= 0; i--) {
+			final Record rec = new Record();
+			rec.setDate(new Date(1000L * i));
+			rec.setCpm(20 + 10 * Math.sin(i / 10d));
+			recs.add(rec);
+		}
+		return recs;
+	}
+
+	private List<Record> downsample(final String mode, final List<Record> recs, final int points) {
+		final List<Record> out = new ArrayList<>();
+		final TimelineDownsampler sampler = TimelineDownsampler.create(mode,
+				recs.get(0).getDate().getTime(),
+				recs.get(recs.size() - 1).getDate().getTime(),
+				points,
+				"cpm",
+				out::add);
+		recs.forEach(sampler::add);
+		sampler.end();
+		return out;
+	}
+
+	private void assertDescending(final List<Record> recs) {
+		for (int i = 1; i < recs.size(); i++) {
+			Assertions.assertTrue(recs.get(i - 1).getDate().after(recs.get(i).getDate()), "Not in descending order");
+		}
+	}
+
+	@Test
+	void lttb() {
+		final List<Record> recs = this.timeline(1000);
+		for (final int points : new int[] { 3, 4, 10, 100, 999 }) {
+			final List<Record> out = this.downsample(TimelineDownsampler.MODE_LTTB, recs, points);
+			Assertions.assertTrue(out.size() <= points, "Too many points for " + points + ": " + out.size());
+			Assertions.assertTrue(out.size() >= points - 1, "Too few points for " + points + ": " + out.size());
+			Assertions.assertSame(recs.get(0), out.get(0));
+			Assertions.assertSame(recs.get(recs.size() - 1), out.get(out.size() - 1));
+			this.assertDescending(out);
+		}
+	}
+
+	@Test
+	void lttbSmallPoints() {
+		final List<Record> recs = this.timeline(100);
+		for (final int points : new int[] { 1, 2 }) {
+			final List<Record> out = this.downsample(TimelineDownsampler.MODE_LTTB, recs, points);
+			Assertions.assertEquals(2, out.size());
+			Assertions.assertSame(recs.get(0), out.get(0));
+			Assertions.assertSame(recs.get(99), out.get(1));
+		}
+	}
+
+	@Test
+	void lttbFewRecords() {
+		Assertions.assertEquals(1, this.downsample(TimelineDownsampler.MODE_LTTB, this.timeline(1), 10).size());
+		Assertions.assertEquals(2, this.downsample(TimelineDownsampler.MODE_LTTB, this.timeline(2), 10).size());
+		final List<Record> recs = this.timeline(5);
+		Assertions.assertEquals(recs, this.downsample(TimelineDownsampler.MODE_LTTB, recs, 10));
+	}
+
+	@Test
+	void lttbKeepsPeaks() {
+		final List<Record> recs = new ArrayList<>();
+		for (int i = 100; i >= 51; i--) {
+			final Record rec = new Record();
+			rec.setDate(new Date(1000L * i));
+			rec.setCpm(i == 75 ? 1000 : 10);
+			recs.add(rec);
+		}
+		final Record last = new Record();
+		last.setDate(new Date(0));
+		last.setCpm(10);
+		recs.add(last);
+
+		final List<Record> out = this.downsample(TimelineDownsampler.MODE_LTTB, recs, 4);
+		Assertions.assertTrue(out.contains(recs.get(25)), "Peak dropped");
+		Assertions.assertSame(recs.get(0), out.get(0));
+		Assertions.assertSame(last, out.get(out.size() - 1));
+	}
+
+	@Test
+	void minMaxSkipsNaN() {
+		final List<Record> recs = this.timeline(1000);
+		recs.get(0).setCpm(Double.NaN);
+		recs.get(1).setCpm(1000);
+		final List<Record> out = this.downsample(TimelineDownsampler.MODE_MIN_MAX, recs, 2);
+		Assertions.assertFalse(out.contains(recs.get(0)));
+		Assertions.assertTrue(out.contains(recs.get(1)));
+	}
+
+	@Test
+	void minMax() {
+		final List<Record> recs = this.timeline(1000);
+		for (final int points : new int[] { 2, 3, 10, 100, 999 }) {
+			final List<Record> out = this.downsample(TimelineDownsampler.MODE_MIN_MAX, recs, points);
+			Assertions.assertTrue(out.size() <= points, "Too many points for " + points + ": " + out.size());
+			this.assertDescending(out);
+		}
+	}
+
+	@Test
+	void minMaxKeepsPeaks() {
+		final List<Record> recs = this.timeline(1000);
+		recs.get(500).setCpm(1000);
+		recs.get(501).setCpm(-1000);
+		final List<Record> out = this.downsample(TimelineDownsampler.MODE_MIN_MAX, recs, 10);
+		Assertions.assertTrue(out.contains(recs.get(500)));
+		Assertions.assertTrue(out.contains(recs.get(501)));
+	}
+
+	@Test
+	void unknownMode() {
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> TimelineDownsampler.create("other", 1, 0, 10, "cpm", r -> {}));
+		Assertions.assertTrue(TimelineDownsampler.create(TimelineDownsampler.MODE_LTTB, 1, 0, 10, "cpm",
+				r -> {}) instanceof LttbDownsampler);
+		Assertions.assertTrue(TimelineDownsampler.create(TimelineDownsampler.MODE_MIN_MAX, 1, 0, 10, "cpm",
+				r -> {}) instanceof MinMaxDownsampler);
+	}
+}
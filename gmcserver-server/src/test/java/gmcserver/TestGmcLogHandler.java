@@ -0,0 +1,189 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.json.JsonObject;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.handlers.GmcLogHandler;
+import me.vinceh121.gmcserver.managers.CredentialsManager.Status;
+import me.vinceh121.gmcserver.modules.LoggingModule;
+
+class TestGmcLogHandler {
+	private static final String[] NAMES = { "aid", "cpm", "type", "lat" };
+	private final List<Record> inserted = new Vector<>();
+	private final Device device = new Device();
+	private Vertx vertx;
+	private HttpServer server;
+	private HttpClient client;
+	private boolean failInserts;
+
+	@BeforeEach
+	void setup() throws InterruptedException, ExecutionException, TimeoutException {
+		this.vertx = Vertx.vertx();
+		final GMCServer srv = Mockito.mock(GMCServer.class);
+		Mockito.when(srv.getConfig()).thenReturn(new Properties());
+
+		// user 123 owns device 456, user 1 doesn't exist
+		IngestMocks.mockCredentials(srv, this.device, (gmcUserId, gmcDeviceId) -> {
+			if (gmcUserId == 1) {
+				return Status.UNKNOWN_USER;
+			}
+			return gmcUserId == 123 && gmcDeviceId == 456 ? Status.OK : Status.NOT_OWNED;
+		});
+		IngestMocks.mockInserts(srv, this.inserted, rec -> this.failInserts);
+
+		this.server = this.get(this.vertx.createHttpServer()
+			.requestHandler(new GmcLogHandler(srv, req -> req.response().setStatusCode(418).end()))
+			.listen(0, "127.0.0.1"));
+		this.client = this.vertx.createHttpClient();
+	}
+
+	@AfterEach
+	void close() throws InterruptedException, ExecutionException, TimeoutException {
+		this.get(this.vertx.close());
+	}
+
+	@Test
+	void log2() throws InterruptedException, ExecutionException, TimeoutException {
+		final HttpClientResponse res
+				= this.request("/log2.asp?AID=123&GID=456&CPM=23&ACPM=21.5&uSV=0.15&lat=1.5&lon=2.5", null);
+		Assertions.assertEquals(200, res.statusCode());
+		Assertions.assertEquals("text/plain", res.getHeader("Content-Type"));
+		Assertions.assertEquals(LoggingModule.ERROR_OK, this.get(res.body()).toString());
+
+		Assertions.assertEquals(1, this.inserted.size());
+		final Record rec = this.inserted.get(0);
+		Assertions.assertEquals(this.device.getId(), rec.getDeviceId());
+		Assertions.assertEquals(23D, rec.getCpm());
+		Assertions.assertEquals(21.5D, rec.getAcpm());
+		Assertions.assertEquals(0.15D, rec.getUsv());
+		Assertions.assertEquals(2.5D, rec.getLocation().getCoordinates().getValues().get(0));
+		Assertions.assertEquals(1.5D, rec.getLocation().getCoordinates().getValues().get(1));
+		Assertions.assertTrue(Double.isNaN(rec.getCo2()));
+	}
+
+	@Test
+	void classicLog() throws InterruptedException, ExecutionException, TimeoutException {
+		final HttpClientResponse res = this.request("/api/v1/log.asp?id=123+456+23+21.5", null);
+		Assertions.assertEquals(200, res.statusCode());
+		Assertions.assertEquals(LoggingModule.ERROR_OK, this.get(res.body()).toString());
+		Assertions.assertEquals(1, this.inserted.size());
+		Assertions.assertEquals(23D, this.inserted.get(0).getCpm());
+		Assertions.assertEquals(21.5D, this.inserted.get(0).getAcpm());
+		Assertions.assertTrue(Double.isNaN(this.inserted.get(0).getUsv()));
+	}
+
+	@Test
+	void errors() throws InterruptedException, ExecutionException, TimeoutException {
+		this.assertText(400, LoggingModule.ERROR_USER_ID, "/log2.asp?GID=456&CPM=23");
+		this.assertText(400, LoggingModule.ERROR_DEVICE_ID, "/log2.asp?AID=123&GID=abc&CPM=23");
+		this.assertText(400, LoggingModule.ERROR_SYNTAX, "/log2.asp?AID=123&GID=456&CPM=abc");
+		this.assertText(400, LoggingModule.ERROR_SYNTAX, "/log.asp?id=123+456");
+		this.assertText(404, LoggingModule.ERROR_USER_ID, "/log2.asp?AID=1&GID=456&CPM=23");
+		this.assertText(403, LoggingModule.ERROR_DEVICE_NOT_OWNED, "/log.asp?id=123+789+23");
+		Assertions.assertEquals(0, this.inserted.size());
+
+		this.failInserts = true;
+		this.assertText(500, "Database down.ERR9999", "/log2.asp?AID=123&GID=456&CPM=23");
+	}
+
+	@Test
+	void jsonErrors() throws InterruptedException, ExecutionException, TimeoutException {
+		final HttpClientResponse res = this.request("/log2.asp?AID=123&GID=789&CPM=23", "application/json");
+		Assertions.assertEquals(403, res.statusCode());
+		Assertions.assertEquals("application/json", res.getHeader("Content-Type"));
+		Assertions.assertEquals(new JsonObject().put("status", 403)
+			.put("description", LoggingModule.ERROR_DEVICE_NOT_OWNED)
+			.putNull("extras"), this.get(res.body()).toJsonObject());
+
+		final HttpClientResponse ok = this.request("/log2?AID=123&GID=456&CPM=23", "application/json");
+		Assertions.assertEquals(200, ok.statusCode());
+		Assertions.assertEquals(LoggingModule.ERROR_OK, this.get(ok.body()).toJsonObject().getString("description"));
+	}
+
+	@Test
+	void otherRequests() throws InterruptedException, ExecutionException, TimeoutException {
+		Assertions.assertEquals(418, this.request("/api/v1/device/abc", null).statusCode());
+		Assertions.assertEquals(418,
+				this.get(this.client.request(HttpMethod.POST, this.server.actualPort(), "127.0.0.1", "/log2.asp")
+					.compose(req -> req.send())).statusCode());
+		Assertions.assertEquals(0, this.inserted.size());
+	}
+
+	private void assertText(final int status, final String body, final String uri)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		final HttpClientResponse res = this.request(uri, null);
+		Assertions.assertEquals(status, res.statusCode(), uri);
+		Assertions.assertEquals(body, this.get(res.body()).toString(), uri);
+	}
+
+	private HttpClientResponse request(final String uri, final String accept)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		return this.get(this.client.request(HttpMethod.GET, this.server.actualPort(), "127.0.0.1", uri).compose(req -> {
+			if (accept != null) {
+				req.putHeader("Accept", accept);
+			}
+			return req.send();
+		}).compose(res -> res.body().map(body -> res))); // the body must be read on the event loop
+	}
+
+	private <T> T get(final Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+		return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void parseQuery() {
+		final String[] actual
+				= GmcLogHandler.parseQuery("AID=123&GID=456&CPM=23&cpm=1&type=gprs&lat", TestGmcLogHandler.NAMES);
+		Assertions.assertArrayEquals(new String[] { "123", "23", "gprs", "" }, actual);
+	}
+
+	@Test
+	void parseQueryDecodes() {
+		final String[] actual = GmcLogHandler.parseQuery("lat=-1.5&type=a+b%2Fc", TestGmcLogHandler.NAMES);
+		Assertions.assertArrayEquals(new String[] { null, null, "a b/c", "-1.5" }, actual);
+	}
+
+	@Test
+	void parseQueryEmpty() {
+		Assertions.assertArrayEquals(new String[4], GmcLogHandler.parseQuery(null, TestGmcLogHandler.NAMES));
+		Assertions.assertArrayEquals(new String[4], GmcLogHandler.parseQuery("", TestGmcLogHandler.NAMES));
+		Assertions.assertArrayEquals(new String[4], GmcLogHandler.parseQuery("&&aidx=1&=2", TestGmcLogHandler.NAMES));
+	}
+}
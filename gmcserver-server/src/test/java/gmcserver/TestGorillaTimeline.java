@@ -0,0 +1,132 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.streams.WriteStream;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.json.RecordJsonWriter;
+import me.vinceh121.gmcserver.timeline.GorillaTimelineReader;
+import me.vinceh121.gmcserver.timeline.GorillaTimelineWriter;
+
+class TestGorillaTimeline {
+
+	@Test
+	void testRoundTrip() {
+		final Random rng = new Random(42);
+		final Record[] recs = new Record[2500];
+		long date = 1600000000000L;
+		double cpm = 20;
+		for (int i = 0; i < recs.length; i++) {
+			final Record rec = new Record();
+			// timelines are sent newest first
+			date -= 60000 + rng.nextInt(2000);
+			rec.setDate(new Date(date));
+			cpm = i % 10 == 0 ? cpm : Math.max(0, cpm + rng.nextInt(5) - 2);
+			rec.setCpm(cpm);
+			rec.setUsv(cpm * 0.0065);
+			if (i % 3 == 0) {
+				rec.setTmp(rng.nextGaussian() * 10);
+			}
+			recs[i] = rec;
+		}
+
+		final BufferWriteStream out = new BufferWriteStream();
+		final GorillaTimelineWriter writer = new GorillaTimelineWriter(out, 1000);
+		writer.start();
+		for (final Record rec : recs) {
+			writer.write(rec);
+		}
+		writer.end();
+
+		final List<Record> read = new GorillaTimelineReader(out.buffer).read();
+		Assertions.assertEquals(recs.length, read.size(), "count");
+		for (int i = 0; i < recs.length; i++) {
+			Assertions.assertEquals(recs[i].getDate(), read.get(i).getDate(), "date " + i);
+			for (final String field : Record.STAT_FIELDS) {
+				Assertions.assertEquals(recs[i].getStatField(field), read.get(i).getStatField(field), field + " " + i);
+			}
+		}
+
+		int jsonLength = 0;
+		for (final Record rec : recs) {
+			jsonLength += RecordJsonWriter.toBuffer(rec, false).length();
+		}
+		Assertions.assertTrue(out.buffer.length() * 4 < jsonLength,
+				"binary timeline should be much smaller than JSON, " + out.buffer.length() + " >= " + jsonLength);
+	}
+
+	@Test
+	void testEmpty() {
+		final BufferWriteStream out = new BufferWriteStream();
+		final GorillaTimelineWriter writer = new GorillaTimelineWriter(out);
+		writer.start();
+		writer.end();
+		Assertions.assertTrue(new GorillaTimelineReader(out.buffer).read().isEmpty());
+	}
+
+	private static class BufferWriteStream implements WriteStream<Buffer> {
+		private final Buffer buffer = Buffer.buffer();
+
+		@Override
+		public WriteStream<Buffer> exceptionHandler(final Handler<Throwable> handler) {
+			return this;
+		}
+
+		@Override
+		public Future<Void> write(final Buffer data) {
+			this.buffer.appendBuffer(data);
+			return Future.succeededFuture();
+		}
+
+		@Override
+		public void write(final Buffer data, final Handler<AsyncResult<Void>> handler) {
+			this.write(data).onComplete(handler);
+		}
+
+		@Override
+		public void end(final Handler<AsyncResult<Void>> handler) {
+			handler.handle(Future.succeededFuture());
+		}
+
+		@Override
+		public WriteStream<Buffer> setWriteQueueMaxSize(final int maxSize) {
+			return this;
+		}
+
+		@Override
+		public boolean writeQueueFull() {
+			return false;
+		}
+
+		@Override
+		public WriteStream<Buffer> drainHandler(final Handler<Void> handler) {
+			return this;
+		}
+	}
+}
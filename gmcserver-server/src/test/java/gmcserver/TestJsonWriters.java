@@ -0,0 +1,143 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.streams.WriteStream;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.managers.DeviceManager;
+import me.vinceh121.gmcserver.json.DeviceMapJsonWriter;
+import me.vinceh121.gmcserver.json.MongoJackson;
+import me.vinceh121.gmcserver.json.RecordJsonWriter;
+
+class TestJsonWriters {
+	@BeforeAll
+	static void setup() {
+		MongoJackson.registerSerializers();
+	}
+
+	private List<Record> records() {
+		final List<Record> recs = new ArrayList<>();
+
+		// only NaN fields
+		recs.add(new Record());
+
+		final Record full = new Record();
+		full.setId(new ObjectId());
+		full.setDeviceId(new ObjectId());
+		full.setCpm(23);
+		full.setAcpm(21.5);
+		full.setUsv(0.15);
+		full.setCo2(400.25);
+		full.setHcho(0.01);
+		full.setTmp(-4.5);
+		full.setAp(1013.25);
+		full.setHmdt(55);
+		full.setAccy(1.5E-7);
+		full.setDate(new Date(1600000000123L));
+		full.setIp("192.0.2.1");
+		full.setType("gmc");
+		full.setLocation(new Point(new Position(3.21, 1.123, 350.5)));
+		recs.add(full);
+
+		final Record partial = new Record();
+		partial.setId(new ObjectId());
+		partial.setDeviceId(new ObjectId());
+		partial.setCpm(12);
+		partial.setTmp(21.3);
+		partial.setDate(new Date(1600000000000L));
+		partial.setType("safecast");
+		partial.setLocation(new Point(new Position(-0.5, 45.25)));
+		recs.add(partial);
+
+		return recs;
+	}
+
+	@Test
+	void recordJson() {
+		for (final Record rec : this.records()) {
+			Assertions.assertEquals(rec.toJson().encode(), RecordJsonWriter.toBuffer(rec, true).toString(),
+					rec.toString());
+			Assertions.assertEquals(rec.toPublicJson().encode(), RecordJsonWriter.toBuffer(rec, false).toString(),
+					rec.toString());
+		}
+	}
+
+	@Test
+	void lastRecordSnapshot() {
+		for (final Record rec : this.records()) {
+			Assertions.assertEquals(rec.toJson(), DeviceManager.toLastRecordSnapshot(rec).toJson(), rec.toString());
+		}
+	}
+
+	@Test
+	void deviceMapJson() {
+		final List<Device> devices = new ArrayList<>();
+		final JsonArray expected = new JsonArray();
+		final StringBuilder expectedNdjson = new StringBuilder();
+		for (final Record rec : this.records()) {
+			final Device dev = new Device();
+			dev.setId(new ObjectId());
+			dev.setName("Device " + devices.size());
+			dev.setLocation(new Point(new Position(2.35, 48.85 + devices.size())));
+			dev.setLastRecord(rec);
+			devices.add(dev);
+			expected.add(dev.toMapJson());
+			expectedNdjson.append(dev.toMapJson().encode()).append('\n');
+		}
+
+		// small chunks so that devices are split across writes
+		Assertions.assertEquals(expected.encode(), this.writeMap(devices, false, 64));
+		Assertions.assertEquals(expectedNdjson.toString(), this.writeMap(devices, true, 64));
+		Assertions.assertEquals("[]", this.writeMap(new ArrayList<>(), false, 64));
+		Assertions.assertEquals("", this.writeMap(new ArrayList<>(), true, 64));
+	}
+
+	@SuppressWarnings("unchecked")
+	private String writeMap(final List<Device> devices, final boolean ndjson, final int chunkSize) {
+		final Buffer written = Buffer.buffer();
+		final WriteStream<Buffer> stream = Mockito.mock(WriteStream.class);
+		Mockito.when(stream.write(Mockito.any(Buffer.class))).then(inv -> {
+			written.appendBuffer(inv.getArgument(0));
+			return null;
+		});
+
+		final DeviceMapJsonWriter writer = new DeviceMapJsonWriter(stream, ndjson, chunkSize);
+		writer.start();
+		for (final Device dev : devices) {
+			writer.write(dev);
+		}
+		writer.end();
+		return written.toString();
+	}
+}
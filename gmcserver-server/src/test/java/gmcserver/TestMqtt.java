@@ -0,0 +1,166 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import io.netty.handler.codec.mqtt.MqttQoS;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.mqtt.MqttClient;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.ingest.MqttVerticle;
+
+class TestMqtt {
+	private final List<Record> inserted = new Vector<>();
+	private final Device device = new Device();
+	private Vertx vertx;
+	private MqttVerticle verticle;
+
+	@BeforeEach
+	void setup() throws InterruptedException, ExecutionException, TimeoutException {
+		this.vertx = Vertx.vertx();
+		final GMCServer srv = Mockito.mock(GMCServer.class);
+		final Properties props = new Properties();
+		props.setProperty("mqtt.port", "0");
+		Mockito.when(srv.getConfig()).thenReturn(props);
+
+		IngestMocks.mockCredentials(srv, this.device);
+		// records with a negative CPM fail to be inserted
+		IngestMocks.mockInserts(srv, this.inserted, rec -> rec.getCpm() < 0);
+
+		this.verticle = new MqttVerticle(srv);
+		this.vertx.deployVerticle(this.verticle).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@AfterEach
+	void close() throws InterruptedException, ExecutionException, TimeoutException {
+		this.vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void publish() throws InterruptedException, ExecutionException, TimeoutException {
+		final MqttClient client = this.connect();
+		final CompletableFuture<Integer> acked = new CompletableFuture<>();
+		client.publishCompletionHandler(acked::complete);
+
+		final int id = this.get(client.publish("gmc/123/456",
+				Buffer.buffer("CPM=23&ACPM=21.5&uSV=0.15&lat=1.123&lon=3.21"),
+				MqttQoS.AT_LEAST_ONCE,
+				false,
+				false));
+		Assertions.assertEquals(id, acked.get(10, TimeUnit.SECONDS));
+
+		Assertions.assertEquals(1, this.inserted.size());
+		final Record rec = this.inserted.get(0);
+		Assertions.assertEquals(this.device.getId(), rec.getDeviceId());
+		Assertions.assertEquals(23D, rec.getCpm());
+		Assertions.assertEquals(21.5D, rec.getAcpm());
+		Assertions.assertEquals(0.15D, rec.getUsv());
+		Assertions.assertNotNull(rec.getDate());
+		Assertions.assertNotNull(rec.getLocation());
+	}
+
+	@Test
+	void publishJson() throws InterruptedException, ExecutionException, TimeoutException {
+		final MqttClient client = this.connect();
+		final CompletableFuture<Integer> acked = new CompletableFuture<>();
+		client.publishCompletionHandler(acked::complete);
+
+		this.get(client.publish("gmc/123/456", Buffer.buffer("{\"CPM\":23}"), MqttQoS.AT_LEAST_ONCE, false, false));
+		acked.get(10, TimeUnit.SECONDS);
+
+		Assertions.assertEquals(23D, this.inserted.get(0).getCpm());
+	}
+
+	@Test
+	void refused() throws InterruptedException, ExecutionException, TimeoutException {
+		final MqttClient client = this.connect();
+		final List<Integer> acked = new Vector<>();
+		final CompletableFuture<Void> last = new CompletableFuture<>();
+		client.publishCompletionHandler(id -> {
+			acked.add(id);
+			if (acked.size() == 4) {
+				last.complete(null);
+			}
+		});
+
+		// other user's device, device not owned, invalid topic, invalid payload
+		this.get(client.publish("gmc/321/456", Buffer.buffer("CPM=23"), MqttQoS.AT_LEAST_ONCE, false, false));
+		this.get(client.publish("gmc/123/789", Buffer.buffer("CPM=23"), MqttQoS.AT_LEAST_ONCE, false, false));
+		this.get(client.publish("gmc/123", Buffer.buffer("CPM=23"), MqttQoS.AT_LEAST_ONCE, false, false));
+		this.get(client.publish("gmc/123/456", Buffer.buffer("CPM=abc"), MqttQoS.AT_LEAST_ONCE, false, false));
+		last.get(10, TimeUnit.SECONDS);
+
+		Assertions.assertTrue(this.inserted.isEmpty());
+	}
+
+	@Test
+	void failed() throws InterruptedException, ExecutionException, TimeoutException {
+		final MqttClient client = this.connect();
+		final CompletableFuture<Void> closed = new CompletableFuture<>();
+		client.closeHandler(closed::complete);
+		final CompletableFuture<Integer> acked = new CompletableFuture<>();
+		client.publishCompletionHandler(acked::complete);
+
+		// QoS 0 messages are dropped as they won't be sent again
+		this.get(client.publish("gmc/123/456", Buffer.buffer("CPM=-1"), MqttQoS.AT_MOST_ONCE, false, false));
+		this.get(client.publish("gmc/123/456", Buffer.buffer("CPM=-2"), MqttQoS.AT_MOST_ONCE, false, false));
+		this.get(client.publish("gmc/123/456", Buffer.buffer("CPM=23"), MqttQoS.AT_LEAST_ONCE, false, false));
+		acked.get(10, TimeUnit.SECONDS);
+		Assertions.assertEquals(3, this.inserted.size());
+		Assertions.assertFalse(closed.isDone());
+
+		// others are refused by closing the connection
+		this.get(client.publish("gmc/123/456", Buffer.buffer("CPM=-3"), MqttQoS.AT_LEAST_ONCE, false, false));
+		closed.get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void parseTopic() {
+		Assertions.assertArrayEquals(new long[] { 123, 456 }, MqttVerticle.parseTopic("gmc/123/456"));
+		Assertions.assertNull(MqttVerticle.parseTopic("gmc/123/"));
+		Assertions.assertNull(MqttVerticle.parseTopic("gmc/123/456/7"));
+		Assertions.assertNull(MqttVerticle.parseTopic("other/123/456"));
+	}
+
+	private MqttClient connect() throws InterruptedException, ExecutionException, TimeoutException {
+		final MqttClient client = MqttClient.create(this.vertx);
+		this.get(client.connect(this.verticle.getServer().actualPort(), "127.0.0.1"));
+		return client;
+	}
+
+	private <T> T get(final Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+		return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+}
@@ -0,0 +1,87 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import me.vinceh121.gmcserver.geo.QuadTree;
+
+class TestQuadTree {
+
+	@Test
+	void queryMatchesLinearScan() {
+		final Random rng = new Random(42);
+		final QuadTree<Integer> tree = new QuadTree<>();
+		final double[] lons = new double[5000], lats = new double[5000];
+		for (int i = 0; i < lons.length; i++) {
+			// clumps of points, like devices in cities
+			lons[i] = i % 7 == 0 ? 2.35 + rng.nextGaussian() * 0.01 : rng.nextDouble() * 360 - 180;
+			lats[i] = i % 7 == 0 ? 48.85 + rng.nextGaussian() * 0.01 : rng.nextDouble() * 180 - 90;
+			tree.insert(lons[i], lats[i], i);
+		}
+		// duplicate positions must not split forever
+		for (int i = 0; i < 100; i++) {
+			tree.insert(10, 10, lons.length + i);
+		}
+		Assertions.assertEquals(lons.length + 100, tree.size());
+
+		for (int q = 0; q < 200; q++) {
+			final double minLon = rng.nextDouble() * 360 - 180, minLat = rng.nextDouble() * 180 - 90;
+			final double maxLon = minLon + rng.nextDouble() * 40, maxLat = minLat + rng.nextDouble() * 40;
+			final Set<Integer> expected = new HashSet<>();
+			for (int i = 0; i < lons.length; i++) {
+				if (lons[i] >= minLon && lons[i] <= maxLon && lats[i] >= minLat && lats[i] <= maxLat) {
+					expected.add(i);
+				}
+			}
+			if (10 >= minLon && 10 <= maxLon && 10 >= minLat && 10 <= maxLat) {
+				for (int i = 0; i < 100; i++) {
+					expected.add(lons.length + i);
+				}
+			}
+			final List<Integer> actual = new ArrayList<>();
+			tree.query(minLon, minLat, maxLon, maxLat, actual::add);
+			Assertions.assertEquals(expected.size(), actual.size());
+			Assertions.assertEquals(expected, new HashSet<>(actual));
+		}
+	}
+
+	@Test
+	void remove() {
+		final QuadTree<String> tree = new QuadTree<>();
+		for (int i = 0; i < 100; i++) {
+			tree.insert(i, i / 2d, "p" + i);
+		}
+		Assertions.assertFalse(tree.remove(5, 5, "p5"));
+		Assertions.assertTrue(tree.remove(5, 2.5, "p5"));
+		Assertions.assertFalse(tree.remove(5, 2.5, "p5"));
+		Assertions.assertEquals(99, tree.size());
+
+		final List<String> found = new ArrayList<>();
+		tree.query(4, 0, 6, 90, found::add);
+		Assertions.assertEquals(2, found.size());
+		Assertions.assertFalse(found.contains("p5"));
+	}
+}
@@ -21,6 +21,7 @@ import static org.junit.jupiter.api.Assertions.assertEquals;
 
 import java.util.Date;
 
+import org.bson.types.ObjectId;
 import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.Test;
 
@@ -28,7 +29,9 @@ import com.mongodb.client.model.geojson.Point;
 import com.mongodb.client.model.geojson.Position;
 
 import io.vertx.core.MultiMap;
+import io.vertx.core.buffer.Buffer;
 import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.event.RecordCodec;
 
 class TestRecord {
 
@@ -88,4 +91,42 @@ class TestRecord {
 		assertEquals(expected, actual);
 	}
 
+	@Test
+	void fromURadMonitorIgnoresUnsupported() {
+		final Record actual = new Record.Builder().withURadMonitorUrl("/01/123456/03/101325/0B/25.0/0E/105/").build();
+
+		Assertions.assertEquals(new Date(123456000L), actual.getDate());
+		Assertions.assertEquals(25D, actual.getCpm());
+		Assertions.assertTrue(Double.isNaN(actual.getAp()));
+	}
+
+	@Test
+	void fromURadMonitorMalformed() {
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new Record.Builder().withURadMonitorUrl("/01/123456/0B"));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new Record.Builder().withURadMonitorUrl("/FF/1"));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> new Record.Builder().withURadMonitorUrl("/0B/abc"));
+	}
+
+	@Test
+	void binaryCodec() {
+		final Record expected = new Record();
+		expected.setDeviceId(new ObjectId());
+		expected.setDate(new Date(123456789L));
+		expected.setCpm(25);
+		expected.setUsv(0.16D);
+		expected.setType("gmc");
+		expected.setLocation(new Point(new Position(3.21, 1.123)));
+
+		final Buffer buf = Buffer.buffer().appendString("prefix");
+		RecordCodec.encode(buf, expected);
+		final Record actual = RecordCodec.decode(6, buf);
+
+		assertEquals(expected, actual);
+		assertEquals(expected.getId(), actual.getId());
+		Assertions.assertNull(actual.getIp());
+		Assertions.assertTrue(Double.isNaN(actual.getAcpm()));
+	}
 }
@@ -0,0 +1,100 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.types.ObjectId;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.timeline.RecordRing;
+
+class TestRecordRing {
+	private final ObjectId deviceId = new ObjectId();
+
+	@Test
+	void ordering() {
+		final RecordRing ring = new RecordRing(this.deviceId, 4);
+		final Record a = this.record(1000), b = this.record(2000), c = this.record(3000);
+		b.setLocation(new Point(new Position(1.5, 2.5)));
+		b.setType("gmc");
+		ring.add(c);
+		ring.add(a);
+		ring.add(b);
+		ring.add(b);
+		ring.load(Arrays.asList(c, b));
+
+		Assertions.assertEquals(3, ring.size());
+		Assertions.assertEquals(Arrays.asList(c, b, a), ring.query(null, null, 0, false));
+		Assertions.assertEquals(Arrays.asList(a, b), ring.query(null, null, 2, true));
+		Assertions.assertEquals(c, ring.getLatest());
+		Assertions.assertEquals(this.deviceId, ring.getLatest().getDeviceId());
+	}
+
+	@Test
+	void eviction() {
+		final RecordRing ring = new RecordRing(this.deviceId, 4);
+		final List<Record> recs = new ArrayList<>();
+		for (int i = 0; i < 6; i++) {
+			recs.add(this.record(1000 * (i + 1)));
+		}
+		// as read from the database, newest first
+		ring.load(Arrays.asList(recs.get(2), recs.get(1), recs.get(0)));
+		Assertions.assertEquals(3, ring.query(new Date(0), null, 0, false).size());
+
+		ring.add(recs.get(3));
+		ring.add(recs.get(4));
+		ring.add(recs.get(5));
+		Assertions.assertEquals(4, ring.size());
+		Assertions.assertEquals(recs.get(5), ring.getLatest());
+
+		// older records were evicted
+		Assertions.assertNull(ring.query(new Date(0), null, 0, false));
+		Assertions.assertNull(ring.query(null, null, 5, false));
+		Assertions.assertNull(ring.query(null, null, 0, false));
+		Assertions.assertEquals(Arrays.asList(recs.get(5), recs.get(4), recs.get(3)),
+				ring.query(null, null, 3, false));
+		Assertions.assertEquals(Arrays.asList(recs.get(4), recs.get(3)),
+				ring.query(new Date(3500), new Date(5000), 0, false));
+		Assertions.assertEquals(Arrays.asList(recs.get(4)), ring.query(null, new Date(5500), 1, false));
+	}
+
+	@Test
+	void notLoaded() {
+		final RecordRing ring = new RecordRing(this.deviceId, 4);
+		ring.add(this.record(1000));
+		Assertions.assertNull(ring.getLatest());
+		Assertions.assertNull(ring.query(null, null, 1, false));
+	}
+
+	private Record record(final long date) {
+		final Record rec = new Record();
+		rec.setDeviceId(this.deviceId);
+		rec.setDate(new Date(date));
+		rec.setCpm(date / 100);
+		return rec;
+	}
+}
@@ -0,0 +1,231 @@
+/*
+ * GMCServer, lightweight service to log, analyze and proxy Geiger counter data.
+ * Copyright (C) 2020 Vincent Hyvert
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package gmcserver;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+
+import com.mongodb.client.model.geojson.Point;
+import com.mongodb.client.model.geojson.Position;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramSocket;
+import me.vinceh121.gmcserver.GMCServer;
+import me.vinceh121.gmcserver.entities.Device;
+import me.vinceh121.gmcserver.entities.Record;
+import me.vinceh121.gmcserver.ingest.UdpFrame;
+import me.vinceh121.gmcserver.ingest.UdpVerticle;
+
+class TestUdp {
+	private final List<Record> inserted = new Vector<>();
+	private final Device device = new Device();
+	private Vertx vertx;
+	private UdpVerticle verticle;
+	private DatagramSocket socket;
+
+	@BeforeEach
+	void setup() throws InterruptedException, ExecutionException, TimeoutException {
+		this.vertx = Vertx.vertx();
+		final GMCServer srv = Mockito.mock(GMCServer.class);
+		final Properties props = new Properties();
+		props.setProperty("udp.port", "0");
+		Mockito.when(srv.getConfig()).thenReturn(props);
+
+		IngestMocks.mockCredentials(srv, this.device);
+		IngestMocks.mockInserts(srv, this.inserted, rec -> false);
+
+		this.verticle = new UdpVerticle(srv);
+		this.vertx.deployVerticle(this.verticle).toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@AfterEach
+	void close() throws InterruptedException, ExecutionException, TimeoutException {
+		this.vertx.close().toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+
+	@Test
+	void roundTrip() {
+		final Record rec = new Record();
+		rec.setCpm(23);
+		rec.setAcpm(21.5);
+		rec.setUsv(0.15);
+		rec.setDate(new Date(1600000000000L));
+		rec.setLocation(new Point(new Position(3.21, 1.123, 150)));
+
+		final UdpFrame frame = UdpFrame.decode(UdpFrame.encode(123, 456, 4000000000L, 7, true, rec));
+		Assertions.assertEquals(123, frame.getGmcUserId());
+		Assertions.assertEquals(456, frame.getGmcDeviceId());
+		Assertions.assertEquals(4000000000L, frame.getBoot());
+		Assertions.assertEquals(1600000000L, frame.getDate());
+		Assertions.assertEquals(7, frame.getSequence());
+		Assertions.assertTrue(frame.isAckRequested());
+		Assertions.assertEquals(23D, frame.getRecord().getCpm());
+		Assertions.assertEquals(21.5D, frame.getRecord().getAcpm());
+		Assertions.assertEquals(0.15D, frame.getRecord().getUsv());
+		Assertions.assertTrue(Double.isNaN(frame.getRecord().getCo2()));
+		Assertions.assertEquals(rec.getDate(), frame.getRecord().getDate());
+		Assertions.assertEquals(rec.getLocation(), frame.getRecord().getLocation());
+	}
+
+	@Test
+	void roundTrip2d() {
+		final Record rec = new Record();
+		rec.setCpm(23);
+		rec.setAccy(1.5);
+		rec.setLocation(new Point(new Position(3.21, 1.123)));
+
+		final UdpFrame frame = UdpFrame.decode(UdpFrame.encode(123, 456, 7, false, rec));
+		Assertions.assertEquals(-1, frame.getDate());
+		Assertions.assertEquals(-1, frame.getBoot());
+		Assertions.assertFalse(frame.isAckRequested());
+		Assertions.assertEquals(23D, frame.getRecord().getCpm());
+		Assertions.assertEquals(1.5D, frame.getRecord().getAccy());
+		Assertions.assertNotNull(frame.getRecord().getDate());
+		Assertions.assertEquals(rec.getLocation(), frame.getRecord().getLocation());
+	}
+
+	@Test
+	void fieldTable() {
+		// frame encoded by a counter, the bitmask must not depend on Record
+		final Buffer buf = Buffer.buffer()
+			.appendUnsignedByte((short) UdpFrame.VERSION)
+			.appendUnsignedByte((short) 0)
+			.appendLong(123)
+			.appendLong(456)
+			.appendUnsignedInt(7)
+			.appendUnsignedShort(1 | 1 << 2 | 1 << 8)
+			.appendDouble(23)
+			.appendDouble(0.15)
+			.appendDouble(2.5);
+		final Record rec = UdpFrame.decode(buf).getRecord();
+		Assertions.assertEquals(23D, rec.getCpm());
+		Assertions.assertEquals(0.15D, rec.getUsv());
+		Assertions.assertEquals(2.5D, rec.getAccy());
+		Assertions.assertTrue(Double.isNaN(rec.getAcpm()));
+		// the date is set on reception
+		rec.setDate(null);
+		Assertions.assertEquals(buf, UdpFrame.encode(123, 456, 7, false, rec));
+	}
+
+	@Test
+	void invalidFrames() {
+		final Record rec = new Record();
+		rec.setCpm(23);
+		final Buffer valid = UdpFrame.encode(123, 456, 7, false, rec);
+
+		// truncated, trailing bytes, wrong version
+		Assertions.assertThrows(IllegalArgumentException.class, () -> UdpFrame.decode(Buffer.buffer(new byte[10])));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> UdpFrame.decode(valid.getBuffer(0, valid.length() - 1)));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> UdpFrame.decode(valid.copy().appendByte((byte) 0)));
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> UdpFrame.decode(valid.copy().setUnsignedByte(0, (short) 2)));
+		// both location flags
+		Assertions.assertThrows(IllegalArgumentException.class,
+				() -> UdpFrame.decode(valid.copy()
+					.setUnsignedByte(1, (short) (UdpFrame.FLAG_LOCATION | UdpFrame.FLAG_LOCATION_2D))
+					.appendBuffer(Buffer.buffer(new byte[24]))));
+	}
+
+	@Test
+	void send() throws InterruptedException, ExecutionException, TimeoutException {
+		final LinkedBlockingQueue<Buffer> acks = this.client();
+		final Record rec = new Record();
+		rec.setCpm(23);
+		final Buffer frame = UdpFrame.encode(123, 456, 1, true, rec);
+
+		this.send(frame);
+		Assertions.assertEquals(UdpFrame.encodeAck(1, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(1, this.inserted.size());
+		Assertions.assertEquals(this.device.getId(), this.inserted.get(0).getDeviceId());
+		Assertions.assertEquals(23D, this.inserted.get(0).getCpm());
+
+		// retransmission is acked but not inserted again
+		this.send(frame);
+		Assertions.assertEquals(UdpFrame.encodeAck(1, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(1, this.inserted.size());
+	}
+
+	@Test
+	void restartedSequence() throws InterruptedException, ExecutionException, TimeoutException {
+		final LinkedBlockingQueue<Buffer> acks = this.client();
+		final Record rec = new Record();
+		rec.setCpm(23);
+
+		// same sequence after a reboot, told apart by the boot ID
+		this.send(UdpFrame.encode(123, 456, 1, 7, true, rec));
+		Assertions.assertEquals(UdpFrame.encodeAck(7, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		this.send(UdpFrame.encode(123, 456, 2, 7, true, rec));
+		Assertions.assertEquals(UdpFrame.encodeAck(7, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(2, this.inserted.size());
+
+		// or by the date
+		rec.setDate(new Date(1600000000000L));
+		this.send(UdpFrame.encode(123, 456, 7, true, rec));
+		Assertions.assertEquals(UdpFrame.encodeAck(7, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		rec.setDate(new Date(1600000060000L));
+		this.send(UdpFrame.encode(123, 456, 7, true, rec));
+		Assertions.assertEquals(UdpFrame.encodeAck(7, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(4, this.inserted.size());
+	}
+
+	@Test
+	void refused() throws InterruptedException, ExecutionException, TimeoutException {
+		final LinkedBlockingQueue<Buffer> acks = this.client();
+		final Record rec = new Record();
+		rec.setCpm(23);
+
+		this.send(UdpFrame.encode(123, 789, 1, true, rec));
+		Assertions.assertEquals(UdpFrame.encodeAck(1, UdpFrame.STATUS_NOT_OWNED), acks.poll(10, TimeUnit.SECONDS));
+		this.send(Buffer.buffer("CPM=23"));
+		this.send(UdpFrame.encode(123, 456, 2, true, rec));
+		Assertions.assertEquals(UdpFrame.encodeAck(2, UdpFrame.STATUS_OK), acks.poll(10, TimeUnit.SECONDS));
+		Assertions.assertEquals(1, this.inserted.size());
+	}
+
+	private LinkedBlockingQueue<Buffer> client() throws InterruptedException, ExecutionException, TimeoutException {
+		final LinkedBlockingQueue<Buffer> acks = new LinkedBlockingQueue<>();
+		this.socket = this.vertx.createDatagramSocket();
+		this.socket.handler(p -> acks.add(p.data()));
+		this.get(this.socket.listen(0, "127.0.0.1"));
+		return acks;
+	}
+
+	private void send(final Buffer buf) throws InterruptedException, ExecutionException, TimeoutException {
+		this.get(this.socket.send(buf, this.verticle.getSocket().localAddress().port(), "127.0.0.1"));
+	}
+
+	private <T> T get(final Future<T> future) throws InterruptedException, ExecutionException, TimeoutException {
+		return future.toCompletionStage().toCompletableFuture().get(10, TimeUnit.SECONDS);
+	}
+}